@@ -2,7 +2,7 @@
 cd `dirname $0`
 # build the buffer client
 echo Building bufferclient
-javac -target 1.4 -source 1.4 nl/fcdonders/fieldtrip/bufferclient/*.java
+javac -target 1.5 -source 1.5 nl/fcdonders/fieldtrip/bufferclient/*.java
 echo Making bufferclient.jar
 jar cf BufferClient.jar nl/fcdonders/fieldtrip/bufferclient
 
@@ -0,0 +1,488 @@
+/*
+ * Copyright (C) 2010, Stefan Klanke
+ * Donders Institute for Donders Institute for Brain, Cognition and Behaviour,
+ * Centre for Cognitive Neuroimaging, Radboud University Nijmegen,
+ * Kapittelweg 29, 6525 EN Nijmegen, The Netherlands
+ */
+package nl.fcdonders.fieldtrip.bufferclient;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/** Buffer client which does not wait for a response before sending the next request.
+	 Every request returns a BufferFuture right after it was sent; the server answers the
+	 requests of a connection in order, so a receiving thread matches each response with
+	 the oldest request still waiting for one. Any number of threads can share one
+	 connection this way, without one waiting for the round trip of another.
+
+	 Optionally putEvent calls are coalesced: events are collected for at most maxDelay ms
+	 and sent as one PUT_EVT request, see setEventCoalescing. Collected events are always
+	 sent before any other request, so requests keep their order. */
+public class AsyncBufferClient {
+	/** Turns the body of a successful response into the result of its request. */
+	private interface Decoder<T> {
+		T decode(ReceiveBuffer recv, int size) throws IOException;
+	}
+
+	/** A request waiting for its response. */
+	private static abstract class Pending {
+		final short expected;
+
+		Pending(short expected) {
+			this.expected = expected;
+		}
+
+		abstract void completed(ReceiveBuffer recv, int size) throws IOException;
+		abstract void failed(IOException error);
+	}
+
+	private static class Request<T> extends Pending {
+		final Decoder<T> decoder;
+		final BufferFuture<T> future = new BufferFuture<T>();
+
+		Request(short expected, Decoder<T> decoder) {
+			super(expected);
+			this.decoder = decoder;
+		}
+
+		void completed(ReceiveBuffer recv, int size) throws IOException {
+			future.complete(decoder.decode(recv, size));
+		}
+
+		void failed(IOException error) {
+			future.fail(error);
+		}
+	}
+
+	/** Coalesced putEvent calls, sent as one request. */
+	private static class EventBatch extends Pending {
+		final ArrayList<BufferEvent> events = new ArrayList<BufferEvent>();
+		final ArrayList<BufferFuture<BufferEvent>> futures = new ArrayList<BufferFuture<BufferEvent>>();
+
+		EventBatch() {
+			super(BufferClient.PUT_OK);
+		}
+
+		void completed(ReceiveBuffer recv, int size) {
+			for (int i=0;i<events.size();i++) futures.get(i).complete(events.get(i));
+		}
+
+		void failed(IOException error) {
+			for (BufferFuture<BufferEvent> future : futures) future.fail(error);
+		}
+	}
+
+	private static final Decoder<Void> NONE = new Decoder<Void>() {
+		public Void decode(ReceiveBuffer recv, int size) {
+			return null;
+		}
+	};
+
+	private static final Decoder<Header> HEADER = new Decoder<Header>() {
+		public Header decode(ReceiveBuffer recv, int size) {
+			return new Header(recv.buf);
+		}
+	};
+
+	private static final Decoder<SamplesEventsCount> COUNT = new Decoder<SamplesEventsCount>() {
+		public SamplesEventsCount decode(ReceiveBuffer recv, int size) throws IOException {
+			if (size < 8) throw new IOException("Invalid response to WAIT_DAT request");
+			return new SamplesEventsCount(recv.buf.getInt(0), recv.buf.getInt(4));
+		}
+	};
+
+	private static final Decoder<BufferEvent[]> EVENTS = new Decoder<BufferEvent[]>() {
+		public BufferEvent[] decode(ReceiveBuffer recv, int size) throws IOException {
+			int numEvt = BufferEvent.count(recv.buf);
+			if (numEvt < 0) throw new IOException("Invalid event definitions in response.");
+			BufferEvent[] evs = new BufferEvent[numEvt];
+			for (int n=0;n<numEvt;n++) evs[n] = new BufferEvent(recv.buf);
+			return evs;
+		}
+	};
+
+	private static final Decoder<double[][]> DOUBLE_DATA = new Decoder<double[][]>() {
+		public double[][] decode(ReceiveBuffer recv, int size) throws IOException {
+			DataDescription dd = new DataDescription();
+			recv.getDescription(dd, size);
+			double[] flat = new double[dd.nSamples*dd.nChans];
+			recv.toDouble(dd, flat, false);
+			double[][] data = new double[dd.nSamples][dd.nChans];
+			for (int s=0;s<dd.nSamples;s++) System.arraycopy(flat, s*dd.nChans, data[s], 0, dd.nChans);
+			return data;
+		}
+	};
+
+	private static final Decoder<float[][]> FLOAT_DATA = new Decoder<float[][]>() {
+		public float[][] decode(ReceiveBuffer recv, int size) throws IOException {
+			DataDescription dd = new DataDescription();
+			recv.getDescription(dd, size);
+			float[] flat = new float[dd.nSamples*dd.nChans];
+			recv.toFloat(dd, flat, false);
+			float[][] data = new float[dd.nSamples][dd.nChans];
+			for (int s=0;s<dd.nSamples;s++) System.arraycopy(flat, s*dd.nChans, data[s], 0, dd.nChans);
+			return data;
+		}
+	};
+
+	public AsyncBufferClient() {
+		this(ByteOrder.nativeOrder());
+	}
+
+	public AsyncBufferClient(ByteOrder order) {
+		myOrder = order;
+	}
+
+	/** Connects and starts the thread receiving the responses. */
+	public synchronized boolean connect(String hostname, int port) throws IOException {
+		disconnect();
+
+		SocketChannel chan = SocketChannel.open();
+		chan.connect(new InetSocketAddress(hostname, port));
+		if (!chan.isConnected()) return false;
+		chan.socket().setTcpNoDelay(true);
+
+		final SocketChannel connected = chan;
+		synchronized (pending) {
+			sockChan = chan;
+			failure = null;
+		}
+		Thread receiver = new Thread("Fieldtrip Async Buffer Client") {
+			public void run() {
+				receive(connected);
+			}
+		};
+		receiver.setDaemon(true);
+		receiver.start();
+		return true;
+	}
+
+	/** Closes the connection. Requests still waiting for a response fail. */
+	public synchronized void disconnect() throws IOException {
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+		}
+		if (!batch.events.isEmpty()) {
+			batch.failed(new IOException("Disconnected"));
+			batch = new EventBatch();
+		}
+		SocketChannel chan = sockChan;
+		if (chan == null) return;
+		chan.socket().close();
+
+		// the receiver will find the socket closed, do not wait for it
+		closed(chan, new IOException("Disconnected"));
+		synchronized (pending) {
+			sockChan = null;
+		}
+	}
+
+	public synchronized boolean isConnected() {
+		synchronized (pending) {
+			return sockChan != null && failure == null;
+		}
+	}
+
+	/** Collect putEvent calls for at most maxDelay ms, or until maxEvents have been collected,
+		 and send them as one request. maxDelay 0 (the default) sends every event on its own. */
+	public synchronized void setEventCoalescing(int maxDelay, int maxEvents) throws IOException {
+		sendEvents();
+		coalesceDelay = maxDelay;
+		coalesceMax = Math.max(1, maxEvents);
+	}
+
+	/** Sends the events collected by putEvent right away. */
+	public synchronized void flush() throws IOException {
+		sendEvents();
+	}
+
+
+	public synchronized BufferFuture<Header> getHeader() throws IOException {
+		return send(request(BufferClient.GET_HDR, 0), BufferClient.GET_OK, HEADER);
+	}
+
+	public synchronized BufferFuture<Void> putHeader(Header hdr) throws IOException {
+		int bufsize = hdr.getSerialSize();
+		ByteBuffer buf = request(BufferClient.PUT_HDR, bufsize);
+		hdr.serialize(buf);
+		return send(buf, BufferClient.PUT_OK, NONE);
+	}
+
+	public synchronized BufferFuture<float[][]> getFloatData(int first, int last) throws IOException {
+		ByteBuffer buf = request(BufferClient.GET_DAT, 8);
+		buf.putInt(first).putInt(last);
+		return send(buf, BufferClient.GET_OK, FLOAT_DATA);
+	}
+
+	public synchronized BufferFuture<double[][]> getDoubleData(int first, int last) throws IOException {
+		ByteBuffer buf = request(BufferClient.GET_DAT, 8);
+		buf.putInt(first).putInt(last);
+		return send(buf, BufferClient.GET_OK, DOUBLE_DATA);
+	}
+
+	public synchronized BufferFuture<BufferEvent[]> getEvents() throws IOException {
+		return send(request(BufferClient.GET_EVT, 0), BufferClient.GET_OK, EVENTS);
+	}
+
+	public synchronized BufferFuture<BufferEvent[]> getEvents(int first, int last) throws IOException {
+		ByteBuffer buf = request(BufferClient.GET_EVT, 8);
+		buf.putInt(first).putInt(last);
+		return send(buf, BufferClient.GET_OK, EVENTS);
+	}
+
+	/** See BufferClient.getEvents(int, int, String). Java buffer server only. */
+	public synchronized BufferFuture<BufferEvent[]> getEvents(int first, int last, String typePrefix) throws IOException {
+		int len = typePrefix.length();
+		ByteBuffer buf = request(BufferClient.GET_EVT_SEL, 8+len);
+		buf.putInt(first).putInt(last);
+		for (int i=0;i<len;i++) buf.put((byte)typePrefix.charAt(i)); // one byte per char
+		return send(buf, BufferClient.GET_OK, EVENTS);
+	}
+
+	public synchronized BufferFuture<Void> putData(float[][] data) throws IOException {
+		int nSamples = data.length;
+		int nChans = nSamples == 0 ? 0 : data[0].length;
+		ByteBuffer buf = preparePutData(nChans, nSamples, DataType.FLOAT32);
+		FloatBuffer fbuf = buf.asFloatBuffer();
+		for (int i=0;i<nSamples;i++) {
+			if (data[i].length != nChans) throw new IOException("Cannot write non-rectangular data array");
+			fbuf.put(data[i]);
+		}
+		return send(buf, BufferClient.PUT_OK, NONE);
+	}
+
+	public synchronized BufferFuture<Void> putData(double[][] data) throws IOException {
+		int nSamples = data.length;
+		int nChans = nSamples == 0 ? 0 : data[0].length;
+		ByteBuffer buf = preparePutData(nChans, nSamples, DataType.FLOAT64);
+		DoubleBuffer dbuf = buf.asDoubleBuffer();
+		for (int i=0;i<nSamples;i++) {
+			if (data[i].length != nChans) throw new IOException("Cannot write non-rectangular data array");
+			dbuf.put(data[i]);
+		}
+		return send(buf, BufferClient.PUT_OK, NONE);
+	}
+
+	/** Puts an event, or collects it to be sent with others if coalescing is on. The future
+		 completes with e once the server has stored it. */
+	public synchronized BufferFuture<BufferEvent> putEvent(BufferEvent e) throws IOException {
+		if (coalesceDelay <= 0) {
+			ByteBuffer buf = request(BufferClient.PUT_EVT, e.size());
+			e.serialize(buf);
+			final BufferEvent event = e;
+			return send(buf, BufferClient.PUT_OK, new Decoder<BufferEvent>() {
+				public BufferEvent decode(ReceiveBuffer recv, int size) {
+					return event;
+				}
+			});
+		}
+
+		BufferFuture<BufferEvent> future = new BufferFuture<BufferEvent>();
+		batch.events.add(e);
+		batch.futures.add(future);
+		if (batch.events.size() >= coalesceMax) {
+			sendEvents();
+		} else if (batch.events.size() == 1) {
+			scheduleSendEvents();
+		}
+		return future;
+	}
+
+	public synchronized BufferFuture<Void> putEvents(BufferEvent[] e) throws IOException {
+		int bufsize = 0;
+		for (int i=0;i<e.length;i++) bufsize += e[i].size();
+		ByteBuffer buf = request(BufferClient.PUT_EVT, bufsize);
+		for (int i=0;i<e.length;i++) e[i].serialize(buf);
+		return send(buf, BufferClient.PUT_OK, NONE);
+	}
+
+	public synchronized BufferFuture<Void> flushHeader() throws IOException {
+		return send(request(BufferClient.FLUSH_HDR, 0), BufferClient.FLUSH_OK, NONE);
+	}
+
+	public synchronized BufferFuture<Void> flushData() throws IOException {
+		return send(request(BufferClient.FLUSH_DAT, 0), BufferClient.FLUSH_OK, NONE);
+	}
+
+	public synchronized BufferFuture<Void> flushEvents() throws IOException {
+		return send(request(BufferClient.FLUSH_EVT, 0), BufferClient.FLUSH_OK, NONE);
+	}
+
+	/** See BufferClient.wait. Requests sent after this one are answered after it. */
+	public synchronized BufferFuture<SamplesEventsCount> wait(int nSamples, int nEvents, int timeout) throws IOException {
+		ByteBuffer buf = request(BufferClient.WAIT_DAT, 12);
+		buf.putInt(nSamples).putInt(nEvents).putInt(timeout);
+		return send(buf, BufferClient.WAIT_OK, COUNT);
+	}
+
+	public synchronized BufferFuture<SamplesEventsCount> waitForSamples(int nSamples, int timeout) throws IOException {
+		return wait(nSamples, -1, timeout);
+	}
+
+	public synchronized BufferFuture<SamplesEventsCount> waitForEvents(int nEvents, int timeout) throws IOException {
+		return wait(-1, nEvents, timeout);
+	}
+
+	public synchronized BufferFuture<SamplesEventsCount> poll() throws IOException {
+		return wait(0, 0, 0);
+	}
+
+	//*********************************************************************
+	//		private methods and variables from here on
+	//*********************************************************************
+
+	/** Allocates a request of size bytes after the opening, and writes the opening. */
+	private ByteBuffer request(short command, int size) {
+		ByteBuffer buf = ByteBuffer.allocate(8+size);
+		buf.order(myOrder);
+		buf.putShort(BufferClient.VERSION).putShort(command).putInt(size);
+		return buf;
+	}
+
+	private ByteBuffer preparePutData(int nChans, int nSamples, int type) {
+		int bufsize = DataType.wordSize[type]*nSamples*nChans;
+		ByteBuffer buf = request(BufferClient.PUT_DAT, 16+bufsize);
+		buf.putInt(nChans).putInt(nSamples).putInt(type).putInt(bufsize);
+		return buf;
+	}
+
+	/** Sends the collected events first, so requests keep their order, then the request. */
+	private <T> BufferFuture<T> send(ByteBuffer buf, short expected, Decoder<T> decoder) throws IOException {
+		sendEvents();
+		Request<T> req = new Request<T>(expected, decoder);
+		buf.rewind(); // requests are allocated at their exact size
+		submit(buf, req);
+		return req.future;
+	}
+
+	private void sendEvents() throws IOException {
+		if (batch.events.isEmpty()) return;
+		EventBatch sent = batch;
+		batch = new EventBatch();
+
+		int bufsize = 0;
+		for (BufferEvent e : sent.events) bufsize += e.size();
+		ByteBuffer buf = request(BufferClient.PUT_EVT, bufsize);
+		for (BufferEvent e : sent.events) e.serialize(buf);
+		buf.rewind(); // requests are allocated at their exact size
+		try {
+			submit(buf, sent);
+		} catch (IOException e) {
+			sent.failed(e);
+			throw e;
+		}
+	}
+
+	private void scheduleSendEvents() {
+		if (timer == null) timer = new Timer("Fieldtrip Async Buffer Client Events", true);
+		timer.schedule(new TimerTask() {
+			public void run() {
+				synchronized (AsyncBufferClient.this) {
+					try {
+						sendEvents();
+					} catch (IOException e) {
+						// the futures of the events have failed already
+					}
+				}
+			}
+		}, coalesceDelay);
+	}
+
+	/** Queues p for the response and writes the request. */
+	private void submit(ByteBuffer buf, Pending p) throws IOException {
+		SocketChannel chan;
+		synchronized (pending) {
+			if (failure != null) throw failure;
+			if (sockChan == null) throw new IOException("Not connected");
+			chan = sockChan;
+			pending.add(p);
+		}
+		try {
+			while (buf.hasRemaining()) chan.write(buf);
+		} catch (IOException e) {
+			// the stream is broken now, close it so the receiver fails everything
+			chan.socket().close();
+			throw e;
+		}
+	}
+
+	/** Body of the receiving thread: matches every response with the oldest pending request. */
+	private void receive(SocketChannel chan) {
+		ByteBuffer def = ByteBuffer.allocate(8);
+		def.order(myOrder);
+		try {
+			while (true) {
+				def.clear();
+				readAll(chan, def);
+				short ver  = def.getShort(0);
+				short resp = def.getShort(2);
+				int size   = def.getInt(4);
+				if (ver != BufferClient.VERSION) throw new IOException("Invalid VERSION returned : " + ver);
+
+				ByteBuffer body = recv.prepare(size, myOrder);
+				readAll(chan, body);
+				body.rewind();
+
+				Pending p;
+				synchronized (pending) {
+					p = pending.poll();
+				}
+				if (p == null) throw new IOException("Response 0x" + Integer.toHexString(resp) + " without a request");
+				if (resp != p.expected) {
+					p.failed(new IOException("Error returned from FieldTrip buffer server. Expected "
+													 + Integer.toHexString(p.expected) + " got " + Integer.toHexString(resp)));
+					continue;
+				}
+				try {
+					p.completed(recv, size);
+				} catch (IOException e) {
+					p.failed(e);
+				} catch (RuntimeException e) {
+					p.failed(new IOException("Invalid response: " + e));
+				}
+			}
+		} catch (IOException e) {
+			closed(chan, e);
+		}
+	}
+
+	/** Fails all pending requests, and all requests made from now on, with error, unless
+		 chan was replaced by a new connection already. */
+	private void closed(SocketChannel chan, IOException error) {
+		ArrayList<Pending> failed;
+		synchronized (pending) {
+			if (chan != sockChan) return;
+			if (failure == null) failure = error;
+			failed = new ArrayList<Pending>(pending);
+			pending.clear();
+		}
+		for (Pending p : failed) p.failed(error);
+	}
+
+	private static void readAll(SocketChannel chan, ByteBuffer dst) throws IOException {
+		while (dst.hasRemaining()) {
+			if (chan.read(dst) < 0) throw new IOException("Remote side closed connection!");
+		}
+	}
+
+	private final ByteOrder myOrder;
+	private SocketChannel sockChan;  // changed with pending held
+	private final LinkedList<Pending> pending = new LinkedList<Pending>();
+	private IOException failure;     // guarded by pending
+	private final ReceiveBuffer recv = new ReceiveBuffer(); // receiving thread only
+
+	private EventBatch batch = new EventBatch();
+	private int coalesceDelay = 0;
+	private int coalesceMax = Integer.MAX_VALUE;
+	private Timer timer;
+}
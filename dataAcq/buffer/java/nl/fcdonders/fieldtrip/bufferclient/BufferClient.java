@@ -18,6 +18,8 @@ public class BufferClient {
 	public static final short GET_EVT = 0x203;
 	public static final short GET_OK  = 0x204;
 	public static final short GET_ERR = 0x205;
+	public static final short GET_EVT_SEL = 0x206; // java buffer server only
+	public static final short GET_DAT_SEL = 0x207; // java buffer server only
 
 	public static final short PUT_HDR = 0x101;
 	public static final short PUT_DAT = 0x102;
@@ -34,6 +36,21 @@ public class BufferClient {
 	public static final short WAIT_DAT = 0x402;
 	public static final short WAIT_OK  = 0x404;
 	public static final short WAIT_ERR = 0x405;
+	public static final short WAIT_ANY = 0x406; // java buffer server only
+	
+	// subscriptions, java buffer server only
+	public static final short SUBSCRIBE      = 0x501;
+	public static final short UNSUBSCRIBE    = 0x502;
+	public static final short UNSUBSCRIBE_OK = 0x503;
+	public static final short SUBSCRIBE_OK   = 0x504;
+	public static final short SUBSCRIBE_ERR  = 0x505;
+	public static final short PUSH_DAT       = 0x506;
+	public static final short PUSH_EVT       = 0x507;
+
+	// named streams, java buffer server only
+	public static final short SELECT_STREAM = 0x601;
+	public static final short SELECT_OK     = 0x604;
+	public static final short SELECT_ERR    = 0x605;
 
 
 	public BufferClient() {
@@ -59,6 +76,9 @@ public class BufferClient {
 		//System.out.println("Host " + hostname + " port : " + port);
 		sockChan.connect(new InetSocketAddress(hostname, port));
 		activeConnection = sockChan.isConnected();
+		putCompression = 0; // maybe another server
+		stream = ""; // a new connection starts with the default stream
+		if (!hostname.equals(host) || port != this.port) shared = null;
 		if ( activeConnection ) { // cache the connection info
 			 sockChan.socket().setSoTimeout(timeout);
 			 sockChan.socket().setTcpNoDelay(true); //disable Nagle's algorithm...i.e. allow small packets
@@ -120,7 +140,63 @@ public class BufferClient {
 		 return conn;
 	}
 
+	/** Selects the stream of a java buffer server all further requests on this connection
+		 are about; "" is the default stream, which a connection starts with and which servers
+		 without streams have. A stream which does not exist yet is created by putHeader, until
+		 then it has no header. A stream has its own header, samples and events, so one server
+		 can host e.g. an EEG amplifier and an eye tracker. Can not be done while subscribed. */
+	public synchronized void selectStream(String name) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(12 + name.length());
+		buf.order(myOrder);
+		buf.putShort(VERSION).putShort(SELECT_STREAM).putInt(4 + name.length());
+		putString(buf, name);
+		buf.rewind();
+		writeAll(buf);
+		readResponse(SELECT_OK);
+		stream = name;
+	}
+	
+	/** The stream selected with selectStream, "" for the default one. */
+	public synchronized String getStream() { return stream; }
+
+	/** Reads samples from now on straight from the memory of the buffer server, when it runs
+		 on this machine and was started to share its samples (BufferServer -shm, see
+		 SharedRingDataStore). Samples which are not in the shared ring, or are overwritten
+		 while they are read, are asked over the connection as before, as are all other
+		 requests. Only the default stream is shared. Returns false if the server's samples
+		 could not be found. */
+	public synchronized boolean attachSharedMemory() {
+		try {
+			InetAddress addr = InetAddress.getByName(host);
+			if (!addr.isLoopbackAddress() && NetworkInterface.getByInetAddress(addr) == null) return false;
+		} catch (IOException e) {
+			return false;
+		}
+		return attachSharedMemory("/dev/shm/fieldtrip_buffer_" + port);
+	}
+
+	/** As attachSharedMemory(), for a server sharing its samples in the given file. */
+	public synchronized boolean attachSharedMemory(String path) {
+		try {
+			shared = new SharedSampleReader(new File(path));
+		} catch (IOException e) {
+			shared = null;
+		}
+		return shared != null;
+	}
+
+	/** Reads all samples over the connection again. */
+	public synchronized void detachSharedMemory() { shared = null; }
+
+	public synchronized boolean isSharedMemoryAttached() { return shared != null; }
+
 	 // do we try to auto-reconnect if the connection seems to have been closed?
+	 /** Whether integer samples are sent and received delta+varint coded, which takes 1 or 2
+		  bytes per data point for typical EEG instead of 2 to 8. Needs the java buffer server;
+		  putData falls back to uncoded samples when the server refuses them, and a server
+		  which ignores the request for coding just replies with uncoded samples. */
+	 public synchronized boolean getCompression() { return compression; }
+	 public synchronized void setCompression(boolean on) { compression=on; putCompression=0; }
 	 public boolean getAutoReconnect() { return autoReconnect; }
 	 public boolean setAutoReconnect(boolean val){ autoReconnect=val; return autoReconnect; }
 	 public int getTimeout() { return timeout; }
@@ -367,21 +443,100 @@ public class BufferClient {
 	}
 	
 	
+	/** Reads samples first..last into data, converted to float, without allocating.
+		 The samples are stored sample by sample (data[s*nChans+c]), or channel by channel
+		 (data[c*nSamples+s]) if channelMajor. descr is filled with the size and type of the
+		 data as sent by the server. */
+	public synchronized void getFloatData(int first, int last, DataDescription descr, float[] data, boolean channelMajor) throws IOException {
+		getRawDataInto(first, last, descr);
+		recv.toFloat(descr, data, channelMajor);
+	}
+	
+	/** Reads samples first..last into data, converted to double, without allocating.
+		 The samples are stored sample by sample (data[s*nChans+c]), or channel by channel
+		 (data[c*nSamples+s]) if channelMajor. descr is filled with the size and type of the
+		 data as sent by the server. */
+	public synchronized void getDoubleData(int first, int last, DataDescription descr, double[] data, boolean channelMajor) throws IOException {
+		getRawDataInto(first, last, descr);
+		recv.toDouble(descr, data, channelMajor);
+	}
+	
+	/** Reads samples first..last into data like getFloatData(first,last,descr,data,channelMajor),
+		 but has the server send them as FLOAT32 whatever type they are stored as, so the
+		 client only copies them. If scaled each channel is multiplied by its resolution from
+		 the header (CHUNK_RESOLUTIONS), if there is one. Needs the java buffer server. */
+	public synchronized void getFloatData(int first, int last, boolean scaled, DataDescription descr, float[] data, boolean channelMajor) throws IOException {
+		getConvertedDataInto(first, last, DataType.FLOAT32, scaled, descr);
+		recv.toFloat(descr, data, channelMajor);
+	}
+	
+	/** Reads samples first..last into data, sent as FLOAT64 by the server, see
+		 getFloatData(first,last,scaled,descr,data,channelMajor). */
+	public synchronized void getDoubleData(int first, int last, boolean scaled, DataDescription descr, double[] data, boolean channelMajor) throws IOException {
+		getConvertedDataInto(first, last, DataType.FLOAT64, scaled, descr);
+		recv.toDouble(descr, data, channelMajor);
+	}
+	
+	/** Returns the given channels (null for all) of every decimation'th sample of first..last
+		 as [sample][channel], selected by the server so only those are sent. With blockMean
+		 each sample is the mean of decimation samples instead, which reduces aliasing. */
+	public synchronized double[][] getDoubleData(int first, int last, int[] channels, int decimation, boolean blockMean) throws IOException {
+		DataDescription dd = new DataDescription();
+		getSelectedDataInto(first, last, channels, decimation, blockMean, dd);
+		double[] flat = new double[dd.nSamples*dd.nChans];
+		recv.toDouble(dd, flat, false);
+		double[][] data = new double[dd.nSamples][dd.nChans];
+		for (int s=0;s<dd.nSamples;s++) System.arraycopy(flat, s*dd.nChans, data[s], 0, dd.nChans);
+		return data;
+	}
+	
+	/** Reads the selected channels of decimated samples into data, converted to float, see
+		 getDoubleData(first,last,channels,decimation,blockMean) and getFloatData(first,last,descr,data,channelMajor). */
+	public synchronized void getFloatData(int first, int last, int[] channels, int decimation, boolean blockMean, DataDescription descr, float[] data, boolean channelMajor) throws IOException {
+		getSelectedDataInto(first, last, channels, decimation, blockMean, descr);
+		recv.toFloat(descr, data, channelMajor);
+	}
+	
+	/** Reads the selected channels of decimated samples into data, converted to double, see
+		 getDoubleData(first,last,channels,decimation,blockMean) and getDoubleData(first,last,descr,data,channelMajor). */
+	public synchronized void getDoubleData(int first, int last, int[] channels, int decimation, boolean blockMean, DataDescription descr, double[] data, boolean channelMajor) throws IOException {
+		getSelectedDataInto(first, last, channels, decimation, blockMean, descr);
+		recv.toDouble(descr, data, channelMajor);
+	}
+	
 	public synchronized ByteBuffer getRawData(int first, int last, DataDescription descr) throws IOException {
 		ByteBuffer buf;
 
-		buf = ByteBuffer.allocate(16);
-		buf.order(myOrder);
-	
-		buf.putShort(VERSION).putShort(GET_DAT).putInt(8);
-		buf.putInt(first).putInt(last).rewind();
-		writeAll(buf);
+		if (shared != null && stream.length() == 0 && shared.read(first, last, recv)) {
+			recv.getDescription(descr, recv.buf.limit());
+			buf = ByteBuffer.allocate(descr.sizeBytes);
+			buf.order(recv.buf.order());
+			recv.buf.position(16);
+			buf.put(recv.buf);
+			buf.rewind();
+			return buf;
+		}
+		sendGetData(first, last);
 		buf = readResponse(GET_OK);
 		
 		descr.nChans    = buf.getInt();
 		descr.nSamples  = buf.getInt();
 		descr.dataType  = buf.getInt();
 		descr.sizeBytes = buf.getInt();
+		
+		if ((descr.dataType & DataType.DELTA_VARINT) != 0) {
+			int type = descr.dataType & ~DataType.DELTA_VARINT;
+			if (!DeltaVarint.canCode(type) || descr.nChans < 0 || descr.nSamples < 0
+				 || descr.sizeBytes < 0 || descr.sizeBytes > buf.remaining()) {
+				throw new IOException("Invalid size definitions in response from GET DATA request");
+			}
+			ByteBuffer raw = ByteBuffer.allocate(descr.nChans * descr.nSamples * DataType.wordSize[type]);
+			raw.order(myOrder);
+			DeltaVarint.decode(buf.array(), buf.position(), descr.sizeBytes, type, descr.nSamples, descr.nChans, raw, 0);
+			descr.dataType  = type;
+			descr.sizeBytes = raw.capacity();
+			buf = raw;
+		}
 	
 		int dataSize = descr.nChans * descr.nSamples * DataType.wordSize[descr.dataType];
 	
@@ -437,6 +592,65 @@ public class BufferClient {
 		return evs;
 	}
 	
+	/** Returns the events with first <= sample <= last whose type starts with typePrefix,
+		 ordered by sample, as selected by the server. An empty typePrefix matches any type. */
+	public synchronized BufferEvent[] getEvents(int first, int last, String typePrefix) throws IOException {
+		ByteBuffer buf;
+		int len = typePrefix.length();
+
+		buf = ByteBuffer.allocate(16+len);
+		buf.order(myOrder); 
+	
+		buf.putShort(VERSION).putShort(GET_EVT_SEL).putInt(8+len);
+		buf.putInt(first).putInt(last);
+		for (int i=0;i<len;i++) buf.put((byte)typePrefix.charAt(i)); // one byte per char
+		buf.rewind();
+	
+		writeAll(buf);
+		buf = readResponse(GET_OK);
+	
+		int numEvt = BufferEvent.count(buf);
+		if (numEvt < 0) throw new IOException("Invalid event definitions in response.");
+	
+		BufferEvent[] evs = new BufferEvent[numEvt];
+		for (int n=0;n<numEvt;n++) {
+			evs[n] = new BufferEvent(buf);
+		}
+		return evs;
+	}
+	
+	/** Subscribes to the samples and events arriving from now on, see the full version. */
+	public synchronized BufferSubscription subscribe(int blockSize, int[] channels, String eventTypePrefix) throws IOException {
+		return subscribe(blockSize, -1, channels, eventTypePrefix, -1);
+	}
+	
+	/** Subscribes to data and events, which the server then pushes as they arrive: blocks of
+		 blockSize samples (0 for no data) of the selected channels (null for all), starting at
+		 firstSample, and the events from firstEvent on whose type starts with eventTypePrefix
+		 (null for no events, "" for all). -1 starts at the next sample or event to arrive.
+		 They are received through the returned subscription; until it has ended this
+		 connection should not be used for anything else. Java buffer server only. */
+	public synchronized BufferSubscription subscribe(int blockSize, int firstSample, int[] channels,
+																	 String eventTypePrefix, int firstEvent) throws IOException {
+		int nSel = channels == null ? 0 : channels.length;
+		int len = eventTypePrefix == null ? 0 : eventTypePrefix.length();
+		int size = 20 + 4*nSel + len;
+		
+		ByteBuffer buf = ByteBuffer.allocate(8+size);
+		buf.order(myOrder);
+		buf.putShort(VERSION).putShort(SUBSCRIBE).putInt(size);
+		buf.putInt(blockSize).putInt(firstSample);
+		buf.putInt(eventTypePrefix != null ? 1 : 0).putInt(firstEvent);
+		buf.putInt(nSel);
+		for (int i=0;i<nSel;i++) buf.putInt(channels[i]);
+		for (int i=0;i<len;i++) buf.put((byte)eventTypePrefix.charAt(i)); // one byte per char
+		buf.rewind();
+		
+		writeAll(buf);
+		readResponse(SUBSCRIBE_OK);
+		return new BufferSubscription(this);
+	}
+	
 	public synchronized void putRawData(int nSamples, int nChans, int dataType, byte[] data) throws IOException {
 		if (nSamples == 0) return;
 		if (nChans == 0) return;
@@ -447,9 +661,7 @@ public class BufferClient {
 		
 		ByteBuffer buf = preparePutData(nChans, nSamples, dataType);
 		buf.put(data);
-		buf.rewind();
-		writeAll(buf);
-		readResponse(PUT_OK);
+		sendPutData(buf);
 	}	
 	
 	public synchronized void putData(byte[][] data) throws IOException {
@@ -468,9 +680,7 @@ public class BufferClient {
 		for (int i=0;i<nSamples;i++) {
 			buf.put(data[i]);
 		}
-		buf.rewind();
-		writeAll(buf);
-		readResponse(PUT_OK);
+		sendPutData(buf);
 	}
 	
 	public synchronized void putData(short[][] data) throws IOException {
@@ -491,9 +701,7 @@ public class BufferClient {
 		for (int i=0;i<nSamples;i++) {
 			 sbuf.put(data[i]);
 		}
-		buf.rewind();
-		writeAll(buf);
-		readResponse(PUT_OK);
+		sendPutData(buf);
 	}	
 	
 	public synchronized void putData(int[][] data) throws IOException {
@@ -513,9 +721,7 @@ public class BufferClient {
 		for (int i=0;i<nSamples;i++) {
 			ibuf.put(data[i]);
 		}
-		buf.rewind();
-		writeAll(buf);
-		readResponse(PUT_OK);
+		sendPutData(buf);
 	}
 	
 	public synchronized void putData(long[][] data) throws IOException {
@@ -535,9 +741,7 @@ public class BufferClient {
 		for (int i=0;i<nSamples;i++) {
 			lbuf.put(data[i]);
 		}
-		buf.rewind();
-		writeAll(buf);
-		readResponse(PUT_OK);
+		sendPutData(buf);
 	}	
 		
 	public synchronized void putData(float[][] data) throws IOException {
@@ -557,9 +761,7 @@ public class BufferClient {
 		for (int i=0;i<nSamples;i++) {
 			fbuf.put(data[i]);
 		}
-		buf.rewind();
-		writeAll(buf);
-		readResponse(PUT_OK);
+		sendPutData(buf);
 	}	
 	
 	 // 1-d data version.  Mostly for Octave calls, but useful in other cases
@@ -571,9 +773,7 @@ public class BufferClient {
 		  }		  
 		  ByteBuffer buf = preparePutData(nChans, nSamples, DataType.FLOAT64);
 		  buf.asDoubleBuffer().put(data);
-		  buf.rewind();
-		  writeAll(buf);
-		  readResponse(PUT_OK);
+		  sendPutData(buf);
 		  return;
 	 }
 	 
@@ -594,9 +794,7 @@ public class BufferClient {
 		for (int i=0;i<nSamples;i++) {
 			dbuf.put(data[i]);
 		}
-		buf.rewind();
-		writeAll(buf);
-		readResponse(PUT_OK);
+		sendPutData(buf);
 	}	
 
 	public synchronized BufferEvent putEvent(BufferEvent e) throws IOException {
@@ -692,6 +890,32 @@ public class BufferClient {
 		return new SamplesEventsCount(buf.getInt(), buf.getInt());
 	}
 	
+	/** Waits until any of the given streams of a java buffer server has more than nSamples[i]
+		 samples or more than nEvents[i] events (-1 to ignore either), or timeout ms have passed.
+		 Returns the number of samples and events of each stream, in the same order; a stream
+		 without header has 0 samples. Fails if a stream does not exist. A timeout of 0 just
+		 polls all streams. */
+	public synchronized SamplesEventsCount[] waitForAny(String[] streams, int[] nSamples, int[] nEvents, int timeout) throws IOException {
+		int size = 8;
+		for (int i=0;i<streams.length;i++) size += 12 + streams[i].length();
+		ByteBuffer buf = ByteBuffer.allocate(8+size);
+		buf.order(myOrder);
+		buf.putShort(VERSION).putShort(WAIT_ANY).putInt(size);
+		buf.putInt(timeout).putInt(streams.length);
+		for (int i=0;i<streams.length;i++) {
+			putString(buf, streams[i]);
+			buf.putInt(nSamples[i]).putInt(nEvents[i]);
+		}
+		buf.rewind();
+		writeAll(buf);
+		buf = readResponse(WAIT_OK);
+		
+		if (buf.capacity() != 8*streams.length) throw new IOException("Invalid response to WAIT_ANY request");
+		SamplesEventsCount[] counts = new SamplesEventsCount[streams.length];
+		for (int i=0;i<streams.length;i++) counts[i] = new SamplesEventsCount(buf.getInt(), buf.getInt());
+		return counts;
+	}
+	
 	public synchronized SamplesEventsCount waitForSamples(int nSamples, int timeout) throws IOException {
 		return wait(nSamples, -1, timeout);
 	}	
@@ -726,25 +950,139 @@ public class BufferClient {
 	}
 	
 	protected synchronized ByteBuffer readResponse(int expected) throws IOException {
-		ByteBuffer def = ByteBuffer.allocate(8);
+		int size = readResponseSize(expected);
+	
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		buf.order(myOrder);
+		readAll(buf);
+		buf.rewind();
+		return buf;
+	}	
+	
+	/** Reads the fixed 8 byte response opening, returns the size of the response body. */
+	protected synchronized int readResponseSize(int expected) throws IOException {
+		short resp=readResponseType();
+		if (resp != expected) 
+			 throw new IOException("Error returned from FieldTrip buffer server. Expected " 
+										  + Integer.toHexString(expected) + " got " + Integer.toHexString(resp));
+		return respDef.getInt(4);
+	}
+	
+	/** Reads the fixed 8 byte response opening into respDef, returns the response type. */
+	protected synchronized short readResponseType() throws IOException {
+		ByteBuffer def = respDef;
+		def.clear();
 		def.order(myOrder);
 		readAll(def);
 		def.rewind();
 	
 		short ver=def.getShort();
 		if ( ver != VERSION) throw new IOException("Invalid VERSION returned : " + ver);
-		short resp=def.getShort();
-		if (resp != expected) 
-			 throw new IOException("Error returned from FieldTrip buffer server. Expected " 
-										  + Integer.toHexString(expected) + " got " + Integer.toHexString(resp));
-		int size = def.getInt();
+		return def.getShort();
+	}
 	
-		ByteBuffer buf = ByteBuffer.allocate(size);
-		buf.order(myOrder);
-		readAll(buf);
+	/** GET_DAT request whose response is read into the reusable receive buffer. */
+	protected synchronized ByteBuffer getRawDataInto(int first, int last, DataDescription descr) throws IOException {
+		if (shared != null && stream.length() == 0 && shared.read(first, last, recv)) {
+			recv.getDescription(descr, recv.buf.limit());
+			return recv.buf;
+		}
+		sendGetData(first, last);
+		
+		int size = readResponseSize(GET_OK);
+		readAll(recv.prepare(size, myOrder));
+		recv.getDescription(descr, size);
+		return recv.buf;
+	}
+	
+	/** GET_DAT request for data converted to dataType (FLOAT32 or FLOAT64) by the server,
+		 scaled by the channel resolutions if scaled, read into the reusable receive buffer. */
+	protected synchronized ByteBuffer getConvertedDataInto(int first, int last, int dataType, boolean scaled, DataDescription descr) throws IOException {
+		ByteBuffer req = getDatRequest;
+		req.clear();
+		req.order(myOrder);
+		req.putShort(VERSION).putShort(GET_DAT).putInt(16);
+		req.putInt(first).putInt(last).putInt(dataType).putInt(scaled ? 1 : 0).flip();
+		writeAll(req);
+		
+		int size = readResponseSize(GET_OK);
+		readAll(recv.prepare(size, myOrder));
+		recv.getDescription(descr, size);
+		return recv.buf;
+	}
+	
+	/** Sends a GET_DAT request, allowing the samples to be delta+varint coded if compression is on. */
+	protected synchronized void sendGetData(int first, int last) throws IOException {
+		ByteBuffer req = getDatRequest;
+		req.clear();
+		req.order(myOrder);
+		if (compression) {
+			req.putShort(VERSION).putShort(GET_DAT).putInt(16);
+			req.putInt(first).putInt(last).putInt(DataType.UNKNOWN).putInt(2);
+		} else {
+			req.putShort(VERSION).putShort(GET_DAT).putInt(8);
+			req.putInt(first).putInt(last);
+		}
+		req.flip();
+		writeAll(req);
+	}
+	
+	/** Sends a PUT_DAT message made by preparePutData and reads the response. With compression
+		 on integer samples are sent delta+varint coded; if the server refuses the first of those
+		 it is resent as it is, and compression is not tried again on this connection. */
+	protected synchronized void sendPutData(ByteBuffer buf) throws IOException {
+		int type = buf.getInt(16);
+		if (compression && putCompression >= 0 && DeltaVarint.canCode(type)) {
+			int nChans = buf.getInt(8);
+			int nSamples = buf.getInt(12);
+			byte[] msg = new byte[24 + DeltaVarint.maxSize(type, nChans*nSamples)];
+			int size = DeltaVarint.encode(buf, 24, type, nSamples, nChans, msg, 24);
+			ByteBuffer packed = ByteBuffer.wrap(msg, 0, 24+size);
+			packed.order(myOrder);
+			packed.putShort(VERSION).putShort(PUT_DAT).putInt(16+size);
+			packed.putInt(nChans).putInt(nSamples).putInt(type | DataType.DELTA_VARINT).putInt(size);
+			packed.rewind();
+			writeAll(packed);
+			
+			short resp = readResponseType();
+			int respSize = respDef.getInt(4);
+			if (respSize > 0) readAll(ByteBuffer.allocate(respSize));
+			if (resp == PUT_OK) {
+				putCompression = 1;
+				return;
+			}
+			if (putCompression > 0) {
+				throw new IOException("Error returned from FieldTrip buffer server. Expected " 
+											 + Integer.toHexString(PUT_OK) + " got " + Integer.toHexString(resp));
+			}
+			// the server may not know the coding, try without
+			buf.rewind();
+			writeAll(buf);
+			readResponse(PUT_OK);
+			putCompression = -1;
+			return;
+		}
 		buf.rewind();
-		return buf;
-	}	
+		writeAll(buf);
+		readResponse(PUT_OK);
+	}
+	
+	protected synchronized ByteBuffer getSelectedDataInto(int first, int last, int[] channels, int decimation, boolean blockMean, DataDescription descr) throws IOException {
+		if (decimation < 1) throw new IllegalArgumentException("decimation should be at least 1");
+		int nSel = channels == null ? 0 : channels.length;
+		ByteBuffer req = ByteBuffer.allocate(28+4*nSel);
+		req.order(myOrder);
+		req.putShort(VERSION).putShort(GET_DAT_SEL).putInt(20+4*nSel);
+		req.putInt(first).putInt(last).putInt(decimation).putInt(blockMean ? 1 : 0).putInt(nSel);
+		for (int i=0;i<nSel;i++) req.putInt(channels[i]);
+		req.rewind();
+		writeAll(req);
+		
+		int size = readResponseSize(GET_OK);
+		readAll(recv.prepare(size, myOrder));
+		recv.getDescription(descr, size);
+		return recv.buf;
+	}
 	
 	protected synchronized ByteBuffer writeAll(ByteBuffer dst) throws IOException {
 		int rem = dst.remaining();
@@ -760,6 +1098,12 @@ public class BufferClient {
 		return dst;
 	}
 	
+	/** Puts the length of s followed by its characters, as 8 bit characters. */
+	protected static void putString(ByteBuffer buf, String s) {
+		buf.putInt(s.length());
+		for (int i=0;i<s.length();i++) buf.put((byte)s.charAt(i));
+	}
+	
 	protected synchronized ByteBuffer preparePutData(int nChans, int nSamples, int type) {
 		int bufsize = DataType.wordSize[type]*nSamples*nChans;
 		
@@ -777,4 +1121,14 @@ public class BufferClient {
 	protected int port;
 	protected int timeout;
 	protected ByteOrder myOrder;
+	
+	protected boolean compression = false;
+	protected int putCompression = 0; // 1 if the server took coded samples, -1 if it refused them
+	private SharedSampleReader shared = null; // samples read from the server's memory if set
+	protected String stream = ""; // selected stream
+	
+	// reused by the allocation free getData variants
+	protected final ByteBuffer respDef = ByteBuffer.allocate(8);
+	protected final ByteBuffer getDatRequest = ByteBuffer.allocateDirect(24);
+	protected final ReceiveBuffer recv = new ReceiveBuffer();
 }
@@ -15,6 +15,12 @@ public class BufferClientClock extends BufferClient {
 	 public long updateInterval=3000; // at least every 3seconds
 	 public long minUpdateInterval=10; // at least 10ms (100Hz) between clock updates
 	 protected int numWrong=0; // count of number wrong predictions... if too many then reset the clock
+	 // guards clockSync and numWrong, which the EventBatcher thread updates too. Never held
+	 // while waiting for the server, so it does not nest the other way around with the lock
+	 // of the BufferClient methods
+	 private final Object clockLock=new Object();
+	 protected volatile EventBatcher batcher=null; // non-null if events are batched
+	 private final Object batchLock=new Object();
 
 	 public BufferClientClock(){
 		  super();
@@ -42,10 +48,18 @@ public class BufferClientClock extends BufferClient {
 	 // overridden methods to 
 	 // Fill in the estimated sample info
 	 public BufferEvent putEvent(BufferEvent e) throws IOException {
+		  EventBatcher b=batcher;
+		  if ( b!=null ) { b.add(new BufferEvent(e),getTime()); return e; } // sample filled in on the copy sent
 		  if ( e.sample < 0 ) { e.sample=(int)getSampOrPoll(); }
 		  return super.putEvent(e);
 	 }
 	 public void putEvents(BufferEvent[] e) throws IOException {
+		  EventBatcher b=batcher;
+		  if ( b!=null ) {
+				double time=getTime();
+				for ( int i=0; i<e.length; i++ ) b.add(new BufferEvent(e[i]),time);
+				return;
+		  }
 		int samp = -1;
 		for( int i=0; i<e.length; i++ )
 		  {			 
@@ -60,69 +74,115 @@ public class BufferClientClock extends BufferClient {
 	 // use the returned sample info to update the clock sync
 	 public SamplesEventsCount wait(int nSamples, int nEvents, int timeout) throws IOException {
 		  SamplesEventsCount secount = super.wait(nSamples,nEvents,timeout);
-		  //System.out.println("clock update");
-		  double deltaSamples = clockSync.getSamp()-secount.nSamples; // delta between true and estimated
-		  //System.out.println("sampErr="+getSampErr() + " d(samp) " + deltaSamples + " sampThresh= " + clockSync.m*1000.0*.5);
-		  if( getSampErr()<maxSampError ){
-				if ( deltaSamples > clockSync.m*1000.0*.5 ){ // lost samples					 
-					 System.out.println(deltaSamples + " Lost samples detected");
-					 clockSync.reset();
-					 //clockSync.b = clockSync.b - deltaSamples;
-				} else if ( deltaSamples < -clockSync.m*1000.0*.5 ){ // extra samples
-					 System.out.println(-deltaSamples + " Extra samples detected");
-					 clockSync.reset();
+		  synchronized ( clockLock ) {
+				//System.out.println("clock update");
+				double deltaSamples = clockSync.getSamp()-secount.nSamples; // delta between true and estimated
+				//System.out.println("sampErr="+getSampErr() + " d(samp) " + deltaSamples + " sampThresh= " + clockSync.m*1000.0*.5);
+				if( getSampErr()<maxSampError ){
+					if ( deltaSamples > clockSync.m*1000.0*.5 ){ // lost samples					 
+						 System.out.println(deltaSamples + " Lost samples detected");
+						 clockSync.reset();
+						 //clockSync.b = clockSync.b - deltaSamples;
+					} else if ( deltaSamples < -clockSync.m*1000.0*.5 ){ // extra samples
+						 System.out.println(-deltaSamples + " Extra samples detected");
+						 clockSync.reset();
+					}
 				}
+				clockSync.updateClock(secount.nSamples); // update the rt->sample mapping
 		  }
-		  clockSync.updateClock(secount.nSamples); // update the rt->sample mapping
 		  return secount;
 	 }
 	 public Header getHeader() throws IOException {
 		  Header hdr=super.getHeader();
-		  clockSync.updateClock(hdr.nSamples); // update the rt->sample mapping
+		  synchronized ( clockLock ) {
+				clockSync.updateClock(hdr.nSamples); // update the rt->sample mapping
+		  }
 		  return hdr;
 	 }
 	 public boolean connect(String address) throws IOException {
-		  clockSync.reset(); // reset old clock info (if any)
+		  synchronized ( clockLock ) {
+				clockSync.reset(); // reset old clock info (if any)
+		  }
 		  return super.connect(address);
 	 }
 
 	 //--------------------------------------------------------------------
-	 // New methods to do the clock syncronization
-	 public long getSampOrPoll() throws IOException {
-		  long sample=-1;
-		  boolean dopoll=false;
-		  if ( getSampErr()>maxSampError || // error too big
-				 getTime()>(long)(clockSync.Tlast)+updateInterval || // simply too long since we updated
-				 clockSync.N < 8 ) { // Simply not enough points to believe we've got a good estimate
-				dopoll=true;
-		  }
-		  if ( getSamp()<(long)(clockSync.Slast) ){ // detected prediction before last known sample
-				numWrong++; // increment count of number of times this has happened
-				dopoll=true;
-		  } else {
-				numWrong=0;
+	 // Event batching
+	 
+	 /** Collect the events put with putEvent(s) and send them together as one PUT_EVT
+		  from a background thread, at most maxDelay ms after the first one, or once maxEvents
+		  have been collected. putEvent(s) then returns without waiting for the network; a copy
+		  of each event is sent, and the sample of copies with sample<0 is filled in when they
+		  are sent, as estimated for the time they were put, so the caller's events are left
+		  as they were. maxDelay<=0 turns batching off again, after sending the
+		  events collected so far; do so before disconnecting. */
+	 public void setEventBatching(int maxDelay, int maxEvents) {
+		  EventBatcher old;
+		  synchronized ( batchLock ) {
+				old=batcher;
+				batcher = maxDelay>0 ? new EventBatcher(this,maxDelay,maxEvents) : null;
 		  }
-		  if ( getTime()<(long)(clockSync.Tlast)+minUpdateInterval ) { // don't update too rapidly
-				dopoll=false;
+		  if ( old!=null ) old.stop(); // sends what it collected
+	 }
+	 /** Have the collected events sent now, e.g. at the end of a frame. Does not wait for
+		  them to be sent. */
+	 public void flushEventBatch() {
+		  EventBatcher b=batcher;
+		  if ( b!=null ) b.flush();
+	 }
+	 /** Number of batched events which could not be sent. */
+	 public long getDroppedEvents() {
+		  EventBatcher b=batcher;
+		  return b==null ? 0 : b.getDropped();
+	 }
+	 /** Sends a batch, filling in the samples of events with sample<0 from the clock at the
+		  time they were put. Used by the EventBatcher, with copies of the events put. */
+	 void putEventsNow(BufferEvent[] e, double[] times) throws IOException {
+		  long now=-1;
+		  for ( int i=0; i<e.length; i++ ) {
+				if ( e[i].sample < 0 ) {
+					 // make sure the clock is up to date, then go back to when it was put
+					 if ( now<0 ) now=getSampOrPoll();
+					 long samp=getSamp(times[i]);
+					 e[i].sample=(int)(samp>=0 ? samp : now); // no estimate yet
+				}
 		  }
-		  if ( dopoll ) { // poll buffer for current samples
+		  super.putEvents(e);
+	 }
+
+	 //--------------------------------------------------------------------
+	 // New methods to do the clock syncronization
+	 public long getSampOrPoll() throws IOException {
+		  synchronized ( clockLock ) {
+				boolean dopoll=false;
+				if ( getSampErr()>maxSampError || // error too big
+					  getTime()>(long)(clockSync.Tlast)+updateInterval || // simply too long since we updated
+					  clockSync.N < 8 ) { // Simply not enough points to believe we've got a good estimate
+					 dopoll=true;
+				}
+				if ( getSamp()<(long)(clockSync.Slast) ){ // detected prediction before last known sample
+					 numWrong++; // increment count of number of times this has happened
+					 dopoll=true;
+				} else {
+					 numWrong=0;
+				}
+				if ( getTime()<(long)(clockSync.Tlast)+minUpdateInterval ) { // don't update too rapidly
+					 dopoll=false;
+				}
+				if ( !dopoll ) { // use the estimated time
+					 return (int)getSamp();
+				}
 				if ( numWrong > 5 ) { 
 					 clockSync.reset(); // reset clock if detected sysmetic error
 					 numWrong=0;
 				}
-				long sampest=getSamp();
-				//System.out.print("Updating clock sync: SampErr " + getSampErr() + 
-				//					  " getSamp " + sampest + " Slast " + clockSync.Slast);
-				sample = poll(0).nSamples; // force update if error is too big
-				//System.out.println(" poll " + sample + " delta " + (sample-sampest));
-		  } else { // use the estimated time
-				sample=(int)getSamp();
 		  }
-		  return sample;
+		  // poll buffer for current samples, which updates the clock through wait
+		  return poll(0).nSamples; // force update if error is too big
 	 }
-	 public long getSamp() { return clockSync.getSamp(); }
-	 public long getSamp(double time) { return clockSync.getSamp(time); }
-	 public long getSampErr() { return Math.abs(clockSync.getSampErr()); }
+	 public long getSamp() { synchronized ( clockLock ) { return clockSync.getSamp(); } }
+	 public long getSamp(double time) { synchronized ( clockLock ) { return clockSync.getSamp(time); } }
+	 public long getSampErr() { synchronized ( clockLock ) { return Math.abs(clockSync.getSampErr()); } }
 	 public double getTime() { return clockSync.getTime(); } // time in milliseconds
 	 public SamplesEventsCount syncClocks() throws IOException {
 		  return	 syncClocks(new int[] {100,100,100,100,100,100,100,100,100});
@@ -131,7 +191,9 @@ public class BufferClientClock extends BufferClient {
 		  return	 syncClocks(new int[] {wait});
 	 }
 	 public SamplesEventsCount syncClocks(int[] wait) throws IOException {
-		  clockSync.reset();
+		  synchronized ( clockLock ) {
+				clockSync.reset();
+		  }
 		  SamplesEventsCount ssc;
 		  ssc=poll(0);
 		  for (int i=0;i<wait.length;i++) {			
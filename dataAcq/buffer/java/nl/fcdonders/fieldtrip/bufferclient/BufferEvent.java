@@ -19,6 +19,16 @@ public class BufferEvent {
 		duration   = 0;
 	}
 	
+	/** Copy of an event. The type and value are shared, they are replaced rather than
+		 changed by setType and setValue. */
+	public BufferEvent(BufferEvent e) {
+		wType    = e.wType;
+		wValue   = e.wValue;
+		sample   = e.sample;
+		offset   = e.offset;
+		duration = e.duration;
+	}
+	
 	public BufferEvent(String type, String value, int sample) {
 		 //System.out.println("c,i");
 		wType  = new WrappedObject(type);
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2010, Stefan Klanke
+ * Donders Institute for Donders Institute for Brain, Cognition and Behaviour,
+ * Centre for Cognitive Neuroimaging, Radboud University Nijmegen,
+ * Kapittelweg 29, 6525 EN Nijmegen, The Netherlands
+ */
+package nl.fcdonders.fieldtrip.bufferclient;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/** Result of a request made with AsyncBufferClient, completed when the response arrives.
+	 Besides the Future methods, getResult() waits for it and throws the IOException a
+	 failed request ended with, and a Callback can be set to be told without waiting.
+	 A request can not be cancelled once it was sent. */
+public class BufferFuture<T> implements Future<T> {
+	/** Called on the receiving thread of the client, so it should return quickly. */
+	public interface Callback<T> {
+		void completed(T result);
+		void failed(IOException error);
+	}
+
+	private T result;
+	private IOException error;
+	private boolean done = false;
+	private Callback<? super T> callback;
+
+	/** Sets the callback, which is called right away if the request has completed already. */
+	public void setCallback(Callback<? super T> callback) {
+		synchronized (this) {
+			if (!done) {
+				this.callback = callback;
+				return;
+			}
+		}
+		callBack(callback);
+	}
+
+	/** Waits for the response and returns its result. */
+	public T getResult() throws IOException {
+		try {
+			await(0);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for response");
+		}
+		return resultOrError();
+	}
+
+	public T get() throws InterruptedException, ExecutionException {
+		await(0);
+		try {
+			return resultOrError();
+		} catch (IOException e) {
+			throw new ExecutionException(e);
+		}
+	}
+
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		long millis = Math.max(1, unit.toMillis(timeout));
+		if (!await(millis)) throw new TimeoutException();
+		try {
+			return resultOrError();
+		} catch (IOException e) {
+			throw new ExecutionException(e);
+		}
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	public boolean isCancelled() {
+		return false;
+	}
+
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	void complete(T result) {
+		Callback<? super T> cb;
+		synchronized (this) {
+			if (done) return;
+			this.result = result;
+			done = true;
+			cb = callback;
+			notifyAll();
+		}
+		if (cb != null) callBack(cb);
+	}
+
+	void fail(IOException error) {
+		Callback<? super T> cb;
+		synchronized (this) {
+			if (done) return;
+			this.error = error;
+			done = true;
+			cb = callback;
+			notifyAll();
+		}
+		if (cb != null) callBack(cb);
+	}
+
+	/** Waits until done, at most millis ms (0 for no limit). Returns whether done. */
+	private synchronized boolean await(long millis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + millis;
+		while (!done) {
+			if (millis == 0) {
+				wait();
+			} else {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) return false;
+				wait(left);
+			}
+		}
+		return true;
+	}
+
+	private synchronized T resultOrError() throws IOException {
+		if (error != null) throw error;
+		return result;
+	}
+
+	private void callBack(Callback<? super T> cb) {
+		if (error != null) {
+			cb.failed(error);
+		} else {
+			cb.completed(result);
+		}
+	}
+}
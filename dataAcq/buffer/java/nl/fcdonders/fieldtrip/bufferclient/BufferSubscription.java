@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2010, Stefan Klanke
+ * Donders Institute for Donders Institute for Brain, Cognition and Behaviour,
+ * Centre for Cognitive Neuroimaging, Radboud University Nijmegen,
+ * Kapittelweg 29, 6525 EN Nijmegen, The Netherlands
+ */
+package nl.fcdonders.fieldtrip.bufferclient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/** Receiving end of a subscription made with BufferClient.subscribe. The server pushes
+	 data blocks and events over the connection as they arrive, so no wait or get requests
+	 are needed. Use next() to receive them one frame at a time, or dispatch() to hand
+	 them to a Listener. Data blocks are received in a reusable buffer and can be read
+	 without allocating; they are valid until the next frame is received.
+	 
+	 Call unsubscribe() to end the subscription; frames already underway are still
+	 received until next() returns END. */
+public class BufferSubscription {
+	public static final int END    = 0;
+	public static final int DATA   = 1;
+	public static final int EVENTS = 2;
+	
+	/** Callback for dispatch() */
+	public interface Listener {
+		/** A block of samples was received, read it with getFloatData or getDoubleData. */
+		void dataReceived(BufferSubscription subscription) throws IOException;
+		/** Events were received. */
+		void eventsReceived(BufferSubscription subscription, BufferEvent[] events) throws IOException;
+	}
+	
+	private final BufferClient client;
+	private final SocketChannel channel;
+	private final ReceiveBuffer recv = new ReceiveBuffer();
+	private final ByteBuffer opening = ByteBuffer.allocateDirect(8);
+	private final ByteBuffer sample = ByteBuffer.allocateDirect(4);
+	private final ByteBuffer request = ByteBuffer.allocateDirect(8);
+	private final DataDescription descr = new DataDescription();
+	private int firstSample = -1;
+	private BufferEvent[] events = null;
+	private boolean ended = false;
+	
+	BufferSubscription(BufferClient client) {
+		this.client = client;
+		channel = client.sockChan;
+		opening.order(client.myOrder);
+		sample.order(client.myOrder);
+		request.order(client.myOrder);
+	}
+	
+	/** Blocks until the next frame is received and returns its kind: DATA, EVENTS or END
+		 once the subscription has ended. */
+	public int next() throws IOException {
+		while (!ended) {
+			opening.clear();
+			readAll(opening);
+			short ver  = opening.getShort(0);
+			short type = opening.getShort(2);
+			int size   = opening.getInt(4);
+			if (ver != BufferClient.VERSION) throw new IOException("Invalid VERSION returned : " + ver);
+			
+			switch (type) {
+				case BufferClient.PUSH_DAT:
+					if (size < 20) throw new IOException("Invalid size definitions in pushed data");
+					sample.clear();
+					readAll(sample);
+					firstSample = sample.getInt(0);
+					readAll(recv.prepare(size-4, client.myOrder));
+					recv.getDescription(descr, size-4);
+					return DATA;
+					
+				case BufferClient.PUSH_EVT: {
+					ByteBuffer buf = recv.prepare(size, client.myOrder);
+					readAll(buf);
+					buf.rewind();
+					int numEvt = BufferEvent.count(buf);
+					if (numEvt < 0) throw new IOException("Invalid event definitions in pushed events.");
+					events = new BufferEvent[numEvt];
+					for (int n=0;n<numEvt;n++) events[n] = new BufferEvent(buf);
+					return EVENTS;
+				}
+				
+				case BufferClient.UNSUBSCRIBE_OK:
+					ended = true;
+					break;
+					
+				default: // not for us, skip it
+					readAll(recv.prepare(size, client.myOrder));
+			}
+		}
+		return END;
+	}
+	
+	/** Receives frames and hands them to listener until the subscription has ended. */
+	public void dispatch(Listener listener) throws IOException {
+		int kind;
+		while ((kind = next()) != END) {
+			if (kind == DATA) {
+				listener.dataReceived(this);
+			} else {
+				listener.eventsReceived(this, events);
+			}
+		}
+	}
+	
+	/** Asks the server to stop pushing. May be called from another thread than the one
+		 receiving. */
+	public void unsubscribe() throws IOException {
+		synchronized (request) {
+			request.clear();
+			request.putShort(BufferClient.VERSION).putShort(BufferClient.UNSUBSCRIBE).putInt(0).flip();
+			while (request.hasRemaining()) channel.write(request);
+		}
+	}
+	
+	/** Unsubscribes and skips the remaining frames, so the connection can be used for
+		 other requests again. Not to be used while another thread is receiving. */
+	public void close() throws IOException {
+		if (ended) return;
+		unsubscribe();
+		while (next() != END) ;
+	}
+	
+	public boolean hasEnded() { return ended; }
+	
+	/** Index of the first sample of the last data block received. */
+	public int getFirstSample() { return firstSample; }
+	public int getNSamples() { return descr.nSamples; }
+	public int getNChans() { return descr.nChans; }
+	public int getDataType() { return descr.dataType; }
+	
+	/** Copies the last data block received into data, converted to float, sample by sample
+		 (data[s*nChans+c]) or channel by channel (data[c*nSamples+s]) if channelMajor. */
+	public void getFloatData(float[] data, boolean channelMajor) throws IOException {
+		recv.toFloat(descr, data, channelMajor);
+	}
+	
+	/** Copies the last data block received into data, converted to double, sample by sample
+		 (data[s*nChans+c]) or channel by channel (data[c*nSamples+s]) if channelMajor. */
+	public void getDoubleData(double[] data, boolean channelMajor) throws IOException {
+		recv.toDouble(descr, data, channelMajor);
+	}
+	
+	/** The events of the last EVENTS frame received. */
+	public BufferEvent[] getEvents() { return events; }
+	
+	private void readAll(ByteBuffer dst) throws IOException {
+		while (dst.hasRemaining()) {
+			if (channel.read(dst) < 0) throw new IOException("Remote side closed connection!");
+		}
+	}
+}
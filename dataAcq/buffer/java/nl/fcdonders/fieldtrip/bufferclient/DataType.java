@@ -24,6 +24,8 @@ public class DataType {
 	public static final int INT64   = 8;
 	public static final int FLOAT32 = 9;
 	public static final int FLOAT64 = 10;
+	/** Flag or-ed into the type of delta+varint coded samples, java buffer server only. */
+	public static final int DELTA_VARINT = 0x100;
 
 	public static final int[] wordSize = {1,1,2,4,8,1,2,4,8,4,8};
 	
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2010, Stefan Klanke
+ * Donders Institute for Donders Institute for Brain, Cognition and Behaviour,
+ * Centre for Cognitive Neuroimaging, Radboud University Nijmegen,
+ * Kapittelweg 29, 6525 EN Nijmegen, The Netherlands
+ */
+package nl.fcdonders.fieldtrip.bufferclient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/** Lossless coding of integer samples as sent with DataType.DELTA_VARINT: every data point
+	 is replaced by its difference with the same channel in the previous sample, zig-zag
+	 mapped to an unsigned number (0,-1,1,-2.. to 0,1,2,3..) and written 7 bits per byte, low
+	 bits first, with the high bit set on all but the last byte. Slowly changing signals then
+	 take 1 or 2 bytes per data point. Matches the java buffer server's NetworkProtocol. */
+final class DeltaVarint {
+	private DeltaVarint() {}
+
+	/** Whether data of dataType can be coded, which is the case for the integer types. */
+	static boolean canCode(int dataType) {
+		return dataType >= DataType.CHAR && dataType <= DataType.INT64;
+	}
+
+	/** Largest number of bytes nPoints coded data points of dataType can take. */
+	static int maxSize(int dataType, int nPoints) {
+		return nPoints * ((DataType.wordSize[dataType]*8 + 1 + 6) / 7);
+	}
+
+	/** Codes the nSamples by nChans data points of dataType at byte pos of src (in the
+		 order of src) into out from off, returns the number of bytes written. */
+	static int encode(ByteBuffer src, int pos, int dataType, int nSamples, int nChans, byte[] out, int off) {
+		int ws = DataType.wordSize[dataType];
+		long[] prev = new long[nChans];
+		int o = off;
+		for (int s=0,p=pos;s<nSamples;s++) {
+			for (int c=0;c<nChans;c++,p+=ws) {
+				long x;
+				switch (dataType) {
+					case DataType.CHAR:
+					case DataType.UINT8:  x = src.get(p) & 0xff; break;
+					case DataType.INT8:   x = src.get(p); break;
+					case DataType.UINT16: x = src.getShort(p) & 0xffff; break;
+					case DataType.INT16:  x = src.getShort(p); break;
+					case DataType.UINT32: x = src.getInt(p) & 0xffffffffL; break;
+					case DataType.INT32:  x = src.getInt(p); break;
+					default:              x = src.getLong(p);
+				}
+				long d = x - prev[c];
+				prev[c] = x;
+				long v = (d << 1) ^ (d >> 63);
+				while ((v & ~0x7fL) != 0) {
+					out[o++] = (byte) ((v & 0x7f) | 0x80);
+					v >>>= 7;
+				}
+				out[o++] = (byte) v;
+			}
+		}
+		return o - off;
+	}
+
+	/** Decodes len coded bytes from in at off into nSamples by nChans data points of
+		 dataType at byte pos of dst (in the order of dst). */
+	static void decode(byte[] in, int off, int len, int dataType, int nSamples, int nChans, ByteBuffer dst, int pos) throws IOException {
+		int ws = DataType.wordSize[dataType];
+		long[] prev = new long[nChans];
+		int i = off, end = off + len;
+		for (int s=0,p=pos;s<nSamples;s++) {
+			for (int c=0;c<nChans;c++,p+=ws) {
+				long v = 0;
+				int shift = 0;
+				byte b;
+				do {
+					if (i == end) throw new IOException("Truncated delta+varint coded data");
+					b = in[i++];
+					v |= (long) (b & 0x7f) << shift;
+					shift += 7;
+				} while (b < 0 && shift < 64);
+				long x = prev[c] + ((v >>> 1) ^ -(v & 1));
+				prev[c] = x;
+				switch (ws) {
+					case 1:  dst.put(p, (byte) x); break;
+					case 2:  dst.putShort(p, (short) x); break;
+					case 4:  dst.putInt(p, (int) x); break;
+					default: dst.putLong(p, x);
+				}
+			}
+		}
+		if (i != end) throw new IOException("Too many bytes in delta+varint coded data");
+	}
+}
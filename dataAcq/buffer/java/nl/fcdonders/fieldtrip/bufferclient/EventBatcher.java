@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2013, Jason Farquhar
+ *
+ * Collects the events of a BufferClientClock and sends them in batches from its own thread
+ */
+package nl.fcdonders.fieldtrip.bufferclient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/** Collects events and sends them as one PUT_EVT request from a background thread, at
+	 most maxDelay ms after the first was collected, once maxEvents were collected, or when
+	 flush() is called. Adding never touches the socket, so a stimulus loop never waits for
+	 the network. The time each event was added is kept, so the sender can fill in the
+	 sample of events with sample < 0 as it was at that time, see BufferClientClock. */
+class EventBatcher implements Runnable {
+	private final BufferClientClock client;
+	private final int maxDelay;
+	private final int maxEvents;
+	private final Thread thread;
+
+	// guarded by this
+	private ArrayList<BufferEvent> events = new ArrayList<BufferEvent>();
+	private double[] times = new double[16];
+	private boolean flush = false;
+	private boolean stop = false;
+	private long dropped = 0;
+
+	EventBatcher(BufferClientClock client, int maxDelay, int maxEvents) {
+		this.client = client;
+		this.maxDelay = maxDelay;
+		this.maxEvents = Math.max(1, maxEvents);
+		thread = new Thread(this, "Fieldtrip Event Batcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Collects e, added at time (ms, the client's clock). */
+	synchronized void add(BufferEvent e, double time) {
+		int n = events.size();
+		if (n == times.length) {
+			double[] grown = new double[2*n];
+			System.arraycopy(times, 0, grown, 0, n);
+			times = grown;
+		}
+		times[n] = time;
+		events.add(e);
+		if (n == 0 || n+1 >= maxEvents) notifyAll();
+	}
+
+	/** Has the collected events sent now, without waiting for them to be sent. */
+	synchronized void flush() {
+		if (events.isEmpty()) return;
+		flush = true;
+		notifyAll();
+	}
+
+	/** Sends the collected events and stops the thread. */
+	void stop() {
+		synchronized (this) {
+			stop = true;
+			notifyAll();
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** Number of events which could not be sent. */
+	synchronized long getDropped() {
+		return dropped;
+	}
+
+	public void run() {
+		while (true) {
+			BufferEvent[] batch;
+			double[] batchTimes;
+			synchronized (this) {
+				try {
+					while (!due()) {
+						if (events.isEmpty()) {
+							if (stop) return;
+							wait();
+						} else {
+							long left = (long)Math.ceil(times[0] + maxDelay - client.getTime());
+							if (left > 0) wait(left);
+						}
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				batch = events.toArray(new BufferEvent[events.size()]);
+				batchTimes = new double[batch.length];
+				System.arraycopy(times, 0, batchTimes, 0, batch.length);
+				events = new ArrayList<BufferEvent>();
+				flush = false;
+			}
+			try {
+				client.putEventsNow(batch, batchTimes);
+			} catch (IOException e) {
+				System.err.println("Failed to send " + batch.length + " events: " + e);
+				synchronized (this) {
+					dropped += batch.length;
+				}
+			}
+		}
+	}
+
+	/** Whether the collected events have to be sent now. */
+	private boolean due() {
+		if (events.isEmpty()) return false;
+		return flush || stop || events.size() >= maxEvents
+			|| client.getTime() >= times[0] + maxDelay;
+	}
+}
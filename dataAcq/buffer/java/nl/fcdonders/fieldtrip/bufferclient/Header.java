@@ -8,7 +8,7 @@ package nl.fcdonders.fieldtrip.bufferclient;
 import java.nio.*;
 
 /** A class for wrapping a FieldTrip buffer header structure.
-	TODO: also handle chunks other than "channel names".
+	TODO: also handle chunks other than "channel names" and "resolutions".
 */
 public class Header {
 	public static final int CHUNK_UNKNOWN = 0;
@@ -49,6 +49,10 @@ public class Header {
 						len++;
 					}
 				}
+			} else if (chunkType == CHUNK_RESOLUTIONS && chunkSize >= 8*nChans) {
+				ByteBuffer rb = ByteBuffer.wrap(bs).order(buf.order());
+				resolutions = new double[nChans];
+				for (int n=0;n<nChans;n++) resolutions[n] = rb.getDouble();
 			} else {
 				// ignore all other chunks for now
 			}
@@ -88,6 +92,7 @@ public class Header {
 				size += 8 + channelNameSize;
 			}
 		}
+		if (hasResolutions()) size += 8 + 8*nChans;
 		return size;
 	}
 	
@@ -97,11 +102,13 @@ public class Header {
 		buf.putInt(nEvents);
 		buf.putFloat(fSample);
 		buf.putInt(dataType);
-		if (channelNameSize <= nChans) {
-			// channel names are all empty or array length does not match
-			buf.putInt(0);
-		} else {
-			buf.putInt(8 + channelNameSize);	// 8 bytes for chunk def
+		// channel names are left out if all empty or array length does not match
+		boolean names = channelNameSize > nChans;
+		int chunksSize = 0;
+		if (names) chunksSize += 8 + channelNameSize;	// 8 bytes for chunk def
+		if (hasResolutions()) chunksSize += 8 + 8*nChans;
+		buf.putInt(chunksSize);
+		if (names) {
 			buf.putInt(CHUNK_CHANNEL_NAMES);
 			buf.putInt(channelNameSize);
 			for (int i=0;i<nChans;i++) {
@@ -109,6 +116,15 @@ public class Header {
 				buf.put((byte) 0);
 			}
 		} 
+		if (hasResolutions()) {
+			buf.putInt(CHUNK_RESOLUTIONS);
+			buf.putInt(8*nChans);
+			for (int i=0;i<nChans;i++) buf.putDouble(resolutions[i]);
+		}
+	}
+	
+	private boolean hasResolutions() {
+		return resolutions != null && resolutions.length == nChans;
 	}
 
 
@@ -136,4 +152,6 @@ public class Header {
 	public int nSamples;
 	public int nEvents;
 	public String[] labels;
+	/** Scale factor of each channel, or null. Sent as CHUNK_RESOLUTIONS. */
+	public double[] resolutions;
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2010, Stefan Klanke
+ * Donders Institute for Donders Institute for Brain, Cognition and Behaviour,
+ * Centre for Cognitive Neuroimaging, Radboud University Nijmegen,
+ * Kapittelweg 29, 6525 EN Nijmegen, The Netherlands
+ */
+package nl.fcdonders.fieldtrip.bufferclient;
+
+import java.io.IOException;
+import java.nio.*;
+
+/** Reusable direct buffer a data block is received in, as a data description followed
+	 by the samples, with typed views of the samples so they can be converted without
+	 allocating. Grows by doubling when a block does not fit. */
+class ReceiveBuffer {
+	ByteBuffer buf;
+	private ShortBuffer shorts;
+	private IntBuffer ints;
+	private LongBuffer longs;
+	private FloatBuffer floats;
+	private DoubleBuffer doubles;
+	private byte[] packed = new byte[0]; // coded samples while they are decoded
+	
+	/** Returns the buffer, cleared for reading size bytes in the given order. */
+	ByteBuffer prepare(int size, ByteOrder order) {
+		if (buf == null || buf.capacity() < size || buf.order() != order) {
+			int cap = buf == null ? 64*1024 : buf.capacity();
+			while (cap < size) cap *= 2;
+			buf = ByteBuffer.allocateDirect(cap);
+			buf.order(order);
+			// typed views of the samples, created once per buffer
+			buf.position(16);
+			shorts  = buf.asShortBuffer();
+			ints    = buf.asIntBuffer();
+			longs   = buf.asLongBuffer();
+			floats  = buf.asFloatBuffer();
+			doubles = buf.asDoubleBuffer();
+		}
+		buf.clear();
+		buf.limit(size);
+		return buf;
+	}
+	
+	/** Fills descr from the received data description and checks it against the size received. */
+	void getDescription(DataDescription descr, int size) throws IOException {
+		if (size < 16) throw new IOException("Invalid size definitions in response from GET DATA request");
+		descr.nChans    = buf.getInt(0);
+		descr.nSamples  = buf.getInt(4);
+		descr.dataType  = buf.getInt(8);
+		descr.sizeBytes = buf.getInt(12);
+		if ((descr.dataType & DataType.DELTA_VARINT) != 0) size = unpack(descr, size);
+		
+		if (descr.dataType < 0 || descr.dataType >= DataType.wordSize.length
+			 || descr.nChans * descr.nSamples * DataType.wordSize[descr.dataType] > descr.sizeBytes
+			 || descr.sizeBytes > size - 16) {
+			throw new IOException("Invalid size definitions in response from GET DATA request");
+		}
+	}
+	
+	/** Replaces delta+varint coded samples by the decoded ones, see DeltaVarint, and
+		 returns the new size of the block. */
+	private int unpack(DataDescription descr, int size) throws IOException {
+		int type = descr.dataType & ~DataType.DELTA_VARINT;
+		if (!DeltaVarint.canCode(type) || descr.nChans < 0 || descr.nSamples < 0
+			 || descr.sizeBytes < 0 || descr.sizeBytes > size - 16
+			 || (long) descr.nChans * descr.nSamples > descr.sizeBytes) {
+			throw new IOException("Invalid size definitions in response from GET DATA request");
+		}
+		if (packed.length < descr.sizeBytes) packed = new byte[descr.sizeBytes];
+		buf.position(16);
+		buf.get(packed, 0, descr.sizeBytes);
+		
+		int rawSize = descr.nChans * descr.nSamples * DataType.wordSize[type];
+		prepare(16 + rawSize, buf.order());
+		DeltaVarint.decode(packed, 0, descr.sizeBytes, type, descr.nSamples, descr.nChans, buf, 16);
+		buf.putInt(0, descr.nChans).putInt(4, descr.nSamples).putInt(8, type).putInt(12, rawSize);
+		descr.dataType  = type;
+		descr.sizeBytes = rawSize;
+		return 16 + rawSize;
+	}
+	
+	/** Converts the received samples to float, see BufferClient.getFloatData. */
+	void toFloat(DataDescription descr, float[] data, boolean channelMajor) throws IOException {
+		int nSamples = descr.nSamples;
+		int nChans = descr.nChans;
+		int n = nSamples*nChans;
+		if (data.length < n) throw new IOException("Data array too small for " + nSamples + "x" + nChans + " samples");
+		int chanStep = channelMajor ? nSamples : 1;  // data index = s*sampStep + c*chanStep
+		int sampStep = channelMajor ? 1 : nChans;
+		
+		switch (descr.dataType) {
+			case DataType.INT8:
+				for (int s=0,k=16;s<nSamples;s++)
+					for (int c=0,d=s*sampStep;c<nChans;c++,k++,d+=chanStep) data[d] = (float) buf.get(k);
+				break;
+			case DataType.INT16:
+				for (int s=0,k=0;s<nSamples;s++)
+					for (int c=0,d=s*sampStep;c<nChans;c++,k++,d+=chanStep) data[d] = (float) shorts.get(k);
+				break;
+			case DataType.INT32:
+				for (int s=0,k=0;s<nSamples;s++)
+					for (int c=0,d=s*sampStep;c<nChans;c++,k++,d+=chanStep) data[d] = (float) ints.get(k);
+				break;
+			case DataType.INT64:
+				for (int s=0,k=0;s<nSamples;s++)
+					for (int c=0,d=s*sampStep;c<nChans;c++,k++,d+=chanStep) data[d] = (float) longs.get(k);
+				break;
+			case DataType.FLOAT32:
+				if (!channelMajor) {
+					floats.position(0);
+					floats.get(data, 0, n);
+				} else {
+					for (int s=0,k=0;s<nSamples;s++)
+						for (int c=0,d=s;c<nChans;c++,k++,d+=nSamples) data[d] = floats.get(k);
+				}
+				break;
+			case DataType.FLOAT64:
+				for (int s=0,k=0;s<nSamples;s++)
+					for (int c=0,d=s*sampStep;c<nChans;c++,k++,d+=chanStep) data[d] = (float) doubles.get(k);
+				break;
+			default:
+				throw new IOException("Data type " + descr.dataType + " not supported.");
+		}
+	}
+	
+	/** Converts the received samples to double, see BufferClient.getDoubleData. */
+	void toDouble(DataDescription descr, double[] data, boolean channelMajor) throws IOException {
+		int nSamples = descr.nSamples;
+		int nChans = descr.nChans;
+		int n = nSamples*nChans;
+		if (data.length < n) throw new IOException("Data array too small for " + nSamples + "x" + nChans + " samples");
+		int chanStep = channelMajor ? nSamples : 1;  // data index = s*sampStep + c*chanStep
+		int sampStep = channelMajor ? 1 : nChans;
+		
+		switch (descr.dataType) {
+			case DataType.INT8:
+				for (int s=0,k=16;s<nSamples;s++)
+					for (int c=0,d=s*sampStep;c<nChans;c++,k++,d+=chanStep) data[d] = (double) buf.get(k);
+				break;
+			case DataType.INT16:
+				for (int s=0,k=0;s<nSamples;s++)
+					for (int c=0,d=s*sampStep;c<nChans;c++,k++,d+=chanStep) data[d] = (double) shorts.get(k);
+				break;
+			case DataType.INT32:
+				for (int s=0,k=0;s<nSamples;s++)
+					for (int c=0,d=s*sampStep;c<nChans;c++,k++,d+=chanStep) data[d] = (double) ints.get(k);
+				break;
+			case DataType.INT64:
+				for (int s=0,k=0;s<nSamples;s++)
+					for (int c=0,d=s*sampStep;c<nChans;c++,k++,d+=chanStep) data[d] = (double) longs.get(k);
+				break;
+			case DataType.FLOAT32:
+				for (int s=0,k=0;s<nSamples;s++)
+					for (int c=0,d=s*sampStep;c<nChans;c++,k++,d+=chanStep) data[d] = floats.get(k);
+				break;
+			case DataType.FLOAT64:
+				if (!channelMajor) {
+					doubles.position(0);
+					doubles.get(data, 0, n);
+				} else {
+					for (int s=0,k=0;s<nSamples;s++)
+						for (int c=0,d=s;c<nChans;c++,k++,d+=nSamples) data[d] = doubles.get(k);
+				}
+				break;
+			default:
+				throw new IOException("Data type " + descr.dataType + " not supported.");
+		}
+	}
+}
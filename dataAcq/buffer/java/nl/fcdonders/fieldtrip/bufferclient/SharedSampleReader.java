@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2013, Jason Farquhar
+ *
+ * Reads samples from the shared sample ring of a buffer server on the same machine
+ */
+package nl.fcdonders.fieldtrip.bufferclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** Reads windows of samples straight from the memory mapped sample ring of a java buffer
+	 server on the same machine, see SharedRingDataStore and SharedDataRingBuffer of the
+	 bufferserver for the file layout. A read copies the samples and then checks with the
+	 counters in the file that none of them was overwritten, and that the ring was not
+	 cleared, while copying; if so, or the samples are not (or no longer) in the ring, it
+	 fails and the caller asks the server instead. When the server replaces the ring, e.g.
+	 for a new header, the new file is mapped on the next read. */
+class SharedSampleReader {
+	// layout of the file, as in SharedDataRingBuffer
+	static final int MAGIC       = 0x4654524e;
+	static final int VERSION     = 1;
+	static final int HEADER_SIZE = 64;
+	static final int GENERATION  = 8;
+	static final int NCHANS      = 12;
+	static final int DATATYPE    = 16;
+	static final int CAPACITY    = 20;
+	static final int BYTEORDER   = 24;
+	static final int WRITELIMIT  = 28;
+	static final int SAMPLECOUNT = 32;
+
+	private final File path;
+	private MappedByteBuffer file = null;
+	private ByteBuffer ring;
+	private int nChans, dataType, capacity, sampleSize;
+	private volatile int fence;
+
+	/** Maps the ring in path, throws if it is not a shared sample ring. */
+	SharedSampleReader(File path) throws IOException {
+		this.path = path;
+		attach();
+	}
+
+	/** Copies samples first..last, preceded by their data description, into recv. Returns
+		 false, leaving recv in an undefined state, if they can not be read from the ring. */
+	synchronized boolean read(int first, int last, ReceiveBuffer recv) {
+		if (file == null || file.getInt(GENERATION) < 0) {
+			try {
+				attach();
+			} catch (IOException e) {
+				file = null; // try again next time, e.g. the new header is not there yet
+				return false;
+			}
+		}
+		int generation = file.getInt(GENERATION);
+		int count = file.getInt(SAMPLECOUNT);
+		fence();
+		int nSamples = last-first+1;
+		if (generation < 0 || first < 0 || nSamples <= 0 || last >= count || first < count-capacity) return false;
+
+		int size = nSamples*sampleSize;
+		ByteBuffer dst = recv.prepare(16+size, ring.order());
+		dst.putInt(nChans).putInt(nSamples).putInt(dataType).putInt(size);
+		// at most two blocks, before and after the end of the ring
+		ByteBuffer view = ring.duplicate();
+		int slot = first % capacity;
+		int n = Math.min(nSamples, capacity-slot);
+		view.limit((slot+n)*sampleSize).position(slot*sampleSize);
+		dst.put(view);
+		if (n < nSamples) {
+			view.limit((nSamples-n)*sampleSize).position(0);
+			dst.put(view);
+		}
+
+		fence();
+		return first >= file.getInt(WRITELIMIT)-capacity && file.getInt(GENERATION) == generation;
+	}
+
+	/** (Re)maps the file. */
+	private void attach() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(path, "r");
+		MappedByteBuffer map;
+		try {
+			long length = raf.length();
+			if (length < HEADER_SIZE) throw new IOException(path + " is not a shared sample ring");
+			map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+		} finally {
+			raf.close(); // the mapping stays valid
+		}
+		// written by a server on this machine, so in its native byte order
+		map.order(ByteOrder.nativeOrder());
+		if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) throw new IOException(path + " is not a shared sample ring");
+		int type = map.getInt(DATATYPE);
+		int chans = map.getInt(NCHANS);
+		int cap = map.getInt(CAPACITY);
+		if (type < 0 || type >= DataType.wordSize.length || DataType.wordSize[type] <= 0 || chans <= 0 || cap <= 0
+			 || HEADER_SIZE + (long)cap*chans*DataType.wordSize[type] > map.capacity()) {
+			throw new IOException("Invalid shared sample ring in " + path);
+		}
+		dataType   = type;
+		nChans     = chans;
+		capacity   = cap;
+		sampleSize = chans*DataType.wordSize[type];
+		map.position(HEADER_SIZE);
+		ring = map.slice();
+		ring.order(map.getInt(BYTEORDER) == 1 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+		file = map;
+	}
+
+	/** The server writes the ring from another process, so the counters have to be read
+		 before and after the samples are copied, in that order; a volatile write keeps the
+		 compiler and the processor from moving reads across it. */
+	private void fence() {
+		fence++;
+	}
+}
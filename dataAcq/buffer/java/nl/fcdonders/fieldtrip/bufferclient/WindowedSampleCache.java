@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2010, Stefan Klanke
+ * Donders Institute for Donders Institute for Brain, Cognition and Behaviour,
+ * Centre for Cognitive Neuroimaging, Radboud University Nijmegen,
+ * Kapittelweg 29, 6525 EN Nijmegen, The Netherlands
+ */
+package nl.fcdonders.fieldtrip.bufferclient;
+
+import java.io.IOException;
+
+/** Client side ring of the most recent samples, for consumers reading overlapping windows
+	 of data, e.g. a classifier applied to 1s of data every 50ms. A window is copied from
+	 the ring; only the samples after the newest cached sample are fetched from the buffer,
+	 so every sample crosses the network once instead of once per window it is part of.
+	 Samples are cached converted to double, sample by sample.
+
+	 The cache can not tell the buffer was restarted or flushed, call reset() when that
+	 is detected (e.g. fewer samples than before from waitForSamples). */
+public class WindowedSampleCache {
+	private final BufferClient client;
+	private final int capacity;
+	private int nChans = -1;
+	private int dataType = DataType.UNKNOWN;
+	private double[] ring = null;    // sample s at (s % capacity)*nChans
+	private int start = 0, end = 0;  // samples start..end-1 are cached
+	private double[] fetched = new double[0];
+	private final DataDescription fetchDescr = new DataDescription();
+	private long samplesFetched = 0;
+	private long samplesRequested = 0;
+
+	/** Cache of the last capacity samples read through client, which should be at least
+		 the window size plus the step between windows. */
+	public WindowedSampleCache(BufferClient client, int capacity) {
+		if (capacity <= 0) throw new IllegalArgumentException("capacity should be positive");
+		this.client = client;
+		this.capacity = capacity;
+	}
+
+	/** Forgets all cached samples. */
+	public synchronized void reset() {
+		start = end = 0;
+		nChans = -1;
+	}
+
+	/** Samples first..last, see BufferClient.getDoubleData. Windows longer than the capacity
+		 are read from the buffer directly. */
+	public synchronized void getDoubleData(int first, int last, DataDescription descr, double[] data, boolean channelMajor) throws IOException {
+		int nSamples = last-first+1;
+		if (first < 0 || nSamples <= 0) throw new IOException("Invalid sample range " + first + "-" + last);
+		samplesRequested += nSamples;
+		if (nSamples > capacity) {
+			client.getDoubleData(first, last, descr, data, channelMajor);
+			samplesFetched += nSamples;
+			return;
+		}
+
+		fill(first, last);
+		if (data.length < nSamples*nChans) throw new IOException("Data array too small for " + nSamples + "x" + nChans + " samples");
+
+		if (!channelMajor) {
+			// at most two blocks, before and after the end of the ring
+			int s = first;
+			int d = 0;
+			while (s <= last) {
+				int r = s % capacity;
+				int n = Math.min(last-s+1, capacity-r);
+				System.arraycopy(ring, r*nChans, data, d, n*nChans);
+				s += n;
+				d += n*nChans;
+			}
+		} else {
+			for (int i=0;i<nSamples;i++) {
+				int r = ((first+i) % capacity)*nChans;
+				for (int c=0,d=i;c<nChans;c++,d+=nSamples) data[d] = ring[r+c];
+			}
+		}
+
+		descr.nChans    = nChans;
+		descr.nSamples  = nSamples;
+		descr.dataType  = dataType;
+		descr.sizeBytes = nSamples*nChans*DataType.wordSize[dataType];
+	}
+
+	/** Samples first..last as [sample][channel], see BufferClient.getDoubleData. */
+	public synchronized double[][] getDoubleData(int first, int last) throws IOException {
+		DataDescription dd = new DataDescription();
+		int nSamples = last-first+1;
+		int nc = nChans > 0 ? nChans : client.getHeader().nChans;
+		double[] flat = new double[Math.max(0, nSamples)*nc];
+		getDoubleData(first, last, dd, flat, false);
+		double[][] data = new double[dd.nSamples][dd.nChans];
+		for (int s=0;s<dd.nSamples;s++) System.arraycopy(flat, s*dd.nChans, data[s], 0, dd.nChans);
+		return data;
+	}
+
+	/** Number of samples fetched from the buffer so far. */
+	public synchronized long getSamplesFetched() { return samplesFetched; }
+
+	/** Number of samples asked for so far. */
+	public synchronized long getSamplesRequested() { return samplesRequested; }
+
+	/** Makes sure samples first..last are cached, fetching those after the cached ones. */
+	private void fill(int first, int last) throws IOException {
+		if (nChans > 0 && first >= start && last < end) return;
+
+		if (nChans <= 0) {
+			setChannels(client.getHeader().nChans);
+		}
+		// continue after the cached samples if the window joins them, otherwise start over
+		int from = first >= start && first <= end ? end : first;
+		if (from == first) start = end = first;
+
+		int n = last-from+1;
+		if (fetched.length < n*nChans) fetched = new double[n*nChans];
+		try {
+			client.getDoubleData(from, last, fetchDescr, fetched, false);
+		} catch (IOException e) {
+			reset(); // e.g. the header changed, read it again next time
+			throw e;
+		}
+		samplesFetched += n;
+		if (fetchDescr.nChans != nChans) {
+			// the header changed, start over with the new number of channels
+			setChannels(fetchDescr.nChans);
+			start = end = first;
+			fill(first, last);
+			return;
+		}
+		dataType = fetchDescr.dataType;
+
+		int s = from;
+		int f = 0;
+		while (s <= last) {
+			int r = s % capacity;
+			int m = Math.min(last-s+1, capacity-r);
+			System.arraycopy(fetched, f, ring, r*nChans, m*nChans);
+			s += m;
+			f += m*nChans;
+		}
+		end = last+1;
+		if (end-start > capacity) start = end-capacity;
+	}
+
+	private void setChannels(int nChans) {
+		this.nChans = nChans;
+		ring = new double[capacity*nChans];
+		start = end = 0;
+	}
+}
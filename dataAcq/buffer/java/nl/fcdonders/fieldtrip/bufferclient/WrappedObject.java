@@ -216,20 +216,25 @@ public class WrappedObject {
 			case DataType.UINT16:
 			case DataType.INT16:
 				buf.asShortBuffer().put((short[]) array);
+				buf.position(buf.position() + 2*((short[]) array).length); // views do not advance buf
 				break;
 			case DataType.UINT32:
 			case DataType.INT32:
 				buf.asIntBuffer().put((int[]) array);
+				buf.position(buf.position() + 4*((int[]) array).length); // views do not advance buf
 				break;
 			case DataType.UINT64:
 			case DataType.INT64:
 				buf.asLongBuffer().put((long[]) array);
+				buf.position(buf.position() + 8*((long[]) array).length); // views do not advance buf
 				break;
 			case DataType.FLOAT32:
 				buf.asFloatBuffer().put((float[]) array);
+				buf.position(buf.position() + 4*((float[]) array).length); // views do not advance buf
 				break;
 			case DataType.FLOAT64:
 				buf.asDoubleBuffer().put((double[]) array);
+				buf.position(buf.position() + 8*((double[]) array).length); // views do not advance buf
 				break;
 		}
 	}	
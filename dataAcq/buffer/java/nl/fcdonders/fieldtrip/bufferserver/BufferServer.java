@@ -1,22 +1,34 @@
 package nl.fcdonders.fieldtrip.bufferserver;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 
 import nl.fcdonders.fieldtrip.bufferserver.data.DataModel;
+import nl.fcdonders.fieldtrip.bufferserver.data.DirectRingDataStore;
+import nl.fcdonders.fieldtrip.bufferserver.data.DataStreams;
 import nl.fcdonders.fieldtrip.bufferserver.data.Header;
 import nl.fcdonders.fieldtrip.bufferserver.data.RingDataStore;
 import nl.fcdonders.fieldtrip.bufferserver.data.SavingRingDataStore;
+import nl.fcdonders.fieldtrip.bufferserver.data.SharedRingDataStore;
 import nl.fcdonders.fieldtrip.bufferserver.data.SimpleDataStore;
 import nl.fcdonders.fieldtrip.bufferserver.exceptions.DataException;
 import nl.fcdonders.fieldtrip.bufferserver.network.ConnectionThread;
+import nl.fcdonders.fieldtrip.bufferserver.network.SelectorThread;
 
 /**
  * Buffer class, a thread that opens a serverSocket to listen for connections
  * and starts a connectionThread to handle them.
  *
+ * Besides its own dataStore, the DEFAULT stream, the server hosts named
+ * streams which clients select per connection or per message, see
+ * DataStreams. They are created when a header is first put to them, with the
+ * capacity and save location of the server, or added with addStream.
+ *
  * @author wieke, jadref
  *
  */
@@ -33,26 +45,72 @@ public class BufferServer implements Runnable {
 	 *
 	 * @param args
 	 *            <port> or <port> <nSamplesAndEvents> or <port> <nSamples>
-	 *            <nEvents>
+	 *            <nEvents>, optionally preceded by -shm to share the samples
+	 *            with local clients through /dev/shm. Anywhere in them
+	 *            -maxEvents <n>, -maxEventBytes <n> and -eventRetention
+	 *            <seconds> set the limits of the event store, see
+	 *            setEventLimits and setEventRetention, -maxStreams <n>
+	 *            the number of streams, see setMaxStreams, and -ioThreads <n>
+	 *            the number of selector threads, see setIOThreads. -direct
+	 *            keeps the samples off-heap in a DirectRingDataStore, when
+	 *            not saving.
 	 */
-	public static void main(final String[] args) {
+	public static void main(final String[] argv) {
 		 int logging=0;
 		BufferServer buffer=null;
-		if (args.length == 0 ){
+		 // take out the event store options, the rest are positional
+		 int maxEvents = 0;
+		 long maxEventBytes = 0;
+		 double eventRetention = 0;
+		 int maxStreams = 0;
+		 int ioThreads = 0;
+		 boolean direct = false;
+		 final ArrayList<String> positional = new ArrayList<String>();
+		 for (int i = 0; i < argv.length; i++) {
+			  if (argv[i].equals("-maxEvents") && i + 1 < argv.length) {
+					maxEvents = Integer.parseInt(argv[++i]);
+			  } else if (argv[i].equals("-maxEventBytes") && i + 1 < argv.length) {
+					maxEventBytes = Long.parseLong(argv[++i]);
+			  } else if (argv[i].equals("-eventRetention") && i + 1 < argv.length) {
+					eventRetention = Double.parseDouble(argv[++i]);
+			  } else if (argv[i].equals("-maxStreams") && i + 1 < argv.length) {
+					maxStreams = Integer.parseInt(argv[++i]);
+			  } else if (argv[i].equals("-ioThreads") && i + 1 < argv.length) {
+					ioThreads = Integer.parseInt(argv[++i]);
+			  } else if (argv[i].equals("-direct")) {
+					direct = true;
+			  } else {
+					positional.add(argv[i]);
+			  }
+		 }
+		 final String[] args = positional.toArray(new String[positional.size()]);
+		if (args.length > 1 && args[0].equals("-shm")) {// -shm portNumber [sampBuffSize [eventBuffSize]]
+			 final int port = Integer.parseInt(args[1]);
+			 final int nSamples = args.length > 2 ? Integer.parseInt(args[2]) : dataBufSize;
+			 final int nEvents = args.length > 3 ? Integer.parseInt(args[3]) : (args.length > 2 ? nSamples : eventBufSize);
+			 buffer = new BufferServer(port, new SharedRingDataStore(nSamples, nEvents, SharedRingDataStore.defaultFile(port)));
+		} else if (args.length == 0 ){
 			 usage();
 			 System.exit(1);
 		} else if (args.length == 1) {
 			 try { 
-				  buffer = new BufferServer(Integer.parseInt(args[0]));
+				  final int port = Integer.parseInt(args[0]);
+				  buffer = direct ? new BufferServer(port, new DirectRingDataStore(dataBufSize, eventBufSize))
+						: new BufferServer(port);
 			 } catch ( NumberFormatException e ){ // not a number, assume it's the save location
 				  buffer = new BufferServer(serverPort, dataBufSize, eventBufSize, args[0]);
 			 }
 		} else if (args.length == 2) {// portNumber, samp/EventsBuffSize
-			buffer = new BufferServer(Integer.parseInt(args[0]),
-					Integer.parseInt(args[1]));
+			 final int port = Integer.parseInt(args[0]);
+			 final int nSamplesEvents = Integer.parseInt(args[1]);
+			 buffer = direct ? new BufferServer(port, new DirectRingDataStore(nSamplesEvents, nSamplesEvents))
+				  : new BufferServer(port, nSamplesEvents);
 		} else if (args.length == 3) {// portNumber, sampBuffSize, eventBuffSize, 
-			buffer = new BufferServer(Integer.parseInt(args[0]),
-					Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+			 final int port = Integer.parseInt(args[0]);
+			 final int nSamples = Integer.parseInt(args[1]);
+			 final int nEvents = Integer.parseInt(args[2]);
+			 buffer = direct ? new BufferServer(port, new DirectRingDataStore(nSamples, nEvents))
+				  : new BufferServer(port, nSamples, nEvents);
 		} else if (args.length == 4 ) {// portNumber, sampBuffSize, eventBuffSize, saveLocation
 			 buffer = new BufferServer(Integer.parseInt(args[0]),
 												Integer.parseInt(args[1]), Integer.parseInt(args[2]),
@@ -65,6 +123,21 @@ public class BufferServer implements Runnable {
 		} else { // fall back on no-arguments & default config
 			 buffer = new BufferServer(serverPort, dataBufSize, eventBufSize);
 		}
+		 if (direct && !(buffer.dataStore instanceof DirectRingDataStore)) {
+			  System.err.println("-direct ignored, only used when the samples are not saved");
+		 }
+		 if (maxEvents > 0 || maxEventBytes > 0) {
+			  buffer.setEventLimits(maxEvents, maxEventBytes);
+		 }
+		 if (eventRetention > 0) {
+			  buffer.setEventRetention(eventRetention);
+		 }
+		 if (maxStreams > 0) {
+			  buffer.setMaxStreams(maxStreams);
+		 }
+		 if (ioThreads > 0) {
+			  buffer.setIOThreads(ioThreads);
+		 }
       // Now run the thread
       buffer.addMonitor(new SystemOutMonitor(logging));
       buffer.run();
@@ -84,18 +157,34 @@ public class BufferServer implements Runnable {
 
 	 public static void usage(){
 		  System.err.println("java -jar BufferServer.jar PORT sampLen eventLen SaveLocation verbosityLevel");
+		  System.err.println("java -jar BufferServer.jar -shm PORT sampLen eventLen  (samples shared with local clients in /dev/shm)");
+		  System.err.println("  options: -maxEvents N -maxEventBytes N -eventRetention SECONDS  (limits of the event store)");
+		  System.err.println("           -maxStreams N  (number of named streams clients may create)");
+		  System.err.println("           -ioThreads N  (serve all connections from N selector threads, default a thread per connection)");
+		  System.err.println("           -direct  (keep the samples off-heap, when not saving)");
 		  System.err.println("Matlab/Library: buffer=nl.fcdonders.fieldtrip.bufferserver.BufferServer(PORT,samplen,eventlen,savePath); buffer.start();");
 	 }
 
 
 	private final DataModel dataStore;
+	private DataStreams streams = null;
+	// Capacity and save location of streams created on demand
+	private int streamSamples = dataBufSize;
+	private int streamEvents = eventBufSize;
+	private String streamSavePath = null;
+	// Event store limits of the dataStore and of streams created on demand, 0 is unset
+	private int maxEvents = 0;
+	private long maxEventBytes = 0;
+	private double eventRetention = 0;
 
 	private final int portNumber;
 	private ServerSocket serverSocket;
-	private boolean disconnectedOnPurpose = false;
+	private volatile boolean disconnectedOnPurpose = false;
 	private final ArrayList<ConnectionThread> threads = new ArrayList<ConnectionThread>();
 	private FieldtripBufferMonitor monitor = null;
 	private int nextClientID = 0;
+	private int nIOThreads = 0;
+	private SelectorThread[] ioThreads = null;
 
    private static final String TAG = BufferServer.class.getSimpleName();
    public String getName() { return TAG; }
@@ -113,6 +202,7 @@ public class BufferServer implements Runnable {
 	 public BufferServer(final String path, final int portNumber) {
 		this.portNumber = portNumber;
 		dataStore = new SavingRingDataStore(dataBufSize,eventBufSize,path);
+		streamSavePath = path;
 		System.err.println("Saving to : " + path);
 		//setName("Fieldtrip Buffer Server");
 	}
@@ -127,6 +217,7 @@ public class BufferServer implements Runnable {
 	public BufferServer(final int portNumber, final int nSamplesEvents) {
 		this.portNumber = portNumber;
 		dataStore = new RingDataStore(nSamplesEvents,nSamplesEvents);
+		streamSamples = streamEvents = nSamplesEvents;
 		//setName("Fieldtrip Buffer Server");
 	}
 
@@ -141,13 +232,29 @@ public class BufferServer implements Runnable {
 	public BufferServer(final int portNumber, final int nSamples, final int nEvents) {
 		this.portNumber = portNumber;
 		dataStore = new RingDataStore(nSamples, nEvents);
+		streamSamples = nSamples;
+		streamEvents = nEvents;
 		//setName("Fieldtrip Buffer Server");
 	}
 
+	/**
+	 * Constructor, serves the given dataStore, e.g. a DirectRingDataStore.
+	 *
+	 * @param portNumber
+	 * @param dataStore
+	 */
+	public BufferServer(final int portNumber, final DataModel dataStore) {
+		this.portNumber = portNumber;
+		this.dataStore = dataStore;
+	}
+
 	public BufferServer(final int portNumber, final int nSamples, final int nEvents, final java.io.File file) {
 		this.portNumber = portNumber;
 		System.err.println("Saving to : " + file.getPath());
 		dataStore = new SavingRingDataStore(nSamples, nEvents, file);
+		streamSamples = nSamples;
+		streamEvents = nEvents;
+		streamSavePath = file.getPath();
 		//setName("Fieldtrip Buffer Server");
 	}
 
@@ -155,9 +262,125 @@ public class BufferServer implements Runnable {
 		this.portNumber = portNumber;
 		System.err.println("Saving to : " + path);
 		dataStore = new SavingRingDataStore(nSamples, nEvents, path);
+		streamSamples = nSamples;
+		streamEvents = nEvents;
+		streamSavePath = path;
 		//setName("Fieldtrip Buffer Server");
 	}
 
+	/**
+	 * Returns the streams of the server, the dataStore being the DEFAULT one.
+	 *
+	 * @return
+	 */
+	public synchronized DataStreams getStreams() {
+		if (streams == null) {
+			streams = new DataStreams(dataStore, new DataStreams.Factory() {
+				@Override
+				public DataModel create(final String name)
+						throws DataException {
+					return createStream(name);
+				}
+			});
+		}
+		return streams;
+	}
+
+	/**
+	 * Adds a stream served by the given dataStore, e.g. one with a different
+	 * capacity than the server's.
+	 *
+	 * @param name
+	 * @param dataStore
+	 * @throws DataException
+	 *             if the name is invalid.
+	 */
+	public void addStream(final String name, final DataModel dataStore)
+			throws DataException {
+		getStreams().add(name, dataStore);
+	}
+
+	/**
+	 * Sets the maximum number of streams clients may create, including the
+	 * DEFAULT stream, see DataStreams.setMaxStreams.
+	 *
+	 * @param maxStreams
+	 */
+	public void setMaxStreams(final int maxStreams) {
+		getStreams().setMaxStreams(maxStreams);
+	}
+
+	/**
+	 * Creates the dataStore of a stream a client puts a header to: a ring with the
+	 * capacity of the server's, saving to a directory named after the stream
+	 * if the server saves.
+	 *
+	 * @param name
+	 * @return
+	 * @throws DataException
+	 */
+	protected DataModel createStream(final String name) throws DataException {
+		final RingDataStore store;
+		if (streamSavePath == null) {
+			store = new RingDataStore(streamSamples, streamEvents);
+		} else {
+			try {
+				store = new SavingRingDataStore(streamSamples, streamEvents,
+						new java.io.File(streamSavePath, name).getPath());
+			} catch (final IllegalStateException e) {
+				throw new DataException("Could not save stream " + name + ": "
+						+ e.getMessage());
+			}
+		}
+		applyEventLimits(store);
+		return store;
+	}
+
+	/**
+	 * Sets the maximum number of events kept, and the maximum (estimated)
+	 * memory they may take, of the dataStore and of the streams created from
+	 * now on, see RingDataStore.setEventLimits. A maxEvents of 0 keeps the
+	 * number of events the store was constructed with, a maxBytes of 0 means
+	 * no memory limit.
+	 *
+	 * @param maxEvents
+	 * @param maxBytes
+	 */
+	public synchronized void setEventLimits(final int maxEvents,
+			final long maxBytes) {
+		this.maxEvents = maxEvents;
+		this.maxEventBytes = maxBytes;
+		if (dataStore instanceof RingDataStore) {
+			final RingDataStore store = (RingDataStore) dataStore;
+			store.setEventLimits(maxEvents > 0 ? maxEvents : store.getMaxEvents(),
+					maxBytes > 0 ? maxBytes : Long.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Evicts events whose sample is more than seconds before the newest
+	 * event's, from the dataStore and the streams created from now on, see
+	 * RingDataStore.setEventRetention. 0 keeps events until a limit is reached.
+	 *
+	 * @param seconds
+	 */
+	public synchronized void setEventRetention(final double seconds) {
+		eventRetention = seconds;
+		if (dataStore instanceof RingDataStore) {
+			((RingDataStore) dataStore).setEventRetention(seconds);
+		}
+	}
+
+	private synchronized void applyEventLimits(final RingDataStore store) {
+		if (maxEvents > 0 || maxEventBytes > 0) {
+			store.setEventLimits(maxEvents > 0 ? maxEvents : store.getMaxEvents(),
+					maxEventBytes > 0 ? maxEventBytes : Long.MAX_VALUE);
+		}
+		if (eventRetention > 0) {
+			store.setEventRetention(eventRetention);
+		}
+	}
+
 	public synchronized void addMonitor(final FieldtripBufferMonitor monitor) {
 		this.monitor = monitor;
 		 synchronized ( threads ) {
@@ -165,6 +388,23 @@ public class BufferServer implements Runnable {
 					thread.addMonitor(monitor);
 			  }
 		 }
+		 if (ioThreads != null) {
+			  for (final SelectorThread thread : ioThreads) {
+					thread.addMonitor(monitor);
+			  }
+		 }
+	}
+
+	/**
+	 * Selects the selector based server mode, in which all connections are
+	 * serviced by a fixed pool of nThreads I/O threads and waiting clients do
+	 * not hold on to a thread. 0 (the default) starts a ConnectionThread per
+	 * connection. Must be called before run().
+	 *
+	 * @param nThreads
+	 */
+	public void setIOThreads(final int nThreads) {
+		nIOThreads = nThreads;
 	}
 
 	/**
@@ -267,16 +507,23 @@ public class BufferServer implements Runnable {
 		 // Add shutdown hook to force close and flush to disk of open files if interrupted/aborted
 		 Runtime.getRuntime().addShutdownHook(new Thread() { public void run() { cleanup(); } });		
 		 try {
-			serverSocket = new ServerSocket(portNumber);
+			// Open through a channel so connections can use gathering writes
+			serverSocket = ServerSocketChannel.open().socket();
+			serverSocket.setReuseAddress(true);
+			serverSocket.bind(new InetSocketAddress(portNumber));
 		} catch (final IOException e) {
 			 System.err.println("Could not listen on port " + portNumber);
 			 System.err.println(e);
 			 e.printStackTrace();
 		}
+		if (nIOThreads > 0) {
+			runSelectors();
+			return;
+		}
 		try {
 			 while (run) {
 				final ConnectionThread connection = new ConnectionThread(
-						nextClientID++, serverSocket.accept(), dataStore, this);
+						nextClientID++, serverSocket.accept(), getStreams(), this);
 				connection.setName("Fieldtrip Client Thread "
 						+ connection.clientAdress);
 				connection.addMonitor(monitor);
@@ -300,6 +547,38 @@ public class BufferServer implements Runnable {
 		}
 	}
 
+	/**
+	 * Accepts connections and hands them round-robin to the I/O threads.
+	 */
+	private void runSelectors() {
+		try {
+			ioThreads = new SelectorThread[nIOThreads];
+			for (int i = 0; i < nIOThreads; i++) {
+				ioThreads[i] = new SelectorThread(getStreams());
+				ioThreads[i].setName("Fieldtrip IO Thread " + i);
+				ioThreads[i].addMonitor(monitor);
+				ioThreads[i].start();
+			}
+			int next = 0;
+			while (run) {
+				final SocketChannel channel = serverSocket.getChannel()
+						.accept();
+				ioThreads[next].addConnection(nextClientID++, channel);
+				next = (next + 1) % nIOThreads;
+			}
+		} catch (final IOException e) {
+			if (!disconnectedOnPurpose) {
+				System.err.println("Server socket disconnected " + portNumber);
+				System.err.println(e);
+			}
+		}
+		for (final SelectorThread thread : ioThreads) {
+			if (thread != null) {
+				thread.shutdown();
+			}
+		}
+	}
+
 	/**
 	 * Stops the buffer thread and closes all existing client connections.
 	 */
@@ -310,8 +589,8 @@ public class BufferServer implements Runnable {
 				 for (final ConnectionThread thread : threads) {
 					  thread.disconnect();
 				 }
-				 closeConnection();
 				 disconnectedOnPurpose = true;
+				 closeConnection();
 			} catch (final IOException e) {
 			}
 		}
@@ -319,6 +598,6 @@ public class BufferServer implements Runnable {
 
 	 public void cleanup(){
 		  System.err.println("Running cleanup code");
-		  dataStore.cleanup();
+		  getStreams().cleanup();
 	 }
 }
@@ -0,0 +1,158 @@
+package nl.fcdonders.fieldtrip.bufferserver;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import nl.fcdonders.fieldtrip.bufferserver.data.Data;
+import nl.fcdonders.fieldtrip.bufferserver.exceptions.ClientException;
+import nl.fcdonders.fieldtrip.bufferserver.network.NetworkProtocol;
+
+/**
+ * Measures the delta+varint coding of data frames on recordings saved by the
+ * SavingRingDataStore: for each recording directory the samples are coded in
+ * blocks as they would be sent, decoded again and compared, and the size and
+ * speed of both directions are reported.
+ */
+public class CompressionBenchmark {
+	private static final int defaultBlockSize = 100;
+
+	static void usage() {
+		System.out.println("Usage: java -cp BufferServer.jar "
+				+ CompressionBenchmark.class.getName()
+				+ " recordingDir [recordingDir ...] [blockSize]");
+		System.out.println("where:");
+		System.out.println("\t recordingDir\t directory with the header and samples files of a recording");
+		System.out.println("\t blockSize\t number of samples per data frame ("
+				+ defaultBlockSize + ")");
+	}
+
+	public static void main(final String[] args) throws IOException {
+		if (args.length == 0) {
+			usage();
+			System.exit(1);
+		}
+		int nDirs = args.length;
+		int blockSize = defaultBlockSize;
+		try {
+			blockSize = Integer.parseInt(args[args.length - 1]);
+			nDirs--;
+		} catch (final NumberFormatException e) {
+			// last argument is a recording too
+		}
+		for (int i = 0; i < nDirs; i++) {
+			run(new File(args[i]), blockSize);
+		}
+	}
+
+	/**
+	 * Runs the benchmark on one recording and prints the results.
+	 */
+	static void run(final File dir, final int blockSize) throws IOException {
+		// The header starts with nChans, nSamples, nEvents, fSample, dataType
+		// in native byte order, see Header.serialize.
+		final ByteBuffer def = ByteBuffer.wrap(readFile(new File(dir,
+				"header"), 20));
+		def.order(ByteOrder.nativeOrder());
+		final int nChans = def.getInt(0);
+		final float fSample = def.getFloat(12);
+		final int dataType = def.getInt(16);
+		if (!NetworkProtocol.isDeltaVarintType(dataType)) {
+			System.out.println(dir + ": data type " + dataType
+					+ " is not an integer type, can not be coded.");
+			return;
+		}
+
+		final byte[] samples = readFile(new File(dir, "samples"), -1);
+		final int sampleSize = nChans * NetworkProtocol.dataTypeSize(dataType);
+		final int nSamples = samples.length / sampleSize;
+		final ByteBuffer all = ByteBuffer.wrap(samples);
+		all.order(ByteOrder.nativeOrder());
+
+		// The first pass warms up the compiler, the second is reported
+		codeAll(all, nChans, nSamples, dataType, blockSize);
+		final long[] result = codeAll(all, nChans, nSamples, dataType,
+				blockSize);
+		final long coded = result[0];
+		final long encodeNanos = result[1];
+		final long decodeNanos = result[2];
+		final long mismatches = result[3];
+
+		final long raw = (long) nSamples * sampleSize;
+		System.out.println(dir + ": " + nSamples + " samples of " + nChans
+				+ " channels, type " + dataType + ", " + fSample + " Hz");
+		System.out.println(String.format(
+				"  %d bytes coded to %d (%.1f%%, %.2f bytes per point)", raw,
+				coded, 100.0 * coded / Math.max(1, raw), (double) coded
+						/ Math.max(1, (long) nSamples * nChans)));
+		System.out.println(String.format(
+				"  encode %.0f MB/s, decode %.0f MB/s, %d blocks of %d samples, %d mismatches",
+				raw / 1e6 / Math.max(1e-9, encodeNanos / 1e9), raw / 1e6
+						/ Math.max(1e-9, decodeNanos / 1e9),
+				(nSamples + blockSize - 1) / blockSize, blockSize, mismatches));
+	}
+
+	/**
+	 * Codes and decodes all samples in blocks, returns the number of coded
+	 * bytes, the nanoseconds spent coding and decoding, and the number of
+	 * blocks which did not decode to the original.
+	 */
+	private static long[] codeAll(final ByteBuffer all, final int nChans,
+			final int nSamples, final int dataType, final int blockSize)
+			throws IOException {
+		final int sampleSize = nChans * NetworkProtocol.dataTypeSize(dataType);
+		final long[] result = new long[4];
+		for (int begin = 0; begin < nSamples; begin += blockSize) {
+			final int n = Math.min(blockSize, nSamples - begin);
+			all.limit((begin + n) * sampleSize).position(begin * sampleSize);
+			final ByteBuffer block = all.slice();
+			block.order(ByteOrder.nativeOrder());
+			final Data data = new Data(nChans, n, dataType, block,
+					ByteOrder.nativeOrder());
+
+			final long t0 = System.nanoTime();
+			final byte[] message = NetworkProtocol.encodeDeltaVarintData(data,
+					ByteOrder.nativeOrder());
+			final long t1 = System.nanoTime();
+			final ByteBuffer body = ByteBuffer.wrap(message, 8,
+					message.length - 8);
+			body.order(ByteOrder.nativeOrder());
+			Data decoded;
+			try {
+				decoded = NetworkProtocol.decodeData(body);
+			} catch (final ClientException e) {
+				throw new IOException("Coded block does not decode: " + e);
+			}
+			final long t2 = System.nanoTime();
+
+			result[0] += message.length - 8 - 16;
+			result[1] += t1 - t0;
+			result[2] += t2 - t1;
+			if (!decoded.buffer.equals(block)) {
+				result[3]++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Reads the first max bytes of file, or all if max < 0.
+	 */
+	private static byte[] readFile(final File file, final int max)
+			throws IOException {
+		final long length = file.length();
+		final int n = (int) (max < 0 ? length : Math.min(length, max));
+		final byte[] bytes = new byte[n];
+		final DataInputStream in = new DataInputStream(new FileInputStream(
+				file));
+		try {
+			in.readFully(bytes);
+		} finally {
+			in.close();
+		}
+		return bytes;
+	}
+}
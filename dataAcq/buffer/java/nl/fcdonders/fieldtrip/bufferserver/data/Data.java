@@ -2,6 +2,10 @@ package nl.fcdonders.fieldtrip.bufferserver.data;
 
 import java.nio.ByteOrder;
 import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+
+import nl.fcdonders.fieldtrip.bufferserver.network.NetworkProtocol;
 
 /**
  * Wrapper for passing data between the NetworkProtocol and dataStore.
@@ -11,6 +15,7 @@ import java.nio.ByteBuffer;
  */
 public class Data {
 	public final byte[][][] data;
+	public final ByteBuffer buffer;
 	public final int dataType;
 	public final int nChans;
 	public final int nSamples;
@@ -35,12 +40,433 @@ public class Data {
 	public Data(int nChans, int nSamples, int dataType, byte[][][] data,
 			ByteOrder order) {
 		this.data = data;
+		buffer = null;
+		this.dataType = dataType;
+		this.nChans = nChans;
+		this.nSamples = nSamples;
+		this.order = order;
+	}
+
+	/**
+	 * Constructor for data held as one contiguous block of bytes, in which
+	 * case data is null.
+	 *
+	 * @param nChans
+	 *            number of channels
+	 * @param nSamples
+	 *            number of samples
+	 * @param dataType
+	 *            dataType
+	 * @param buffer
+	 *            sample-major nSamples*nChans*nBytes bytes, from position to
+	 *            limit
+	 * @param order
+	 *            endianess of the data.
+	 */
+	public Data(int nChans, int nSamples, int dataType, ByteBuffer buffer,
+			ByteOrder order) {
+		data = null;
+		this.buffer = buffer;
 		this.dataType = dataType;
 		this.nChans = nChans;
 		this.nSamples = nSamples;
 		this.order = order;
 	}
 
+	/**
+	 * Returns sample index as an nChans by nBytes array, reversing the byte
+	 * order of each data point if flip is set. Copies, unless the data is
+	 * held as arrays and needs no flipping.
+	 *
+	 * @param index
+	 * @param flip
+	 * @return
+	 */
+	public byte[][] getSample(final int index, final boolean flip) {
+		if (data != null && !flip) {
+			return data[index];
+		}
+
+		final int nBytes = NetworkProtocol.dataTypeSize(dataType);
+		final byte[][] sample = new byte[nChans][nBytes];
+
+		if (data == null) {
+			final ByteBuffer src = buffer.duplicate();
+			src.position(buffer.position() + index * nChans * nBytes);
+			for (int j = 0; j < nChans; j++) {
+				src.get(sample[j]);
+			}
+			if (!flip) {
+				return sample;
+			}
+		}
+
+		final byte[][] from = data == null ? sample : data[index];
+		for (int j = 0; j < nChans; j++) {
+			final byte[] point = from[j];
+			final byte[] flipped = sample[j];
+			for (int k = 0; k < nBytes / 2; k++) {
+				final byte b = point[k];
+				flipped[k] = point[nBytes - k - 1];
+				flipped[nBytes - k - 1] = b;
+			}
+		}
+		return sample;
+	}
+
+	/**
+	 * Returns a copy holding only the given channels, in the given order.
+	 *
+	 * @param channels
+	 *            indices of the channels to keep
+	 * @return
+	 */
+	public Data selectChannels(final int[] channels) {
+		final int nBytes = NetworkProtocol.dataTypeSize(dataType);
+		final ByteBuffer selected = ByteBuffer.allocate(nSamples
+				* channels.length * nBytes);
+
+		if (data == null) {
+			final ByteBuffer src = buffer.duplicate();
+			final int start = buffer.position();
+			for (int i = 0; i < nSamples; i++) {
+				for (final int channel : channels) {
+					final int from = start + (i * nChans + channel) * nBytes;
+					src.limit(from + nBytes).position(from);
+					selected.put(src);
+				}
+			}
+		} else {
+			for (int i = 0; i < nSamples; i++) {
+				for (final int channel : channels) {
+					selected.put(data[i][channel]);
+				}
+			}
+		}
+
+		selected.flip();
+		return new Data(channels.length, nSamples, dataType, selected, order);
+	}
+
+	/**
+	 * Returns a copy holding only the given channels of every decimation'th
+	 * sample, starting with the first. If blockMean is set each sample is
+	 * instead the mean of a block of decimation samples (the last block may be
+	 * shorter), rounded for integer types, which keeps frequencies above the
+	 * new Nyquist frequency from folding back in as badly.
+	 *
+	 * @param channels
+	 *            indices of the channels to keep, null for all
+	 * @param decimation
+	 *            1 or more
+	 * @param blockMean
+	 * @return
+	 */
+	public Data select(final int[] channels, final int decimation,
+			final boolean blockMean) {
+		if (decimation <= 1) {
+			return channels == null ? this : selectChannels(channels);
+		}
+		final int[] selected = channels == null ? allChannels() : channels;
+		final int nBytes = NetworkProtocol.dataTypeSize(dataType);
+		final int nOut = (nSamples + decimation - 1) / decimation;
+		final ByteBuffer out = ByteBuffer.allocate(
+				nOut * selected.length * nBytes).order(order);
+
+		if (!blockMean) {
+			final ByteBuffer src = data == null ? buffer.duplicate() : null;
+			for (int i = 0; i < nSamples; i += decimation) {
+				for (final int channel : selected) {
+					if (data == null) {
+						final int from = buffer.position()
+								+ (i * nChans + channel) * nBytes;
+						src.limit(from + nBytes).position(from);
+						out.put(src);
+					} else {
+						out.put(data[i][channel]);
+					}
+				}
+			}
+		} else {
+			// Selected points of samples held as arrays are gathered into src
+			final ByteBuffer src = data == null ? buffer.duplicate() : ByteBuffer
+					.allocate(selected.length * nBytes);
+			src.order(order);
+			final double[] sum = new double[selected.length];
+			for (int i = 0; i < nSamples; i += decimation) {
+				final int n = Math.min(decimation, nSamples - i);
+				for (int j = 0; j < selected.length; j++) {
+					sum[j] = 0;
+				}
+				for (int k = i; k < i + n; k++) {
+					if (data == null) {
+						final int base = buffer.position() + k * nChans * nBytes;
+						for (int j = 0; j < selected.length; j++) {
+							sum[j] += getValue(src, base + selected[j] * nBytes);
+						}
+					} else {
+						src.clear();
+						for (int j = 0; j < selected.length; j++) {
+							src.put(data[k][selected[j]]);
+						}
+						for (int j = 0; j < selected.length; j++) {
+							sum[j] += getValue(src, j * nBytes);
+						}
+					}
+				}
+				for (int j = 0; j < selected.length; j++) {
+					putValue(out, sum[j] / n);
+				}
+			}
+		}
+
+		out.flip();
+		return new Data(selected.length, nOut, dataType, out, order);
+	}
+
+	/**
+	 * Returns a copy converted to targetType, FLOAT32 or FLOAT64, with each
+	 * channel multiplied by its scale factor if scale is not null. The copy
+	 * is written in the given byte order in a single pass over the samples,
+	 * so it can be sent without flipping. Returns this data if there is
+	 * nothing to convert.
+	 *
+	 * @param targetType
+	 * @param scale
+	 *            nChans scale factors, or null
+	 * @param outOrder
+	 * @return
+	 */
+	public Data convert(final int targetType, final double[] scale,
+			final ByteOrder outOrder) {
+		if (targetType == dataType && scale == null) {
+			return this;
+		}
+		if (targetType != NetworkProtocol.FLOAT32
+				&& targetType != NetworkProtocol.FLOAT64) {
+			throw new IllegalArgumentException(
+					"Can only convert to FLOAT32 or FLOAT64.");
+		}
+		final int nBytes = NetworkProtocol.dataTypeSize(dataType);
+		final ByteBuffer out = ByteBuffer.allocate(
+				nSamples * nChans * NetworkProtocol.dataTypeSize(targetType))
+				.order(outOrder);
+		final FloatBuffer floats = targetType == NetworkProtocol.FLOAT32 ? out
+				.asFloatBuffer() : null;
+		final DoubleBuffer doubles = targetType == NetworkProtocol.FLOAT64 ? out
+				.asDoubleBuffer() : null;
+
+		// Samples held as arrays are gathered into src one at a time
+		final ByteBuffer src = data == null ? buffer.duplicate() : ByteBuffer
+				.allocate(nChans * nBytes);
+		src.order(order);
+		final double[] row = new double[nChans];
+
+		for (int i = 0; i < nSamples; i++) {
+			int base = 0;
+			if (data == null) {
+				base = buffer.position() + i * nChans * nBytes;
+			} else {
+				src.clear();
+				for (int j = 0; j < nChans; j++) {
+					src.put(data[i][j]);
+				}
+			}
+			getRow(src, base, row);
+			if (scale != null) {
+				for (int j = 0; j < nChans; j++) {
+					row[j] *= scale[j];
+				}
+			}
+			if (doubles != null) {
+				doubles.put(row);
+			} else {
+				for (int j = 0; j < nChans; j++) {
+					floats.put((float) row[j]);
+				}
+			}
+		}
+
+		return new Data(nChans, nSamples, targetType, out, outOrder);
+	}
+
+	/**
+	 * Reads the data points of samples begin..begin+n-1 of integer data into
+	 * out, sample by sample, sign or zero extended as the type requires.
+	 *
+	 * @param begin
+	 * @param n
+	 * @param out
+	 *            at least n*nChans long
+	 */
+	public void getIntegers(final int begin, final int n, final long[] out) {
+		final int nBytes = NetworkProtocol.dataTypeSize(dataType);
+		final ByteBuffer src = data == null ? buffer.duplicate() : ByteBuffer
+				.allocate(nChans * nBytes);
+		src.order(order);
+
+		for (int i = 0, k = 0; i < n; i++) {
+			int base = 0;
+			if (data == null) {
+				base = buffer.position() + (begin + i) * nChans * nBytes;
+			} else {
+				src.clear();
+				for (int j = 0; j < nChans; j++) {
+					src.put(data[begin + i][j]);
+				}
+			}
+			for (int j = 0; j < nChans; j++, k++) {
+				switch (dataType) {
+				case NetworkProtocol.CHAR:
+				case NetworkProtocol.UINT8:
+					out[k] = src.get(base + j) & 0xff;
+					break;
+				case NetworkProtocol.INT8:
+					out[k] = src.get(base + j);
+					break;
+				case NetworkProtocol.UINT16:
+					out[k] = src.getShort(base + 2 * j) & 0xffff;
+					break;
+				case NetworkProtocol.INT16:
+					out[k] = src.getShort(base + 2 * j);
+					break;
+				case NetworkProtocol.UINT32:
+					out[k] = src.getInt(base + 4 * j) & 0xffffffffL;
+					break;
+				case NetworkProtocol.INT32:
+					out[k] = src.getInt(base + 4 * j);
+					break;
+				default:
+					out[k] = src.getLong(base + 8 * j);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the nChans data points of the sample starting at byte base of src.
+	 */
+	private void getRow(final ByteBuffer src, final int base,
+			final double[] row) {
+		switch (dataType) {
+		case NetworkProtocol.CHAR:
+		case NetworkProtocol.UINT8:
+			for (int j = 0; j < nChans; j++) {
+				row[j] = src.get(base + j) & 0xff;
+			}
+			break;
+		case NetworkProtocol.INT8:
+			for (int j = 0; j < nChans; j++) {
+				row[j] = src.get(base + j);
+			}
+			break;
+		case NetworkProtocol.UINT16:
+			for (int j = 0; j < nChans; j++) {
+				row[j] = src.getShort(base + 2 * j) & 0xffff;
+			}
+			break;
+		case NetworkProtocol.INT16:
+			for (int j = 0; j < nChans; j++) {
+				row[j] = src.getShort(base + 2 * j);
+			}
+			break;
+		case NetworkProtocol.UINT32:
+			for (int j = 0; j < nChans; j++) {
+				row[j] = src.getInt(base + 4 * j) & 0xffffffffL;
+			}
+			break;
+		case NetworkProtocol.INT32:
+			for (int j = 0; j < nChans; j++) {
+				row[j] = src.getInt(base + 4 * j);
+			}
+			break;
+		case NetworkProtocol.UINT64:
+		case NetworkProtocol.INT64:
+			for (int j = 0; j < nChans; j++) {
+				row[j] = src.getLong(base + 8 * j);
+			}
+			break;
+		case NetworkProtocol.FLOAT32:
+			for (int j = 0; j < nChans; j++) {
+				row[j] = src.getFloat(base + 4 * j);
+			}
+			break;
+		case NetworkProtocol.FLOAT64:
+			for (int j = 0; j < nChans; j++) {
+				row[j] = src.getDouble(base + 8 * j);
+			}
+			break;
+		}
+	}
+
+	private int[] allChannels() {
+		final int[] channels = new int[nChans];
+		for (int i = 0; i < nChans; i++) {
+			channels[i] = i;
+		}
+		return channels;
+	}
+
+	/**
+	 * Reads the data point at byte index at of src, which is in order.
+	 */
+	private double getValue(final ByteBuffer src, final int at) {
+		switch (dataType) {
+		case NetworkProtocol.CHAR:
+		case NetworkProtocol.UINT8:
+			return src.get(at) & 0xff;
+		case NetworkProtocol.INT8:
+			return src.get(at);
+		case NetworkProtocol.UINT16:
+			return src.getShort(at) & 0xffff;
+		case NetworkProtocol.INT16:
+			return src.getShort(at);
+		case NetworkProtocol.UINT32:
+			return src.getInt(at) & 0xffffffffL;
+		case NetworkProtocol.INT32:
+			return src.getInt(at);
+		case NetworkProtocol.UINT64:
+		case NetworkProtocol.INT64:
+			return src.getLong(at);
+		case NetworkProtocol.FLOAT32:
+			return src.getFloat(at);
+		case NetworkProtocol.FLOAT64:
+			return src.getDouble(at);
+		}
+		return 0;
+	}
+
+	/**
+	 * Appends v to out as a data point of this data's type.
+	 */
+	private void putValue(final ByteBuffer out, final double v) {
+		switch (dataType) {
+		case NetworkProtocol.CHAR:
+		case NetworkProtocol.UINT8:
+		case NetworkProtocol.INT8:
+			out.put((byte) Math.round(v));
+			break;
+		case NetworkProtocol.UINT16:
+		case NetworkProtocol.INT16:
+			out.putShort((short) Math.round(v));
+			break;
+		case NetworkProtocol.UINT32:
+		case NetworkProtocol.INT32:
+			out.putInt((int) Math.round(v));
+			break;
+		case NetworkProtocol.UINT64:
+		case NetworkProtocol.INT64:
+			out.putLong(Math.round(v));
+			break;
+		case NetworkProtocol.FLOAT32:
+			out.putFloat((float) v);
+			break;
+		case NetworkProtocol.FLOAT64:
+			out.putDouble(v);
+			break;
+		}
+	}
+
 	/**
 	 * Returns the size in bytes.
 	 *
@@ -1,6 +1,12 @@
 package nl.fcdonders.fieldtrip.bufferserver.data;
 
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+
 import nl.fcdonders.fieldtrip.bufferserver.exceptions.DataException;
+import nl.fcdonders.fieldtrip.bufferserver.network.DataSelection;
+import nl.fcdonders.fieldtrip.bufferserver.network.EventSelection;
 import nl.fcdonders.fieldtrip.bufferserver.network.Request;
 import nl.fcdonders.fieldtrip.bufferserver.network.WaitRequest;
 
@@ -54,6 +60,52 @@ public abstract class DataModel {
 	 */
 	public abstract Data getData(Request request) throws DataException;
 
+	/**
+	 * Returns the selected channels of the requested samples, decimated.
+	 * Throws DataException if impossible. By default the whole range is
+	 * collected and then reduced, stores should override this to collect only
+	 * what was selected.
+	 *
+	 * @param selection
+	 *            Sample range, channels and decimation requested.
+	 * @return
+	 * @throws DataException
+	 */
+	public Data getData(DataSelection selection) throws DataException {
+		return getData(new Request(selection.begin, selection.end)).select(
+				selection.channels, selection.decimation, selection.blockMean);
+	}
+
+	/**
+	 * Points slices at the stored bytes of the requested data, so they can be
+	 * sent without copying. Returns false if this is not possible, e.g.
+	 * because the data would need its byte order changed, in which case the
+	 * caller should use getData(request) instead. By default not supported.
+	 *
+	 * @param request
+	 *            Start index and end index of the range requested.
+	 * @param order
+	 *            Byte order the data is needed in.
+	 * @param slices
+	 *            Views to set up.
+	 * @return
+	 * @throws DataException
+	 */
+	public boolean getDataSlices(Request request, ByteOrder order,
+			DataSlices slices) throws DataException {
+		return false;
+	}
+
+	/**
+	 * Returns the number of samples the store can hold at once, so no request
+	 * for more can be answered.
+	 *
+	 * @return
+	 */
+	public int getMaxSamples() {
+		return Integer.MAX_VALUE;
+	}
+
 	/**
 	 * Returns the number of events currently stored. Throws DataException if
 	 * impossible.
@@ -81,6 +133,39 @@ public abstract class DataModel {
 	 */
 	public abstract Event[] getEvents(Request request) throws DataException;
 
+	/**
+	 * Returns the stored events with a sample in the selected range and a type
+	 * starting with the selected prefix, ordered by sample. By default all
+	 * events are searched, stores should override this with an index.
+	 *
+	 * @param selection
+	 *            Sample range and type prefix of the events requested.
+	 * @return
+	 * @throws DataException
+	 */
+	public Event[] getEvents(EventSelection selection) throws DataException {
+		final ArrayList<Event> selected = new ArrayList<Event>();
+		if (getEventCount() > 0) {
+			for (final Event event : getEvents()) {
+				if (event.sample < selection.sampleBegin
+						|| event.sample > selection.sampleEnd) {
+					continue;
+				}
+				if (selection.typePrefix != null
+						&& selection.typePrefix.length() > 0) {
+					final String type = event.getTypeString();
+					if (type == null || !type.startsWith(selection.typePrefix)) {
+						continue;
+					}
+				}
+				selected.add(event);
+			}
+		}
+		final Event[] events = selected.toArray(new Event[selected.size()]);
+		Arrays.sort(events, EventIndex.BY_SAMPLE);
+		return events;
+	}
+
 	/**
 	 * Returns the header currently stored. Throws DataException if impossible.
 	 *
@@ -1,10 +1,19 @@
 package nl.fcdonders.fieldtrip.bufferserver.data;
 
+/**
+ * Sample ring with a single writer and any number of readers. Readers do not
+ * lock: the writer announces which samples it is about to overwrite
+ * (writeLimit) before storing them and publishes them afterwards
+ * (sampleCount), and a reader checks after reading a sample that it was not
+ * being overwritten meanwhile.
+ *
+ * Only one thread may add or clear at a time; the dataModel serialises that.
+ */
 public class DataRingBuffer {
 	private final byte[][][] ring;
 	private final int capacity;
-	private int sampleCount = 0;
-	private int newPos = 0;
+	private volatile int sampleCount = 0;
+	private volatile int writeLimit = 0;
 
 	/**
 	 * Constructor
@@ -13,31 +22,28 @@ public class DataRingBuffer {
 	 *            size of the ring
 	 */
 	public DataRingBuffer(int size, int nChan, int nBytes) {
-		ring = new byte[size][nChan][nBytes];
+		ring = new byte[size][][];
 		capacity = size;
 	}
 
 	/**
-	 * Adds an item to the buffer.
+	 * Adds an item to the buffer. The item must not be changed afterwards.
 	 * 
 	 * @param item
 	 */
-	public synchronized void add(byte[][] item) {
-		sampleCount++;
-		ring[newPos++] = item;
-
-		// If newPos has reached capacity wrap the ring around.
-		if (newPos == capacity) {
-			newPos = 0;
-		}
+	public void add(byte[][] item) {
+		final int index = sampleCount;
+		writeLimit = index + 1;
+		ring[index % capacity] = item;
+		sampleCount = index + 1;
 	}
 
 	/**
 	 * Resets the buffer.
 	 */
-	public synchronized void clear() {
+	public void clear() {
+		writeLimit = 0;
 		sampleCount = 0;
-		newPos = 0;
 	}
 
 	/**
@@ -48,7 +54,7 @@ public class DataRingBuffer {
 	 *            -1.
 	 * @return the value at index
 	 */
-	public synchronized byte[][] get(int index) throws IndexOutOfBoundsException {
+	public byte[][] get(int index) throws IndexOutOfBoundsException {
 		if (index < 0) {
 			throw new IndexOutOfBoundsException("Index < 0.");
 		}
@@ -62,25 +68,14 @@ public class DataRingBuffer {
 			throw new IndexOutOfBoundsException("Index >= size.");
 		}
 
-		if (sampleCount < capacity) {
-			// Ring hasn't wrapped yet.
-			return ring[index];
-		} else {
-			// Ring has wrapped.
-
-			index -= sampleCount - capacity; // Subtract the index of the oldest item
-										// still in the ring.
-
-			index += newPos; // Add ring-index of the oldest item still in the
-								// ring.
+		final byte[][] item = ring[index % capacity];
 
-			// Check if index should be wrapped around.
-			if (index >= capacity) {
-				return ring[index - capacity];
-			} else {
-				return ring[index];
-			}
+		// Check the slot was not reused while we read it.
+		if (index < writeLimit - capacity) {
+			throw new IndexOutOfBoundsException(
+					"Index was overwritten while reading.");
 		}
+		return item;
 	}
 
 	/**
@@ -88,20 +83,30 @@ public class DataRingBuffer {
 	 * 
 	 * @return
 	 */
-	public synchronized int indexOfOldest() {
-		if (sampleCount <= capacity) {
+	public int indexOfOldest() {
+		final int count = sampleCount;
+		if (count <= capacity) {
 			return 0;
 		} else {
-			return sampleCount - capacity;
+			return count - capacity;
 		}
 	}
 
+	/**
+	 * Returns the number of items the ring can hold.
+	 * 
+	 * @return
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
 	/**
 	 * Returns the total number of items that have been added to the ring.
 	 * 
 	 * @return
 	 */
-	public synchronized int sampleCount() {
+	public int sampleCount() {
 		return sampleCount;
 	}
 
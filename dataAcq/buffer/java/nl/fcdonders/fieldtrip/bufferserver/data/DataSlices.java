@@ -0,0 +1,70 @@
+package nl.fcdonders.fieldtrip.bufferserver.data;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable description of a GET_DAT response whose sample bytes are views onto
+ * the ring of a data store rather than copies. buffers[0] holds the response
+ * header, buffers[1] and (if the range wraps) buffers[2] the samples, so the
+ * whole response can be sent with a single gathering write.
+ *
+ * One instance is kept per connection. It keeps a reference to the ring it
+ * last pointed into until it is reused.
+ */
+public class DataSlices {
+	public final ByteBuffer[] buffers = new ByteBuffer[3];
+	public int nBuffers = 0;
+	public int nChans;
+	public int nSamples;
+	public int dataType;
+	public int size;
+	private ByteBuffer source = null;
+	private DirectDataRingBuffer owner = null;
+	private int begin;
+
+	public DataSlices() {
+		buffers[0] = ByteBuffer.allocateDirect(24);
+	}
+
+	/**
+	 * Returns true if the samples the views point at may have been
+	 * overwritten by now. Checked after sending them: the response then went
+	 * out with mixed samples and the connection has to be dropped.
+	 *
+	 * @return
+	 */
+	public boolean overwritten() {
+		return owner != null && owner.overwritten(begin);
+	}
+
+	/**
+	 * Points the sample views at ring, only creating new views if the ring
+	 * has changed since the last call.
+	 *
+	 * @param ring
+	 * @param owner
+	 *            sample ring the views point into
+	 * @param begin
+	 *            index of the first sample covered
+	 */
+	void setSource(final ByteBuffer ring, final DirectDataRingBuffer owner,
+			final int begin) {
+		this.owner = owner;
+		this.begin = begin;
+		if (source != ring) {
+			source = ring;
+			buffers[1] = ring.duplicate();
+			buffers[2] = ring.duplicate();
+		}
+	}
+
+	/**
+	 * Sets buffers[index] to cover the bytes from start to end of the ring.
+	 */
+	void setSlice(final int index, final int start, final int end) {
+		final ByteBuffer view = buffers[index];
+		view.limit(view.capacity());
+		view.position(start);
+		view.limit(end);
+	}
+}
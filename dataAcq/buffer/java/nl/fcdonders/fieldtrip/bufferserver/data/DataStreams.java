@@ -0,0 +1,311 @@
+package nl.fcdonders.fieldtrip.bufferserver.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import nl.fcdonders.fieldtrip.bufferserver.exceptions.DataException;
+import nl.fcdonders.fieldtrip.bufferserver.network.Request;
+import nl.fcdonders.fieldtrip.bufferserver.network.WaitRequest;
+
+/**
+ * The named streams a BufferServer hosts, each an independent dataModel with
+ * its own header, samples, events and recording. The stream named DEFAULT is
+ * the one clients use unless they select another, so clients which do not
+ * know about streams see a server with a single dataModel as before. Other
+ * streams are added, or created by the factory when a header is first put to
+ * them, up to maxStreams streams. A connection may select a stream which does
+ * not exist yet: until it is created it behaves as a stream without header,
+ * without taking any resources.
+ */
+public class DataStreams {
+	/** Name of the stream every connection starts with. */
+	public static final String DEFAULT = "";
+	/** Maximum length of a stream name. */
+	public static final int MAXNAMELENGTH = 64;
+	/** Default maximum number of streams, including DEFAULT. */
+	public static final int MAXSTREAMS = 32;
+
+	/**
+	 * Creates the dataModel of a stream the first time it is asked for.
+	 */
+	public interface Factory {
+		public DataModel create(String name) throws DataException;
+	}
+
+	private final HashMap<String, DataModel> streams = new HashMap<String, DataModel>();
+	private final ArrayList<String> names = new ArrayList<String>();
+	private final DataModel defaultStream;
+	private final Factory factory;
+	private int maxStreams = MAXSTREAMS;
+
+	/**
+	 * Constructor for a single stream, asking for any other fails.
+	 *
+	 * @param defaultStream
+	 */
+	public DataStreams(final DataModel defaultStream) {
+		this(defaultStream, null);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param defaultStream
+	 *            dataModel of the DEFAULT stream.
+	 * @param factory
+	 *            creates the other streams, or null to only serve those added.
+	 */
+	public DataStreams(final DataModel defaultStream, final Factory factory) {
+		this.defaultStream = defaultStream;
+		this.factory = factory;
+		streams.put(DEFAULT, defaultStream);
+		names.add(DEFAULT);
+	}
+
+	/**
+	 * Adds (or replaces) a stream.
+	 *
+	 * @param name
+	 * @param dataStore
+	 * @throws DataException
+	 *             if the name is invalid.
+	 */
+	public synchronized void add(final String name, final DataModel dataStore)
+			throws DataException {
+		checkName(name);
+		if (streams.put(name, dataStore) == null) {
+			names.add(name);
+		}
+	}
+
+	/**
+	 * Returns the stream with the given name.
+	 *
+	 * @param name
+	 * @return
+	 * @throws DataException
+	 *             if there is no such stream.
+	 */
+	public synchronized DataModel get(final String name) throws DataException {
+		final DataModel dataStore = streams.get(name);
+		if (dataStore == null) {
+			throw new DataException("No stream named " + name + ".");
+		}
+		return dataStore;
+	}
+
+	/**
+	 * Returns the stream with the given name, creating it if needed. Called
+	 * when a header is put to the stream.
+	 *
+	 * @param name
+	 * @return
+	 * @throws DataException
+	 *             if the stream can not be created.
+	 */
+	public synchronized DataModel create(final String name)
+			throws DataException {
+		DataModel dataStore = streams.get(name);
+		if (dataStore != null) {
+			return dataStore;
+		}
+		checkCreate(name);
+		dataStore = factory.create(name);
+		streams.put(name, dataStore);
+		names.add(name);
+		return dataStore;
+	}
+
+	/**
+	 * Returns the stream with the given name for a connection to select, or a
+	 * Pending stream if it does not exist yet but could be created.
+	 *
+	 * @param name
+	 * @return
+	 * @throws DataException
+	 *             if the stream does not exist and can not be created.
+	 */
+	public synchronized DataModel select(final String name)
+			throws DataException {
+		final DataModel dataStore = streams.get(name);
+		if (dataStore != null) {
+			return dataStore;
+		}
+		checkCreate(name);
+		return new Pending(name);
+	}
+
+	/**
+	 * Sets the maximum number of streams, including DEFAULT. Streams which
+	 * exist already are kept.
+	 *
+	 * @param maxStreams
+	 */
+	public synchronized void setMaxStreams(final int maxStreams) {
+		this.maxStreams = maxStreams;
+	}
+
+	/**
+	 * Returns the maximum number of streams.
+	 *
+	 * @return
+	 */
+	public synchronized int getMaxStreams() {
+		return maxStreams;
+	}
+
+	private void checkCreate(final String name) throws DataException {
+		checkName(name);
+		if (factory == null) {
+			throw new DataException("No stream named " + name + ".");
+		}
+		if (names.size() >= maxStreams) {
+			throw new DataException("Can not create stream " + name
+					+ ", there are " + maxStreams + " streams already.");
+		}
+	}
+
+	/**
+	 * Returns the DEFAULT stream.
+	 *
+	 * @return
+	 */
+	public DataModel getDefault() {
+		return defaultStream;
+	}
+
+	/**
+	 * Returns the names of the streams, in the order they were created.
+	 *
+	 * @return
+	 */
+	public synchronized String[] getNames() {
+		return names.toArray(new String[names.size()]);
+	}
+
+	/**
+	 * Cleans up all streams, see DataModel.cleanup.
+	 */
+	public synchronized void cleanup() {
+		for (final String name : names) {
+			streams.get(name).cleanup();
+		}
+	}
+
+	/**
+	 * A stream selected by a connection before it exists. It has no header,
+	 * so all requests fail as for a stream without header, except putting a
+	 * header, which the connection does to the stream it creates instead.
+	 */
+	public static final class Pending extends DataModel {
+		public final String name;
+
+		Pending(final String name) {
+			this.name = name;
+		}
+
+		private DataException noHeader() {
+			return new DataException("No header.");
+		}
+
+		@Override
+		public void addWaitRequest(final WaitRequest request) {
+		}
+
+		@Override
+		public void flushData() throws DataException {
+			throw noHeader();
+		}
+
+		@Override
+		public void flushEvents() throws DataException {
+			throw noHeader();
+		}
+
+		@Override
+		public void flushHeader() throws DataException {
+			throw noHeader();
+		}
+
+		@Override
+		public Data getData() throws DataException {
+			throw noHeader();
+		}
+
+		@Override
+		public Data getData(final Request request) throws DataException {
+			throw noHeader();
+		}
+
+		@Override
+		public int getEventCount() throws DataException {
+			throw noHeader();
+		}
+
+		@Override
+		public Event[] getEvents() throws DataException {
+			throw noHeader();
+		}
+
+		@Override
+		public Event[] getEvents(final Request request) throws DataException {
+			throw noHeader();
+		}
+
+		@Override
+		public Header getHeader() throws DataException {
+			throw noHeader();
+		}
+
+		@Override
+		public int getSampleCount() throws DataException {
+			throw noHeader();
+		}
+
+		@Override
+		public boolean headerExists() {
+			return false;
+		}
+
+		@Override
+		public int putData(final Data data) throws DataException {
+			throw noHeader();
+		}
+
+		@Override
+		public int putEvents(final Event[] events) throws DataException {
+			throw noHeader();
+		}
+
+		@Override
+		public void putHeader(final Header header) throws DataException {
+			throw new DataException("Stream " + name + " was not created.");
+		}
+
+		@Override
+		public void cleanup() {
+		}
+	}
+
+	/**
+	 * Stream names are also used as directory names for recordings, so they
+	 * are restricted to letters, digits, '_', '-' and '.', not starting with
+	 * a '.'.
+	 *
+	 * @param name
+	 * @throws DataException
+	 */
+	private static void checkName(final String name) throws DataException {
+		if (name.length() == 0 || name.length() > MAXNAMELENGTH
+				|| name.charAt(0) == '.') {
+			throw new DataException("Invalid stream name " + name + ".");
+		}
+		for (int i = 0; i < name.length(); i++) {
+			final char c = name.charAt(i);
+			if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0'
+					&& c <= '9' || c == '_' || c == '-' || c == '.')) {
+				throw new DataException("Invalid stream name " + name + ".");
+			}
+		}
+	}
+}
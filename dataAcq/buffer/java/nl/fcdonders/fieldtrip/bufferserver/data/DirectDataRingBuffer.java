@@ -0,0 +1,361 @@
+package nl.fcdonders.fieldtrip.bufferserver.data;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Sample ring buffer which keeps all samples in one contiguous direct
+ * ByteBuffer of capacity*nChans*nBytes bytes, rather than as one array per
+ * channel per sample. Samples are stored sample-major in native byte order,
+ * sample index i lives in slot i % capacity.
+ *
+ * As in the DataRingBuffer there is a single writer and readers do not lock.
+ * The writer announces the samples it is about to overwrite (writeLimit)
+ * before copying them in and publishes them afterwards (sampleCount). Readers
+ * copy through their own view of the ring and check afterwards that none of
+ * the copied samples was overwritten meanwhile. Only one thread may add or
+ * clear at a time; the dataModel serialises that.
+ */
+public class DirectDataRingBuffer {
+	private final ByteBuffer ring; // never repositioned, readers duplicate it
+	private final ByteBuffer writeView;
+	private final int capacity;
+	private final int nChans;
+	private final int nBytes;
+	private final int sampleSize;
+	private volatile int sampleCount = 0;
+	private volatile int writeLimit = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param size
+	 *            number of samples in the ring
+	 * @param nChans
+	 *            number of channels per sample
+	 * @param nBytes
+	 *            number of bytes per data point
+	 */
+	public DirectDataRingBuffer(int size, int nChans, int nBytes) {
+		this(allocate(size, nChans, nBytes), size, nChans, nBytes);
+	}
+
+	/**
+	 * Constructor for a ring in the given buffer, e.g. a memory mapped file.
+	 *
+	 * @param ring
+	 *            buffer of at least size*nChans*nBytes bytes, from position 0
+	 * @param size
+	 *            number of samples in the ring
+	 * @param nChans
+	 *            number of channels per sample
+	 * @param nBytes
+	 *            number of bytes per data point
+	 */
+	protected DirectDataRingBuffer(ByteBuffer ring, int size, int nChans,
+			int nBytes) {
+		capacity = size;
+		this.nChans = nChans;
+		this.nBytes = nBytes;
+		sampleSize = nChans * nBytes;
+		this.ring = ring;
+		ring.order(ByteOrder.nativeOrder());
+		writeView = ring.duplicate();
+	}
+
+	/**
+	 * Adds a single sample to the buffer.
+	 *
+	 * @param sample
+	 *            nChans by nBytes array
+	 * @param flip
+	 *            if true reverse the byte order of each data point
+	 */
+	public void add(byte[][] sample, boolean flip) {
+		final int index = sampleCount;
+		announce(index + 1);
+		writeView.position((index % capacity) * sampleSize);
+		for (int j = 0; j < nChans; j++) {
+			if (flip) {
+				for (int k = nBytes - 1; k >= 0; k--) {
+					writeView.put(sample[j][k]);
+				}
+			} else {
+				writeView.put(sample[j]);
+			}
+		}
+		publish(index + 1);
+	}
+
+	/**
+	 * Adds nSamples samples from src to the buffer as (at most) two bulk
+	 * copies. The position of src is advanced past the samples.
+	 *
+	 * @param src
+	 *            sample-major data in native byte order
+	 * @param nSamples
+	 *            number of samples to copy from src
+	 */
+	public void add(ByteBuffer src, int nSamples) {
+		final int end = src.position() + nSamples * sampleSize;
+		final int count = sampleCount + nSamples;
+		announce(count);
+
+		// Samples which would be overwritten within this call are skipped.
+		if (nSamples > capacity) {
+			src.position(src.position() + (nSamples - capacity) * sampleSize);
+			nSamples = capacity;
+		}
+
+		final int slot = (count - nSamples) % capacity;
+		final int first = Math.min(nSamples, capacity - slot);
+		copyIn(src, slot, first);
+		copyIn(src, 0, nSamples - first);
+		publish(count);
+		src.position(end);
+	}
+
+	/**
+	 * Resets the buffer.
+	 */
+	public void clear() {
+		writeLimit = 0;
+		sampleCount = 0;
+	}
+
+	/**
+	 * Copies a single sample from the ring into sample.
+	 *
+	 * @param index
+	 *            Index ranges from 0 to the number of items added in the ring
+	 *            -1.
+	 * @param sample
+	 *            nChans by nBytes array to fill
+	 */
+	public void get(int index, byte[][] sample)
+			throws IndexOutOfBoundsException {
+		checkRange(index, 1);
+		final ByteBuffer view = ring.duplicate();
+		view.position((index % capacity) * sampleSize);
+		for (int j = 0; j < nChans; j++) {
+			view.get(sample[j]);
+		}
+		checkNotOverwritten(index);
+	}
+
+	/**
+	 * Copies nSamples samples starting at index begin into dst, as (at most)
+	 * two bulk copies.
+	 *
+	 * @param begin
+	 *            index of the first sample
+	 * @param nSamples
+	 *            number of samples to copy
+	 * @param dst
+	 *            buffer with at least nSamples*nChans*nBytes bytes remaining
+	 */
+	public void get(int begin, int nSamples, ByteBuffer dst)
+			throws IndexOutOfBoundsException {
+		checkRange(begin, nSamples);
+		final ByteBuffer view = ring.duplicate();
+		final int slot = begin % capacity;
+		final int first = Math.min(nSamples, capacity - slot);
+		copyOut(view, dst, slot, first);
+		copyOut(view, dst, 0, nSamples - first);
+		checkNotOverwritten(begin);
+	}
+
+	/**
+	 * Copies the given channels of nSamples samples, starting at index begin
+	 * and step samples apart, into dst.
+	 *
+	 * @param begin
+	 *            index of the first sample
+	 * @param nSamples
+	 *            number of samples to copy
+	 * @param step
+	 *            distance between the samples copied
+	 * @param channels
+	 *            channels to copy, in this order, null for all
+	 * @param dst
+	 *            buffer with enough bytes remaining
+	 */
+	public void get(int begin, int nSamples, int step, int[] channels,
+			ByteBuffer dst) throws IndexOutOfBoundsException {
+		checkRange(begin, (nSamples - 1) * step + 1);
+		final ByteBuffer view = ring.duplicate();
+		for (int i = 0; i < nSamples; i++) {
+			final int slot = (begin + i * step) % capacity;
+			if (channels == null) {
+				copyOut(view, dst, slot, 1);
+				continue;
+			}
+			for (final int channel : channels) {
+				final int from = slot * sampleSize + channel * nBytes;
+				view.limit(from + nBytes).position(from);
+				dst.put(view);
+			}
+		}
+		checkNotOverwritten(begin);
+	}
+
+	/**
+	 * Points slices at the nSamples samples starting at index begin, without
+	 * copying. As the views are read later, while the writer carries on, this
+	 * is refused (returns false) for more than capacity/8 samples or when
+	 * fewer than capacity/4 samples can be added before begin would be
+	 * overwritten. The sender still has to check slices.overwritten() once
+	 * the views have been sent.
+	 *
+	 * @param begin
+	 *            index of the first sample
+	 * @param nSamples
+	 *            number of samples
+	 * @param slices
+	 *            views to set up
+	 * @return true if slices now cover the requested samples
+	 */
+	public boolean slices(int begin, int nSamples,
+			DataSlices slices) throws IndexOutOfBoundsException {
+		checkRange(begin, nSamples);
+		if (nSamples > capacity / 8
+				|| begin + capacity - writeLimit < capacity / 4) {
+			return false;
+		}
+		slices.setSource(ring, this, begin);
+		final int slot = begin % capacity;
+		final int first = Math.min(nSamples, capacity - slot);
+		slices.setSlice(1, slot * sampleSize, (slot + first) * sampleSize);
+		slices.setSlice(2, 0, (nSamples - first) * sampleSize);
+		slices.nBuffers = first < nSamples ? 3 : 2;
+		slices.size = nSamples * sampleSize;
+		return true;
+	}
+
+	/**
+	 * Returns the index of the oldest item.
+	 *
+	 * @return
+	 */
+	public int indexOfOldest() {
+		final int count = sampleCount;
+		if (count <= capacity) {
+			return 0;
+		} else {
+			return count - capacity;
+		}
+	}
+
+	/**
+	 * Returns the total number of items that have been added to the ring.
+	 *
+	 * @return
+	 */
+	public int sampleCount() {
+		return sampleCount;
+	}
+
+	/**
+	 * Returns the number of bytes used by a single sample.
+	 *
+	 * @return
+	 */
+	public int sampleSize() {
+		return sampleSize;
+	}
+
+	/**
+	 * Announces that the samples before count are about to be written, before
+	 * any of them is copied in.
+	 *
+	 * @param count
+	 */
+	protected void announce(int count) {
+		writeLimit = count;
+	}
+
+	/**
+	 * Makes the samples before count available to readers, once all of them
+	 * are copied in.
+	 *
+	 * @param count
+	 */
+	protected void publish(int count) {
+		sampleCount = count;
+	}
+
+	/**
+	 * Returns the number of samples in the ring.
+	 *
+	 * @return
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	private static ByteBuffer allocate(int size, int nChans, int nBytes) {
+		if ((long) size * nChans * nBytes > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(
+					"Sample ring too large for a single buffer.");
+		}
+		return ByteBuffer.allocateDirect(size * nChans * nBytes);
+	}
+
+	private void checkRange(int begin, int nSamples)
+			throws IndexOutOfBoundsException {
+		final int count = sampleCount;
+		if (begin < 0) {
+			throw new IndexOutOfBoundsException("Index < 0.");
+		}
+
+		if (begin < count - capacity) {
+			throw new IndexOutOfBoundsException(
+					"Index < index of oldest item in buffer.");
+		}
+
+		if (begin + nSamples > count) {
+			throw new IndexOutOfBoundsException("Index >= size.");
+		}
+	}
+
+	/**
+	 * Returns true if the writer has started overwriting the sample at index
+	 * begin or any later one still in the ring.
+	 *
+	 * @param begin
+	 * @return
+	 */
+	boolean overwritten(int begin) {
+		return begin < writeLimit - capacity;
+	}
+
+	private void checkNotOverwritten(int begin)
+			throws IndexOutOfBoundsException {
+		if (overwritten(begin)) {
+			throw new IndexOutOfBoundsException(
+					"Index was overwritten while reading.");
+		}
+	}
+
+	private void copyIn(ByteBuffer src, int slot, int nSamples) {
+		if (nSamples <= 0) {
+			return;
+		}
+		final int limit = src.limit();
+		src.limit(src.position() + nSamples * sampleSize);
+		writeView.position(slot * sampleSize);
+		writeView.put(src);
+		src.limit(limit);
+	}
+
+	private void copyOut(ByteBuffer view, ByteBuffer dst, int slot,
+			int nSamples) {
+		if (nSamples <= 0) {
+			return;
+		}
+		view.limit((slot + nSamples) * sampleSize);
+		view.position(slot * sampleSize);
+		dst.put(view);
+	}
+
+}
@@ -0,0 +1,282 @@
+package nl.fcdonders.fieldtrip.bufferserver.data;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import nl.fcdonders.fieldtrip.bufferserver.exceptions.DataException;
+import nl.fcdonders.fieldtrip.bufferserver.network.DataSelection;
+import nl.fcdonders.fieldtrip.bufferserver.network.Request;
+
+/**
+ * Ring data store which keeps the samples in a single off-heap
+ * DirectDataRingBuffer, so storing data does not create any per-sample
+ * objects for the garbage collector to track. Events, and the locking, are
+ * handled exactly as in the RingDataStore.
+ */
+public class DirectRingDataStore extends RingDataStore {
+	protected volatile DirectDataRingBuffer sampleRing;
+
+	/**
+	 * Constructor
+	 *
+	 * @param nBuffer
+	 *            Capacity of sample and event buffers.
+	 */
+	public DirectRingDataStore(int nBuffer) {
+		super(nBuffer);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param nSamples
+	 *            Capacity of the sample ringbuffer.
+	 * @param nEvents
+	 *            Capacity of the event ringbuffer.
+	 */
+	public DirectRingDataStore(int nSamples, int nEvents) {
+		super(nSamples, nEvents);
+	}
+
+	/**
+	 * Removes all data.
+	 *
+	 * @throws DataException
+	 */
+	@Override
+	public void flushData() throws DataException {
+		synchronized (dataLock) {
+			sampleRing.clear();
+		}
+	}
+
+	/**
+	 * Removes the header, and all data & events.
+	 *
+	 * @throws DataException
+	 */
+	@Override
+	public void flushHeader() throws DataException {
+		synchronized (dataLock) {
+			synchronized (eventLock) {
+				if (sampleRing != null) {
+					sampleRing.clear();
+				}
+				eventBuffer.clear();
+				sampleRing = null;
+				header = null;
+			}
+		}
+	}
+
+	/**
+	 * Returns all data
+	 *
+	 * @return
+	 * @throws DataException
+	 */
+	@Override
+	public Data getData() throws DataException {
+		final DirectDataRingBuffer sampleRing = ring();
+		final int sampleCount = sampleRing.sampleCount();
+		if (sampleCount == 0) {
+			throw new DataException("No data stored.");
+		}
+
+		final int begin = sampleRing.indexOfOldest();
+		return copyData(sampleRing, begin, sampleCount - begin);
+	}
+
+	/**
+	 * Returns the requested data. Throws DataException if impossible.
+	 *
+	 * @param request
+	 *            Start index and end index of the range requested.
+	 * @return
+	 * @throws DataException
+	 */
+	@Override
+	public Data getData(final Request request) throws DataException {
+		final DirectDataRingBuffer sampleRing = ring();
+		final int sampleCount = sampleRing.sampleCount();
+		if (sampleCount == 0) {
+			throw new DataException("No data stored.");
+		}
+
+		checkDataRequest(request, sampleCount, sampleRing.indexOfOldest());
+
+		return copyData(sampleRing, request.begin, request.end - request.begin
+				+ 1);
+	}
+
+	/**
+	 * Returns the selected channels of the requested samples, decimated.
+	 * Only the selected samples and channels are copied out of the ring,
+	 * unless they are to be averaged.
+	 *
+	 * @param selection
+	 *            Sample range, channels and decimation requested.
+	 * @return
+	 * @throws DataException
+	 */
+	@Override
+	public Data getData(final DataSelection selection) throws DataException {
+		final DirectDataRingBuffer sampleRing = ring();
+		final int sampleCount = sampleRing.sampleCount();
+		if (sampleCount == 0) {
+			throw new DataException("No data stored.");
+		}
+
+		checkDataRequest(new Request(selection.begin, selection.end),
+				sampleCount, sampleRing.indexOfOldest());
+
+		if (selection.blockMean && selection.decimation > 1) {
+			return copyData(sampleRing, selection.begin,
+					selection.end - selection.begin + 1).select(
+					selection.channels, selection.decimation, true);
+		}
+
+		final int nSamples = selection.nSamples();
+		final int nSelected = selection.channels == null ? nChans
+				: selection.channels.length;
+		final ByteBuffer buffer = ByteBuffer.allocate(nSamples * nSelected
+				* nBytes);
+		buffer.order(NATIVE_ORDER);
+		try {
+			sampleRing.get(selection.begin, nSamples, selection.decimation,
+					selection.channels, buffer);
+		} catch (final IndexOutOfBoundsException e) {
+			throw new DataException(
+					"Requested samples were overwritten while reading.");
+		}
+		buffer.flip();
+		return new Data(nSelected, nSamples, dataType, buffer, NATIVE_ORDER);
+	}
+
+	/**
+	 * Points slices at the requested samples in the ring. Returns false if
+	 * the samples need flipping to the requested byte order or are too close
+	 * to being overwritten.
+	 *
+	 * @param request
+	 *            Start index and end index of the range requested.
+	 * @param order
+	 *            Byte order the data is needed in.
+	 * @param slices
+	 *            Views to set up.
+	 * @return
+	 * @throws DataException
+	 */
+	@Override
+	public boolean getDataSlices(final Request request, final ByteOrder order,
+			final DataSlices slices) throws DataException {
+		final DirectDataRingBuffer sampleRing = ring();
+		final int sampleCount = sampleRing.sampleCount();
+		if (sampleCount == 0) {
+			throw new DataException("No data stored.");
+		}
+
+		checkDataRequest(request, sampleCount, sampleRing.indexOfOldest());
+
+		if (order != NATIVE_ORDER && nBytes != 1) {
+			return false;
+		}
+
+		slices.nChans = nChans;
+		slices.dataType = dataType;
+		slices.nSamples = request.end - request.begin + 1;
+		try {
+			return sampleRing.slices(request.begin, slices.nSamples, slices);
+		} catch (final IndexOutOfBoundsException e) {
+			throw new DataException(
+					"Requested samples were overwritten while reading.");
+		}
+	}
+
+	/**
+	 * Returns the number of currently stored samples. Throws DataException if
+	 * impossible.
+	 *
+	 * @return
+	 * @throws DataException
+	 */
+	@Override
+	public int getSampleCount() throws DataException {
+		return ring().sampleCount();
+	}
+
+	/**
+	 * Checks and copies the data into the sample ring, the caller holds
+	 * dataLock.
+	 *
+	 * @param data
+	 * @throws DataException
+	 */
+	@Override
+	protected void appendData(final Data data) throws DataException {
+		if (data.dataType != dataType) {
+			throw new DataException("Trying to append data of wrong dataType.");
+		}
+		if (data.nChans != nChans) {
+			throw new DataException(
+					"Trying to append data with wrong number of channels");
+		}
+
+		final boolean flip = data.order != NATIVE_ORDER && nBytes != 1;
+
+		if (data.buffer != null && !flip) {
+			sampleRing.add(data.buffer.duplicate(), data.nSamples);
+		} else if (data.buffer != null) {
+			final byte[][] sample = new byte[nChans][nBytes];
+			final ByteBuffer src = data.buffer.duplicate();
+			for (int i = 0; i < data.nSamples; i++) {
+				for (int j = 0; j < nChans; j++) {
+					src.get(sample[j]);
+				}
+				sampleRing.add(sample, true);
+			}
+		} else {
+			for (int i = 0; i < data.nSamples; i++) {
+				sampleRing.add(data.data[i], flip);
+			}
+		}
+	}
+
+	/**
+	 * Allocates the off-heap sample ring for the current header.
+	 */
+	@Override
+	protected void initDataBuffer() {
+		sampleRing = new DirectDataRingBuffer(dataBufferSize, nChans, nBytes);
+	}
+
+	/**
+	 * Returns the current sample ring, or throws if there is no header.
+	 */
+	private DirectDataRingBuffer ring() throws DataException {
+		final DirectDataRingBuffer sampleRing = this.sampleRing;
+		if (sampleRing == null) {
+			throw new DataException("No header.");
+		}
+		return sampleRing;
+	}
+
+	/**
+	 * Copies nSamples samples starting at begin out of the ring in one block.
+	 */
+	private Data copyData(final DirectDataRingBuffer sampleRing,
+			final int begin, final int nSamples) throws DataException {
+		final ByteBuffer buffer = ByteBuffer.allocate(nSamples
+				* sampleRing.sampleSize());
+		buffer.order(NATIVE_ORDER);
+		try {
+			sampleRing.get(begin, nSamples, buffer);
+		} catch (final IndexOutOfBoundsException e) {
+			throw new DataException(
+					"Requested samples were overwritten while reading.");
+		}
+		buffer.flip();
+		return new Data(nChans, nSamples, dataType, buffer, NATIVE_ORDER);
+	}
+
+}
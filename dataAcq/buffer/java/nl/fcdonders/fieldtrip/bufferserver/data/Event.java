@@ -88,6 +88,23 @@ public class Event {
 		this.order = order;
 	}
 
+	/**
+	 * Returns the type as a string if it is of type CHAR, null otherwise.
+	 * Bytes are mapped to chars one to one.
+	 *
+	 * @return
+	 */
+	public String getTypeString() {
+		if (typeType != NetworkProtocol.CHAR) {
+			return null;
+		}
+		final char[] chars = new char[typeSize];
+		for (int i = 0; i < typeSize; i++) {
+			chars[i] = (char) (type[i][0] & 0xff);
+		}
+		return new String(chars);
+	}
+
 	public void serialize(ByteBuffer buf) {
 		buf.putInt(typeType);
 		buf.putInt(typeSize);
@@ -0,0 +1,142 @@
+package nl.fcdonders.fieldtrip.bufferserver.data;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Index of the events in an EventRingBuffer by sample, and by type for
+ * events with a string (CHAR) type. An event is stored as a key holding its
+ * sample in the upper and its index in the ring in the lower 32 bits, so the
+ * keys of a sample range form a contiguous range of the sorted set.
+ *
+ * Maintained by the writer of the ring, queried by any number of readers.
+ * The sets are guarded by the lock of the index; a find() copies the indices
+ * of its range while holding it, so it holds up the writer only for the
+ * length of that copy, and then works on the copy. A reader may or may not
+ * see an event being added or removed meanwhile.
+ */
+class EventIndex {
+	/** Orders events by sample. */
+	static final Comparator<Event> BY_SAMPLE = new Comparator<Event>() {
+		@Override
+		public int compare(final Event a, final Event b) {
+			return a.sample < b.sample ? -1 : a.sample == b.sample ? 0 : 1;
+		}
+	};
+
+	private final TreeSet<Long> bySample = new TreeSet<Long>();
+	private final HashMap<String, TreeSet<Long>> byType = new HashMap<String, TreeSet<Long>>();
+
+	/**
+	 * Adds event, stored at index in the ring.
+	 *
+	 * @param event
+	 * @param index
+	 */
+	void add(final Event event, final int index) {
+		final Long key = key(event.sample, index);
+		final String type = event.getTypeString();
+		synchronized (this) {
+			bySample.add(key);
+			if (type != null) {
+				TreeSet<Long> keys = byType.get(type);
+				if (keys == null) {
+					keys = new TreeSet<Long>();
+					byType.put(type, keys);
+				}
+				keys.add(key);
+			}
+		}
+	}
+
+	/**
+	 * Removes event, which was stored at index in the ring.
+	 *
+	 * @param event
+	 * @param index
+	 */
+	void remove(final Event event, final int index) {
+		final Long key = key(event.sample, index);
+		final String type = event.getTypeString();
+		synchronized (this) {
+			bySample.remove(key);
+			if (type != null) {
+				final TreeSet<Long> keys = byType.get(type);
+				if (keys != null) {
+					keys.remove(key);
+					if (keys.isEmpty()) {
+						byType.remove(type);
+					}
+				}
+			}
+		}
+	}
+
+	synchronized void clear() {
+		bySample.clear();
+		byType.clear();
+	}
+
+	/**
+	 * Returns the ring indices of the events with sampleBegin <= sample <=
+	 * sampleEnd whose type starts with typePrefix, ordered by sample. An
+	 * empty or null typePrefix matches all events, including those without a
+	 * string type.
+	 *
+	 * @param sampleBegin
+	 * @param sampleEnd
+	 * @param typePrefix
+	 * @return
+	 */
+	int[] find(final int sampleBegin, final int sampleEnd,
+			final String typePrefix) {
+		if (sampleEnd < sampleBegin) {
+			return new int[0];
+		}
+		final Long from = key(sampleBegin, 0);
+		final Long to = key(sampleEnd, -1);
+
+		synchronized (this) {
+			if (typePrefix == null || typePrefix.length() == 0) {
+				return indices(range(bySample, from, to));
+			}
+
+			// Only a few types share a prefix, so merge their ranges.
+			final TreeSet<Long> keys = new TreeSet<Long>();
+			for (final Map.Entry<String, TreeSet<Long>> entry : byType.entrySet()) {
+				if (entry.getKey().startsWith(typePrefix)) {
+					keys.addAll(range(entry.getValue(), from, to));
+				}
+			}
+			return indices(keys);
+		}
+	}
+
+	/**
+	 * Returns the keys from <= key <= to.
+	 */
+	private static SortedSet<Long> range(final TreeSet<Long> keys,
+			final Long from, final Long to) {
+		if (to.longValue() == Long.MAX_VALUE) {
+			return keys.tailSet(from);
+		}
+		return keys.subSet(from, Long.valueOf(to.longValue() + 1));
+	}
+
+	private static int[] indices(final Set<Long> keys) {
+		final int[] indices = new int[keys.size()];
+		int n = 0;
+		for (final Long key : keys) {
+			indices[n++] = (int) key.longValue();
+		}
+		return indices;
+	}
+
+	private static Long key(final int sample, final int index) {
+		return Long.valueOf((long) sample << 32 | index & 0xffffffffL);
+	}
+}
@@ -1,107 +1,312 @@
 package nl.fcdonders.fieldtrip.bufferserver.data;
 
+import nl.fcdonders.fieldtrip.bufferserver.network.NetworkProtocol;
+
+/**
+ * Event store with a single writer and any number of readers. Events are kept
+ * in fixed size segments; the store grows by adding segments, without copying
+ * events, and shrinks by dropping the oldest events. Events are dropped
+ * (evicted) when there are more than maxEvents, when they take more than
+ * maxBytes, or when their sample is more than retention samples before the
+ * newest event's sample. Each reason has its own counter.
+ *
+ * Readers do not lock: a segment is never reused, so a reader which finds the
+ * segment holding an event can always read it, and otherwise knows the event
+ * has been evicted.
+ *
+ * Only one thread may add, clear or change the limits at a time; the
+ * dataModel serialises that.
+ *
+ * The events are also indexed by sample and type, see find().
+ */
 public class EventRingBuffer {
-	private final Event[] ring;
-	private final int capacity;
-	private int eventCount = 0;
-	private int newPos = 0;
+	private static final int SEGMENTSIZE = 256;
+
+	/**
+	 * SEGMENTSIZE consecutive events, starting with event first.
+	 */
+	private static class Segment {
+		final int first;
+		final Event[] events = new Event[SEGMENTSIZE];
+
+		Segment(final int first) {
+			this.first = first;
+		}
+	}
+
+	// Segment k is at table[k % table.length]
+	private volatile Segment[] table = new Segment[4];
+	private volatile int eventCount = 0;
+	private volatile int oldest = 0;
+	private final EventIndex index = new EventIndex();
+
+	// Limits and bookkeeping, only used by the writer
+	private int maxEvents;
+	private long maxBytes = Long.MAX_VALUE;
+	private int retention = 0;
+	private int newestSample = Integer.MIN_VALUE;
+	private volatile long bytes = 0;
+
+	private volatile long evictedByCount = 0;
+	private volatile long evictedByMemory = 0;
+	private volatile long evictedByAge = 0;
 
 	/**
 	 * Constructor
-	 * 
+	 *
 	 * @param size
-	 *            size of the ring
+	 *            maximum number of events kept.
 	 */
 	public EventRingBuffer(int size) {
-		ring = new Event[size];
-		capacity = size;
+		maxEvents = size;
 	}
 
 	/**
-	 * Adds an item to the buffer.
-	 * 
+	 * Adds an item to the buffer, evicting old items if a limit is exceeded.
+	 *
 	 * @param item
 	 */
-	public synchronized void add(Event item) {
-		eventCount++;
-		ring[newPos++] = item;
+	public void add(Event item) {
+		final int count = eventCount;
+		final int k = count / SEGMENTSIZE;
+		Segment[] t = table;
+		Segment segment = t[k % t.length];
+		if (segment == null || segment.first != k * SEGMENTSIZE) {
+			if (k - oldest / SEGMENTSIZE >= t.length) {
+				t = grow(t, k);
+			}
+			segment = new Segment(k * SEGMENTSIZE);
+			t[k % t.length] = segment;
+		}
+		segment.events[count % SEGMENTSIZE] = item;
+		eventCount = count + 1;
 
-		// If newPos has reached capacity wrap the ring around.
-		if (newPos == capacity) {
-			newPos = 0;
+		index.add(item, count);
+		bytes += sizeOf(item);
+		if (item.sample > newestSample) {
+			newestSample = item.sample;
 		}
+		evict();
 	}
 
 	/**
 	 * Resets the buffer.
 	 */
-	public synchronized void clear() {
+	public void clear() {
 		eventCount = 0;
-		newPos = 0;
+		oldest = 0;
+		table = new Segment[4];
+		bytes = 0;
+		newestSample = Integer.MIN_VALUE;
+		index.clear();
+	}
+
+	/**
+	 * Sets the maximum number of events, and the maximum estimated number of
+	 * bytes they may take.
+	 *
+	 * @param maxEvents
+	 * @param maxBytes
+	 */
+	public void setLimits(int maxEvents, long maxBytes) {
+		this.maxEvents = maxEvents;
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	/**
+	 * Returns the maximum number of events.
+	 *
+	 * @return
+	 */
+	public int getMaxEvents() {
+		return maxEvents;
+	}
+
+	/**
+	 * Sets for how many samples before the newest event's sample events are
+	 * kept, 0 meaning forever.
+	 *
+	 * @param nSamples
+	 */
+	public void setRetention(int nSamples) {
+		retention = nSamples;
+		evict();
 	}
 
 	/**
 	 * Used to get an item from the ring.
-	 * 
+	 *
 	 * @param index
 	 *            Index ranges from 0 to the number of items added in the ring
 	 *            -1.
 	 * @return the value at index
 	 */
-	public synchronized Event get(int index) throws IndexOutOfBoundsException {
+	public Event get(int index) throws IndexOutOfBoundsException {
 		if (index < 0) {
 			throw new IndexOutOfBoundsException("Event Index < 0.");
 		}
 
-		if (index < eventCount - capacity) {
-			throw new IndexOutOfBoundsException("Event Index < index of oldest Event in buffer.");
-		}
-
 		if (index >= eventCount) {
 			throw new IndexOutOfBoundsException("Event Index >= index of newest event in buffer.");
 		}
 
-		if (eventCount < capacity) {
-			// Ring hasn't wrapped yet.
-			return ring[index];
-		} else {
-			// Ring has wrapped.
-
-			index -= eventCount - capacity; // Subtract the index of the oldest item
-										// still in the ring.
+		if (index < oldest) {
+			throw new IndexOutOfBoundsException(
+					"Event Index < index of oldest Event in buffer.");
+		}
 
-			index += newPos; // Add ring-index of the oldest item still in the
-								// ring.
+		final int k = index / SEGMENTSIZE;
+		final Segment[] t = table;
+		final Segment segment = t[k % t.length];
 
-			// Check if index should be wrapped around.
-			if (index >= capacity) {
-				return ring[index - capacity];
-			} else {
-				return ring[index];
-			}
+		// Check the segment was not dropped while we looked for it.
+		if (segment == null || segment.first != k * SEGMENTSIZE) {
+			throw new IndexOutOfBoundsException(
+					"Event was overwritten while reading.");
 		}
+		return segment.events[index % SEGMENTSIZE];
+	}
+
+	/**
+	 * Returns the indices of the events with sampleBegin <= sample <=
+	 * sampleEnd whose type starts with typePrefix, ordered by sample. An
+	 * empty typePrefix matches any type. The events may have been overwritten
+	 * by the time they are read with get().
+	 *
+	 * @param sampleBegin
+	 * @param sampleEnd
+	 * @param typePrefix
+	 * @return
+	 */
+	public int[] find(int sampleBegin, int sampleEnd, String typePrefix) {
+		return index.find(sampleBegin, sampleEnd, typePrefix);
 	}
 
 	/**
 	 * Returns the index of the oldest item.
-	 * 
+	 *
 	 * @return
 	 */
-	public synchronized int indexOfOldest() {
-		if (eventCount <= capacity) {
-			return 0;
-		} else {
-			return eventCount - capacity;
-		}
+	public int indexOfOldest() {
+		return oldest;
 	}
 
 	/**
 	 * Returns the total number of items that have been added to the ring.
-	 * 
+	 *
 	 * @return
 	 */
-	public synchronized int eventCount() {
+	public int eventCount() {
 		return eventCount;
 	}
 
+	/**
+	 * Returns the estimated number of bytes taken by the stored events.
+	 *
+	 * @return
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Returns the number of events evicted because there were more than
+	 * maxEvents.
+	 *
+	 * @return
+	 */
+	public long getEvictedByCount() {
+		return evictedByCount;
+	}
+
+	/**
+	 * Returns the number of events evicted because the events took more than
+	 * maxBytes.
+	 *
+	 * @return
+	 */
+	public long getEvictedByMemory() {
+		return evictedByMemory;
+	}
+
+	/**
+	 * Returns the number of events evicted because they were older than the
+	 * retention.
+	 *
+	 * @return
+	 */
+	public long getEvictedByAge() {
+		return evictedByAge;
+	}
+
+	/**
+	 * Drops the oldest events while a limit is exceeded, always keeping the
+	 * newest. Events are dropped in the order they were added, so retention
+	 * stops at the first event which is recent enough.
+	 */
+	private void evict() {
+		final int count = eventCount;
+		while (oldest < count - 1) {
+			final Event event = get(oldest);
+			if (count - oldest > maxEvents) {
+				evictedByCount++;
+			} else if (bytes > maxBytes) {
+				evictedByMemory++;
+			} else if (retention > 0
+					&& (long) event.sample < (long) newestSample - retention) {
+				evictedByAge++;
+			} else {
+				break;
+			}
+			drop(event);
+		}
+	}
+
+	/**
+	 * Drops the oldest event, and its segment once it holds no more events.
+	 */
+	private void drop(final Event event) {
+		final int dropped = oldest;
+		oldest = dropped + 1;
+		index.remove(event, dropped);
+		bytes -= sizeOf(event);
+		if (oldest % SEGMENTSIZE == 0) {
+			final int k = dropped / SEGMENTSIZE;
+			final Segment[] t = table;
+			if (t[k % t.length] != null
+					&& t[k % t.length].first == k * SEGMENTSIZE) {
+				t[k % t.length] = null;
+			}
+		}
+	}
+
+	/**
+	 * Returns a table twice the size (or more) with the live segments of t,
+	 * leaving room for segment k.
+	 */
+	private Segment[] grow(final Segment[] t, final int k) {
+		final int first = oldest / SEGMENTSIZE;
+		int size = t.length * 2;
+		while (k - first >= size) {
+			size *= 2;
+		}
+		final Segment[] grown = new Segment[size];
+		for (int i = first; i < k; i++) {
+			grown[i % size] = t[i % t.length];
+		}
+		table = grown;
+		return grown;
+	}
+
+	/**
+	 * Estimated number of bytes taken by event, including the object
+	 * overhead of its arrays.
+	 */
+	private static long sizeOf(final Event event) {
+		return 64 + 16 * (2 + event.typeSize + event.valueSize)
+				+ event.typeSize * NetworkProtocol.dataTypeSize(event.typeType)
+				+ event.valueSize * NetworkProtocol.dataTypeSize(event.valueType);
+	}
+
 }
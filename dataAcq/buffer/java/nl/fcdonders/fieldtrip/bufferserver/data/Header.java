@@ -3,6 +3,8 @@ package nl.fcdonders.fieldtrip.bufferserver.data;
 import java.nio.ByteOrder;
 import java.nio.ByteBuffer;
 
+import nl.fcdonders.fieldtrip.bufferserver.network.NetworkProtocol;
+
 /**
  * Wrapper class for header information.
  * 
@@ -167,6 +169,30 @@ public class Header {
 		nChunks = chunks.length;
 		this.order = order;
 	}
+
+	/**
+	 * Returns the resolution (scale factor) of each channel from the
+	 * CHUNK_RESOLUTIONS chunk, or null if there is none.
+	 * 
+	 * @return
+	 */
+	public double[] getResolutions() {
+		if (chunks == null) {
+			return null;
+		}
+		for (final Chunk chunk : chunks) {
+			if (chunk.type == NetworkProtocol.CHUNK_RESOLUTIONS
+					&& chunk.data.length >= nChans * 8) {
+				final ByteBuffer buf = ByteBuffer.wrap(chunk.data).order(order);
+				final double[] resolutions = new double[nChans];
+				for (int i = 0; i < nChans; i++) {
+					resolutions[i] = buf.getDouble();
+				}
+				return resolutions;
+			}
+		}
+		return null;
+	}
 	 
 	protected void serialize(ByteBuffer buf) {
 		buf.putInt(nChans);
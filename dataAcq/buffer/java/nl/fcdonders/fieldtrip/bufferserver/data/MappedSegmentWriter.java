@@ -0,0 +1,293 @@
+package nl.fcdonders.fieldtrip.bufferserver.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * OutputStream which appends to a file through memory mapped segments, so a
+ * write is only a copy into memory and never waits for the disk. The file is
+ * grown one pre-allocated segment at a time; once a segment is full the next
+ * one, normally already mapped by the flusher, takes over.
+ *
+ * Writing to disk is left to the operating system and to force(), which a
+ * background thread should call regularly. On close the segments are unmapped
+ * and the file is truncated to the bytes actually written, so it is identical
+ * to one written with a FileOutputStream.
+ *
+ * After a crash the file may end with up to a segment of zeros. Therefore every
+ * force() and close() also records the number of valid bytes in a second file,
+ * named as the file with LENGTH_SUFFIX appended, as a big-endian long. Readers
+ * should not read beyond it, as FilePlayback does.
+ */
+class MappedSegmentWriter extends OutputStream {
+	public static final String LENGTH_SUFFIX = ".length";
+	private final RandomAccessFile file;
+	private final RandomAccessFile lengthFile;
+	private final FileChannel channel;
+	private volatile int segmentSize;
+	private MappedByteBuffer segment;
+	private long segmentStart = 0;
+	private MappedByteBuffer next = null;
+	private final ArrayList<MappedByteBuffer> unforced = new ArrayList<MappedByteBuffer>();
+	private boolean closed = false;
+	private int forcing = 0; // number of force() calls using the mappings
+
+	/**
+	 * Constructor, creates (or overwrites) file and its length file and maps
+	 * the first segment.
+	 *
+	 * @param file
+	 * @param segmentSize
+	 *            number of bytes mapped at a time.
+	 * @throws IOException
+	 */
+	public MappedSegmentWriter(final File file, final int segmentSize)
+			throws IOException {
+		this.file = new RandomAccessFile(file, "rw");
+		this.file.setLength(0);
+		channel = this.file.getChannel();
+		lengthFile = new RandomAccessFile(file.getPath() + LENGTH_SUFFIX, "rw");
+		writeLength(0);
+		this.segmentSize = segmentSize;
+		segment = map(0, segmentSize);
+	}
+
+	/**
+	 * Sets the size of the segments mapped from now on.
+	 *
+	 * @param segmentSize
+	 */
+	public void setSegmentSize(final int segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+
+	@Override
+	public synchronized void write(final int b) throws IOException {
+		checkOpen();
+		if (!segment.hasRemaining()) {
+			nextSegment();
+		}
+		segment.put((byte) b);
+	}
+
+	@Override
+	public synchronized void write(final byte[] b, int off, int len)
+			throws IOException {
+		checkOpen();
+		while (len > 0) {
+			if (!segment.hasRemaining()) {
+				nextSegment();
+			}
+			final int n = Math.min(len, segment.remaining());
+			segment.put(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Does nothing, the data is in the mapping already. Use force() to write
+	 * it to disk.
+	 */
+	@Override
+	public void flush() {
+	}
+
+	/**
+	 * Writes everything written so far to disk, records its length, and maps
+	 * the next segment if that has not been done yet. Meant to be called from
+	 * a background thread, as it blocks on disk I/O.
+	 *
+	 * @throws IOException
+	 */
+	public void force() throws IOException {
+		final MappedByteBuffer current;
+		final MappedByteBuffer[] full;
+		final long nextStart;
+		final long length;
+		final int size;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			current = segment;
+			full = unforced.toArray(new MappedByteBuffer[unforced.size()]);
+			unforced.clear();
+			nextStart = next == null ? segmentStart + segment.capacity() : -1;
+			length = segmentStart + segment.position();
+			size = segmentSize;
+			forcing++; // close() waits before unmapping
+		}
+
+		try {
+			for (final MappedByteBuffer buffer : full) {
+				buffer.force();
+				unmap(buffer);
+			}
+			current.force();
+			synchronized (this) {
+				if (!closed) {
+					writeLength(length);
+				}
+			}
+
+			if (nextStart >= 0) {
+				final MappedByteBuffer mapped = map(nextStart, size);
+				synchronized (this) {
+					if (!closed && next == null
+							&& segmentStart + segment.capacity() == nextStart) {
+						next = mapped;
+					} else {
+						unmap(mapped);
+					}
+				}
+			}
+		} catch (final IOException e) {
+			synchronized (this) {
+				if (closed) {
+					return; // closed meanwhile
+				}
+			}
+			throw e;
+		} finally {
+			synchronized (this) {
+				forcing--;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Writes everything to disk, records its length, unmaps the segments and
+	 * truncates the file to the bytes written. If the file cannot be truncated
+	 * (some systems refuse while a mapping is still alive) it keeps its zero
+	 * tail and only the length file tells where the data ends.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		final long length = segmentStart + segment.position();
+		try {
+			// the mappings may only go once no force() uses them any more
+			boolean interrupted = false;
+			while (forcing > 0) {
+				try {
+					wait();
+				} catch (final InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			for (final MappedByteBuffer buffer : unforced) {
+				buffer.force();
+			}
+			segment.force();
+			writeLength(length);
+			for (final MappedByteBuffer buffer : unforced) {
+				unmap(buffer);
+			}
+			unmap(segment);
+			if (next != null) {
+				unmap(next);
+			}
+			unforced.clear();
+			next = null;
+			segment = null;
+			try {
+				channel.truncate(length);
+			} catch (final IOException e) {
+				System.err.println("Could not truncate recording to " + length
+						+ " bytes, see its length file: " + e);
+			}
+		} finally {
+			unforced.clear();
+			next = null;
+			try {
+				lengthFile.close();
+			} finally {
+				file.close();
+			}
+		}
+	}
+
+	/**
+	 * Moves on to the next segment, mapping it here if the flusher has not.
+	 */
+	private void nextSegment() throws IOException {
+		unforced.add(segment);
+		segmentStart += segment.capacity();
+		if (next != null) {
+			segment = next;
+			next = null;
+		} else {
+			segment = map(segmentStart, segmentSize);
+		}
+	}
+
+	private void checkOpen() throws IOException {
+		// The mappings are released on close, writing to them is fatal.
+		if (closed) {
+			throw new IOException("Writing to closed file.");
+		}
+	}
+
+	private MappedByteBuffer map(final long start, final int size)
+			throws IOException {
+		return channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+	}
+
+	/**
+	 * Records the number of valid bytes in the length file.
+	 */
+	private void writeLength(final long length) throws IOException {
+		lengthFile.seek(0);
+		lengthFile.writeLong(length);
+		lengthFile.getFD().sync();
+	}
+
+	/**
+	 * Releases a mapping now rather than when it is garbage collected, so the
+	 * file can be truncated. There is no public API for this, so it goes
+	 * through the JDK internals by reflection; if that fails the mapping is
+	 * left to the garbage collector. The buffer must not be used afterwards.
+	 */
+	private static void unmap(final ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect()) {
+			return;
+		}
+		try {
+			// Java 9 and later
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			final Method invokeCleaner = unsafeClass.getMethod(
+					"invokeCleaner", ByteBuffer.class);
+			final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			invokeCleaner.invoke(theUnsafe.get(null), buffer);
+			return;
+		} catch (final Exception e) {
+		}
+		try {
+			// Java 8 and earlier
+			final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			final Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner != null) {
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		} catch (final Exception e) {
+		}
+	}
+}
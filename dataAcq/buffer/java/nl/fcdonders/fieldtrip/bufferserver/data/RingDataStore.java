@@ -4,22 +4,37 @@ import java.nio.ByteOrder;
 import java.util.ArrayList;
 
 import nl.fcdonders.fieldtrip.bufferserver.exceptions.DataException;
+import nl.fcdonders.fieldtrip.bufferserver.network.DataSelection;
+import nl.fcdonders.fieldtrip.bufferserver.network.EventSelection;
 import nl.fcdonders.fieldtrip.bufferserver.network.NetworkProtocol;
 import nl.fcdonders.fieldtrip.bufferserver.network.Request;
 import nl.fcdonders.fieldtrip.bufferserver.network.WaitRequest;
 
+/**
+ * Data store keeping the most recent samples and events in two rings.
+ *
+ * Samples and events each have a single writer at a time: putData and
+ * flushData hold dataLock, putEvents and flushEvents hold eventLock, and
+ * header changes hold both. Readers take neither lock, they read the rings
+ * directly and get a DataException if what they asked for was overwritten
+ * while they were copying it. A slow GET_DAT can therefore never hold up the
+ * acquisition driver putting data.
+ */
 public class RingDataStore extends DataModel {
     public final int MINNBUFFER=60*100;  // about 60s data @ 100hz
     public final int MINEVENTS =60*10;   // about 10s of events
-	protected final ArrayList<WaitRequest> requests = new ArrayList<WaitRequest>();
-	protected DataRingBuffer dataBuffer;
+	protected final WaitRequestQueue requests = new WaitRequestQueue();
+	protected final Object dataLock = new Object();
+	protected final Object eventLock = new Object();
+	protected volatile DataRingBuffer dataBuffer;
 	protected final EventRingBuffer eventBuffer;
-	protected int nChans;
-	protected int nBytes;
-	protected int dataType;
-	protected Header header = null;
+	protected volatile int nChans;
+	protected volatile int nBytes;
+	protected volatile int dataType;
+	protected volatile Header header = null;
 	protected final static ByteOrder NATIVE_ORDER = ByteOrder.nativeOrder();
 	protected final int dataBufferSize;
+	protected double eventRetention = 0; // seconds, guarded by eventLock
 
 	/**
 	 * Constructor
@@ -39,7 +54,7 @@ public class RingDataStore extends DataModel {
 	 * @param nSamples
 	 *            Capacity of the sample ringbuffer.
 	 * @param nEvents
-	 *            Capacity of the event ringbuffer.
+	 *            Maximum number of events kept, see setEventLimits.
 	 */
 	public RingDataStore(int nSamples, int nEvents) {
       if ( nSamples<=MINNBUFFER ) nSamples=MINNBUFFER;
@@ -48,6 +63,92 @@ public class RingDataStore extends DataModel {
 		dataBufferSize = nSamples;
 	}
 
+	/**
+	 * Sets the maximum number of events kept, and the maximum (estimated)
+	 * memory they may take. The event store grows as needed up to these
+	 * limits, after which the oldest events are evicted.
+	 *
+	 * @param maxEvents
+	 * @param maxBytes
+	 */
+	public void setEventLimits(int maxEvents, long maxBytes) {
+		synchronized (eventLock) {
+			eventBuffer.setLimits(maxEvents, maxBytes);
+		}
+	}
+
+	/**
+	 * Returns the capacity of the sample ring.
+	 *
+	 * @return
+	 */
+	@Override
+	public int getMaxSamples() {
+		return dataBufferSize;
+	}
+
+	/**
+	 * Returns the maximum number of events kept.
+	 *
+	 * @return
+	 */
+	public int getMaxEvents() {
+		return eventBuffer.getMaxEvents();
+	}
+
+	/**
+	 * Evicts events whose sample is more than seconds before the newest
+	 * event's sample, using the fSample of the header. 0 keeps events until
+	 * a limit set with setEventLimits is reached.
+	 *
+	 * @param seconds
+	 */
+	public void setEventRetention(double seconds) {
+		synchronized (eventLock) {
+			eventRetention = seconds;
+			applyEventRetention();
+		}
+	}
+
+	/**
+	 * Returns the number of events evicted because there were more than
+	 * maxEvents.
+	 *
+	 * @return
+	 */
+	public long getEventsEvictedByCount() {
+		return eventBuffer.getEvictedByCount();
+	}
+
+	/**
+	 * Returns the number of events evicted because they took more than
+	 * maxBytes.
+	 *
+	 * @return
+	 */
+	public long getEventsEvictedByMemory() {
+		return eventBuffer.getEvictedByMemory();
+	}
+
+	/**
+	 * Returns the number of events evicted because they were older than the
+	 * retention.
+	 *
+	 * @return
+	 */
+	public long getEventsEvictedByAge() {
+		return eventBuffer.getEvictedByAge();
+	}
+
+	/**
+	 * Returns the estimated number of bytes taken by the stored events.
+	 *
+	 * @return
+	 */
+	public long getEventBytes() {
+		return eventBuffer.getBytes();
+	}
+
 	/**
 	 * Adds a thread, with corresponding request, to the list of listeners of
 	 * this dataStore. Once the threshold, as defined in request, had been met
@@ -57,29 +158,74 @@ public class RingDataStore extends DataModel {
 	 * @param request
 	 */
 	@Override
-	public synchronized void addWaitRequest(final WaitRequest request) {
-		requests.add(request);
+	public void addWaitRequest(final WaitRequest request) {
+		synchronized (requests) {
+			requests.add(request);
+		}
+	}
+
+	/**
+	 * Calls satisfied() on the listeners whose conditions have been met, using
+	 * the current sample and event count, looked up only once.
+	 *
+	 * @throws DataException
+	 */
+	protected void checkListeners() throws DataException {
+		int nSamples;
+		try {
+			nSamples = getSampleCount();
+		} catch (final DataException e) {
+			nSamples = 0; // header was flushed meanwhile
+		}
+		final int nEvents = getEventCount();
+		synchronized (requests) {
+			requests.wakeUp(nSamples, nEvents);
+		}
 	}
 
 	/**
-	 * Checks for all the listeners, if the conditions have been met, if so
-	 * calls the appropriate waitOver function.
+	 * Checks that request asks for a valid range of samples given the current
+	 * number of samples and the index of the oldest sample still in the ring.
 	 *
+	 * @param request
+	 * @param sampleCount
+	 * @param indexOfOldest
 	 * @throws DataException
 	 */
-	protected synchronized void checkListeners() throws DataException {
-		for (int i = 0; i < requests.size(); i++) {
+	protected static void checkDataRequest(final Request request,
+			final int sampleCount, final int indexOfOldest)
+			throws DataException {
+		if (request.begin < 0) {
+			throw new DataException("Requesting samples with start index < 0.");
+		}
 
-			final int eventThreshold = requests.get(i).nEvents;
-			final int sampleThreshold = requests.get(i).nSamples;
+		if (request.end < 0) {
+			throw new DataException("Requesting samples with end index < 0.");
+		}
 
-			if (getEventCount() > eventThreshold && eventThreshold != -1
-					|| getSampleCount() > sampleThreshold
-					&& sampleThreshold != -1) {
-				requests.get(i).satisfied();
-				requests.remove(i);
-				i--;
-			}
+		if (request.end < request.begin) {
+			throw new DataException(
+					"Requesting samples with start index > end index.");
+		}
+
+		if (request.end >= sampleCount) {
+			throw new DataException(
+					"Requesting samples that do not exist (end index >= sample count).");
+		}
+
+		if (request.begin >= sampleCount) {
+			throw new DataException(
+					"Requesting samples that do not exist (begin index >= sample count).");
+		}
+
+		if (request.end < indexOfOldest) {
+			throw new DataException(
+					"Requested samples that do not exist (end index < index of oldest sample in ring)");
+		}
+
+		if (request.begin < indexOfOldest) {
+			throw new DataException(
+					"Requested samples that do not exist (begin index < index of oldest sample in ring)");
 		}
 	}
 
@@ -89,9 +235,10 @@ public class RingDataStore extends DataModel {
 	 * @throws DataException
 	 */
 	@Override
-	public synchronized void flushData() throws DataException {
-		dataBuffer.clear();
-
+	public void flushData() throws DataException {
+		synchronized (dataLock) {
+			dataBuffer.clear();
+		}
 	}
 
 	/**
@@ -100,9 +247,10 @@ public class RingDataStore extends DataModel {
 	 * @throws DataException
 	 */
 	@Override
-	public synchronized void flushEvents() throws DataException {
-		eventBuffer.clear();
-
+	public void flushEvents() throws DataException {
+		synchronized (eventLock) {
+			eventBuffer.clear();
+		}
 	}
 
 	/**
@@ -111,11 +259,15 @@ public class RingDataStore extends DataModel {
 	 * @throws DataException
 	 */
 	@Override
-	public synchronized void flushHeader() throws DataException {
-		dataBuffer.clear();
-		eventBuffer.clear();
-		dataBuffer = null;
-		header = null;
+	public void flushHeader() throws DataException {
+		synchronized (dataLock) {
+			synchronized (eventLock) {
+				dataBuffer.clear();
+				eventBuffer.clear();
+				dataBuffer = null;
+				header = null;
+			}
+		}
 	}
 
 	/**
@@ -125,21 +277,18 @@ public class RingDataStore extends DataModel {
 	 * @throws DataException
 	 */
 	@Override
-	public synchronized Data getData() throws DataException {
-		if (dataBuffer.sampleCount() == 0) {
-			throw new DataException("No data stored.");
+	public Data getData() throws DataException {
+		final DataRingBuffer dataBuffer = this.dataBuffer;
+		if (dataBuffer == null) {
+			throw new DataException("No header.");
 		}
-
-		final int nSamples = dataBuffer.sampleCount();
-
-		final byte[][][] data = new byte[nSamples][nChans][nBytes];
-
-		int j = 0;
-		for (int i = dataBuffer.indexOfOldest(); i < dataBuffer.sampleCount(); i++) {
-			data[j++] = dataBuffer.get(i);
+		final int sampleCount = dataBuffer.sampleCount();
+		if (sampleCount == 0) {
+			throw new DataException("No data stored.");
 		}
 
-		return new Data(nChans, nSamples, dataType, data, NATIVE_ORDER);
+		final int begin = dataBuffer.indexOfOldest();
+		return copyData(dataBuffer, begin, sampleCount - begin);
 	}
 
 	/**
@@ -151,52 +300,92 @@ public class RingDataStore extends DataModel {
 	 * @throws DataException
 	 */
 	@Override
-	public synchronized Data getData(final Request request)
-			throws DataException {
-		if (dataBuffer.sampleCount() == 0) {
+	public Data getData(final Request request) throws DataException {
+		final DataRingBuffer dataBuffer = this.dataBuffer;
+		if (dataBuffer == null) {
+			throw new DataException("No header.");
+		}
+		final int sampleCount = dataBuffer.sampleCount();
+		if (sampleCount == 0) {
 			throw new DataException("No data stored.");
 		}
 
-		if (request.begin < 0) {
-			throw new DataException("Requesting samples with start index < 0.");
-		}
+		checkDataRequest(request, sampleCount, dataBuffer.indexOfOldest());
 
-		if (request.end < 0) {
-			throw new DataException("Requesting samples with end index < 0.");
-		}
+		return copyData(dataBuffer, request.begin, request.end - request.begin
+				+ 1);
+	}
 
-		if (request.end < request.begin) {
-			throw new DataException(
-					"Requesting samples with start index > end index.");
+	/**
+	 * Returns the selected channels of the requested samples, decimated.
+	 * Only the selected samples and channels are collected from the ring,
+	 * unless they are to be averaged.
+	 *
+	 * @param selection
+	 *            Sample range, channels and decimation requested.
+	 * @return
+	 * @throws DataException
+	 */
+	@Override
+	public Data getData(final DataSelection selection) throws DataException {
+		final DataRingBuffer dataBuffer = this.dataBuffer;
+		if (dataBuffer == null) {
+			throw new DataException("No header.");
 		}
-
-		if (request.end >= dataBuffer.sampleCount()) {
-			throw new DataException(
-					"Requesting samples that do not exist (end index >= sample count).");
+		final int sampleCount = dataBuffer.sampleCount();
+		if (sampleCount == 0) {
+			throw new DataException("No data stored.");
 		}
 
-		if (request.begin >= dataBuffer.sampleCount()) {
-			throw new DataException(
-					"Requesting samples that do not exist (begin index >= sample count).");
-		}
+		checkDataRequest(new Request(selection.begin, selection.end),
+				sampleCount, dataBuffer.indexOfOldest());
 
-		if (request.end < dataBuffer.indexOfOldest()) {
-			throw new DataException(
-					"Requested samples that do not exist (end index < index of oldest sample in ring)");
+		if (selection.blockMean && selection.decimation > 1) {
+			return copyData(dataBuffer, selection.begin,
+					selection.end - selection.begin + 1).select(
+					selection.channels, selection.decimation, true);
 		}
 
-		if (request.begin < dataBuffer.indexOfOldest()) {
+		final int nSamples = selection.nSamples();
+		final int[] channels = selection.channels;
+		final int nSelected = channels == null ? nChans : channels.length;
+		final byte[][][] data = new byte[nSamples][][];
+
+		try {
+			for (int i = 0; i < nSamples; i++) {
+				final byte[][] sample = dataBuffer.get(selection.begin + i
+						* selection.decimation);
+				if (channels == null) {
+					data[i] = sample;
+				} else {
+					data[i] = new byte[nSelected][];
+					for (int j = 0; j < nSelected; j++) {
+						data[i][j] = sample[channels[j]];
+					}
+				}
+			}
+		} catch (final IndexOutOfBoundsException e) {
 			throw new DataException(
-					"Requested samples that do not exist (begin index < index of oldest sample in ring)");
+					"Requested samples were overwritten while reading.");
 		}
 
-		final int nSamples = request.end - request.begin + 1;
+		return new Data(nSelected, nSamples, dataType, data, NATIVE_ORDER);
+	}
 
-		final byte[][][] data = new byte[nSamples][nChans][nBytes];
+	/**
+	 * Collects nSamples samples starting at begin from the ring.
+	 */
+	private Data copyData(final DataRingBuffer dataBuffer, final int begin,
+			final int nSamples) throws DataException {
+		final byte[][][] data = new byte[nSamples][][];
 
-		int i = 0;
-		for (int j = request.begin; j <= request.end; j++) {
-			data[i++] = dataBuffer.get(j);
+		try {
+			for (int i = 0; i < nSamples; i++) {
+				data[i] = dataBuffer.get(begin + i);
+			}
+		} catch (final IndexOutOfBoundsException e) {
+			throw new DataException(
+					"Requested samples were overwritten while reading.");
 		}
 
 		return new Data(nChans, nSamples, dataType, data, NATIVE_ORDER);
@@ -210,7 +399,7 @@ public class RingDataStore extends DataModel {
 	 * @throws DataException
 	 */
 	@Override
-	public synchronized int getEventCount() throws DataException {
+	public int getEventCount() throws DataException {
 		return eventBuffer.eventCount();
 	}
 
@@ -221,20 +410,14 @@ public class RingDataStore extends DataModel {
 	 * @throws DataException
 	 */
 	@Override
-	public synchronized Event[] getEvents() throws DataException {
-		if (eventBuffer.eventCount() == 0) {
+	public Event[] getEvents() throws DataException {
+		final int eventCount = eventBuffer.eventCount();
+		if (eventCount == 0) {
 			throw new DataException("No events stored.");
 		}
 
-		final Event[] events = new Event[eventBuffer.eventCount()
-		                                 - eventBuffer.indexOfOldest()];
-
-		int j = 0;
-		for (int i = eventBuffer.indexOfOldest(); i < eventBuffer.eventCount(); i++) {
-			events[j++] = eventBuffer.get(i);
-		}
-
-		return events;
+		final int begin = eventBuffer.indexOfOldest();
+		return copyEvents(begin, eventCount - begin);
 	}
 
 	/**
@@ -246,9 +429,10 @@ public class RingDataStore extends DataModel {
 	 * @throws DataException
 	 */
 	@Override
-	public synchronized Event[] getEvents(final Request request)
-			throws DataException {
-		if (eventBuffer.eventCount() == 0) {
+	public Event[] getEvents(final Request request) throws DataException {
+		final int eventCount = eventBuffer.eventCount();
+		final int indexOfOldest = eventBuffer.indexOfOldest();
+		if (eventCount == 0) {
 			throw new DataException("No events stored.");
 		}
 
@@ -265,33 +449,68 @@ public class RingDataStore extends DataModel {
 					"Requesting events with start index > end index.");
 		}
 
-		if (request.end >= eventBuffer.eventCount()) {
+		if (request.end >= eventCount) {
 			throw new DataException(
 					"Requesting events that do not exist (end index >= events count).");
 		}
 
-		if (request.begin >= eventBuffer.eventCount()) {
+		if (request.begin >= eventCount) {
 			throw new DataException(
 					"Requesting events that do not exist (begin index >= events count).");
 		}
 
-		if (request.end < eventBuffer.indexOfOldest()) {
+		if (request.end < indexOfOldest) {
 			throw new DataException(
 					"Requested events that do not exist (end index < index of oldest sample in ring)");
 		}
 
-		if (request.begin < eventBuffer.indexOfOldest()) {
+		if (request.begin < indexOfOldest) {
 			throw new DataException(
 					"Requested events that do not exist (begin index < index of oldest sample in ring)");
 		}
 
-		final int nEvents = request.end - request.begin + 1;
+		return copyEvents(request.begin, request.end - request.begin + 1);
+	}
+
+	/**
+	 * Returns the selected events, looked up in the index of the event ring.
+	 * Events overwritten since the lookup are left out.
+	 *
+	 * @param selection
+	 *            Sample range and type prefix of the events requested.
+	 * @return
+	 * @throws DataException
+	 */
+	@Override
+	public Event[] getEvents(final EventSelection selection)
+			throws DataException {
+		final int[] indices = eventBuffer.find(selection.sampleBegin,
+				selection.sampleEnd, selection.typePrefix);
+		final ArrayList<Event> events = new ArrayList<Event>(indices.length);
+		for (final int index : indices) {
+			try {
+				events.add(eventBuffer.get(index));
+			} catch (final IndexOutOfBoundsException e) {
+				// Overwritten since the lookup.
+			}
+		}
+		return events.toArray(new Event[events.size()]);
+	}
 
+	/**
+	 * Collects nEvents events starting at begin from the ring.
+	 */
+	private Event[] copyEvents(final int begin, final int nEvents)
+			throws DataException {
 		final Event[] events = new Event[nEvents];
 
-		int j = 0;
-		for (int i = request.begin; i <= request.end; i++) {
-			events[j++] = eventBuffer.get(i);
+		try {
+			for (int i = 0; i < nEvents; i++) {
+				events[i] = eventBuffer.get(begin + i);
+			}
+		} catch (final IndexOutOfBoundsException e) {
+			throw new DataException(
+					"Requested events were overwritten while reading.");
 		}
 
 		return events;
@@ -304,7 +523,8 @@ public class RingDataStore extends DataModel {
 	 * @throws DataException
 	 */
 	@Override
-	public synchronized Header getHeader() throws DataException {
+	public Header getHeader() throws DataException {
+		final Header header = this.header;
 
 		// Check if header exists
 		if (header == null) {
@@ -323,7 +543,11 @@ public class RingDataStore extends DataModel {
 	 * @throws DataException
 	 */
 	@Override
-	public synchronized int getSampleCount() throws DataException {
+	public int getSampleCount() throws DataException {
+		final DataRingBuffer dataBuffer = this.dataBuffer;
+		if (dataBuffer == null) {
+			throw new DataException("No header.");
+		}
 		return dataBuffer.sampleCount();
 	}
 
@@ -333,7 +557,7 @@ public class RingDataStore extends DataModel {
 	 * @return
 	 */
 	@Override
-	public synchronized boolean headerExists() {
+	public boolean headerExists() {
 		return header != null;
 	}
 
@@ -344,7 +568,21 @@ public class RingDataStore extends DataModel {
 	 * @throws DataException
 	 */
 	@Override
-	public synchronized int putData(final Data data) throws DataException {
+	public int putData(final Data data) throws DataException {
+		synchronized (dataLock) {
+			appendData(data);
+		}
+		checkListeners();
+		return getSampleCount();
+	}
+
+	/**
+	 * Checks and adds the data to the sample ring, the caller holds dataLock.
+	 *
+	 * @param data
+	 * @throws DataException
+	 */
+	protected void appendData(final Data data) throws DataException {
 		if (data.dataType != dataType) {
 			throw new DataException("Trying to append data of wrong dataType.");
 		}
@@ -354,25 +592,11 @@ public class RingDataStore extends DataModel {
 		}
 
 		// Check if byte order needs to be flipped
-		if (data.order != NATIVE_ORDER && nBytes != 1) {
-			for (int i = 0; i < data.nSamples; i++) {
-				final byte[][] sample = new byte[nChans][nBytes];
-
-				for (int j = 0; j < nChans; j++) {
-					for (int k = 0; k < nBytes; k++) {
-						sample[j][k] = data.data[i][j][nBytes - k - 1];
-					}
-				}
+		final boolean flip = data.order != NATIVE_ORDER && nBytes != 1;
 
-				dataBuffer.add(sample);
-			}
-		} else {
-			for (int i = 0; i < data.nSamples; i++) {
-				dataBuffer.add(data.data[i]);
-			}
+		for (int i = 0; i < data.nSamples; i++) {
+			dataBuffer.add(data.getSample(i, flip));
 		}
-		checkListeners();
-		return dataBuffer.sampleCount();
 	}
 
 	/**
@@ -382,8 +606,21 @@ public class RingDataStore extends DataModel {
 	 * @throws DataException
 	 */
 	@Override
-	public synchronized int putEvents(final Event[] events)
-			throws DataException {
+	public int putEvents(final Event[] events) throws DataException {
+		synchronized (eventLock) {
+			appendEvents(events);
+		}
+		checkListeners();
+		return eventBuffer.eventCount();
+	}
+
+	/**
+	 * Adds the events to the event ring, the caller holds eventLock.
+	 *
+	 * @param events
+	 * @throws DataException
+	 */
+	protected void appendEvents(final Event[] events) throws DataException {
 		for (final Event event : events) {
 			if (event.order != NATIVE_ORDER) {
 				final int typeNBytes = NetworkProtocol
@@ -417,8 +654,6 @@ public class RingDataStore extends DataModel {
 				eventBuffer.add(event);
 			}
 		}
-		checkListeners();
-		return eventBuffer.eventCount();
 	}
 
 	/**
@@ -428,7 +663,21 @@ public class RingDataStore extends DataModel {
 	 * @throws DataException
 	 */
 	@Override
-	public synchronized void putHeader(Header header) throws DataException {
+	public void putHeader(final Header header) throws DataException {
+		synchronized (dataLock) {
+			synchronized (eventLock) {
+				replaceHeader(header);
+			}
+		}
+	}
+
+	/**
+	 * Checks and stores the header, the caller holds dataLock and eventLock.
+	 *
+	 * @param header
+	 * @throws DataException
+	 */
+	protected void replaceHeader(Header header) throws DataException {
 
 		final boolean newHeader = this.header == null;
 
@@ -473,8 +722,29 @@ public class RingDataStore extends DataModel {
 		}
 
 		this.header = header;
-		dataBuffer = new DataRingBuffer(dataBufferSize, nChans, nBytes);
+		initDataBuffer();
+		applyEventRetention();
+
+	}
 
+	/**
+	 * Converts the event retention to samples, the caller holds eventLock.
+	 */
+	protected void applyEventRetention() {
+		final Header header = this.header;
+		if (header == null || header.fSample <= 0) {
+			eventBuffer.setRetention(0);
+		} else {
+			eventBuffer.setRetention((int) Math.min(Integer.MAX_VALUE,
+					Math.ceil(eventRetention * header.fSample)));
+		}
+	}
+
+	/**
+	 * (Re)allocates the sample ring for the current header.
+	 */
+	protected void initDataBuffer() {
+		dataBuffer = new DataRingBuffer(dataBufferSize, nChans, nBytes);
 	}
 	
 	 public void cleanup(){}; // null class
@@ -4,7 +4,6 @@ import nl.fcdonders.fieldtrip.bufferserver.exceptions.DataException;
 import nl.fcdonders.fieldtrip.bufferserver.network.NetworkProtocol;
 
 import java.io.OutputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -12,14 +11,22 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
 public class SavingRingDataStore extends RingDataStore {
-    private static final int dataBufSize  = 256 * 10 * 1; // ~1s data (@256Hz) file-write buffer
     private static final int eventBufSize =  10 * 40 * 1; // ~1s event(@10/s) file-write buffer
-    private OutputStream eventWriter;
-    private OutputStream dataWriter;
+    private static final int defaultSegmentSize = 16 * 1024 * 1024; // bytes mapped at a time
+    private static final int defaultFlushInterval = 1000; // ms between forcing the recording to disk
+    private MappedSegmentWriter eventWriter;
+    private MappedSegmentWriter dataWriter;
     private OutputStream headerWriter;
     private String savePathRoot;
     private int numReset = 1;
     private ByteBuffer writeBuf;
+    private volatile int segmentSize = defaultSegmentSize;
+    private volatile int flushInterval = defaultFlushInterval;
+    private Thread flusher = null;
+    private File saveDir;
+    private int writeBehindQueueSize = 0; // 0 means record through memory mapped segments
+    private int writeBehindPolicy = WriteBehindRecorder.BLOCK;
+    private volatile WriteBehindRecorder recorder = null;
 
     /**
      * Constructor
@@ -115,18 +122,19 @@ public class SavingRingDataStore extends RingDataStore {
             }
         }
         // record the save path used
+        saveDir = file;
         String savePath = file.getPath();
-		if ( false ){ // don't buffer the file output.... (NOTE: may result in real-time jitters)
-        dataWriter = new BufferedOutputStream(new FileOutputStream(savePath + File.separator + "samples"),
-                                              dataBufSize);
-        eventWriter = new BufferedOutputStream(new FileOutputStream(savePath + File.separator + "events"),
-                                               eventBufSize);
-        headerWriter = new BufferedOutputStream(new FileOutputStream(savePath + File.separator + "header"));
-		} else { // Non-buffered version.. rely on filesystem buffering...
-        dataWriter  = new FileOutputStream(savePath + File.separator + "samples");
-        eventWriter = new FileOutputStream(savePath + File.separator + "events");
+        if (writeBehindQueueSize > 0) {
+            // Samples and events are written by the recorder's own thread
+            recorder = new WriteBehindRecorder(file, writeBehindQueueSize, writeBehindPolicy, false);
+        } else {
+            // Samples and events go through memory mapped segments, so putData never waits
+            // for the disk. The flusher thread forces them to disk in the background.
+            dataWriter  = new MappedSegmentWriter(new File(savePath + File.separator + "samples"), segmentSize);
+            eventWriter = new MappedSegmentWriter(new File(savePath + File.separator + "events"), segmentSize);
+            startFlusher();
+        }
         headerWriter= new FileOutputStream(savePath + File.separator + "header");
-		}
         // Write everything in BIG_ENDIAN
         writeBuf = ByteBuffer.allocate(eventBufSize);
         writeBuf.order(ByteOrder.nativeOrder());
@@ -146,12 +154,18 @@ public class SavingRingDataStore extends RingDataStore {
      * @throws DataException
      */
     @Override
-    public synchronized void flushData() throws DataException {
-        super.flushData();
-        try {
-            resetFiles(); // resets the sample counter, so need start new save file
-        } catch (IOException e) {
-            throw new DataException("IO error starting new save file");
+    public void flushData() throws DataException {
+        // the save files are shared by samples and events, so take both locks
+        synchronized (dataLock) {
+            synchronized (eventLock) {
+                // close the recording before the data it may still have to write is cleared
+                try {
+                    resetFiles(); // resets the sample counter, so need start new save file
+                } catch (IOException e) {
+                    throw new DataException("IO error starting new save file");
+                }
+                super.flushData();
+            }
         }
     }
 
@@ -161,24 +175,29 @@ public class SavingRingDataStore extends RingDataStore {
      * @throws DataException
      */
     @Override
-    public synchronized void flushHeader() throws DataException {
-        super.flushHeader();
-        try {
-            resetFiles(); // resets the sample counter, so need start new save file
-        } catch (IOException e) {
-            throw new DataException("IO error starting new save file");
+    public void flushHeader() throws DataException {
+        synchronized (dataLock) {
+            synchronized (eventLock) {
+                try {
+                    resetFiles(); // resets the sample counter, so need start new save file
+                } catch (IOException e) {
+                    throw new DataException("IO error starting new save file");
+                }
+                super.flushHeader();
+            }
         }
     }
 
 
     /**
-     * Appends the data to the storage. Throws DataException if impossible.
+     * Appends the data to the ring and the samples file, the caller holds
+     * dataLock.
      *
      * @param data
      * @throws DataException
      */
     @Override
-    public synchronized int putData(final Data data) throws DataException {
+    protected void appendData(final Data data) throws DataException {
         if (data.dataType != dataType) {
             throw new DataException("Trying to append data of wrong dataType.");
         }
@@ -187,45 +206,36 @@ public class SavingRingDataStore extends RingDataStore {
         }
 
         // Check if byte order needs to be flipped
-        if (data.order != NATIVE_ORDER && nBytes != 1) {
-            for (int i = 0; i < data.nSamples; i++) {
-                final byte[][] sample = new byte[nChans][nBytes];
-
-                for (int j = 0; j < nChans; j++) {
-                    for (int k = 0; k < nBytes; k++) {
-                        sample[j][k] = data.data[i][j][nBytes - k - 1];
-                    }
-                }
+        final boolean flip = data.order != NATIVE_ORDER && nBytes != 1;
 
-                dataBuffer.add(sample);
-                try {
-                    dataWriterwrite(sample);
-                } catch (IOException e) {
-                    throw new DataException("IOException writing data");
-                }
-            }
-        } else {
-            for (int i = 0; i < data.nSamples; i++) {
-                dataBuffer.add(data.data[i]);
-                try {
-                    dataWriterwrite(data.data[i]);
-                } catch (IOException e) {
-                    throw new DataException("IOException writing data");
-                }
+        final int first = dataBuffer.sampleCount();
+        for (int i = 0; i < data.nSamples; i++) {
+            final byte[][] sample = data.getSample(i, flip);
+            dataBuffer.add(sample);
+            try {
+                dataWriterwrite(sample);
+            } catch (IOException e) {
+                throw new DataException("IOException writing data");
             }
         }
-        checkListeners();
-        return dataBuffer.sampleCount();
+        final WriteBehindRecorder recorder = this.recorder;
+        if (recorder != null) {
+            recorder.addSamples(dataBuffer, first, dataBuffer.sampleCount(), nChans * nBytes);
+        }
     }
 
     /**
-     * Appends the events to the storage. Throws DataException if impossible.
+     * Appends the events to the ring and the events file, the caller holds
+     * eventLock.
      *
      * @param events
      * @throws DataException
      */
     @Override
-    public synchronized int putEvents(final Event[] events) throws DataException {
+    protected void appendEvents(final Event[] events) throws DataException {
+        final WriteBehindRecorder recorder = this.recorder;
+        final Event[] stored = recorder != null ? new Event[events.length] : null;
+        int nStored = 0;
         for (final Event event : events) {
             if (event.order != NATIVE_ORDER) {
                 final int typeNBytes = NetworkProtocol.dataTypeSize(event.typeType);
@@ -252,6 +262,7 @@ public class SavingRingDataStore extends RingDataStore {
 
                 Event evt = new Event(event, type, value, NATIVE_ORDER);
                 eventBuffer.add(evt);
+                if (stored != null) stored[nStored++] = evt;
                 try {
                     eventWriterwrite(evt);
                 } catch (IOException e) {
@@ -259,6 +270,7 @@ public class SavingRingDataStore extends RingDataStore {
                 }
             } else {
                 eventBuffer.add(event);
+                if (stored != null) stored[nStored++] = event;
                 try {
                     eventWriterwrite(event);
                 } catch (IOException e) {
@@ -266,18 +278,20 @@ public class SavingRingDataStore extends RingDataStore {
                 }
             }
         }
-        checkListeners();
-        return eventBuffer.eventCount();
+        if (recorder != null) {
+            recorder.addEvents(stored);
+        }
     }
 
     /**
-     * Adds the header to the storage. Throws DataException if impossible.
+     * Stores the header and writes it to the header file, the caller holds
+     * dataLock and eventLock.
      *
-     * @param hdr
+     * @param header
      * @throws DataException
      */
     @Override
-    public synchronized void putHeader(Header header) throws DataException {
+    protected void replaceHeader(Header header) throws DataException {
 
         final boolean newHeader = this.header == null;
 
@@ -325,7 +339,8 @@ public class SavingRingDataStore extends RingDataStore {
         }
 		  
         this.header = header;
-        dataBuffer = new DataRingBuffer(dataBufferSize, nChans, nBytes);
+        initDataBuffer();
+        applyEventRetention();
         try {
             headerWriterwrite(header);
         } catch (IOException e) {
@@ -334,6 +349,110 @@ public class SavingRingDataStore extends RingDataStore {
     }
 
 
+    /**
+     * Sets the size of the memory mapped segments the samples and events files
+     * grow by. Applies from the next segment on.
+     *
+     * @param bytes
+     */
+    public void setSegmentSize(final int bytes) {
+        segmentSize = bytes;
+        final MappedSegmentWriter data = dataWriter;
+        final MappedSegmentWriter events = eventWriter;
+        if (data != null) data.setSegmentSize(bytes);
+        if (events != null) events.setSegmentSize(bytes);
+    }
+
+    /**
+     * Switches to write-behind recording: putData and putEvents only queue what
+     * has to be saved and a separate thread writes it, see WriteBehindRecorder.
+     * Takes effect immediately, the current files are continued.
+     *
+     * @param queueSize Number of putData/putEvents calls which may wait to be written.
+     * @param policy    WriteBehindRecorder.BLOCK, DROP or SPILL, what to do when the queue is full.
+     * @throws IOException
+     */
+    public void setWriteBehind(final int queueSize, final int policy) throws IOException {
+        if (queueSize <= 0) {
+            throw new IllegalArgumentException("Queue size should be > 0");
+        }
+        synchronized (dataLock) {
+            synchronized (eventLock) {
+                writeBehindQueueSize = queueSize;
+                writeBehindPolicy = policy;
+                stopFlusher();
+                if (dataWriter != null) dataWriter.close();
+                if (eventWriter != null) eventWriter.close();
+                dataWriter = null;
+                eventWriter = null;
+                if (recorder != null) recorder.close();
+                recorder = new WriteBehindRecorder(saveDir, queueSize, policy, true);
+            }
+        }
+    }
+
+    /**
+     * Returns the write-behind recorder, with its queue depth and counters, or
+     * null when recording through memory mapped segments.
+     *
+     * @return
+     */
+    public WriteBehindRecorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * Sets how often (in ms) the recording is forced to disk.
+     *
+     * @param ms
+     */
+    public void setFlushInterval(final int ms) {
+        flushInterval = ms;
+    }
+
+    /**
+     * Starts the thread which regularly forces the samples and events files to
+     * disk, and maps their next segments ahead of time.
+     */
+    private synchronized void startFlusher() {
+        if (flusher != null) return;
+        flusher = new Thread("Fieldtrip Recording Flusher") {
+            @Override
+            public void run() {
+                // not interrupted to stop, as that would close the files' channels
+                while (isCurrentFlusher(this)) {
+                    try {
+                        Thread.sleep(flushInterval);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    force();
+                }
+            }
+        };
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    private synchronized void stopFlusher() {
+        flusher = null;
+    }
+
+    private synchronized boolean isCurrentFlusher(final Thread thread) {
+        return flusher == thread;
+    }
+
+    private void force() {
+        final MappedSegmentWriter data = dataWriter;
+        final MappedSegmentWriter events = eventWriter;
+        try {
+            if (data != null) data.force();
+            if (events != null) events.force();
+        } catch (IOException e) {
+            System.err.println("IOException forcing recording to disk: " + e);
+        }
+    }
+
     // Methods to write to save files
     void dataWriterwrite(byte[][] sample) throws IOException {
         if (dataWriter == null) return;
@@ -368,6 +487,11 @@ public class SavingRingDataStore extends RingDataStore {
     }
 
     public void cleanup() {
+        stopFlusher();
+        if (recorder != null) {
+            recorder.close();
+            recorder = null;
+        }
         if (headerWriter != null) try {
             headerWriter.close();
         } catch (IOException e) {
@@ -0,0 +1,150 @@
+package nl.fcdonders.fieldtrip.bufferserver.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * DirectDataRingBuffer in a memory mapped file, normally under /dev/shm, so
+ * clients on the same machine can read samples straight out of the ring
+ * instead of over a socket.
+ *
+ * The file starts with a HEADER_SIZE byte header, in native byte order,
+ * followed by the ring:
+ *
+ * <pre>
+ *  0 int magic        MAGIC
+ *  4 int version      VERSION
+ *  8 int generation   changes when the ring is cleared, -1 once closed
+ * 12 int nChans
+ * 16 int dataType
+ * 20 int capacity     number of samples in the ring
+ * 24 int byteOrder    0 little endian, 1 big endian
+ * 28 int writeLimit   samples before this may be being written
+ * 32 int sampleCount  samples before this are complete
+ * </pre>
+ *
+ * Readers in other processes follow the same protocol as readers of the
+ * DirectDataRingBuffer: read sampleCount, copy the samples, then check with
+ * writeLimit that none of them was overwritten meanwhile, and with generation
+ * that the ring was not cleared or closed. The volatile counters of the
+ * DirectDataRingBuffer are written between the stores into the file, so the
+ * writes to the file are not reordered across them. The client side is the
+ * SharedSampleReader of the bufferclient.
+ */
+public class SharedDataRingBuffer extends DirectDataRingBuffer {
+	public static final int MAGIC = 0x4654524e; // "FTRN"
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 64;
+	public static final int GENERATION = 8;
+	public static final int NCHANS = 12;
+	public static final int DATATYPE = 16;
+	public static final int CAPACITY = 20;
+	public static final int BYTEORDER = 24;
+	public static final int WRITELIMIT = 28;
+	public static final int SAMPLECOUNT = 32;
+
+	private final MappedByteBuffer file;
+	private int generation = 0;
+
+	/**
+	 * Creates the file, replacing any old one, and maps a ring of size
+	 * samples into it.
+	 *
+	 * @param path
+	 *            file to create
+	 * @param size
+	 *            number of samples in the ring
+	 * @param nChans
+	 *            number of channels per sample
+	 * @param dataType
+	 *            data type of the samples
+	 * @param nBytes
+	 *            number of bytes per data point
+	 * @return
+	 * @throws IOException
+	 */
+	public static SharedDataRingBuffer create(final File path, final int size,
+			final int nChans, final int dataType, final int nBytes)
+			throws IOException {
+		final long length = HEADER_SIZE + (long) size * nChans * nBytes;
+		if (length > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(
+					"Sample ring too large for a single buffer.");
+		}
+		// Readers may still have the old file mapped; truncating it would
+		// make them crash, so it is unlinked and a new one is created.
+		if (path.exists() && !path.delete()) {
+			throw new IOException("Could not remove old " + path);
+		}
+		final RandomAccessFile raf = new RandomAccessFile(path, "rw");
+		MappedByteBuffer file;
+		try {
+			raf.setLength(length);
+			file = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					length);
+		} finally {
+			raf.close(); // the mapping stays valid
+		}
+		file.order(ByteOrder.nativeOrder());
+		file.position(HEADER_SIZE);
+		final ByteBuffer ring = file.slice();
+		return new SharedDataRingBuffer(file, ring, size, nChans, dataType,
+				nBytes);
+	}
+
+	private SharedDataRingBuffer(final MappedByteBuffer file,
+			final ByteBuffer ring, final int size, final int nChans,
+			final int dataType, final int nBytes) {
+		super(ring, size, nChans, nBytes);
+		this.file = file;
+		file.putInt(GENERATION, generation);
+		file.putInt(NCHANS, nChans);
+		file.putInt(DATATYPE, dataType);
+		file.putInt(CAPACITY, size);
+		file.putInt(BYTEORDER,
+				ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 1 : 0);
+		file.putInt(WRITELIMIT, 0);
+		file.putInt(SAMPLECOUNT, 0);
+		file.putInt(4, VERSION);
+		// written last, readers ignore the file until it is valid
+		announce(0);
+		file.putInt(0, MAGIC);
+	}
+
+	/**
+	 * Resets the buffer, readers of the old samples will notice.
+	 */
+	@Override
+	public void clear() {
+		super.clear();
+		generation++;
+		file.putInt(GENERATION, generation);
+		file.putInt(WRITELIMIT, 0);
+		file.putInt(SAMPLECOUNT, 0);
+	}
+
+	/**
+	 * Marks the ring as no longer used, readers attach to its replacement or
+	 * fall back on the network.
+	 */
+	public void close() {
+		file.putInt(GENERATION, -1);
+	}
+
+	@Override
+	protected void announce(final int count) {
+		file.putInt(WRITELIMIT, count);
+		super.announce(count);
+	}
+
+	@Override
+	protected void publish(final int count) {
+		super.publish(count);
+		file.putInt(SAMPLECOUNT, count);
+	}
+}
@@ -0,0 +1,105 @@
+package nl.fcdonders.fieldtrip.bufferserver.data;
+
+import java.io.File;
+import java.io.IOException;
+
+import nl.fcdonders.fieldtrip.bufferserver.exceptions.DataException;
+
+/**
+ * DirectRingDataStore which keeps its sample ring in a memory mapped file,
+ * see SharedDataRingBuffer, so clients on the same machine can read windows
+ * of samples without a round trip over the socket. Writes, events and all
+ * other requests still go over the network.
+ *
+ * Whenever the header is (re)placed a new file is created at the same path,
+ * and the old one is marked as closed so its readers attach again.
+ */
+public class SharedRingDataStore extends DirectRingDataStore {
+	private final File file;
+
+	/**
+	 * Returns the file a server on the given port shares its samples in when
+	 * no other is given, the one clients look for by default.
+	 *
+	 * @param port
+	 * @return
+	 */
+	public static File defaultFile(final int port) {
+		return new File("/dev/shm", "fieldtrip_buffer_" + port);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param nSamples
+	 *            Capacity of the sample ringbuffer.
+	 * @param nEvents
+	 *            Capacity of the event ringbuffer.
+	 * @param file
+	 *            File to share the samples in.
+	 */
+	public SharedRingDataStore(final int nSamples, final int nEvents,
+			final File file) {
+		super(nSamples, nEvents);
+		this.file = file;
+	}
+
+	/**
+	 * Removes the header, and all data & events.
+	 *
+	 * @throws DataException
+	 */
+	@Override
+	public void flushHeader() throws DataException {
+		synchronized (dataLock) {
+			final DirectDataRingBuffer old = sampleRing;
+			super.flushHeader();
+			close(old);
+		}
+	}
+
+	/**
+	 * Closes and removes the shared file.
+	 */
+	@Override
+	public void cleanup() {
+		synchronized (dataLock) {
+			close(sampleRing);
+		}
+	}
+
+	/**
+	 * Creates a new shared file for the current header. If that is impossible
+	 * the samples are kept in memory only.
+	 */
+	@Override
+	protected void initDataBuffer() {
+		if (sampleRing instanceof SharedDataRingBuffer) {
+			((SharedDataRingBuffer) sampleRing).close();
+		}
+		try {
+			sampleRing = SharedDataRingBuffer.create(file, dataBufferSize,
+					nChans, dataType, nBytes);
+		} catch (final IOException e) {
+			System.err.println("Could not share samples in " + file + ": " + e);
+			sampleRing = new DirectDataRingBuffer(dataBufferSize, nChans,
+					nBytes);
+		}
+	}
+
+	private void close(final DirectDataRingBuffer ring) {
+		if (ring instanceof SharedDataRingBuffer) {
+			((SharedDataRingBuffer) ring).close();
+			file.delete();
+		}
+	}
+
+	/**
+	 * Returns the shared file.
+	 *
+	 * @return
+	 */
+	public File getFile() {
+		return file;
+	}
+}
@@ -9,7 +9,7 @@ import nl.fcdonders.fieldtrip.bufferserver.network.Request;
 import nl.fcdonders.fieldtrip.bufferserver.network.WaitRequest;
 
 public class SimpleDataStore extends DataModel {
-	private final ArrayList<WaitRequest> requests = new ArrayList<WaitRequest>();
+	private final WaitRequestQueue requests = new WaitRequestQueue();
 	private final ArrayList<byte[][]> dataArray = new ArrayList<byte[][]>();
 	private final ArrayList<Event> eventArray = new ArrayList<Event>();
 	private int nChans;
@@ -32,20 +32,13 @@ public class SimpleDataStore extends DataModel {
 	}
 
 	/**
-	 * Checks for all the listeners, if the conditions have been met, if so
-	 * calls the appropriate waitOver function.
+	 * Calls satisfied() on the listeners whose conditions have been met, using
+	 * the current sample and event count, looked up only once.
 	 *
 	 * @throws DataException
 	 */
 	private synchronized void checkListeners() throws DataException {
-		for (int i = 0; i < requests.size(); i++) {
-			if (requests.get(i).nEvents < getEventCount()
-					|| requests.get(i).nSamples < getSampleCount()) {
-				requests.get(i).satisfied();
-				requests.remove(i);
-				i--;
-			}
-		}
+		requests.wakeUp(getSampleCount(), getEventCount());
 	}
 
 	/**
@@ -284,22 +277,10 @@ public class SimpleDataStore extends DataModel {
 		}
 
 		// Check if byte order needs to be flipped
-		if (data.order != NATIVE_ORDER && nBytes != 1) {
-			for (int i = 0; i < data.nSamples; i++) {
-				final byte[][] sample = new byte[nChans][nBytes];
-
-				for (int j = 0; j < nChans; j++) {
-					for (int k = 0; k < nBytes; k++) {
-						sample[j][k] = data.data[i][j][nBytes - k - 1];
-					}
-				}
+		final boolean flip = data.order != NATIVE_ORDER && nBytes != 1;
 
-				dataArray.add(sample);
-			}
-		} else {
-			for (int i = 0; i < data.nSamples; i++) {
-				dataArray.add(data.data[i]);
-			}
+		for (int i = 0; i < data.nSamples; i++) {
+			dataArray.add(data.getSample(i, flip));
 		}
 		checkListeners();
 		return dataArray.size();
@@ -0,0 +1,110 @@
+package nl.fcdonders.fieldtrip.bufferserver.data;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import nl.fcdonders.fieldtrip.bufferserver.network.WaitRequest;
+
+/**
+ * Pending wait requests, kept in two min-heaps on their sample and event
+ * thresholds. A put only looks at the requests it actually satisfies, instead
+ * of scanning all of them. Requests which timed out or were already answered
+ * are dropped lazily, when they reach the top of a heap or when the heaps
+ * have grown large enough to be worth purging.
+ *
+ * Not thread safe, the owning dataModel synchronises access.
+ */
+class WaitRequestQueue {
+	private static final int MINPURGESIZE = 64;
+
+	private final PriorityQueue<WaitRequest> bySamples = new PriorityQueue<WaitRequest>(
+			11, new Comparator<WaitRequest>() {
+				@Override
+				public int compare(final WaitRequest a, final WaitRequest b) {
+					return a.nSamples < b.nSamples ? -1
+							: a.nSamples == b.nSamples ? 0 : 1;
+				}
+			});
+	private final PriorityQueue<WaitRequest> byEvents = new PriorityQueue<WaitRequest>(
+			11, new Comparator<WaitRequest>() {
+				@Override
+				public int compare(final WaitRequest a, final WaitRequest b) {
+					return a.nEvents < b.nEvents ? -1
+							: a.nEvents == b.nEvents ? 0 : 1;
+				}
+			});
+	private int purgeSize = MINPURGESIZE;
+
+	/**
+	 * Adds a request. Requests with neither a sample nor an event threshold
+	 * can never be satisfied and are ignored.
+	 *
+	 * @param request
+	 */
+	public void add(final WaitRequest request) {
+		if (bySamples.size() + byEvents.size() >= purgeSize) {
+			purge();
+		}
+		if (request.nSamples != -1) {
+			bySamples.add(request);
+		}
+		if (request.nEvents != -1) {
+			byEvents.add(request);
+		}
+	}
+
+	/**
+	 * Calls satisfied() on every request whose sample threshold is below
+	 * nSamples or whose event threshold is below nEvents, and removes them.
+	 *
+	 * @param nSamples
+	 *            Current number of samples.
+	 * @param nEvents
+	 *            Current number of events.
+	 */
+	public void wakeUp(final int nSamples, final int nEvents) {
+		final long now = System.currentTimeMillis();
+		WaitRequest request;
+		while ((request = bySamples.peek()) != null
+				&& (request.nSamples < nSamples || request.isExpired(now))) {
+			bySamples.poll();
+			if (request.nSamples < nSamples && request.finish()) {
+				request.satisfied();
+			}
+		}
+		while ((request = byEvents.peek()) != null
+				&& (request.nEvents < nEvents || request.isExpired(now))) {
+			byEvents.poll();
+			if (request.nEvents < nEvents && request.finish()) {
+				request.satisfied();
+			}
+		}
+	}
+
+	/**
+	 * Removes all requests which timed out or were answered.
+	 */
+	private void purge() {
+		final long now = System.currentTimeMillis();
+		purge(bySamples, now);
+		purge(byEvents, now);
+		purgeSize = Math.max(MINPURGESIZE,
+				2 * (bySamples.size() + byEvents.size()));
+	}
+
+	private static void purge(final PriorityQueue<WaitRequest> heap,
+			final long now) {
+		final ArrayList<WaitRequest> live = new ArrayList<WaitRequest>(
+				heap.size());
+		for (final WaitRequest request : heap) {
+			if (!request.isExpired(now)) {
+				live.add(request);
+			}
+		}
+		if (live.size() < heap.size()) {
+			heap.clear();
+			heap.addAll(live);
+		}
+	}
+}
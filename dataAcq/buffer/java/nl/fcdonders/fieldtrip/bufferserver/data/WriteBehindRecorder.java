@@ -0,0 +1,417 @@
+package nl.fcdonders.fieldtrip.bufferserver.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.fcdonders.fieldtrip.bufferserver.exceptions.DataException;
+import nl.fcdonders.fieldtrip.bufferserver.network.NetworkProtocol;
+
+/**
+ * Write-behind recorder for the SavingRingDataStore. The store only queues
+ * which samples of its ring (and which events) have to be saved; a dedicated
+ * thread copies them out of the ring and writes them to the samples and
+ * events files in large sequential writes.
+ *
+ * The queue is full when it holds queueSize calls, or samples filling half of
+ * the ring, so the writer normally gets to them before they are overwritten.
+ * Every queued range knows where it goes in its file, so writes may happen
+ * out of order. This allows the SPILL policy to write on the caller's thread
+ * when the queue is full. With the DROP policy samples which were dropped, or
+ * overwritten in the ring before the writer got to them, are left as zeros,
+ * so later samples stay at their proper place in the file. Dropped events are
+ * left out of the events file.
+ */
+public class WriteBehindRecorder {
+	/** When the queue is full, wait for the writer to catch up. */
+	public static final int BLOCK = 0;
+	/** When the queue is full, drop the samples or events and count them. */
+	public static final int DROP = 1;
+	/** When the queue is full, write on the caller's thread. */
+	public static final int SPILL = 2;
+
+	private static final int BATCHSIZE = 1024 * 1024; // bytes per samples write
+	private static final int EVENTBATCHSIZE = 64 * 1024; // bytes per events write
+
+	/**
+	 * A range of samples in a ring, or a number of events, to be written at
+	 * position in its file.
+	 */
+	private static class Range {
+		final DataRingBuffer ring;
+		final int begin;
+		final int end;
+		final int sampleSize;
+		final Event[] events;
+		final long position;
+
+		Range(final DataRingBuffer ring, final int begin, final int end,
+				final int sampleSize, final Event[] events, final long position) {
+			this.ring = ring;
+			this.begin = begin;
+			this.end = end;
+			this.sampleSize = sampleSize;
+			this.events = events;
+			this.position = position;
+		}
+	}
+
+	private static final Range STOP = new Range(null, 0, 0, 0, null, 0);
+
+	private final FileChannel samples;
+	private final FileChannel events;
+	private final ArrayBlockingQueue<Range> queue;
+	private final int policy;
+	private final Thread thread;
+	private long eventPosition;
+	private int pendingSamples = 0; // queued, not yet copied out of the ring
+
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong droppedSamples = new AtomicLong();
+	private final AtomicLong droppedEvents = new AtomicLong();
+	private final AtomicLong lostSamples = new AtomicLong();
+	private final AtomicLong spilledRanges = new AtomicLong();
+
+	/**
+	 * Constructor, opens the samples and events files in dir and starts the
+	 * writer thread. Events are appended to the events file, samples written
+	 * at their index in the samples file. The valid length files left by a
+	 * MappedSegmentWriter are removed, as they would cut the recording short:
+	 * these files are only ever written up to their valid length.
+	 *
+	 * @param dir
+	 *            Directory holding the samples and events files.
+	 * @param queueSize
+	 *            Number of putData/putEvents calls that may be waiting to be
+	 *            written.
+	 * @param policy
+	 *            BLOCK, DROP or SPILL
+	 * @param append
+	 *            if false the files are emptied first.
+	 * @throws IOException
+	 */
+	public WriteBehindRecorder(final File dir, final int queueSize,
+			final int policy, final boolean append) throws IOException {
+		removeLength(new File(dir, "samples"));
+		removeLength(new File(dir, "events"));
+		samples = new RandomAccessFile(new File(dir, "samples"), "rw")
+				.getChannel();
+		events = new RandomAccessFile(new File(dir, "events"), "rw")
+				.getChannel();
+		if (!append) {
+			samples.truncate(0);
+			events.truncate(0);
+		}
+		eventPosition = events.size();
+		queue = new ArrayBlockingQueue<Range>(queueSize);
+		this.policy = policy;
+
+		thread = new Thread("Fieldtrip Write Behind Recorder") {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static void removeLength(final File file) throws IOException {
+		final File length = new File(file.getPath()
+				+ MappedSegmentWriter.LENGTH_SUFFIX);
+		if (length.exists() && !length.delete()) {
+			throw new IOException("Could not remove " + length);
+		}
+	}
+
+	/**
+	 * Queues the samples begin..end-1 of ring for writing. The samples file
+	 * starts at sample 0 of the ring. Called with the store's dataLock held.
+	 *
+	 * @param ring
+	 * @param begin
+	 * @param end
+	 * @param sampleSize
+	 *            number of bytes per sample
+	 * @throws DataException
+	 */
+	void addSamples(final DataRingBuffer ring, final int begin, final int end,
+			final int sampleSize) throws DataException {
+		if (end > begin
+				&& !enqueue(new Range(ring, begin, end, sampleSize, null,
+						(long) begin * sampleSize))) {
+			droppedSamples.addAndGet(end - begin);
+		}
+	}
+
+	/**
+	 * Queues the events for writing after the events queued before. Called
+	 * with the store's eventLock held.
+	 *
+	 * @param stored
+	 *            events in native byte order
+	 * @throws DataException
+	 */
+	void addEvents(final Event[] stored) throws DataException {
+		long size = 0;
+		for (final Event event : stored) {
+			size += serializedSize(event);
+		}
+		if (enqueue(new Range(null, 0, 0, 0, stored, eventPosition))) {
+			eventPosition += size;
+		} else {
+			droppedEvents.addAndGet(stored.length);
+		}
+	}
+
+	/**
+	 * Writes everything still queued, stops the writer thread and closes the
+	 * files.
+	 */
+	public void close() {
+		try {
+			queue.put(STOP);
+			thread.join();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			samples.close();
+			events.close();
+		} catch (final IOException e) {
+			System.err.println("IOException closing recording");
+		}
+	}
+
+	/**
+	 * Returns the number of putData/putEvents calls waiting to be written.
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * Returns the number of bytes written to the samples and events files.
+	 */
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	/**
+	 * Returns the number of samples dropped because the queue was full.
+	 */
+	public long getDroppedSamples() {
+		return droppedSamples.get();
+	}
+
+	/**
+	 * Returns the number of events dropped because the queue was full.
+	 */
+	public long getDroppedEvents() {
+		return droppedEvents.get();
+	}
+
+	/**
+	 * Returns the number of samples overwritten in the ring before they could
+	 * be written.
+	 */
+	public long getLostSamples() {
+		return lostSamples.get();
+	}
+
+	/**
+	 * Returns the number of ranges written on the caller's thread because the
+	 * queue was full.
+	 */
+	public long getSpilledRanges() {
+		return spilledRanges.get();
+	}
+
+	/**
+	 * Queues range according to the policy. Returns false if it was dropped.
+	 */
+	private boolean enqueue(final Range range) throws DataException {
+		final int nSamples = range.end - range.begin;
+		if (reserve(range)) {
+			if (queue.offer(range)) {
+				return true;
+			}
+			release(nSamples);
+		}
+		switch (policy) {
+		case BLOCK:
+			try {
+				awaitReserve(range);
+				queue.put(range);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new DataException("Interrupted waiting for the recorder");
+			}
+			return true;
+		case SPILL:
+			spilledRanges.incrementAndGet();
+			try {
+				write(range);
+			} catch (final IOException e) {
+				throw new DataException("IOException writing data");
+			}
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Reserves room for the samples of range, returns false if there is none.
+	 */
+	private synchronized boolean reserve(final Range range) {
+		if (!fits(range)) {
+			return false;
+		}
+		pendingSamples += range.end - range.begin;
+		return true;
+	}
+
+	/**
+	 * Reserves room for the samples of range, waiting until there is.
+	 */
+	private synchronized void awaitReserve(final Range range)
+			throws InterruptedException {
+		while (!fits(range)) {
+			wait();
+		}
+		pendingSamples += range.end - range.begin;
+	}
+
+	/**
+	 * A range always fits when nothing else is pending.
+	 */
+	private boolean fits(final Range range) {
+		final int nSamples = range.end - range.begin;
+		return nSamples == 0 || pendingSamples == 0
+				|| pendingSamples + nSamples <= range.ring.capacity() / 2;
+	}
+
+	private synchronized void release(final int nSamples) {
+		pendingSamples -= nSamples;
+		notifyAll();
+	}
+
+	private void writeLoop() {
+		final Batch sampleBatch = new Batch(samples,
+				ByteBuffer.allocateDirect(BATCHSIZE));
+		final Batch eventBatch = new Batch(events,
+				ByteBuffer.allocateDirect(EVENTBATCHSIZE));
+		while (true) {
+			try {
+				Range range = queue.poll();
+				if (range == null) {
+					// Queue is empty, so write out what we have and wait
+					sampleBatch.flush();
+					eventBatch.flush();
+					range = queue.take();
+				}
+				if (range == STOP) {
+					sampleBatch.flush();
+					eventBatch.flush();
+					return;
+				}
+				if (range.events != null) {
+					eventBatch.add(range);
+				} else {
+					sampleBatch.add(range);
+					release(range.end - range.begin);
+				}
+			} catch (final InterruptedException e) {
+				return;
+			} catch (final IOException e) {
+				System.err.println("IOException writing recording: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Called on the caller's thread by the SPILL policy.
+	 */
+	private void write(final Range range) throws IOException {
+		final Batch batch = new Batch(range.events != null ? events : samples,
+				ByteBuffer.allocate(EVENTBATCHSIZE));
+		batch.add(range);
+		batch.flush();
+	}
+
+	/**
+	 * Collects consecutive ranges for one file in a buffer, so they are
+	 * written with as few writes as possible.
+	 */
+	private class Batch {
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+		private long position = 0; // where the start of buffer goes
+
+		Batch(final FileChannel channel, final ByteBuffer buffer) {
+			this.channel = channel;
+			this.buffer = buffer;
+			buffer.order(ByteOrder.nativeOrder());
+		}
+
+		void add(final Range range) throws IOException {
+			if (range.position != position + buffer.position()) {
+				flush();
+				position = range.position;
+			}
+
+			if (range.events != null) {
+				for (final Event event : range.events) {
+					if (buffer.remaining() < serializedSize(event)) {
+						flush();
+					}
+					event.serialize(buffer);
+				}
+				return;
+			}
+
+			for (int i = range.begin; i < range.end; i++) {
+				if (buffer.remaining() < range.sampleSize) {
+					flush();
+				}
+				try {
+					final byte[][] sample = range.ring.get(i);
+					for (final byte[] point : sample) {
+						buffer.put(point);
+					}
+				} catch (final IndexOutOfBoundsException e) {
+					// Overwritten already, leave a gap and continue after it.
+					lostSamples.incrementAndGet();
+					flush();
+					position += range.sampleSize;
+				}
+			}
+		}
+
+		/**
+		 * Writes out the contents of the buffer.
+		 */
+		void flush() throws IOException {
+			buffer.flip();
+			final int n = buffer.remaining();
+			long at = position;
+			while (buffer.hasRemaining()) {
+				at += channel.write(buffer, at);
+			}
+			buffer.clear();
+			position += n;
+			bytesWritten.addAndGet(n);
+		}
+	}
+
+	private static int serializedSize(final Event event) {
+		return 32 + event.typeSize * NetworkProtocol.dataTypeSize(event.typeType)
+				+ event.valueSize * NetworkProtocol.dataTypeSize(event.valueType);
+	}
+}
@@ -5,31 +5,119 @@ import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.LinkedList;
 
 import nl.fcdonders.fieldtrip.bufferserver.BufferServer;
 import nl.fcdonders.fieldtrip.bufferserver.FieldtripBufferMonitor;
-import nl.fcdonders.fieldtrip.bufferserver.data.Data;
 import nl.fcdonders.fieldtrip.bufferserver.data.DataModel;
-import nl.fcdonders.fieldtrip.bufferserver.data.Event;
-import nl.fcdonders.fieldtrip.bufferserver.data.Header;
+import nl.fcdonders.fieldtrip.bufferserver.data.DataStreams;
 import nl.fcdonders.fieldtrip.bufferserver.exceptions.ClientException;
 import nl.fcdonders.fieldtrip.bufferserver.exceptions.DataException;
 
 /**
  * Thread for handling a single connection. Uses NetworkProtocol to
- * encode/decode messages. Uses a shared dataModel object for storing data.
+ * encode/decode messages and a MessageHandler to answer them. Uses a shared
+ * dataModel object, that of the selected stream, for storing data. After a
+ * SUBSCRIBE message data and events are pushed to the client until it
+ * unsubscribes; meanwhile it can not select another stream.
  *
  * @author Wieke Kanters
  *
  */
 public class ConnectionThread extends Thread {
 	private final Socket socket;
-	private final DataModel dataStore;
+	private final MessageHandler handler;
+	private final ByteBuffer messageHeader = ByteBuffer.allocate(8);
 	public final String clientAdress;
 	private boolean disconnectedOnPurpose = false;
 	private FieldtripBufferMonitor monitor;
 	public final int clientID;
 	private final BufferServer buffer;
+	private final ArrayList<byte[]> frames = new ArrayList<byte[]>();
+
+	/**
+	 * How long (ms) a subscribed connection waits for data at a time. A
+	 * message from its client ends the wait immediately, see InputReader.
+	 */
+	private static final int SUBSCRIPTIONSLICE = 100;
+
+	/**
+	 * Reads the messages of the client while a subscription pushes frames, so
+	 * that a message ends the subscription's wait for data right away instead
+	 * of after its slice. Stops after an UNSUBSCRIBE, as the connection then
+	 * reads its messages itself again.
+	 */
+	private class InputReader extends Thread {
+		private final BufferedInputStream input;
+		private final ByteBuffer header = ByteBuffer.allocate(8);
+		private final LinkedList<Message> messages = new LinkedList<Message>();
+		private Exception error = null;
+		private WaitRequest waiting = null;
+
+		InputReader(final BufferedInputStream input) {
+			super("Fieldtrip Subscription Input " + clientID);
+			this.input = input;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				Message message;
+				do {
+					message = NetworkProtocol.decodeMessage(input, header);
+					synchronized (this) {
+						messages.add(message);
+						wake();
+					}
+				} while (message.type != NetworkProtocol.UNSUBSCRIBE);
+			} catch (final Exception e) {
+				synchronized (this) {
+					error = e;
+					wake();
+				}
+			}
+		}
+
+		/**
+		 * Returns the next message read, or null if there is none. Rethrows
+		 * what ended the reading once all messages are taken.
+		 */
+		synchronized Message next() throws IOException, ClientException {
+			if (!messages.isEmpty()) {
+				return messages.removeFirst();
+			}
+			if (error instanceof IOException) {
+				throw (IOException) error;
+			} else if (error instanceof ClientException) {
+				throw (ClientException) error;
+			} else if (error != null) {
+				throw new IOException(error.toString());
+			}
+			return null;
+		}
+
+		/**
+		 * Sets the request to finish when a message arrives. Returns false if
+		 * one has arrived already, in which case there is no point waiting.
+		 */
+		synchronized boolean waitWith(final WaitRequest request) {
+			waiting = request;
+			return messages.isEmpty() && error == null;
+		}
+
+		private void wake() {
+			if (waiting != null) {
+				waiting.finish();
+				waiting.satisfied();
+				waiting = null;
+			}
+		}
+	}
 
 	/**
 	 * Constructor
@@ -42,9 +130,24 @@ public class ConnectionThread extends Thread {
 	 */
 	public ConnectionThread(final int clientID, final Socket socket,
 			final DataModel dataStore, final BufferServer buffer) {
+		this(clientID, socket, new DataStreams(dataStore), buffer);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param socket
+	 *            The socket for the connection.
+	 * @param streams
+	 *            The streams of the server, the connection starts with the
+	 *            DEFAULT stream.
+	 */
+	public ConnectionThread(final int clientID, final Socket socket,
+			final DataStreams streams, final BufferServer buffer) {
 		this.clientID = clientID;
 		this.socket = socket;
-		this.dataStore = dataStore;
+		// Channel is null if the socket was not opened through a channel
+		handler = new MessageHandler(clientID, streams, socket.getChannel());
 		try {
 			 socket.setTcpNoDelay(true); // disable Nagle's algorithm... i.e. allow small packets
 		} catch ( SocketException e ) {
@@ -62,6 +165,7 @@ public class ConnectionThread extends Thread {
 	 */
 	public void addMonitor(final FieldtripBufferMonitor monitor) {
 		this.monitor = monitor;
+		handler.monitor = monitor;
 
 	}
 
@@ -77,352 +181,222 @@ public class ConnectionThread extends Thread {
 	}
 
 	/**
-	 * Removes all data from the store. Returns appropriate response.
+	 * Decodes the WaitRequest from the message. Adds this thread to the
+	 * WaitListeners of the dataStore. Launches a countdown thread.
 	 *
 	 * @param message
 	 * @return
 	 */
-	private byte[] handleFlushData(final Message message) {
+	private byte[] handleWaitData(final Message message) {
+		final DataModel dataStore = handler.dataStore();
 		try {
+			if (dataStore.headerExists()) {
+				// Get wait request
+				final WaitRequest request = NetworkProtocol
+						.decodeWaitRequest(message.buffer);
 
-			// Remove all data
-			dataStore.flushData();
+				// If timeout is 0 don't bother with the listeners and waiting
+				if (request.timeout != 0) {
 
-			// Return Okay and inform monitor
-			if (monitor != null) {
-				monitor.clientFlushedData(clientID, message.time);
-			}
-			return NetworkProtocol.encodeFlushOkay(message.order);
+					if (monitor != null) {
+						monitor.clientWaits(request.nSamples, request.nEvents,
+								request.timeout, clientID, message.time);
+					}
 
-		} catch (final DataException e) {
-			// Return error
-			 System.err.println("Error : " + e);
-			return NetworkProtocol.encodeFlushError(message.order);
+					// Add this thread to the list of waitlisteners
+					dataStore.addWaitRequest(request);
 
-		}
-	}
+					request.blockUntilSatisfied(request.timeout);
 
-	/**
-	 * Removes all events from the store. Returns appropriate response.
-	 *
-	 * @param message
-	 * @return
-	 */
-	private byte[] handleFlushEvents(final Message message) {
-		try {
+					if (monitor != null) {
+						monitor.clientContinues(clientID, message.time);
+					}
+				} else {
+					if (monitor != null) {
+						monitor.clientPolls(clientID, message.time);
+					}
+				}
 
-			// Remove all events
-			dataStore.flushEvents();
+				return NetworkProtocol.encodeWaitResponse(
+						dataStore.getSampleCount(), dataStore.getEventCount(),
+						message.order);
 
-			// Return Okay and inform monitor
-			if (monitor != null) {
-				monitor.clientFlushedEvents(clientID, message.time);
+			} else {
+				return NetworkProtocol.encodeWaitError(message.order);
 			}
-			return NetworkProtocol.encodeFlushOkay(message.order);
-
 		} catch (final DataException e) {
-			// Return error
-			 System.err.println("Error : " + e);
-			return NetworkProtocol.encodeFlushError(message.order);
-
-		}
-	}
-
-	/**
-	 * Removes all data from the store. Returns appropriate response.
-	 *
-	 * @param message
-	 * @return
-	 */
-	private byte[] handleFlushHeader(final Message message) {
-		try {
-
-			// Remove the header (and all the data & events);
-			dataStore.flushHeader();
-
-			// Return Okay and inform monitor
+			// Create error response
+			return NetworkProtocol.encodeWaitError(message.order);
+		} catch (final InterruptedException e) {
 			if (monitor != null) {
-				monitor.clientFlushedHeader(clientID, message.time);
+				monitor.clientContinues(clientID, message.time);
 			}
-			return NetworkProtocol.encodeFlushOkay(message.order);
-
-		} catch (final DataException e) {
-			// Return error
-			 System.err.println("Error : " + e);
-			return NetworkProtocol.encodeFlushError(message.order);
-
+			// Create error response
+			return NetworkProtocol.encodeWaitError(message.order);
 		}
-	}
-
-	/**
-	 * Gets begin/end from the message and returns the appropriate data.
-	 *
-	 * @param message
-	 * @param input
-	 * @param output
-	 *            @
-	 */
-	private byte[] handleGetData(final Message message) {
-		try {
-
-			Data data;
-
-			// Check if a request for a specific range has been made.
-			if (message.buffer.capacity() > 0) {
-				// Get data request from message
-				final Request request = NetworkProtocol
-						.decodeRequest(message.buffer);
-
-				// Get the requested data
-				data = dataStore.getData(request);
-			} else {
-				data = dataStore.getData();
-			}
 
-			// Inform monitor
-			if (monitor != null) {
-				monitor.clientGetSamples(data.nSamples, clientID, message.time);
-			}
-
-			// Return message containing requested data
-			return NetworkProtocol.encodeData(data, message.order);
-
-		} catch (final DataException e) {
-			// Return error
-			 System.err.println("Error : " + e);
-			return NetworkProtocol.encodeGetError(message.order);
-		}
 	}
 
 	/**
-	 * Encodes the requested events for sending it to the client.
+	 * Decodes the StreamWait from the message and blocks until any of its
+	 * streams has new data, or the timeout passes.
 	 *
 	 * @param message
 	 * @return
 	 */
-	private byte[] handleGetEvent(final Message message) {
+	private byte[] handleWaitAny(final Message message) {
 		try {
+			final StreamWait wait = NetworkProtocol
+					.decodeStreamWait(message.buffer);
+			final DataModel[] stores = handler.getStreams(wait);
 
-			Event[] events;
-
-			// Check if a request for a specific range has been made.
-			if (message.buffer.capacity() > 0) {
-				// Get data request from message
-				final Request request = NetworkProtocol
-						.decodeRequest(message.buffer);
+			if (wait.timeout > 0 && !MessageHandler.isSatisfied(wait, stores)) {
+				if (monitor != null) {
+					monitor.clientWaits(-1, -1, wait.timeout, clientID,
+							message.time);
+				}
 
-				// Get the requested data
-				events = dataStore.getEvents(request);
-			} else {
-				events = dataStore.getEvents();
-			}
+				final WaitRequest request = new WaitRequest(-1, -1,
+						wait.timeout);
+				final WaitRequest[] links = MessageHandler.addStreamWait(wait,
+						stores, request);
+				try {
+					// Data may have arrived before the requests were added
+					if (!MessageHandler.isSatisfied(wait, stores)) {
+						request.blockUntilSatisfied(wait.timeout);
+					}
+				} finally {
+					for (final WaitRequest link : links) {
+						link.finish();
+					}
+				}
 
-			// Inform monitor
-			if (monitor != null) {
-				monitor.clientGetEvents(events.length, clientID, message.time);
+				if (monitor != null) {
+					monitor.clientContinues(clientID, message.time);
+				}
+			} else if (monitor != null) {
+				monitor.clientPolls(clientID, message.time);
 			}
 
-			// Return message containing requested data
-			return NetworkProtocol.encodeEvents(events, message.order);
+			return MessageHandler.encodeStreamWaitResponse(stores,
+					message.order);
 
 		} catch (final DataException e) {
-			// Return error
-			 System.err.println("Error : " + e);
-			return NetworkProtocol.encodeGetError(message.order);
-		}
-	}
-
-	/**
-	 * Encodes the header for sending it to the client.
-	 *
-	 * @param message
-	 * @param output
-	 *            @
-	 */
-	private byte[] handleGetHeader(final Message message) {
-		try {
-			final Header header = dataStore.getHeader();
-
-			// Inform monitor
+			System.err.println("Error : " + e);
+			return NetworkProtocol.encodeWaitError(message.order);
+		} catch (final InterruptedException e) {
 			if (monitor != null) {
-				monitor.clientGetHeader(clientID, message.time);
+				monitor.clientContinues(clientID, message.time);
 			}
-			// Return message containing header
-			return NetworkProtocol.encodeHeader(header, message.order);
-
-		} catch (final DataException e) {
-			// Return error
-			 System.err.println("Error : " + e);
-			return NetworkProtocol.encodeGetError(message.order);
-
+			return NetworkProtocol.encodeWaitError(message.order);
 		}
 	}
 
 	/**
-	 * Grabs data from the message and stores it in the dataStore. Returns
-	 * appropriate response.
+	 * Starts the subscription requested in message and answers it. Returns
+	 * the subscription, or null if it could not be started.
 	 *
 	 * @param message
 	 * @param output
-	 *            @
-	 */
-	private byte[] handlePutData(final Message message) {
-		try {
-			// Get data from message
-			final Data data = NetworkProtocol.decodeData(message.buffer);
-
-			// Store data
-			final int nSamples = dataStore.putData(data);
-
-			// Return okay and inform monitor
-			if (monitor != null) {
-				monitor.clientPutSamples(nSamples, clientID, data.nSamples,
-						message.time);
-			}
-			return NetworkProtocol.encodePutOkay(message.order);
-
-		} catch (final ClientException e) {
-			// Return error
-			 System.err.println("Error : " + e);
-			return NetworkProtocol.encodeGetError(message.order);
-
-		} catch (final DataException e) {
-			// Return error
-			 System.err.println("Error : " + e);
-			return NetworkProtocol.encodeGetError(message.order);
-
-		}
-
-	}
-
-	/**
-	 * Decodes the events from the message and stores them. Returns appropriate
-	 * response.
-	 *
-	 * @param message
 	 * @return
+	 * @throws IOException
 	 */
-	private byte[] handlePutEvent(final Message message) {
+	private Subscription subscribe(final Message message,
+			final BufferedOutputStream output) throws IOException {
+		Subscription subscription = null;
 		try {
-			// Get the header from the message
-			Event[] events = NetworkProtocol.decodeEvents(message.buffer);
-
-			// Add sample number of auto-filled-in events
-			for( Event evt : events ) {
-				 if ( evt.sample <= 0 ) evt.sample = dataStore.getSampleCount();
-			}
-
-			// Store the header
-			final int nEvents = dataStore.putEvents(events);
-
-			// Return Okay and inform monitor
-			if (monitor != null) {
-				monitor.clientPutEvents(nEvents, clientID, events.length,
-						message.time);
-			}
-			return NetworkProtocol.encodePutOkay(message.order);
-
-		} catch (final ClientException e) {
-			// Return error
-			 System.err.println("Error : " + e);
-			return NetworkProtocol.encodePutError(message.order);
-
+			subscription = NetworkProtocol.decodeSubscription(message.buffer);
+			subscription.start(handler.dataStore());
+			output.write(NetworkProtocol.encodeSubscribeResponse(
+					NetworkProtocol.SUBSCRIBE_OK, message.order));
 		} catch (final DataException e) {
-			// Return error
-			 System.err.println("Error : " + e);
-			return NetworkProtocol.encodePutError(message.order);
+			System.err.println("Error : " + e);
+			subscription = null;
+			output.write(NetworkProtocol.encodeSubscribeResponse(
+					NetworkProtocol.SUBSCRIBE_ERR, message.order));
 		}
+		output.flush();
+		return subscription;
 	}
 
 	/**
-	 * Decodes the header from the message and stores it. Returns appropriate
-	 * response.
+	 * Pushes the frames of the subscription to the client as data and events
+	 * arrive, until the client unsubscribes. Messages the client sends
+	 * meanwhile are answered as usual, in between the frames.
 	 *
 	 * @param message
+	 *            the SUBSCRIBE message
+	 * @param input
 	 * @param output
-	 *            @
+	 * @throws IOException
+	 * @throws ClientException
 	 */
-	private byte[] handlePutHeader(final Message message) {
-		try {
-			// Get the header from the message
-			final Header header = NetworkProtocol.decodeHeader(message.buffer);
-
-			// Store the header
-			dataStore.putHeader(header);
-
-			// Return Okay and inform monitor
-			if (monitor != null) {
-				monitor.clientPutHeader(header.dataType, header.fSample,
-						header.nChans, clientID, message.time);
-			}
-			return NetworkProtocol.encodePutOkay(message.order);
-
-		} catch (final ClientException e) {
-			// Return error
-			 System.err.println("Error : " + e);
-			return NetworkProtocol.encodePutError(message.order);
-
-		} catch (final DataException e) {
-			// Return error
-			 System.err.println("Error : " + e);
-			return NetworkProtocol.encodePutError(message.order);
+	private void runSubscription(final Message message,
+			final BufferedInputStream input, final BufferedOutputStream output)
+			throws IOException, ClientException {
+		Subscription subscription = subscribe(message, output);
+		if (subscription == null) {
+			return;
 		}
-	}
-
-	/**
-	 * Decodes the WaitRequest from the message. Adds this thread to the
-	 * WaitListeners of the dataStore. Launches a countdown thread.
-	 *
-	 * @param message
-	 * @return
-	 */
-	private byte[] handleWaitData(final Message message) {
-		try {
-			if (dataStore.headerExists()) {
-				// Get wait request
-				final WaitRequest request = NetworkProtocol
-						.decodeWaitRequest(message.buffer);
-
-				// If timeout is 0 don't bother with the listeners and waiting
-				if (request.timeout != 0) {
-
-					if (monitor != null) {
-						monitor.clientWaits(request.nSamples, request.nEvents,
-								request.timeout, clientID, message.time);
-					}
-
-					// Add this thread to the list of waitlisteners
-					dataStore.addWaitRequest(request);
-
-					request.blockUntilSatisfied(request.timeout);
+		final ByteOrder order = message.order;
+		final DataModel dataStore = handler.dataStore();
+		final InputReader reader = new InputReader(input);
+		reader.start();
+
+		while (subscription != null && !socket.isClosed()) {
+			frames.clear();
+			subscription.collect(dataStore, order, frames, monitor, clientID);
+			for (final byte[] frame : frames) {
+				output.write(frame);
+			}
+			if (!frames.isEmpty()) {
+				output.flush();
+			}
 
-					if (monitor != null) {
-						monitor.clientContinues(clientID, message.time);
+			final Message next = reader.next();
+			if (next != null) {
+				byte[] data = null;
+				if (next.type == NetworkProtocol.UNSUBSCRIBE) {
+					data = NetworkProtocol.encodeSubscribeResponse(
+							NetworkProtocol.UNSUBSCRIBE_OK, next.order);
+					subscription = null;
+				} else if (next.type == NetworkProtocol.SUBSCRIBE) {
+					final Subscription replacement = subscribe(next, output);
+					if (replacement != null) {
+						subscription = replacement;
 					}
+				} else if (next.type == NetworkProtocol.WAIT_DAT
+						|| next.type == NetworkProtocol.WAIT_ANY) {
+					// Waiting would hold up the frames.
+					data = NetworkProtocol.encodeWaitError(next.order);
+				} else if (next.type == NetworkProtocol.SELECT_STREAM) {
+					// The frames are of the selected stream.
+					data = NetworkProtocol.encodeSelectResponse(
+							NetworkProtocol.SELECT_ERR, next.order);
 				} else {
-					if (monitor != null) {
-						monitor.clientPolls(clientID, message.time);
-					}
+					data = handler.handleMessage(next);
 				}
-
-				return NetworkProtocol.encodeWaitResponse(
-						dataStore.getSampleCount(), dataStore.getEventCount(),
-						message.order);
-
-			} else {
-				return NetworkProtocol.encodeWaitError(message.order);
+				if (data != null) {
+					output.write(data);
+					output.flush();
+				}
+				continue;
 			}
-		} catch (final DataException e) {
-			// Create error response
-			return NetworkProtocol.encodeWaitError(message.order);
-		} catch (final InterruptedException e) {
-			if (monitor != null) {
-				monitor.clientContinues(clientID, message.time);
+
+			final WaitRequest request = subscription
+					.nextWait(SUBSCRIPTIONSLICE);
+			dataStore.addWaitRequest(request);
+			try {
+				// Data or a message may have arrived before the request was added
+				if (reader.waitWith(request) && !subscription.hasNew(dataStore)) {
+					request.blockUntilSatisfied(SUBSCRIPTIONSLICE);
+				}
+			} catch (final InterruptedException e) {
+				return;
+			} finally {
+				request.finish();
 			}
-			// Create error response
-			return NetworkProtocol.encodeWaitError(message.order);
 		}
-
 	}
 
 	/**
@@ -447,47 +421,29 @@ public class ConnectionThread extends Thread {
 			while (run) {
 				try {
 					// Gets the incoming message
-					final Message message = NetworkProtocol
-							.decodeMessage(input);
+					final Message message = NetworkProtocol.decodeMessage(
+							input, messageHeader);
 
 					byte[] data = null;
 
 					// Handles the message using the appropriate function.
-					switch (message.type) {
-					case NetworkProtocol.PUT_HDR:
-						data = handlePutHeader(message);
-						break;
-					case NetworkProtocol.GET_HDR:
-						data = handleGetHeader(message);
-						break;
-					case NetworkProtocol.PUT_DAT:
-						data = handlePutData(message);
-						break;
-					case NetworkProtocol.GET_DAT:
-						data = handleGetData(message);
-						break;
-					case NetworkProtocol.GET_EVT:
-						data = handleGetEvent(message);
-						break;
-					case NetworkProtocol.PUT_EVT:
-						data = handlePutEvent(message);
-						break;
-					case NetworkProtocol.FLUSH_DAT:
-						data = handleFlushData(message);
-						break;
-					case NetworkProtocol.FLUSH_EVT:
-						data = handleFlushEvents(message);
-						break;
-					case NetworkProtocol.FLUSH_HDR:
-						data = handleFlushHeader(message);
-						break;
-					case NetworkProtocol.WAIT_DAT:
+					if (message.type == NetworkProtocol.WAIT_DAT) {
 						data = handleWaitData(message);
-						break;
+					} else if (message.type == NetworkProtocol.WAIT_ANY) {
+						data = handleWaitAny(message);
+					} else if (message.type == NetworkProtocol.SUBSCRIBE) {
+						runSubscription(message, input, output);
+					} else if (message.type == NetworkProtocol.UNSUBSCRIBE) {
+						data = NetworkProtocol.encodeSubscribeResponse(
+								NetworkProtocol.UNSUBSCRIBE_OK, message.order);
+					} else {
+						data = handler.handleMessage(message);
 					}
 
-					output.write(data);
-					output.flush();
+					if (data != null) {
+						output.write(data);
+						output.flush();
+					}
 
 				} catch (final ClientException e) {
 
@@ -522,6 +478,17 @@ public class ConnectionThread extends Thread {
 						}
 					}
 					run = false;
+				} catch (final ClosedChannelException e) {
+					// Channel backed sockets report a close by disconnect() this way
+					if (!disconnectedOnPurpose) {
+						socket.close();
+						if (monitor != null) {
+							monitor.clientError(clientID,
+									FieldtripBufferMonitor.ERROR_CONNECTION,
+									System.currentTimeMillis());
+						}
+					}
+					run = false;
 				}
 			}
 			socket.close();
@@ -0,0 +1,20 @@
+package nl.fcdonders.fieldtrip.bufferserver.network;
+
+/**
+ * Simple wrapper for the optional conversion part of a get_dat message: the
+ * type the data is wanted in (-1 for the stored type), whether to scale each
+ * channel by its resolution from the header, and whether integer samples may
+ * be sent delta+varint coded.
+ */
+public class DataConversion {
+	public final int targetType;
+	public final boolean scaled;
+	public final boolean compressed;
+
+	public DataConversion(int targetType, boolean scaled, boolean compressed) {
+		this.targetType = targetType;
+		this.scaled = scaled;
+		this.compressed = compressed;
+	}
+
+}
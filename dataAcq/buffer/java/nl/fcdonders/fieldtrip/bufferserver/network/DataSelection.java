@@ -0,0 +1,45 @@
+package nl.fcdonders.fieldtrip.bufferserver.network;
+
+/**
+ * Simple wrapper for the details of the get_dat_sel message: samples begin to
+ * end of the selected channels, of which every decimation'th sample is kept,
+ * or the mean of every block of decimation samples if blockMean is set.
+ */
+public class DataSelection {
+	public final int begin;
+	public final int end;
+	public final int[] channels;
+	public final int decimation;
+	public final boolean blockMean;
+
+	/**
+	 * Constructor
+	 *
+	 * @param begin
+	 * @param end
+	 * @param channels
+	 *            channels to return, in this order, null for all.
+	 * @param decimation
+	 *            1 for every sample.
+	 * @param blockMean
+	 *            average blocks of decimation samples instead of picking the
+	 *            first of each.
+	 */
+	public DataSelection(int begin, int end, int[] channels, int decimation,
+			boolean blockMean) {
+		this.begin = begin;
+		this.end = end;
+		this.channels = channels;
+		this.decimation = decimation;
+		this.blockMean = blockMean;
+	}
+
+	/**
+	 * Returns the number of samples the selection results in.
+	 *
+	 * @return
+	 */
+	public int nSamples() {
+		return (end - begin + decimation) / decimation;
+	}
+}
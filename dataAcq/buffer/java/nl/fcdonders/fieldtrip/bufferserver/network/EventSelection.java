@@ -0,0 +1,18 @@
+package nl.fcdonders.fieldtrip.bufferserver.network;
+
+/**
+ * Simple wrapper for the details of the get_evt_sel message: the events with
+ * sampleBegin <= sample <= sampleEnd whose type starts with typePrefix.
+ */
+public class EventSelection {
+	public final int sampleBegin;
+	public final int sampleEnd;
+	public final String typePrefix;
+
+	public EventSelection(int sampleBegin, int sampleEnd, String typePrefix) {
+		this.sampleBegin = sampleBegin;
+		this.sampleEnd = sampleEnd;
+		this.typePrefix = typePrefix;
+	}
+
+}
@@ -0,0 +1,23 @@
+package nl.fcdonders.fieldtrip.bufferserver.network;
+
+/**
+ * WaitRequest on one of several streams which, when satisfied, satisfies the
+ * request the client actually waits on, so a single wait can be woken by any
+ * of the streams.
+ */
+class LinkedWaitRequest extends WaitRequest {
+	private final WaitRequest target;
+
+	LinkedWaitRequest(final int nSamples, final int nEvents,
+			final int timeout, final WaitRequest target) {
+		super(nSamples, nEvents, timeout);
+		this.target = target;
+	}
+
+	@Override
+	public synchronized void satisfied() {
+		if (target.finish()) {
+			target.satisfied();
+		}
+	}
+}
@@ -0,0 +1,707 @@
+package nl.fcdonders.fieldtrip.bufferserver.network;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+
+import nl.fcdonders.fieldtrip.bufferserver.FieldtripBufferMonitor;
+import nl.fcdonders.fieldtrip.bufferserver.data.Data;
+import nl.fcdonders.fieldtrip.bufferserver.data.DataModel;
+import nl.fcdonders.fieldtrip.bufferserver.data.DataSlices;
+import nl.fcdonders.fieldtrip.bufferserver.data.DataStreams;
+import nl.fcdonders.fieldtrip.bufferserver.data.Event;
+import nl.fcdonders.fieldtrip.bufferserver.data.Header;
+import nl.fcdonders.fieldtrip.bufferserver.exceptions.ClientException;
+import nl.fcdonders.fieldtrip.bufferserver.exceptions.DataException;
+
+/**
+ * Handles the messages of a single client connection against the shared
+ * dataModel, independent of how the connection is serviced. WAIT_DAT,
+ * WAIT_ANY and SUBSCRIBE are left to the connection as blocking and
+ * non-blocking connections wait differently.
+ *
+ * The dataModel is that of the stream the connection selected, the DEFAULT
+ * stream until it selects another. A STREAM_MSG message is handled against
+ * the stream it names, without changing the selection. Only putting a header
+ * creates a stream, see DataStreams.
+ *
+ * @author Wieke Kanters
+ *
+ */
+class MessageHandler {
+	private final DataStreams streams;
+	private DataModel dataStore;
+	private final SocketChannel channel;
+	private final DataSlices slices = new DataSlices();
+	private final int clientID;
+	FieldtripBufferMonitor monitor;
+
+	/**
+	 * Constructor
+	 *
+	 * @param clientID
+	 * @param streams
+	 *            The streams of the server, each storing its data in a
+	 *            dataModel.
+	 * @param channel
+	 *            Blocking channel to write GET_DAT responses to directly, or
+	 *            null to always return them.
+	 */
+	MessageHandler(final int clientID, final DataStreams streams,
+			final SocketChannel channel) {
+		this.clientID = clientID;
+		this.streams = streams;
+		dataStore = streams.getDefault();
+		this.channel = channel;
+	}
+
+	/**
+	 * Returns the dataModel of the selected stream.
+	 *
+	 * @return
+	 */
+	DataModel dataStore() {
+		resolve();
+		return dataStore;
+	}
+
+	/**
+	 * Replaces a selected stream which did not exist yet by the stream, once
+	 * a header put to it on this or another connection created it.
+	 */
+	private void resolve() {
+		if (dataStore instanceof DataStreams.Pending) {
+			try {
+				dataStore = streams.get(((DataStreams.Pending) dataStore).name);
+			} catch (final DataException e) {
+				// Not created yet.
+			}
+		}
+	}
+
+	/**
+	 * Returns the dataModels of the streams a WAIT_ANY waits for.
+	 *
+	 * @param wait
+	 * @return
+	 * @throws DataException
+	 */
+	DataModel[] getStreams(final StreamWait wait) throws DataException {
+		final DataModel[] stores = new DataModel[wait.names.length];
+		for (int i = 0; i < stores.length; i++) {
+			stores[i] = streams.get(wait.names[i]);
+		}
+		return stores;
+	}
+
+	/**
+	 * Adds a wait request to each stream which satisfies target, returns
+	 * them so they can be finished once target is answered.
+	 *
+	 * @param wait
+	 * @param stores
+	 * @param target
+	 * @return
+	 */
+	static WaitRequest[] addStreamWait(final StreamWait wait,
+			final DataModel[] stores, final WaitRequest target) {
+		final WaitRequest[] requests = new WaitRequest[stores.length];
+		for (int i = 0; i < stores.length; i++) {
+			requests[i] = new LinkedWaitRequest(wait.nSamples[i],
+					wait.nEvents[i], wait.timeout, target);
+			stores[i].addWaitRequest(requests[i]);
+		}
+		return requests;
+	}
+
+	/**
+	 * Returns true if any of the streams has more samples or events than it
+	 * is waited for.
+	 *
+	 * @param wait
+	 * @param stores
+	 * @return
+	 */
+	static boolean isSatisfied(final StreamWait wait, final DataModel[] stores) {
+		for (int i = 0; i < stores.length; i++) {
+			if (wait.nSamples[i] >= 0
+					&& getSampleCount(stores[i]) > wait.nSamples[i]
+					|| wait.nEvents[i] >= 0
+					&& getEventCount(stores[i]) > wait.nEvents[i]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Encodes the WAIT_OK response to a WAIT_ANY with the current number of
+	 * samples and events of each of the streams, 0 for a stream without
+	 * header.
+	 *
+	 * @param stores
+	 * @param order
+	 * @return
+	 */
+	static byte[] encodeStreamWaitResponse(final DataModel[] stores,
+			final ByteOrder order) {
+		final int[] nSamples = new int[stores.length];
+		final int[] nEvents = new int[stores.length];
+		for (int i = 0; i < stores.length; i++) {
+			nSamples[i] = getSampleCount(stores[i]);
+			nEvents[i] = getEventCount(stores[i]);
+		}
+		return NetworkProtocol.encodeStreamWaitResponse(nSamples, nEvents,
+				order);
+	}
+
+	private static int getSampleCount(final DataModel dataStore) {
+		try {
+			return dataStore.getSampleCount();
+		} catch (final DataException e) {
+			return 0; // no header
+		}
+	}
+
+	private static int getEventCount(final DataModel dataStore) {
+		try {
+			return dataStore.getEventCount();
+		} catch (final DataException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Handles the message using the appropriate function. Returns the encoded
+	 * response, or null if the response has already been written or the
+	 * message type is not handled here.
+	 *
+	 * @param message
+	 * @return
+	 * @throws IOException
+	 */
+	byte[] handleMessage(final Message message) throws IOException {
+		resolve();
+		switch (message.type) {
+		case NetworkProtocol.PUT_HDR:
+			if (dataStore instanceof DataStreams.Pending) {
+				try {
+					dataStore = streams
+							.create(((DataStreams.Pending) dataStore).name);
+				} catch (final DataException e) {
+					System.err.println("Error : " + e);
+					return NetworkProtocol.encodePutError(message.order);
+				}
+			}
+			return handlePutHeader(message);
+		case NetworkProtocol.GET_HDR:
+			return handleGetHeader(message);
+		case NetworkProtocol.PUT_DAT:
+			return handlePutData(message);
+		case NetworkProtocol.GET_DAT:
+			return handleGetData(message);
+		case NetworkProtocol.GET_EVT:
+			return handleGetEvent(message);
+		case NetworkProtocol.GET_EVT_SEL:
+			return handleGetEventSelection(message);
+		case NetworkProtocol.GET_DAT_SEL:
+			return handleGetDataSelection(message);
+		case NetworkProtocol.PUT_EVT:
+			return handlePutEvent(message);
+		case NetworkProtocol.FLUSH_DAT:
+			return handleFlushData(message);
+		case NetworkProtocol.FLUSH_EVT:
+			return handleFlushEvents(message);
+		case NetworkProtocol.FLUSH_HDR:
+			return handleFlushHeader(message);
+		case NetworkProtocol.SELECT_STREAM:
+			return handleSelectStream(message);
+		case NetworkProtocol.STREAM_MSG:
+			return handleStreamMessage(message);
+		}
+		return null;
+	}
+
+	/**
+	 * Selects the stream named in the message. A stream which does not exist
+	 * yet is only created when a header is put to it.
+	 *
+	 * @param message
+	 * @return
+	 */
+	byte[] handleSelectStream(final Message message) {
+		try {
+			dataStore = streams.select(NetworkProtocol
+					.decodeString(message.buffer));
+			return NetworkProtocol.encodeSelectResponse(
+					NetworkProtocol.SELECT_OK, message.order);
+		} catch (final DataException e) {
+			System.err.println("Error : " + e);
+			return NetworkProtocol.encodeSelectResponse(
+					NetworkProtocol.SELECT_ERR, message.order);
+		}
+	}
+
+	/**
+	 * Handles the message embedded in a STREAM_MSG against the stream it
+	 * names. Waits, subscriptions and stream messages can not be embedded.
+	 *
+	 * @param message
+	 * @return
+	 * @throws IOException
+	 */
+	byte[] handleStreamMessage(final Message message) throws IOException {
+		DataModel stream;
+		Message embedded;
+		try {
+			final String name = NetworkProtocol.decodeString(message.buffer);
+			embedded = NetworkProtocol.decodeEmbeddedMessage(message.buffer);
+			if (embedded.type == NetworkProtocol.PUT_HDR) {
+				stream = streams.create(name);
+			} else {
+				stream = streams.get(name);
+			}
+		} catch (final DataException e) {
+			System.err.println("Error : " + e);
+			return NetworkProtocol.encodeGetError(message.order);
+		}
+
+		switch (embedded.type) {
+		case NetworkProtocol.WAIT_DAT:
+		case NetworkProtocol.WAIT_ANY:
+		case NetworkProtocol.SUBSCRIBE:
+		case NetworkProtocol.UNSUBSCRIBE:
+		case NetworkProtocol.SELECT_STREAM:
+		case NetworkProtocol.STREAM_MSG:
+			return NetworkProtocol.encodeGetError(embedded.order);
+		}
+
+		final DataModel selected = dataStore;
+		dataStore = stream;
+		try {
+			return handleMessage(embedded);
+		} finally {
+			dataStore = selected;
+		}
+	}
+
+	/**
+	 * Removes all data from the store. Returns appropriate response.
+	 *
+	 * @param message
+	 * @return
+	 */
+	byte[] handleFlushData(final Message message) {
+		try {
+
+			// Remove all data
+			dataStore.flushData();
+
+			// Return Okay and inform monitor
+			if (monitor != null) {
+				monitor.clientFlushedData(clientID, message.time);
+			}
+			return NetworkProtocol.encodeFlushOkay(message.order);
+
+		} catch (final DataException e) {
+			// Return error
+			 System.err.println("Error : " + e);
+			return NetworkProtocol.encodeFlushError(message.order);
+
+		}
+	}
+
+	/**
+	 * Removes all events from the store. Returns appropriate response.
+	 *
+	 * @param message
+	 * @return
+	 */
+	byte[] handleFlushEvents(final Message message) {
+		try {
+
+			// Remove all events
+			dataStore.flushEvents();
+
+			// Return Okay and inform monitor
+			if (monitor != null) {
+				monitor.clientFlushedEvents(clientID, message.time);
+			}
+			return NetworkProtocol.encodeFlushOkay(message.order);
+
+		} catch (final DataException e) {
+			// Return error
+			 System.err.println("Error : " + e);
+			return NetworkProtocol.encodeFlushError(message.order);
+
+		}
+	}
+
+	/**
+	 * Removes all data from the store. Returns appropriate response.
+	 *
+	 * @param message
+	 * @return
+	 */
+	byte[] handleFlushHeader(final Message message) {
+		try {
+
+			// Remove the header (and all the data & events);
+			dataStore.flushHeader();
+
+			// Return Okay and inform monitor
+			if (monitor != null) {
+				monitor.clientFlushedHeader(clientID, message.time);
+			}
+			return NetworkProtocol.encodeFlushOkay(message.order);
+
+		} catch (final DataException e) {
+			// Return error
+			 System.err.println("Error : " + e);
+			return NetworkProtocol.encodeFlushError(message.order);
+
+		}
+	}
+
+	/**
+	 * Gets begin/end from the message and returns the appropriate data,
+	 * converted if the message asks for a data type and delta+varint coded if
+	 * it allows that. If the store can provide
+	 * the requested samples in place they are written straight to the socket
+	 * channel and null is returned.
+	 *
+	 * @param message
+	 * @param input
+	 * @param output
+	 *            @
+	 */
+	byte[] handleGetData(final Message message) throws IOException {
+		try {
+
+			Data data;
+
+			// Check if a request for a specific range has been made.
+			if (message.buffer.capacity() > 0) {
+				// Get data request from message
+				final Request request = NetworkProtocol
+						.decodeRequest(message.buffer);
+				final DataConversion conversion = NetworkProtocol
+						.decodeDataConversion(message.buffer);
+
+				// Send directly from the store if possible
+				if (conversion == null && channel != null
+						&& dataStore.getDataSlices(request, message.order,
+								slices)) {
+					NetworkProtocol.encodeDataHeader(slices, message.order);
+					writeSlices();
+
+					// Inform monitor
+					if (monitor != null) {
+						monitor.clientGetSamples(slices.nSamples, clientID,
+								message.time);
+					}
+					return null;
+				}
+
+				// Get the requested data
+				data = dataStore.getData(request);
+
+				if (conversion != null && conversion.targetType >= 0) {
+					final double[] scale = conversion.scaled ? dataStore
+							.getHeader().getResolutions() : null;
+					data = data.convert(conversion.targetType, scale,
+							message.order);
+				}
+				if (conversion != null && conversion.compressed
+						&& NetworkProtocol.isDeltaVarintType(data.dataType)) {
+					if (monitor != null) {
+						monitor.clientGetSamples(data.nSamples, clientID,
+								message.time);
+					}
+					return NetworkProtocol.encodeDeltaVarintData(data,
+							message.order);
+				}
+			} else {
+				data = dataStore.getData();
+			}
+
+			// Inform monitor
+			if (monitor != null) {
+				monitor.clientGetSamples(data.nSamples, clientID, message.time);
+			}
+
+			// Return message containing requested data
+			return NetworkProtocol.encodeData(data, message.order);
+
+		} catch (final DataException e) {
+			// Return error
+			 System.err.println("Error : " + e);
+			return NetworkProtocol.encodeGetError(message.order);
+		}
+	}
+
+	/**
+	 * Encodes the selected channels of the requested samples, decimated, for
+	 * sending it to the client.
+	 *
+	 * @param message
+	 * @return
+	 */
+	byte[] handleGetDataSelection(final Message message) {
+		try {
+			final DataSelection selection = NetworkProtocol
+					.decodeDataSelection(message.buffer);
+
+			if (selection.channels != null) {
+				final int nChans = dataStore.getHeader().nChans;
+				for (final int channel : selection.channels) {
+					if (channel < 0 || channel >= nChans) {
+						throw new DataException("Requesting channel "
+								+ channel + " that does not exist.");
+					}
+				}
+			}
+
+			final Data data = dataStore.getData(selection);
+
+			// Inform monitor
+			if (monitor != null) {
+				monitor.clientGetSamples(data.nSamples, clientID, message.time);
+			}
+
+			return NetworkProtocol.encodeData(data, message.order);
+
+		} catch (final DataException e) {
+			System.err.println("Error : " + e);
+			return NetworkProtocol.encodeGetError(message.order);
+		}
+	}
+
+	/**
+	 * Writes the header and sample views in slices to the channel with
+	 * gathering writes. If the writer overtook the views meanwhile the client
+	 * has been sent overwritten samples under GET_OK; as that cannot be taken
+	 * back, an IOException is thrown so that the connection is closed.
+	 *
+	 * @throws IOException
+	 */
+	private void writeSlices() throws IOException {
+		long remaining = 0;
+		for (int i = 0; i < slices.nBuffers; i++) {
+			remaining += slices.buffers[i].remaining();
+		}
+		while (remaining > 0) {
+			remaining -= channel.write(slices.buffers, 0, slices.nBuffers);
+		}
+		if (slices.overwritten()) {
+			throw new IOException(
+					"Samples were overwritten while being sent.");
+		}
+	}
+
+	/**
+	 * Encodes the requested events for sending it to the client.
+	 *
+	 * @param message
+	 * @return
+	 */
+	byte[] handleGetEvent(final Message message) {
+		try {
+
+			Event[] events;
+
+			// Check if a request for a specific range has been made.
+			if (message.buffer.capacity() > 0) {
+				// Get data request from message
+				final Request request = NetworkProtocol
+						.decodeRequest(message.buffer);
+
+				// Get the requested data
+				events = dataStore.getEvents(request);
+			} else {
+				events = dataStore.getEvents();
+			}
+
+			// Inform monitor
+			if (monitor != null) {
+				monitor.clientGetEvents(events.length, clientID, message.time);
+			}
+
+			// Return message containing requested data
+			return NetworkProtocol.encodeEvents(events, message.order);
+
+		} catch (final DataException e) {
+			// Return error
+			 System.err.println("Error : " + e);
+			return NetworkProtocol.encodeGetError(message.order);
+		}
+	}
+
+	/**
+	 * Encodes the events with a sample in the requested range and a type
+	 * starting with the requested prefix for sending it to the client. If no
+	 * events match an empty list is returned.
+	 *
+	 * @param message
+	 * @return
+	 */
+	byte[] handleGetEventSelection(final Message message) {
+		try {
+			if (message.buffer.capacity() < 8) {
+				throw new DataException("Malformed event selection.");
+			}
+			final EventSelection selection = NetworkProtocol
+					.decodeEventSelection(message.buffer);
+
+			final Event[] events = dataStore.getEvents(selection);
+
+			// Inform monitor
+			if (monitor != null) {
+				monitor.clientGetEvents(events.length, clientID, message.time);
+			}
+
+			return NetworkProtocol.encodeEvents(events, message.order);
+
+		} catch (final DataException e) {
+			System.err.println("Error : " + e);
+			return NetworkProtocol.encodeGetError(message.order);
+		}
+	}
+
+	/**
+	 * Encodes the header for sending it to the client.
+	 *
+	 * @param message
+	 * @param output
+	 *            @
+	 */
+	byte[] handleGetHeader(final Message message) {
+		try {
+			final Header header = dataStore.getHeader();
+
+			// Inform monitor
+			if (monitor != null) {
+				monitor.clientGetHeader(clientID, message.time);
+			}
+			// Return message containing header
+			return NetworkProtocol.encodeHeader(header, message.order);
+
+		} catch (final DataException e) {
+			// Return error
+			 System.err.println("Error : " + e);
+			return NetworkProtocol.encodeGetError(message.order);
+
+		}
+	}
+
+	/**
+	 * Grabs data from the message and stores it in the dataStore. Returns
+	 * appropriate response.
+	 *
+	 * @param message
+	 * @param output
+	 *            @
+	 */
+	byte[] handlePutData(final Message message) {
+		try {
+			// Get data from message
+			final Data data = NetworkProtocol.decodeData(message.buffer);
+
+			// Store data
+			final int nSamples = dataStore.putData(data);
+
+			// Return okay and inform monitor
+			if (monitor != null) {
+				monitor.clientPutSamples(nSamples, clientID, data.nSamples,
+						message.time);
+			}
+			return NetworkProtocol.encodePutOkay(message.order);
+
+		} catch (final ClientException e) {
+			// Return error
+			 System.err.println("Error : " + e);
+			return NetworkProtocol.encodeGetError(message.order);
+
+		} catch (final DataException e) {
+			// Return error
+			 System.err.println("Error : " + e);
+			return NetworkProtocol.encodeGetError(message.order);
+
+		}
+
+	}
+
+	/**
+	 * Decodes the events from the message and stores them. Returns appropriate
+	 * response.
+	 *
+	 * @param message
+	 * @return
+	 */
+	byte[] handlePutEvent(final Message message) {
+		try {
+			// Get the header from the message
+			Event[] events = NetworkProtocol.decodeEvents(message.buffer);
+
+			// Add sample number of auto-filled-in events
+			for( Event evt : events ) {
+				 if ( evt.sample <= 0 ) evt.sample = dataStore.getSampleCount();
+			}
+
+			// Store the header
+			final int nEvents = dataStore.putEvents(events);
+
+			// Return Okay and inform monitor
+			if (monitor != null) {
+				monitor.clientPutEvents(nEvents, clientID, events.length,
+						message.time);
+			}
+			return NetworkProtocol.encodePutOkay(message.order);
+
+		} catch (final ClientException e) {
+			// Return error
+			 System.err.println("Error : " + e);
+			return NetworkProtocol.encodePutError(message.order);
+
+		} catch (final DataException e) {
+			// Return error
+			 System.err.println("Error : " + e);
+			return NetworkProtocol.encodePutError(message.order);
+		}
+	}
+
+	/**
+	 * Decodes the header from the message and stores it. Returns appropriate
+	 * response.
+	 *
+	 * @param message
+	 * @param output
+	 *            @
+	 */
+	byte[] handlePutHeader(final Message message) {
+		try {
+			// Get the header from the message
+			final Header header = NetworkProtocol.decodeHeader(message.buffer);
+
+			// Store the header
+			dataStore.putHeader(header);
+
+			// Return Okay and inform monitor
+			if (monitor != null) {
+				monitor.clientPutHeader(header.dataType, header.fSample,
+						header.nChans, clientID, message.time);
+			}
+			return NetworkProtocol.encodePutOkay(message.order);
+
+		} catch (final ClientException e) {
+			// Return error
+			 System.err.println("Error : " + e);
+			return NetworkProtocol.encodePutError(message.order);
+
+		} catch (final DataException e) {
+			// Return error
+			 System.err.println("Error : " + e);
+			return NetworkProtocol.encodePutError(message.order);
+		}
+	}
+}
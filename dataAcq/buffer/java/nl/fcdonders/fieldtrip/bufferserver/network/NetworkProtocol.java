@@ -10,9 +10,11 @@ import java.util.ArrayList;
 
 import nl.fcdonders.fieldtrip.bufferserver.data.Chunk;
 import nl.fcdonders.fieldtrip.bufferserver.data.Data;
+import nl.fcdonders.fieldtrip.bufferserver.data.DataSlices;
 import nl.fcdonders.fieldtrip.bufferserver.data.Event;
 import nl.fcdonders.fieldtrip.bufferserver.data.Header;
 import nl.fcdonders.fieldtrip.bufferserver.exceptions.ClientException;
+import nl.fcdonders.fieldtrip.bufferserver.exceptions.DataException;
 
 /**
  * An impementation of the fieldtrip realtime network protocol. Provides a
@@ -107,7 +109,8 @@ public class NetworkProtocol {
 
 	/**
 	 * Decodes the data from the message. Handles all data as groups of bytes,
-	 * does not convert to java primitives.
+	 * does not convert to java primitives. The samples are not copied, the
+	 * returned Data holds a read-only slice of the message body.
 	 *
 	 * @param buf
 	 * @return
@@ -124,9 +127,6 @@ public class NetworkProtocol {
 		// Get data type
 		final int dataType = buffer.getInt();
 
-		// Determine the number of bytes per datapoint.
-		final int nBytes = dataTypeSize(dataType);
-
 		// Get size of remaining message.
 		final int size = buffer.getInt();
 
@@ -137,6 +137,14 @@ public class NetworkProtocol {
 					"Defined size of data and actual size do not match.");
 		}
 
+		if ((dataType & DELTA_VARINT) != 0) {
+			return decodeDeltaVarintData(buffer, nChans, nSamples, dataType
+					& ~DELTA_VARINT);
+		}
+
+		// Determine the number of bytes per datapoint.
+		final int nBytes = dataTypeSize(dataType);
+
 		// Check if the number of bytes left in the buffer corresponds to what
 		// we expect.
 		if (buffer.capacity() - buffer.position() < nSamples * nChans * nBytes) {
@@ -148,18 +156,74 @@ public class NetworkProtocol {
 					"Recieved more bytes of data than expected.");
 		}
 
-		// Transfer bytes from the buffer into a nSamples*nChans*nBytes array;
-		final byte[][][] data = new byte[nSamples][nChans][nBytes];
+		final ByteBuffer data = buffer.slice().asReadOnlyBuffer();
+		data.order(buffer.order());
 
-		for (int x = 0; x < nSamples; x++) {
-			for (int y = 0; y < nChans; y++) {
-				for (int z = 0; z < nBytes; z++) {
-					data[x][y][z] = buffer.get();
+		return new Data(nChans, nSamples, dataType, data, buffer.order());
+	}
+
+	/**
+	 * Decodes delta+varint coded samples, see encodeDeltaVarintData, into a
+	 * new buffer in native byte order.
+	 *
+	 * @param buffer
+	 *            positioned at the coded samples
+	 * @param nChans
+	 * @param nSamples
+	 * @param dataType
+	 *            type of the decoded data points
+	 * @return
+	 * @throws ClientException
+	 */
+	private static Data decodeDeltaVarintData(final ByteBuffer buffer,
+			final int nChans, final int nSamples, final int dataType)
+			throws ClientException {
+		if (!isDeltaVarintType(dataType) || nChans < 0 || nSamples < 0
+				|| (long) nChans * nSamples > buffer.remaining()) {
+			throw new ClientException("Malformed delta+varint coded data.");
+		}
+		final int nBytes = dataTypeSize(dataType);
+		final ByteBuffer data = ByteBuffer.allocate(nSamples * nChans * nBytes);
+		data.order(ByteOrder.nativeOrder());
+
+		final long[] previous = new long[nChans];
+		try {
+			for (int i = 0; i < nSamples; i++) {
+				for (int j = 0; j < nChans; j++) {
+					long v = 0;
+					int shift = 0;
+					byte b;
+					do {
+						b = buffer.get();
+						v |= (long) (b & 0x7f) << shift;
+						shift += 7;
+					} while (b < 0 && shift < 64);
+					final long value = previous[j] + (v >>> 1 ^ -(v & 1));
+					previous[j] = value;
+					switch (nBytes) {
+					case 1:
+						data.put((byte) value);
+						break;
+					case 2:
+						data.putShort((short) value);
+						break;
+					case 4:
+						data.putInt((int) value);
+						break;
+					default:
+						data.putLong(value);
+					}
 				}
 			}
+		} catch (final BufferUnderflowException e) {
+			throw new ClientException("Recieved less bytes of data than expected.");
+		}
+		if (buffer.hasRemaining()) {
+			throw new ClientException("Recieved more bytes of data than expected.");
 		}
 
-		return new Data(nChans, nSamples, dataType, data, buffer.order());
+		data.flip();
+		return new Data(nChans, nSamples, dataType, data, data.order());
 	}
 
 	/**
@@ -326,52 +390,78 @@ public class NetworkProtocol {
 	 */
 	public static Message decodeMessage(final BufferedInputStream input)
 			throws ClientException, IOException, SocketException {
+		return decodeMessage(input, ByteBuffer.allocate(8));
+	}
 
-		// First we determine the endianness of the stream.
-		final byte versionByte1 = (byte) input.read();
-		final byte versionByte2 = (byte) input.read();
-
-		ByteOrder order;
-		if (versionByte1 < versionByte2) {
-			order = ByteOrder.BIG_ENDIAN;
-		} else {
-			order = ByteOrder.LITTLE_ENDIAN;
+	/**
+	 * Reads an incoming message and prepares it for further processing,
+	 * reusing header to read the fixed 8 byte opening of the message. Only the
+	 * body is allocated per message.
+	 *
+	 * @param input
+	 * @param header
+	 *            Buffer of (at least) 8 bytes, owned by the connection.
+	 * @return A message object containing the version, type and remaining
+	 *         bytes.
+	 * @throws ClientException
+	 *             Thrown if a version conflict exists between client/server or
+	 *             if the client is closing the connection.
+	 * @throws IOException
+	 */
+	public static Message decodeMessage(final BufferedInputStream input,
+			final ByteBuffer header) throws ClientException, IOException,
+			SocketException {
+		final int firstByte = input.read();
+		if (firstByte < 0) {
+			throw new ClientException("Client closing connection.");
 		}
 
-		// Determine message version
-		ByteBuffer buffer = ByteBuffer.allocate(2);
-		buffer.order(order);
-		buffer.put(versionByte1);
-		buffer.put(versionByte2);
-		buffer.rewind();
-		final short version = buffer.getShort();
+		header.clear();
+		header.put((byte) firstByte);
+		loadBuffer(header, input, 7);
+		final Message message = decodeMessageHeader(header);
 
-		// Check if version corresponds otherwise throw IOException
-		if (version == -1) {
-			throw new ClientException("Client closing connection.");
-		}
+		// Get Message body.
+		loadBuffer(message.buffer, input, message.buffer.capacity());
+
+		return message;
+	}
+
+	/**
+	 * Decodes the fixed 8 byte opening of a message, for connections which
+	 * read messages incrementally. Returns a message whose (still empty)
+	 * buffer has the size of the message body and should be filled by the
+	 * caller.
+	 *
+	 * @param header
+	 *            Buffer holding the 8 bytes of version, type and size.
+	 * @return
+	 * @throws ClientException
+	 *             Thrown if a version conflict exists between client/server.
+	 */
+	public static Message decodeMessageHeader(final ByteBuffer header)
+			throws ClientException {
+		// First we determine the endianness of the stream.
+		final ByteOrder order = header.get(0) < header.get(1) ? ByteOrder.BIG_ENDIAN
+				: ByteOrder.LITTLE_ENDIAN;
+		header.order(order);
 
+		// Determine message version
+		final short version = header.getShort(0);
 		if (version != VERSION) {
 			throw new ClientException("Client/Server version conflict, "
 					+ "Client Version " + Short.toString(version) + ", "
 					+ "Server Version " + Short.toString(VERSION) + ".");
 		}
 
-		// Get Message Type
-		buffer.rewind();
-		loadBuffer(buffer, input, 2);
-		final short type = buffer.getShort();
-
-		// Get Message Size
-		buffer = ByteBuffer.allocate(4);
-		buffer.order(order);
-		loadBuffer(buffer, input, 4);
-		final int size = buffer.getInt();
+		final short type = header.getShort(2);
+		final int size = header.getInt(4);
+		if (size < 0) {
+			throw new ClientException("Malformed message size.");
+		}
 
-		// Get Message body.
-		buffer = ByteBuffer.allocate(size);
+		final ByteBuffer buffer = ByteBuffer.allocate(size);
 		buffer.order(order);
-		loadBuffer(buffer, input, size);
 
 		return new Message(version, type, buffer, order,
 				System.currentTimeMillis());
@@ -394,6 +484,218 @@ public class NetworkProtocol {
 		return new Request(begin, end);
 	}
 
+	/**
+	 * Decodes the optional part of a get_dat request following begin and end:
+	 * the data type the data is wanted in (FLOAT32 or FLOAT64, -1 for the
+	 * stored type) and flags (1 to scale by the channel resolutions, 2 to
+	 * allow delta+varint coding). Returns null if it is absent, as in requests
+	 * from clients that do not know about it.
+	 *
+	 * @param buffer
+	 *            positioned after the request
+	 * @return
+	 * @throws DataException
+	 */
+	public static DataConversion decodeDataConversion(final ByteBuffer buffer)
+			throws DataException {
+		if (buffer.remaining() < 8) {
+			return null;
+		}
+		final int targetType = buffer.getInt();
+		final int flags = buffer.getInt();
+		if (targetType != -1 && targetType != FLOAT32
+				&& targetType != FLOAT64) {
+			throw new DataException(
+					"Can only convert data to FLOAT32 or FLOAT64.");
+		}
+		return new DataConversion(targetType, (flags & 1) != 0,
+				(flags & 2) != 0);
+	}
+
+	/**
+	 * Decodes a get_evt_sel request: the first and last sample, followed by
+	 * the type prefix, one byte per character.
+	 *
+	 * @param buffer
+	 * @return
+	 */
+	public static EventSelection decodeEventSelection(final ByteBuffer buffer) {
+		final int sampleBegin = buffer.getInt();
+		final int sampleEnd = buffer.getInt();
+
+		final char[] prefix = new char[buffer.capacity() - buffer.position()];
+		for (int i = 0; i < prefix.length; i++) {
+			prefix[i] = (char) (buffer.get() & 0xff);
+		}
+
+		return new EventSelection(sampleBegin, sampleEnd, new String(prefix));
+	}
+
+	/**
+	 * Decodes a get_dat_sel message: first sample, last sample, decimation
+	 * factor (1 for every sample), flags (1 to average blocks of samples
+	 * instead of picking one), the number of selected channels (0 for all)
+	 * followed by their indices.
+	 *
+	 * @param buffer
+	 * @return
+	 * @throws DataException
+	 */
+	public static DataSelection decodeDataSelection(final ByteBuffer buffer)
+			throws DataException {
+		try {
+			final int begin = buffer.getInt();
+			final int end = buffer.getInt();
+			final int decimation = buffer.getInt();
+			final int flags = buffer.getInt();
+			final int nSelected = buffer.getInt();
+			if (decimation < 1 || nSelected < 0
+					|| nSelected > buffer.remaining() / 4) {
+				throw new DataException("Malformed data selection.");
+			}
+			int[] channels = null;
+			if (nSelected > 0) {
+				channels = new int[nSelected];
+				for (int i = 0; i < nSelected; i++) {
+					channels[i] = buffer.getInt();
+				}
+			}
+
+			return new DataSelection(begin, end, channels, decimation,
+					(flags & 1) != 0);
+		} catch (final BufferUnderflowException e) {
+			throw new DataException("Malformed data selection.");
+		}
+	}
+
+	/**
+	 * Decodes a subscribe message: block size (0 for no data), first sample
+	 * (-1 for the next one), whether to push events (0 or 1), first event
+	 * (-1 for the next one), the number of selected channels (0 for all)
+	 * followed by their indices, and the event type prefix, one byte per
+	 * character.
+	 *
+	 * @param buffer
+	 * @return
+	 * @throws DataException
+	 */
+	public static Subscription decodeSubscription(final ByteBuffer buffer)
+			throws DataException {
+		try {
+			final int blockSize = buffer.getInt();
+			final int firstSample = buffer.getInt();
+			final boolean events = buffer.getInt() != 0;
+			final int firstEvent = buffer.getInt();
+			final int nSelected = buffer.getInt();
+			if (blockSize < 0 || nSelected < 0
+					|| nSelected > buffer.remaining() / 4) {
+				throw new DataException("Malformed subscription.");
+			}
+			int[] channels = null;
+			if (nSelected > 0) {
+				channels = new int[nSelected];
+				for (int i = 0; i < nSelected; i++) {
+					channels[i] = buffer.getInt();
+				}
+			}
+
+			final char[] prefix = new char[buffer.remaining()];
+			for (int i = 0; i < prefix.length; i++) {
+				prefix[i] = (char) (buffer.get() & 0xff);
+			}
+
+			return new Subscription(blockSize, firstSample, channels, events,
+					firstEvent, new String(prefix));
+		} catch (final BufferUnderflowException e) {
+			throw new DataException("Malformed subscription.");
+		}
+	}
+
+	/**
+	 * Decodes a wait_any message: timeout, number of streams and for each
+	 * stream its name (see decodeString) and sample and event thresholds.
+	 *
+	 * @param buffer
+	 * @return
+	 * @throws DataException
+	 */
+	public static StreamWait decodeStreamWait(final ByteBuffer buffer)
+			throws DataException {
+		try {
+			final int timeout = buffer.getInt();
+			final int nStreams = buffer.getInt();
+			// every stream takes at least 12 bytes
+			if (nStreams <= 0 || nStreams > buffer.remaining() / 12) {
+				throw new DataException("Malformed stream wait.");
+			}
+			final String[] names = new String[nStreams];
+			final int[] nSamples = new int[nStreams];
+			final int[] nEvents = new int[nStreams];
+			for (int i = 0; i < nStreams; i++) {
+				names[i] = decodeString(buffer);
+				nSamples[i] = buffer.getInt();
+				nEvents[i] = buffer.getInt();
+			}
+			return new StreamWait(names, nSamples, nEvents, timeout);
+		} catch (final BufferUnderflowException e) {
+			throw new DataException("Malformed stream wait.");
+		}
+	}
+
+	/**
+	 * Decodes a string sent as its length followed by its (8 bit) characters,
+	 * as used for stream names.
+	 *
+	 * @param buffer
+	 * @return
+	 * @throws DataException
+	 */
+	public static String decodeString(final ByteBuffer buffer)
+			throws DataException {
+		try {
+			final int length = buffer.getInt();
+			if (length < 0 || length > buffer.remaining()) {
+				throw new DataException("Malformed string.");
+			}
+			final char[] chars = new char[length];
+			for (int i = 0; i < length; i++) {
+				chars[i] = (char) (buffer.get() & 0xff);
+			}
+			return new String(chars);
+		} catch (final BufferUnderflowException e) {
+			throw new DataException("Malformed string.");
+		}
+	}
+
+	/**
+	 * Decodes the complete message, opening and body, which a stream_msg
+	 * message carries after the stream name.
+	 *
+	 * @param buffer
+	 * @return
+	 * @throws DataException
+	 */
+	public static Message decodeEmbeddedMessage(final ByteBuffer buffer)
+			throws DataException {
+		if (buffer.remaining() < 8) {
+			throw new DataException("Malformed stream message.");
+		}
+		final ByteBuffer header = ByteBuffer.allocate(8);
+		buffer.get(header.array());
+		Message message;
+		try {
+			message = decodeMessageHeader(header);
+		} catch (final ClientException e) {
+			throw new DataException(e.getMessage());
+		}
+		if (message.buffer.capacity() != buffer.remaining()) {
+			throw new DataException("Malformed stream message.");
+		}
+		buffer.get(message.buffer.array());
+		message.buffer.rewind();
+		return message;
+	}
+
 	/**
 	 * Decodes a WaitRequest from the ByteBuffer.
 	 *
@@ -416,18 +718,113 @@ public class NetworkProtocol {
 	 *            @
 	 */
 	public static byte[] encodeData(final Data data, final ByteOrder order) {
+		return encodeData(data, order, GET_OK, 0);
+	}
+
+	/**
+	 * Encodes a PUSH_DAT frame of a subscription: the index of the first
+	 * sample followed by the data as in a GET_DAT response.
+	 *
+	 * @param firstSample
+	 * @param data
+	 * @param order
+	 * @return
+	 */
+	public static byte[] encodePushData(final int firstSample,
+			final Data data, final ByteOrder order) {
+		return encodeData(data, order, PUSH_DAT, firstSample);
+	}
+
+	/**
+	 * Returns true if data of dataType can be delta+varint coded, which is
+	 * the case for the integer types.
+	 *
+	 * @param dataType
+	 * @return
+	 */
+	public static boolean isDeltaVarintType(final int dataType) {
+		return dataType >= CHAR && dataType <= INT64;
+	}
+
+	/**
+	 * Encodes the Data as a GET_OK response with the samples delta+varint
+	 * coded: every data point is replaced by its difference with the same
+	 * channel in the previous sample, zig-zag mapped to an unsigned number
+	 * (0,-1,1,-2.. to 0,1,2,3..) and written 7 bits per byte, low bits first,
+	 * with the high bit set on all but the last byte. The data type is sent
+	 * with DELTA_VARINT set and the size is that of the coded samples. Slowly
+	 * changing integer signals then take 1 or 2 bytes per data point. The
+	 * data type must be one for which isDeltaVarintType is true.
+	 *
+	 * @param data
+	 * @param order
+	 * @return
+	 */
+	public static byte[] encodeDeltaVarintData(final Data data,
+			final ByteOrder order) {
+		final int nChans = data.nChans;
+		final byte[] packed = new byte[data.size()
+				* maxVarintSize(dataTypeSize(data.dataType))];
+		final long[] previous = new long[nChans];
+		final long[] block = new long[Math.min(data.nSamples, VARINT_BLOCK)
+				* nChans];
+		int size = 0;
+
+		for (int begin = 0; begin < data.nSamples; begin += VARINT_BLOCK) {
+			final int n = Math.min(VARINT_BLOCK, data.nSamples - begin);
+			data.getIntegers(begin, n, block);
+			for (int i = 0, k = 0; i < n; i++) {
+				for (int j = 0; j < nChans; j++, k++) {
+					final long delta = block[k] - previous[j];
+					previous[j] = block[k];
+					long v = delta << 1 ^ delta >> 63;
+					while ((v & ~0x7fL) != 0) {
+						packed[size++] = (byte) (v & 0x7f | 0x80);
+						v >>>= 7;
+					}
+					packed[size++] = (byte) v;
+				}
+			}
+		}
+
+		final ByteBuffer buffer = ByteBuffer.allocate(8 + 16 + size);
+		buffer.order(order);
+		buffer.putShort(VERSION).putShort(GET_OK).putInt(16 + size);
+		buffer.putInt(nChans);
+		buffer.putInt(data.nSamples);
+		buffer.putInt(data.dataType | DELTA_VARINT);
+		buffer.putInt(size);
+		buffer.put(packed, 0, size);
+		return buffer.array();
+	}
+
+	/**
+	 * Returns the largest number of bytes a varint coded delta of nBytes byte
+	 * data points can take: the delta needs one bit more than the points.
+	 */
+	private static int maxVarintSize(final int nBytes) {
+		return (nBytes * 8 + 1 + 6) / 7;
+	}
+
+	private static byte[] encodeData(final Data data, final ByteOrder order,
+			final short type, final int firstSample) {
 
 		// Create ByteBuffer
 		final int nBytes = dataTypeSize(data.dataType);
+		final int extra = type == PUSH_DAT ? 4 : 0;
 
-		final ByteBuffer buffer = ByteBuffer.allocate(8 + 16 + data.size()
-				* nBytes);
+		final ByteBuffer buffer = ByteBuffer.allocate(8 + extra + 16
+				+ data.size() * nBytes);
 		buffer.order(order);
 
 		// Add standard message opening
 		buffer.putShort(VERSION);
-		buffer.putShort(GET_OK);
-		buffer.putInt(16 + data.size() * nBytes);
+		buffer.putShort(type);
+		buffer.putInt(extra + 16 + data.size() * nBytes);
+
+		if (type == PUSH_DAT) {
+			buffer.putInt(firstSample);
+		}
 
 		// Add number of channels
 		buffer.putInt(data.nChans);
@@ -444,6 +841,23 @@ public class NetworkProtocol {
 
 		final boolean flipOrder = order != data.order && nBytes > 1;
 
+		if (data.buffer != null) {
+			// Contiguous data, copy in bulk unless words need flipping
+			final ByteBuffer src = data.buffer.duplicate();
+			if (flipOrder) {
+				while (src.hasRemaining()) {
+					final int pos = src.position();
+					for (int z = nBytes - 1; z >= 0; z--) {
+						buffer.put(src.get(pos + z));
+					}
+					src.position(pos + nBytes);
+				}
+			} else {
+				buffer.put(src);
+			}
+			return buffer.array();
+		}
+
 		for (int x = 0; x < data.nSamples; x++) {
 			for (int y = 0; y < data.nChans; y++) {
 				for (int z = 0; z < nBytes; z++) {
@@ -459,6 +873,33 @@ public class NetworkProtocol {
 		return buffer.array();
 	}
 
+	/**
+	 * Fills in the response header of a GET_DAT answer whose samples are
+	 * described by slices.
+	 *
+	 * @param slices
+	 * @param order
+	 */
+	public static void encodeDataHeader(final DataSlices slices,
+			final ByteOrder order) {
+		final ByteBuffer buffer = slices.buffers[0];
+		buffer.clear();
+		buffer.order(order);
+
+		// Add standard message opening
+		buffer.putShort(VERSION);
+		buffer.putShort(GET_OK);
+		buffer.putInt(16 + slices.size);
+
+		// Add data definition
+		buffer.putInt(slices.nChans);
+		buffer.putInt(slices.nSamples);
+		buffer.putInt(slices.dataType);
+		buffer.putInt(slices.size);
+
+		buffer.flip();
+	}
+
 	/**
 	 * Write an Event to the BufferedOutputStream.
 	 *
@@ -469,6 +910,24 @@ public class NetworkProtocol {
 	 */
 	public static byte[] encodeEvents(final Event[] events,
 			final ByteOrder order) {
+		return encodeEvents(events, order, GET_OK);
+	}
+
+	/**
+	 * Encodes a PUSH_EVT frame of a subscription, holding the events as in a
+	 * GET_EVT response.
+	 *
+	 * @param events
+	 * @param order
+	 * @return
+	 */
+	public static byte[] encodePushEvents(final Event[] events,
+			final ByteOrder order) {
+		return encodeEvents(events, order, PUSH_EVT);
+	}
+
+	private static byte[] encodeEvents(final Event[] events,
+			final ByteOrder order, final short type) {
 
 		// Determine total message size
 		int totalBufferSize = 8;
@@ -484,7 +943,7 @@ public class NetworkProtocol {
 
 		// Add standard message opening
 		buffer.putShort(VERSION);
-		buffer.putShort(GET_OK);
+		buffer.putShort(type);
 		buffer.putInt(totalBufferSize - 8);
 
 		// Loop through all evens and add them to the buffer.
@@ -584,6 +1043,44 @@ public class NetworkProtocol {
 		return buffer.array();
 	}
 
+	/**
+	 * Encodes a SUBSCRIBE_OK, UNSUBSCRIBE_OK or SUBSCRIBE_ERR response.
+	 *
+	 * @param type
+	 * @param order
+	 * @return
+	 */
+	public static byte[] encodeSubscribeResponse(final short type,
+			final ByteOrder order) {
+		final ByteBuffer buffer = ByteBuffer.allocate(8);
+		buffer.order(order);
+
+		buffer.putShort(VERSION);
+		buffer.putShort(type);
+		buffer.putInt(0);
+
+		return buffer.array();
+	}
+
+	/**
+	 * Encodes a SELECT_OK or SELECT_ERR response.
+	 *
+	 * @param type
+	 * @param order
+	 * @return
+	 */
+	public static byte[] encodeSelectResponse(final short type,
+			final ByteOrder order) {
+		final ByteBuffer buffer = ByteBuffer.allocate(8);
+		buffer.order(order);
+
+		buffer.putShort(VERSION);
+		buffer.putShort(type);
+		buffer.putInt(0);
+
+		return buffer.array();
+	}
+
 	/**
 	 * Write a GET_ERR to the BufferedOutputStream
 	 *
@@ -751,6 +1248,32 @@ public class NetworkProtocol {
 		return buffer.array();
 	}
 
+	/**
+	 * Encodes the response to a wait_any message: a WAIT_OK with the number
+	 * of samples and events of each stream, in the order they were asked for.
+	 *
+	 * @param nSamples
+	 * @param nEvents
+	 * @param order
+	 * @return
+	 */
+	public static byte[] encodeStreamWaitResponse(final int[] nSamples,
+			final int[] nEvents, final ByteOrder order) {
+		final ByteBuffer buffer = ByteBuffer.allocate(8 + 8 * nSamples.length);
+		buffer.order(order);
+
+		buffer.putShort(VERSION);
+		buffer.putShort(WAIT_OK);
+		buffer.putInt(8 * nSamples.length);
+
+		for (int i = 0; i < nSamples.length; i++) {
+			buffer.putInt(nSamples[i]);
+			buffer.putInt(nEvents[i]);
+		}
+
+		return buffer.array();
+	}
+
 	/**
 	 * Loads a number of bytes from the BufferedInputStream into the ByteBuffer.
 	 *
@@ -762,9 +1285,16 @@ public class NetworkProtocol {
 	 */
 	private static void loadBuffer(final ByteBuffer buffer,
 			final BufferedInputStream input, int size) throws IOException {
+		final byte[] array = buffer.array();
+		int offset = buffer.arrayOffset() + buffer.position();
 		while (size > 0) {
-			buffer.put((byte) input.read());
-			size--;
+			final int n = input.read(array, offset, size);
+			if (n < 0) {
+				throw new SocketException(
+						"Connection closed in the middle of a message.");
+			}
+			offset += n;
+			size -= n;
 		}
 		buffer.rewind();
 	}
@@ -776,6 +1306,10 @@ public class NetworkProtocol {
 	public static final short GET_EVT = 0x203;
 	public static final short GET_OK = 0x204;
 	public static final short GET_ERR = 0x205;
+	/** Get events by sample range and type prefix, not in the C buffer. */
+	public static final short GET_EVT_SEL = 0x206;
+	/** Get channels of decimated data, not in the C buffer. */
+	public static final short GET_DAT_SEL = 0x207;
 	public static final short PUT_HDR = 0x101;
 	public static final short PUT_DAT = 0x102;
 
@@ -792,6 +1326,30 @@ public class NetworkProtocol {
 	public static final short WAIT_OK = 0x404;
 
 	public static final short WAIT_ERR = 0x405;
+	/** Wait until any of several streams has new data, not in the C buffer. */
+	public static final short WAIT_ANY = 0x406;
+	// Streams, not in the C buffer
+	/** Selects the stream the connection uses from now on. */
+	public static final short SELECT_STREAM = 0x601;
+	/** Carries a message for another stream than the selected one. */
+	public static final short STREAM_MSG = 0x602;
+	public static final short SELECT_OK = 0x604;
+	public static final short SELECT_ERR = 0x605;
+	// Subscriptions, not in the C buffer
+	public static final short SUBSCRIBE = 0x501;
+	public static final short UNSUBSCRIBE = 0x502;
+	public static final short UNSUBSCRIBE_OK = 0x503;
+	public static final short SUBSCRIBE_OK = 0x504;
+	public static final short SUBSCRIBE_ERR = 0x505;
+	public static final short PUSH_DAT = 0x506;
+	public static final short PUSH_EVT = 0x507;
+	/**
+	 * Flag or-ed into the data type of put_dat and get_dat data whose samples
+	 * are delta+varint coded, see encodeDeltaVarintData. Not in the C buffer.
+	 */
+	public static final int DELTA_VARINT = 0x100;
+	/** Number of samples delta+varint coded at a time. */
+	private static final int VARINT_BLOCK = 256;
 	public static final int CHUNK_UNKNOWN = 0;
 
 	public static final int CHUNK_CHANNEL_NAMES = 1;
@@ -0,0 +1,483 @@
+package nl.fcdonders.fieldtrip.bufferserver.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+import nl.fcdonders.fieldtrip.bufferserver.FieldtripBufferMonitor;
+import nl.fcdonders.fieldtrip.bufferserver.data.DataModel;
+import nl.fcdonders.fieldtrip.bufferserver.data.DataStreams;
+import nl.fcdonders.fieldtrip.bufferserver.exceptions.ClientException;
+import nl.fcdonders.fieldtrip.bufferserver.exceptions.DataException;
+
+/**
+ * State of a single non-blocking client connection serviced by a
+ * SelectorThread. Messages are read incrementally (first the fixed 8 byte
+ * opening, then exactly the body) and answered through a MessageHandler.
+ * WAIT_DAT requests are parked in the dataModel and answered when satisfied
+ * or timed out, without occupying a thread; WAIT_ANY requests are parked in
+ * the dataModels of all their streams.
+ *
+ * While a response is being written or a wait is parked no further messages
+ * are read, so responses are always sent in the order of the requests.
+ *
+ * A subscription is kept parked as a wait request for its next frames, while
+ * messages are still read. Frames are only collected once the previous ones
+ * have been written, so a slow client receives larger batches rather than
+ * an ever growing output queue.
+ */
+class NioConnection {
+	private final SocketChannel channel;
+	private final SelectorThread thread;
+	private final MessageHandler handler;
+	final int clientID;
+	final String clientAdress;
+	private SelectionKey key;
+	private final ByteBuffer header = ByteBuffer.allocate(8);
+	private Message message = null;
+	private final LinkedList<ByteBuffer> output = new LinkedList<ByteBuffer>();
+	private boolean closed = false;
+
+	// State of a parked WAIT_DAT or WAIT_ANY request, or of the subscription
+	ParkedWaitRequest waiting = null;
+	private ByteOrder waitOrder;
+	private long waitTime;
+	private DataModel[] waitStores = null; // streams of a WAIT_ANY
+	private WaitRequest[] waitLinks = null;
+	private Subscription subscription = null;
+	private final ArrayList<byte[]> frames = new ArrayList<byte[]>();
+
+	/** How long (ms) a subscription is parked before it is checked anyway. */
+	private static final int SUBSCRIPTIONSLICE = 1000;
+
+	/**
+	 * WaitRequest which, when satisfied, hands the connection back to its
+	 * I/O thread instead of notifying a blocked thread.
+	 */
+	static class ParkedWaitRequest extends WaitRequest {
+		final NioConnection connection;
+
+		ParkedWaitRequest(final WaitRequest request,
+				final NioConnection connection) {
+			super(request.nSamples, request.nEvents, request.timeout);
+			this.connection = connection;
+		}
+
+		@Override
+		public synchronized void satisfied() {
+			connection.thread.wake(this);
+		}
+	}
+
+	NioConnection(final int clientID, final SocketChannel channel,
+			final DataStreams streams, final SelectorThread thread) {
+		this.clientID = clientID;
+		this.channel = channel;
+		this.thread = thread;
+		handler = new MessageHandler(clientID, streams, null);
+		clientAdress = channel.socket().getInetAddress().toString() + ":"
+				+ Integer.toString(channel.socket().getPort());
+	}
+
+	/**
+	 * Registers the connection for reading with the selector of its thread.
+	 *
+	 * @param selector
+	 * @throws ClosedChannelException
+	 */
+	void register(final Selector selector) throws ClosedChannelException {
+		key = channel.register(selector, SelectionKey.OP_READ, this);
+		final FieldtripBufferMonitor monitor = thread.monitor;
+		handler.monitor = monitor;
+		if (monitor != null) {
+			monitor.clientOpenedConnection(clientID, clientAdress,
+					System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Reads and handles as many complete messages as are available.
+	 *
+	 * @throws IOException
+	 * @throws ClientException
+	 */
+	void read() throws IOException, ClientException {
+		handler.monitor = thread.monitor;
+		while (!closed && (waiting == null || subscription != null)
+				&& output.isEmpty()) {
+			if (message == null) {
+				if (channel.read(header) < 0) {
+					close(false);
+					return;
+				}
+				if (header.hasRemaining()) {
+					return;
+				}
+				message = NetworkProtocol.decodeMessageHeader(header);
+				header.clear();
+			}
+			if (message.buffer.hasRemaining()
+					&& channel.read(message.buffer) < 0) {
+				close(false);
+				return;
+			}
+			if (message.buffer.hasRemaining()) {
+				return;
+			}
+			message.buffer.rewind();
+			final Message complete = message;
+			message = null;
+			handle(complete);
+		}
+	}
+
+	/**
+	 * Writes as much of the pending output as the socket accepts.
+	 *
+	 * @throws IOException
+	 */
+	void write() throws IOException {
+		final boolean drained = writeOutput();
+		updateInterest();
+		if (drained && subscription != null && output.isEmpty()) {
+			push();
+		}
+	}
+
+	/**
+	 * Answers the parked wait request, if it is still the current one.
+	 *
+	 * @param request
+	 * @throws IOException
+	 */
+	void finishWait(final ParkedWaitRequest request) throws IOException {
+		if (closed || waiting != request) {
+			return;
+		}
+		waiting = null;
+		if (subscription != null) {
+			push();
+			return;
+		}
+		if (handler.monitor != null) {
+			handler.monitor.clientContinues(clientID, waitTime);
+		}
+		if (waitStores != null) {
+			for (final WaitRequest link : waitLinks) {
+				link.finish();
+			}
+			final DataModel[] stores = waitStores;
+			waitStores = null;
+			waitLinks = null;
+			send(MessageHandler.encodeStreamWaitResponse(stores, waitOrder));
+			return;
+		}
+		final DataModel dataStore = handler.dataStore();
+		try {
+			send(NetworkProtocol.encodeWaitResponse(
+					dataStore.getSampleCount(), dataStore.getEventCount(),
+					waitOrder));
+		} catch (final DataException e) {
+			send(NetworkProtocol.encodeWaitError(waitOrder));
+		}
+	}
+
+	/**
+	 * Closes the connection and informs the monitor.
+	 *
+	 * @param error
+	 *            true if the connection was lost rather than closed by the
+	 *            client.
+	 */
+	void close(final boolean error) {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (final IOException e) {
+		}
+		if (handler.monitor != null) {
+			if (error) {
+				handler.monitor.clientError(clientID,
+						FieldtripBufferMonitor.ERROR_CONNECTION,
+						System.currentTimeMillis());
+			} else {
+				handler.monitor.clientClosedConnection(clientID,
+						System.currentTimeMillis());
+			}
+		}
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	private void handle(final Message message) throws IOException {
+		if (message.type == NetworkProtocol.WAIT_DAT) {
+			if (subscription != null) {
+				// Waiting would hold up the frames.
+				send(NetworkProtocol.encodeWaitError(message.order));
+			} else {
+				handleWaitData(message);
+			}
+		} else if (message.type == NetworkProtocol.WAIT_ANY) {
+			if (subscription != null) {
+				send(NetworkProtocol.encodeWaitError(message.order));
+			} else {
+				handleWaitAny(message);
+			}
+		} else if (message.type == NetworkProtocol.SELECT_STREAM
+				&& subscription != null) {
+			// The frames are of the selected stream.
+			send(NetworkProtocol.encodeSelectResponse(
+					NetworkProtocol.SELECT_ERR, message.order));
+		} else if (message.type == NetworkProtocol.SUBSCRIBE) {
+			handleSubscribe(message);
+		} else if (message.type == NetworkProtocol.UNSUBSCRIBE) {
+			if (subscription != null) {
+				subscription = null;
+				if (waiting != null) {
+					waiting.finish();
+					waiting = null;
+				}
+			}
+			send(NetworkProtocol.encodeSubscribeResponse(
+					NetworkProtocol.UNSUBSCRIBE_OK, message.order));
+		} else {
+			final byte[] response = handler.handleMessage(message);
+			if (response != null) {
+				send(response);
+			}
+		}
+	}
+
+	/**
+	 * Answers a WAIT_DAT directly if it is a poll or already satisfied,
+	 * otherwise parks it in the dataStore until it is satisfied or times out.
+	 *
+	 * @param message
+	 * @throws IOException
+	 */
+	private void handleWaitData(final Message message) throws IOException {
+		final DataModel dataStore = handler.dataStore();
+		try {
+			if (!dataStore.headerExists()) {
+				send(NetworkProtocol.encodeWaitError(message.order));
+				return;
+			}
+
+			final WaitRequest request = NetworkProtocol
+					.decodeWaitRequest(message.buffer);
+
+			if (request.timeout == 0) {
+				if (handler.monitor != null) {
+					handler.monitor.clientPolls(clientID, message.time);
+				}
+			} else if (!isSatisfied(request)) {
+				if (handler.monitor != null) {
+					handler.monitor.clientWaits(request.nSamples,
+							request.nEvents, request.timeout, clientID,
+							message.time);
+				}
+
+				waiting = new ParkedWaitRequest(request, this);
+				waitOrder = message.order;
+				waitTime = message.time;
+				dataStore.addWaitRequest(waiting);
+				thread.park(this);
+				updateInterest();
+
+				// Data may have arrived before the request was added
+				if (isSatisfied(request)) {
+					finishWait(waiting);
+				}
+				return;
+			}
+
+			send(NetworkProtocol.encodeWaitResponse(
+					dataStore.getSampleCount(), dataStore.getEventCount(),
+					message.order));
+
+		} catch (final DataException e) {
+			send(NetworkProtocol.encodeWaitError(message.order));
+		}
+	}
+
+	/**
+	 * Answers a WAIT_ANY directly if it is a poll or already satisfied,
+	 * otherwise parks it in the dataModels of its streams until any of them
+	 * satisfies it or it times out.
+	 *
+	 * @param message
+	 * @throws IOException
+	 */
+	private void handleWaitAny(final Message message) throws IOException {
+		try {
+			final StreamWait wait = NetworkProtocol
+					.decodeStreamWait(message.buffer);
+			final DataModel[] stores = handler.getStreams(wait);
+
+			if (wait.timeout <= 0) {
+				if (handler.monitor != null) {
+					handler.monitor.clientPolls(clientID, message.time);
+				}
+			} else if (!MessageHandler.isSatisfied(wait, stores)) {
+				if (handler.monitor != null) {
+					handler.monitor.clientWaits(-1, -1, wait.timeout,
+							clientID, message.time);
+				}
+
+				waiting = new ParkedWaitRequest(new WaitRequest(-1, -1,
+						wait.timeout), this);
+				waitOrder = message.order;
+				waitTime = message.time;
+				waitStores = stores;
+				waitLinks = MessageHandler.addStreamWait(wait, stores, waiting);
+				thread.park(this);
+				updateInterest();
+
+				// Data may have arrived before the requests were added
+				if (MessageHandler.isSatisfied(wait, stores)) {
+					finishWait(waiting);
+				}
+				return;
+			}
+
+			send(MessageHandler.encodeStreamWaitResponse(stores,
+					message.order));
+
+		} catch (final DataException e) {
+			System.err.println("Error : " + e);
+			send(NetworkProtocol.encodeWaitError(message.order));
+		}
+	}
+
+	/**
+	 * Starts (or replaces) the subscription requested in message, answers it
+	 * and pushes what is available already.
+	 *
+	 * @param message
+	 * @throws IOException
+	 */
+	private void handleSubscribe(final Message message) throws IOException {
+		final Subscription requested;
+		try {
+			requested = NetworkProtocol.decodeSubscription(message.buffer);
+			requested.start(handler.dataStore());
+		} catch (final DataException e) {
+			System.err.println("Error : " + e);
+			send(NetworkProtocol.encodeSubscribeResponse(
+					NetworkProtocol.SUBSCRIBE_ERR, message.order));
+			return;
+		}
+		if (waiting != null) {
+			waiting.finish();
+			waiting = null;
+		}
+		subscription = requested;
+		waitOrder = message.order;
+		send(NetworkProtocol.encodeSubscribeResponse(
+				NetworkProtocol.SUBSCRIBE_OK, message.order));
+		if (output.isEmpty()) {
+			push();
+		}
+	}
+
+	/**
+	 * Sends the frames of everything that arrived for the subscription, and
+	 * parks it until more arrives. Once frames are written write() calls this
+	 * again.
+	 *
+	 * @throws IOException
+	 */
+	private void push() throws IOException {
+		final DataModel dataStore = handler.dataStore();
+		while (!closed && subscription != null) {
+			frames.clear();
+			subscription.collect(dataStore, waitOrder, frames,
+					handler.monitor, clientID);
+			for (final byte[] frame : frames) {
+				output.add(ByteBuffer.wrap(frame));
+			}
+			writeOutput();
+
+			if (waiting != null) {
+				waiting.finish();
+				waiting = null;
+			}
+			if (!output.isEmpty()) {
+				break; // continued by write()
+			}
+
+			waiting = new ParkedWaitRequest(
+					subscription.nextWait(SUBSCRIPTIONSLICE), this);
+			dataStore.addWaitRequest(waiting);
+			thread.park(this);
+
+			// Data may have arrived before the request was added
+			if (!subscription.hasNew(dataStore)) {
+				break;
+			}
+		}
+		updateInterest();
+	}
+
+	private boolean isSatisfied(final WaitRequest request)
+			throws DataException {
+		final DataModel dataStore = handler.dataStore();
+		return request.nEvents != -1
+				&& dataStore.getEventCount() > request.nEvents
+				|| request.nSamples != -1
+				&& dataStore.getSampleCount() > request.nSamples;
+	}
+
+	private void send(final byte[] response) throws IOException {
+		output.add(ByteBuffer.wrap(response));
+		writeOutput();
+		updateInterest();
+	}
+
+	/**
+	 * Writes as much of the pending output as the socket accepts. Returns
+	 * true if any buffer was completely written.
+	 *
+	 * @throws IOException
+	 */
+	private boolean writeOutput() throws IOException {
+		boolean drained = false;
+		while (!output.isEmpty()) {
+			final ByteBuffer buffer = output.peek();
+			channel.write(buffer);
+			if (buffer.hasRemaining()) {
+				break;
+			}
+			output.poll();
+			drained = true;
+		}
+		return drained;
+	}
+
+	private void updateInterest() {
+		if (closed || !key.isValid()) {
+			return;
+		}
+		if (!output.isEmpty()) {
+			key.interestOps(SelectionKey.OP_WRITE);
+		} else if (waiting != null && subscription == null) {
+			key.interestOps(0);
+		} else {
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package nl.fcdonders.fieldtrip.bufferserver.network;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import nl.fcdonders.fieldtrip.bufferserver.FieldtripBufferMonitor;
+import nl.fcdonders.fieldtrip.bufferserver.data.DataModel;
+import nl.fcdonders.fieldtrip.bufferserver.data.DataStreams;
+import nl.fcdonders.fieldtrip.bufferserver.exceptions.ClientException;
+
+/**
+ * I/O thread for the selector based server mode. Services any number of
+ * non-blocking client connections with a single Selector. Clients waiting in
+ * WAIT_DAT are parked and do not hold on to a thread; they are woken by the
+ * dataModel, or by this thread when their timeout expires.
+ */
+public class SelectorThread extends Thread {
+	private final Selector selector;
+	private final DataStreams streams;
+	private final ConcurrentLinkedQueue<NioConnection> newConnections = new ConcurrentLinkedQueue<NioConnection>();
+	private final ConcurrentLinkedQueue<NioConnection.ParkedWaitRequest> woken = new ConcurrentLinkedQueue<NioConnection.ParkedWaitRequest>();
+	private final ArrayList<NioConnection> parked = new ArrayList<NioConnection>();
+	volatile FieldtripBufferMonitor monitor;
+	private volatile boolean run = true;
+
+	/**
+	 * Constructor
+	 *
+	 * @param dataStore
+	 *            The storage for all the data implementing the datamodel
+	 *            interface.
+	 * @throws IOException
+	 */
+	public SelectorThread(final DataModel dataStore) throws IOException {
+		this(new DataStreams(dataStore));
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param streams
+	 *            The streams of the server, connections start with the
+	 *            DEFAULT stream.
+	 * @throws IOException
+	 */
+	public SelectorThread(final DataStreams streams) throws IOException {
+		this.streams = streams;
+		selector = Selector.open();
+	}
+
+	/**
+	 * Adds a FiedltripBufferMonitor to this thread.
+	 *
+	 * @param monitor
+	 */
+	public void addMonitor(final FieldtripBufferMonitor monitor) {
+		this.monitor = monitor;
+	}
+
+	/**
+	 * Hands a newly accepted connection to this thread.
+	 *
+	 * @param clientID
+	 * @param channel
+	 * @throws IOException
+	 */
+	public void addConnection(final int clientID, final SocketChannel channel)
+			throws IOException {
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true); // allow small packets
+		newConnections.add(new NioConnection(clientID, channel, streams,
+				this));
+		selector.wakeup();
+	}
+
+	/**
+	 * Stops the thread and closes all its connections.
+	 */
+	public void shutdown() {
+		run = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Called by the dataModel, from the thread that satisfied the request.
+	 */
+	void wake(final NioConnection.ParkedWaitRequest request) {
+		woken.add(request);
+		selector.wakeup();
+	}
+
+	/**
+	 * Called by a connection of this thread which parked a wait request.
+	 */
+	void park(final NioConnection connection) {
+		if (!parked.contains(connection)) {
+			parked.add(connection);
+		}
+	}
+
+	@Override
+	public void run() {
+		while (run) {
+			try {
+				selector.select(timeUntilNextDeadline());
+			} catch (final IOException e) {
+				System.err.println("Selector failed : " + e);
+				break;
+			}
+
+			// Register newly accepted connections
+			NioConnection connection;
+			while ((connection = newConnections.poll()) != null) {
+				try {
+					connection.register(selector);
+				} catch (final IOException e) {
+					connection.close(true);
+				}
+			}
+
+			// Service the ready connections
+			final Iterator<SelectionKey> keys = selector.selectedKeys()
+					.iterator();
+			while (keys.hasNext()) {
+				final SelectionKey key = keys.next();
+				keys.remove();
+				connection = (NioConnection) key.attachment();
+				try {
+					if (key.isValid() && key.isReadable()) {
+						connection.read();
+					}
+					if (key.isValid() && key.isWritable()) {
+						connection.write();
+					}
+				} catch (final IOException e) {
+					connection.close(true);
+				} catch (final ClientException e) {
+					if (monitor != null) {
+						monitor.clientError(connection.clientID,
+								FieldtripBufferMonitor.ERROR_VERSION,
+								System.currentTimeMillis());
+					}
+					connection.close(false);
+				}
+			}
+
+			// Answer satisfied and timed out waits
+			NioConnection.ParkedWaitRequest request;
+			while ((request = woken.poll()) != null) {
+				finishWait(request.connection, request);
+			}
+			final long now = System.currentTimeMillis();
+			for (int i = parked.size() - 1; i >= 0; i--) {
+				connection = parked.get(i);
+				if (connection.waiting != null
+						&& connection.waiting.deadline <= now) {
+					finishWait(connection, connection.waiting);
+				}
+				if (connection.waiting == null || connection.isClosed()) {
+					parked.remove(i);
+				}
+			}
+		}
+
+		for (final SelectionKey key : selector.keys()) {
+			((NioConnection) key.attachment()).close(false);
+		}
+		try {
+			selector.close();
+		} catch (final IOException e) {
+		}
+	}
+
+	private void finishWait(final NioConnection connection,
+			final NioConnection.ParkedWaitRequest request) {
+		try {
+			connection.finishWait(request);
+		} catch (final IOException e) {
+			connection.close(true);
+		}
+	}
+
+	/**
+	 * Returns how long the selector may block before a parked wait times out,
+	 * 0 meaning indefinitely.
+	 */
+	private long timeUntilNextDeadline() {
+		long next = Long.MAX_VALUE;
+		for (int i = 0; i < parked.size(); i++) {
+			final NioConnection connection = parked.get(i);
+			if (connection.waiting != null
+					&& connection.waiting.deadline < next) {
+				next = connection.waiting.deadline;
+			}
+		}
+		if (next == Long.MAX_VALUE) {
+			return 0;
+		}
+		return Math.max(1, next - System.currentTimeMillis());
+	}
+}
@@ -0,0 +1,22 @@
+package nl.fcdonders.fieldtrip.bufferserver.network;
+
+/**
+ * Simple wrapper for the details of the wait_any message: wait until any of
+ * the named streams has more than nSamples[i] samples or more than
+ * nEvents[i] events (-1 to ignore either), or until timeout ms have passed.
+ */
+public class StreamWait {
+	public final String[] names;
+	public final int[] nSamples;
+	public final int[] nEvents;
+	public final int timeout;
+
+	public StreamWait(String[] names, int[] nSamples, int[] nEvents,
+			int timeout) {
+		this.names = names;
+		this.nSamples = nSamples;
+		this.nEvents = nEvents;
+		this.timeout = timeout;
+	}
+
+}
@@ -0,0 +1,229 @@
+package nl.fcdonders.fieldtrip.bufferserver.network;
+
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.fcdonders.fieldtrip.bufferserver.FieldtripBufferMonitor;
+import nl.fcdonders.fieldtrip.bufferserver.data.Data;
+import nl.fcdonders.fieldtrip.bufferserver.data.DataModel;
+import nl.fcdonders.fieldtrip.bufferserver.data.Event;
+import nl.fcdonders.fieldtrip.bufferserver.data.Header;
+import nl.fcdonders.fieldtrip.bufferserver.exceptions.DataException;
+
+/**
+ * State of a subscription of a client connection: which samples and events
+ * are pushed to it, and how far it got. Data is pushed in blocks of
+ * blockSize samples, restricted to the selected channels, events whose type
+ * starts with typePrefix as soon as they arrive.
+ *
+ * A connection calls collect() to encode the frames for everything that
+ * arrived since the last call, and waits with nextWait() for more.
+ */
+public class Subscription {
+	public final int blockSize;
+	public final int[] channels;
+	public final boolean events;
+	public final String typePrefix;
+	private int nextSample;
+	private int nextEvent;
+
+	/**
+	 * Constructor
+	 *
+	 * @param blockSize
+	 *            number of samples per data frame, 0 for no data.
+	 * @param firstSample
+	 *            first sample to push, -1 for the next sample to arrive.
+	 * @param channels
+	 *            channels to push, null for all.
+	 * @param events
+	 *            whether to push events.
+	 * @param firstEvent
+	 *            first event to push, -1 for the next event to arrive.
+	 * @param typePrefix
+	 *            only push events whose type starts with typePrefix, empty for
+	 *            all.
+	 */
+	public Subscription(int blockSize, int firstSample, int[] channels,
+			boolean events, int firstEvent, String typePrefix) {
+		this.blockSize = blockSize;
+		nextSample = firstSample;
+		this.channels = channels;
+		this.events = events;
+		nextEvent = firstEvent;
+		this.typePrefix = typePrefix;
+	}
+
+	/**
+	 * Checks the subscription against the header and resolves the starting
+	 * sample and event. Throws DataException if there is no header, a
+	 * channel does not exist or a block does not fit in the buffer.
+	 *
+	 * @param dataStore
+	 * @throws DataException
+	 */
+	public void start(final DataModel dataStore) throws DataException {
+		final Header header = dataStore.getHeader();
+		if (blockSize > dataStore.getMaxSamples()) {
+			throw new DataException("Subscribing to blocks of " + blockSize
+					+ " samples, but the buffer holds only "
+					+ dataStore.getMaxSamples() + ".");
+		}
+		if (channels != null) {
+			for (final int channel : channels) {
+				if (channel < 0 || channel >= header.nChans) {
+					throw new DataException("Subscribing to channel "
+							+ channel + " that does not exist.");
+				}
+			}
+		}
+		if (nextSample < 0) {
+			nextSample = dataStore.getSampleCount();
+		}
+		if (nextEvent < 0) {
+			nextEvent = dataStore.getEventCount();
+		}
+	}
+
+	/**
+	 * Encodes the complete blocks of samples and the matching events which
+	 * arrived since the last call into frames.
+	 *
+	 * @param dataStore
+	 * @param order
+	 *            byte order of the client
+	 * @param frames
+	 *            list to add the PUSH_DAT and PUSH_EVT frames to
+	 * @param monitor
+	 *            informed of the samples and events pushed, may be null
+	 * @param clientID
+	 */
+	public void collect(final DataModel dataStore, final ByteOrder order,
+			final List<byte[]> frames, final FieldtripBufferMonitor monitor,
+			final int clientID) {
+		try {
+			if (blockSize > 0) {
+				collectData(dataStore, order, frames, monitor, clientID);
+			}
+			if (events) {
+				collectEvents(dataStore, order, frames, monitor, clientID);
+			}
+		} catch (final DataException e) {
+			// No header (any more), nothing to push until there is.
+		}
+	}
+
+	/**
+	 * Returns a request which is satisfied when there is something new to
+	 * push, or after timeout ms.
+	 *
+	 * @param timeout
+	 * @return
+	 */
+	public WaitRequest nextWait(final int timeout) {
+		return new WaitRequest(blockSize > 0 ? nextSample + blockSize - 1
+				: -1, events ? nextEvent : -1, timeout);
+	}
+
+	/**
+	 * Returns true if a complete block of samples, or an event, arrived which
+	 * has not been collected yet. Used to check for arrivals between collect()
+	 * and adding the wait request.
+	 *
+	 * @param dataStore
+	 * @return
+	 */
+	public boolean hasNew(final DataModel dataStore) {
+		try {
+			return blockSize > 0
+					&& dataStore.getSampleCount() >= nextSample + blockSize
+					|| events && dataStore.getEventCount() > nextEvent;
+		} catch (final DataException e) {
+			return false;
+		}
+	}
+
+	private void collectData(final DataModel dataStore,
+			final ByteOrder order, final List<byte[]> frames,
+			final FieldtripBufferMonitor monitor, final int clientID)
+			throws DataException {
+		final int count = dataStore.getSampleCount();
+		if (count < nextSample) {
+			// The buffer was restarted.
+			nextSample = 0;
+		}
+
+		while (count - nextSample >= blockSize) {
+			Data data;
+			try {
+				data = dataStore.getData(new Request(nextSample, nextSample
+						+ blockSize - 1));
+			} catch (final DataException e) {
+				// Overwritten before we got to it, skip to the newest block,
+				// or past this one if even that can no longer be read.
+				final int behind = (count - nextSample) / blockSize;
+				nextSample += Math.max(1, behind - 1) * blockSize;
+				continue;
+			}
+			if (channels != null) {
+				data = data.selectChannels(channels);
+			}
+			frames.add(NetworkProtocol.encodePushData(nextSample, data, order));
+			nextSample += blockSize;
+
+			if (monitor != null) {
+				monitor.clientGetSamples(blockSize, clientID,
+						System.currentTimeMillis());
+			}
+		}
+	}
+
+	private void collectEvents(final DataModel dataStore,
+			final ByteOrder order, final List<byte[]> frames,
+			final FieldtripBufferMonitor monitor, final int clientID)
+			throws DataException {
+		final int count = dataStore.getEventCount();
+		if (count < nextEvent) {
+			// The events were flushed.
+			nextEvent = 0;
+		}
+		if (count == nextEvent) {
+			return;
+		}
+
+		Event[] arrived;
+		try {
+			arrived = dataStore.getEvents(new Request(nextEvent, count - 1));
+		} catch (final DataException e) {
+			// Some were overwritten before we got to them, push what is left.
+			final Event[] held = dataStore.getEvents();
+			final int newer = dataStore.getEventCount() - count;
+			arrived = new Event[Math.max(0, held.length - newer)];
+			System.arraycopy(held, 0, arrived, 0, arrived.length);
+		}
+		nextEvent = count;
+
+		final ArrayList<Event> selected = new ArrayList<Event>(arrived.length);
+		for (final Event event : arrived) {
+			if (typePrefix.length() > 0) {
+				final String type = event.getTypeString();
+				if (type == null || !type.startsWith(typePrefix)) {
+					continue;
+				}
+			}
+			selected.add(event);
+		}
+		if (selected.isEmpty()) {
+			return;
+		}
+
+		frames.add(NetworkProtocol.encodePushEvents(
+				selected.toArray(new Event[selected.size()]), order));
+
+		if (monitor != null) {
+			monitor.clientGetEvents(selected.size(), clientID,
+					System.currentTimeMillis());
+		}
+	}
+}
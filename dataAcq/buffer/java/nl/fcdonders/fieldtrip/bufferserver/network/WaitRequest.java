@@ -4,21 +4,51 @@ public class WaitRequest {
 	public final int nSamples;
 	public final int nEvents;
 	public final int timeout;
+	/** Time (in ms) after which the waiting client no longer cares. */
+	public final long deadline;
+	private volatile boolean finished = false;
 
 	public WaitRequest(int nSamples, int nEvents, int timeout) {
 		 /* Sanity check the inputs... */
 		if ( nSamples < 0 ) { this.nSamples=-1; } else { this.nSamples=nSamples; }
 		if ( nEvents < 0 )  { this.nEvents=-1;  } else { this.nEvents=nEvents; }
       if ( timeout < 0 )  { this.timeout=0;  } else { this.timeout=timeout; }
+		deadline = System.currentTimeMillis() + this.timeout;
 	}
 
 	public synchronized void blockUntilSatisfied(long timeout)
 			throws InterruptedException {
-		wait(timeout);
+		final long end = System.currentTimeMillis() + timeout;
+		while (!finished && timeout > 0) {
+			wait(timeout);
+			timeout = end - System.currentTimeMillis();
+		}
 	}
 
 	public synchronized void satisfied() {
 		notifyAll();
 	}
 
+	/**
+	 * Marks the request as answered, so listeners may drop it. Returns false
+	 * if it already was.
+	 */
+	public synchronized boolean finish() {
+		if (finished) {
+			return false;
+		}
+		finished = true;
+		return true;
+	}
+
+	/**
+	 * Returns true if the request has been answered or its timeout has passed.
+	 *
+	 * @param now
+	 *            Current time in ms.
+	 */
+	public boolean isExpired(final long now) {
+		return finished || now >= deadline;
+	}
+
 }
@@ -10,6 +10,7 @@ import nl.fcdonders.fieldtrip.bufferclient.BufferClientClock;
 import nl.fcdonders.fieldtrip.bufferclient.BufferEvent;
 import nl.fcdonders.fieldtrip.bufferclient.Header;
 import nl.fcdonders.fieldtrip.bufferclient.SamplesEventsCount;
+import nl.fcdonders.fieldtrip.bufferclient.WindowedSampleCache;
 import org.apache.commons.math3.linear.RealVector;
 
 import java.io.*;
@@ -138,6 +139,7 @@ public class AlphaLatContClassifier extends ContinuousClassifier {
 		  long t=t0;
 		  long pnext=t+printInterval_ms;
         medFilt = new MedianFilter();
+        dataCache = new WindowedSampleCache(C, trialLength_samp + lookahead_samp + step_samp);
         
 		  try {
 				C.putEvent(new BufferEvent("process."+processName,"start",-1));  // Log that we are starting
@@ -150,8 +152,8 @@ public class AlphaLatContClassifier extends ContinuousClassifier {
             // Block until there are new events
             try {
 					 if ( VERB>1 )
-						  System.out.println( TAG+" Waiting for " + (nSamples + trialLength_samp + 1) + " samples");
-                status = C.waitForSamples(nSamples + trialLength_samp + 1, this.timeout_ms);
+						  System.out.println( TAG+" Waiting for " + (nSamples + trialLength_samp + lookahead_samp + 1) + " samples");
+                status = C.waitForSamples(nSamples + trialLength_samp + lookahead_samp + 1, this.timeout_ms);
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -159,6 +161,8 @@ public class AlphaLatContClassifier extends ContinuousClassifier {
                 System.out.println(TAG+ "Buffer restart detected");
                 nSamples = status.nSamples;
                 dv = null;
+                dataCache.reset();
+                for (PreprocClassifier c : classifiers) c.reset();
                 continue;
             }
 
@@ -172,15 +176,15 @@ public class AlphaLatContClassifier extends ContinuousClassifier {
 
             // Process any new data
             int onSamples = nSamples;
-            int[] startIdx= Matrix.range(onSamples, status.nSamples - trialLength_samp - 1, step_samp);
+            int[] startIdx= Matrix.range(onSamples, status.nSamples - trialLength_samp - lookahead_samp - 1, step_samp);
             if (startIdx.length > 0) nSamples = startIdx[startIdx.length - 1] + step_samp;
 
             for (int fromId : startIdx) {
                 // Get the data
-                int toId = fromId + trialLength_samp - 1;
+                int toId = fromId + trialLength_samp + lookahead_samp - 1;
                 Matrix data = null;
                 try {
-                    data = new Matrix(new Matrix(C.getDoubleData(fromId, toId)).transpose());
+                    data = new Matrix(new Matrix(dataCache.getDoubleData(fromId, toId)).transpose());
                 } catch (IOException e) {
                     e.printStackTrace();
                     continue;
@@ -193,7 +197,7 @@ public class AlphaLatContClassifier extends ContinuousClassifier {
                 Matrix fraw = new Matrix(classifiers.get(0).getOutputSize(), 1);
                 ClassifierResult result = null;
                 for (PreprocClassifier c : classifiers) {
-                    result = c.apply(data);
+                    result = c.apply(windowFor(c, data), fromId);
                     f = new Matrix(f.add(result.f));
                     fraw = new Matrix(fraw.add(result.fraw));
                 }
@@ -7,8 +7,10 @@ import nl.dcc.buffer_bci.matrixalgebra.miscellaneous.Tuple;
 import nl.dcc.buffer_bci.matrixalgebra.miscellaneous.Windows;
 import nl.fcdonders.fieldtrip.bufferclient.BufferClientClock;
 import nl.fcdonders.fieldtrip.bufferclient.BufferEvent;
+import nl.fcdonders.fieldtrip.bufferclient.DataDescription;
 import nl.fcdonders.fieldtrip.bufferclient.Header;
 import nl.fcdonders.fieldtrip.bufferclient.SamplesEventsCount;
+import nl.fcdonders.fieldtrip.bufferclient.WindowedSampleCache;
 import org.apache.commons.math3.linear.RealVector;
 
 import java.io.*;
@@ -43,8 +45,10 @@ public class ContinuousClassifier {
     protected boolean normalizeLatitude = true;
     protected List<PreprocClassifier> classifiers=null;
     protected BufferClientClock C = null;
+    protected WindowedSampleCache dataCache = null; // overlapping windows share their samples
     protected int trialLength_ms  =-1;
     protected int trialLength_samp=-1;
+    protected int lookahead_samp  = 0; // samples after the window the classifiers need, see windowFor
     protected double overlap   = .5;
     protected int step_ms  = -1;
     protected int step_samp= -1;
@@ -251,9 +255,22 @@ public class ContinuousClassifier {
         } else if ( overlap>0 ) {
             step_samp = Long.valueOf(Math.round(trialLength_samp * overlap)).intValue();
         }
+        lookahead_samp = 0;
+        for ( PreprocClassifier c : classifiers ) lookahead_samp = Math.max(lookahead_samp, c.getLookahead());
 		  if ( VERB>0 ) System.out.println(TAG+"trlen_samp="+trialLength_samp+" step_samp="+step_samp);
     }
 
+    /**
+     * @param c    classifier to apply
+     * @param data window followed by lookahead_samp samples
+     * @return the window followed by the c.getLookahead() samples c needs after it
+     */
+    protected Matrix windowFor(PreprocClassifier c, Matrix data) {
+        int nSamp = trialLength_samp + c.getLookahead();
+        if (nSamp == data.getColumnDimension()) return data;
+        return new Matrix(data.getSubMatrix(0, data.getRowDimension() - 1, 0, nSamp - 1));
+    }
+
     public void mainloop() {
         // Get information of the buffer
         int nEvents = header.nEvents;
@@ -263,6 +280,12 @@ public class ContinuousClassifier {
 		  int nOut=classifiers.get(0).getOutputSize()-1; nOut=nOut>0?nOut:1;
         Matrix dv = null;
         boolean endEvent = false;
+        // Receive buffers reused for every window
+        DataDescription dd = new DataDescription();
+        double[] window = new double[header.nChans * (trialLength_samp + lookahead_samp)];
+        double[][] rows = null; // window as channels x samples, wrapped by windowData
+        Matrix windowData = null;
+        dataCache = new WindowedSampleCache(C, trialLength_samp + lookahead_samp + step_samp);
         long t0 = System.currentTimeMillis();
 		  long t=t0;
 		  long pnext=t+printInterval_ms;
@@ -278,9 +301,9 @@ public class ContinuousClassifier {
             // Block until there are new events
             try {
 					 if ( VERB>1 ) {
-						  System.out.println(TAG+ " Waiting for " + (nSamples + trialLength_samp + 1) + " samples");
+						  System.out.println(TAG+ " Waiting for " + (nSamples + trialLength_samp + lookahead_samp + 1) + " samples");
 					 }
-                status = C.waitForSamples(nSamples + trialLength_samp + 1, this.timeout_ms);
+                status = C.waitForSamples(nSamples + trialLength_samp + lookahead_samp + 1, this.timeout_ms);
             } catch (IOException e) {
                 e.printStackTrace();
 					 // connection to buffer failed = quit
@@ -291,6 +314,8 @@ public class ContinuousClassifier {
                 System.out.println(TAG+  " Buffer restart detected");
                 nSamples = status.nSamples;
                 dv = null;
+                dataCache.reset();
+                for (PreprocClassifier c : classifiers) c.reset();
                 continue;
             }
 
@@ -304,19 +329,26 @@ public class ContinuousClassifier {
 
             // Process any new data
             int onSamples = nSamples;
-            int[] startIdx= Matrix.range(onSamples, status.nSamples - trialLength_samp - 1, step_samp);
+            int[] startIdx= Matrix.range(onSamples, status.nSamples - trialLength_samp - lookahead_samp - 1, step_samp);
             if (startIdx.length > 0) nSamples = startIdx[startIdx.length - 1] + step_samp;
 
             for (int fromId : startIdx) {
                 // Get the data
-                int toId = fromId + trialLength_samp - 1;
-                Matrix data = null;
+                int toId = fromId + trialLength_samp + lookahead_samp - 1;
                 try {
-                    data = new Matrix(new Matrix(C.getDoubleData(fromId, toId)).transpose());
+                    dataCache.getDoubleData(fromId, toId, dd, window, true); // channel major
                 } catch (IOException e) {
                     e.printStackTrace();
                     continue;
                 }
+                if (rows == null || rows.length != dd.nChans || rows[0].length != dd.nSamples) {
+                    rows = new double[dd.nChans][dd.nSamples];
+                    windowData = new Matrix(rows, false);
+                }
+                for (int ch = 0; ch < dd.nChans; ch++) {
+                    System.arraycopy(window, ch * dd.nSamples, rows[ch], 0, dd.nSamples);
+                }
+                Matrix data = windowData;
 					 if ( VERB>1 ) {
 						  System.out.println(TAG+ String.format(" Got data @ %d->%d samples", fromId, toId));
 					 }
@@ -326,7 +358,7 @@ public class ContinuousClassifier {
                 Matrix fraw = new Matrix(classifiers.get(0).getOutputSize(), 1);
                 ClassifierResult result = null;
                 for (PreprocClassifier c : classifiers) {
-                    result = c.apply(data);
+                    result = c.apply(windowFor(c, data), fromId);
                     f      = new Matrix(f.add(result.f));    // accumulate predictions over classifiers
                     fraw   = new Matrix(fraw.add(result.fraw));
                 }
@@ -403,6 +435,7 @@ public class ContinuousClassifier {
 				"predictionEventType:\t" + predictionEventType + "\n" +
 				"trialLength_ms:  \t" + trialLength_ms + "\n"+
 				"trialLength_samp:\t" + trialLength_samp + "\n" + 
+				"lookahead_samp:  \t" + lookahead_samp + "\n" + 
 				"Overlap:         \t" +	overlap + "\n" +
 				"step_ms:         \t" + step_ms + "\n" + 
 				"step_samp:       \t" + step_samp + "\n" + 
@@ -3,6 +3,7 @@ package nl.dcc.buffer_bci.signalprocessing;
 import nl.dcc.buffer_bci.matrixalgebra.linalg.Matrix;
 import nl.dcc.buffer_bci.matrixalgebra.linalg.WelchOutputType;
 import nl.dcc.buffer_bci.matrixalgebra.miscellaneous.ArrayFunctions;
+import nl.dcc.buffer_bci.matrixalgebra.miscellaneous.FIRFilter;
 import nl.dcc.buffer_bci.matrixalgebra.miscellaneous.ParameterChecker;
 import nl.dcc.buffer_bci.matrixalgebra.miscellaneous.Windows;
 import org.apache.commons.math3.linear.DefaultRealMatrixChangingVisitor;
@@ -19,6 +20,17 @@ import java.util.List;
 public class ERPClassifier extends PreprocClassifier {
     public static String TAG = ERPClassifier.class.toString();
 
+	 // spectral filter as a linear phase FIR filter, see FIRFilter.fromSpectrum
+	 private FIRFilter filter = null;
+	 private double gain; // sum of the taps, the gain of the filter for a linear trend
+	 // pre-processed channels x time of the last block filtered as a stream, see apply(data,sampleIdx)
+	 private PreprocPipeline mixPipeline = null; // bad channels and spatial filter of a block
+	 private double[][] mixed = null, filtered = null, windowOut = null;
+	 private int[] timeIdx = null;
+	 private double[] intercept = null, slope = null;
+	 private int filteredStart = 0;
+	 private int nFiltered = 0;
+
 	 public ERPClassifier( PreprocClassifier pc ){
 		  super(pc);
 	 }
@@ -39,9 +51,136 @@ public class ERPClassifier extends PreprocClassifier {
 		  // Common pre-processing
 		  data = super.preproc(data);
 
-		  // TODO: Add the spectral filter
-		  
-		  System.out.println("Error: Not defined yet");
+		  // Spectral filter, on this window only
+		  if ( spectralFilter != null ) {
+				if ( VERB>1 ) System.out.println(TAG+ "Spectral filtering the data");
+				double[][] x = data.getDataRef();
+				getFilter().applyCentered(x);
+				data = new Matrix(x, false);
+		  }
 		  return data;
 	 }
+
+	 /**
+	  * Samples after the window needed by apply(data,sampleIdx): the delay of the spectral filter.
+	  */
+	 @Override
+	 public int getLookahead(){
+		  return spectralFilter == null ? 0 : getFilter().getDelay();
+	 }
+
+	 /**
+	  * Filters the data as a continuous stream instead of window by window. The stages are those of
+	  * preproc(data): bad channels and spatial filter, linear detrend over the window, time range,
+	  * spectral filter. The first two are applied to the whole block, which is then filtered as a
+	  * stream: only the samples which were not part of the previous block are filtered, continuing
+	  * from the filter state left by it, and the rest are taken from the previous block. The filter
+	  * lags by getLookahead() samples, so data holds the window followed by that many samples and
+	  * the filtered window is cut that much later. The trend of the window is removed afterwards,
+	  * as the filter passes a linear trend unchanged except for its gain. When the stream starts the
+	  * filter is primed with the trend of the first window, as if the signal had followed it before,
+	  * so there is no start-up transient from the offset of the data.
+	  *
+	  * For a contiguous windowTimeIdx the result equals preproc(window) except within the filter
+	  * delay of either end of the time range, where preproc zero pads the detrended window and this
+	  * uses the neighbouring samples of the stream.
+	  */
+	 @Override
+	 public ClassifierResult apply(Matrix data, int sampleIdx){
+		  if ( spectralFilter == null ) return apply(data);
+		  if ( VERB>0 ) System.out.println("ERP apply");
+		  int delay = getLookahead();
+		  int nCh = data.getRowDimension();
+		  int nBlock = data.getColumnDimension();
+		  int nSamp = nBlock - delay;
+		  if ( nSamp <= 0 ) {
+				throw new IllegalArgumentException("Data has " + nBlock + " samples, but the filter delay alone is " + delay);
+		  }
+		  if ( mixPipeline == null || !mixPipeline.fits(nCh, nBlock) ) {
+				mixPipeline = new PreprocPipeline(nCh, nBlock, goodChannels(nCh), null, spatialFilter);
+				int nOut = mixPipeline.getNumOutputChannels();
+				timeIdx = windowTimeIdx == null ? Matrix.range(0, nSamp, 1) : windowTimeIdx;
+				for ( int t : timeIdx ) {
+					 if ( t < 0 || t >= nSamp ) throw new IllegalArgumentException("Time index " + t + " outside 0.." + (nSamp - 1));
+				}
+				mixed     = new double[nOut][nBlock];
+				filtered  = new double[nOut][nBlock];
+				windowOut = new double[nOut][timeIdx.length];
+				intercept = new double[nOut];
+				slope     = new double[nOut];
+				reset();
+		  }
+		  mixPipeline.apply(data.getDataRef(), mixed, false);
+		  trend(mixed, nSamp);
+
+		  int shift = sampleIdx - filteredStart;
+		  if ( nFiltered == 0 || shift < 0 || shift > nFiltered ) { // not a continuation of the last block
+				reset();
+				prime(delay);
+				shift = nFiltered;
+		  }
+		  int keep = nFiltered - shift;
+		  for ( int r=0; r<filtered.length; r++ ) {
+				System.arraycopy(filtered[r], shift, filtered[r], 0, keep);
+				System.arraycopy(mixed[r], keep, filtered[r], keep, nBlock-keep);
+		  }
+		  getFilter().apply(filtered, keep, nBlock-keep);
+		  filteredStart = sampleIdx;
+		  nFiltered     = nBlock;
+
+		  // the filter output for window sample t is at t+delay
+		  for ( int r=0; r<windowOut.length; r++ ) {
+				double[] row = windowOut[r];
+				for ( int j=0; j<timeIdx.length; j++ ) {
+					 row[j] = filtered[r][timeIdx[j] + delay];
+					 if ( detrend ) row[j] -= gain * (intercept[r] + slope[r] * timeIdx[j]);
+				}
+		  }
+		  return classify(new Matrix(windowOut, false));
+	 }
+
+	 /**
+	  * Fills the filter history with the trend of the window extrapolated backwards
+	  */
+	 private void prime(int delay){
+		  double[][] before = new double[intercept.length][2*delay];
+		  for ( int r=0; r<before.length; r++ ) {
+				for ( int t=0; t<2*delay; t++ ) before[r][t] = intercept[r] + slope[r] * (t - 2*delay);
+		  }
+		  getFilter().apply(before, 0, 2*delay);
+	 }
+
+	 // least squares fit a+b*t over the first nSamp samples of each row, as Matrix.detrend
+	 private void trend(double[][] x, int nSamp){
+		  double tMean = (nSamp - 1) / 2.0;
+		  double tVar  = nSamp * ((double) nSamp * nSamp - 1) / 12.0;
+		  for ( int r=0; r<x.length; r++ ) {
+				double sx = 0, stx = 0;
+				for ( int t=0; t<nSamp; t++ ) {
+					 sx  += x[r][t];
+					 stx += (t - tMean) * x[r][t];
+				}
+				slope[r]     = nSamp > 1 ? stx / tVar : 0;
+				intercept[r] = sx / nSamp - slope[r] * tMean;
+		  }
+	 }
+
+	 @Override
+	 public void reset(){
+		  if ( filter != null ) filter.reset();
+		  filteredStart = 0;
+		  nFiltered     = 0;
+	 }
+
+	 /**
+	  * @return the spectral filter, null if there is none
+	  */
+	 public FIRFilter getFilter(){
+		  if ( filter == null && spectralFilter != null ) {
+				filter = FIRFilter.fromSpectrum(spectralFilter);
+				gain = 0;
+				for ( double h : filter.getTaps() ) gain += h;
+		  }
+		  return filter;
+	 }
 }
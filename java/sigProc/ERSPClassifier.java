@@ -1,6 +1,7 @@
 package nl.dcc.buffer_bci.signalprocessing;
 
 import nl.dcc.buffer_bci.matrixalgebra.linalg.Matrix;
+import nl.dcc.buffer_bci.matrixalgebra.linalg.StreamingWelch;
 import nl.dcc.buffer_bci.matrixalgebra.linalg.WelchOutputType;
 import nl.dcc.buffer_bci.matrixalgebra.miscellaneous.ArrayFunctions;
 import nl.dcc.buffer_bci.matrixalgebra.miscellaneous.ParameterChecker;
@@ -19,6 +20,11 @@ import java.util.List;
 public class ERSPClassifier extends PreprocClassifier {
     public static String TAG = ERSPClassifier.class.toString();
 
+	 // welch spectra of the segments of earlier windows, see apply(data,sampleIdx)
+	 private StreamingWelch streamingWelch = null;
+	 private boolean streamAligned = false;
+	 private double[] intercept = null, slope = null;
+
 	 public ERSPClassifier( PreprocClassifier pc ){
 		  super(pc);
 	 }
@@ -44,7 +50,62 @@ public class ERSPClassifier extends PreprocClassifier {
 		  // TODO: Make welch more intelligent....
 		  data = data.welch(1, welchWindow, welchAveType, null, 0);
 		  if ( VERB>1 ) System.out.println(TAG+  "New size: " + data.shapeString());
+		  return selectFrequencies(data);
+	 }
+
+	 /**
+	  * Pre-processing of the window of a stream which starts at sample sampleIdx. Only computes
+	  * the welch spectra of segments which were not part of earlier windows, see StreamingWelch.
+	  * By default the segments start every welchWindow.length samples from the start of the window,
+	  * as in preproc(data), so they are shared when the step between windows is a multiple of
+	  * welchWindow.length; see setStreamAligned for sharing them whatever the step. The linear
+	  * detrend of the whole window is removed from the spectra of the segments instead of from the
+	  * data, which agrees with preproc(data) up to rounding.
+	  */
+	 public Matrix preproc(Matrix data, int sampleIdx){
+		  // segments are kept by sample number, so the time range has to be contiguous
+		  int timeOffset = 0;
+		  if ( windowTimeIdx != null ) {
+				timeOffset = windowTimeIdx[0];
+				for ( int i=1; i<windowTimeIdx.length; i++ ) {
+					 if ( windowTimeIdx[i] != timeOffset+i ) return preproc(data);
+				}
+		  }
+
+		  // Common pre-processing, with the trend of each channel over the whole window returned
+		  // instead of removed
+		  PreprocPipeline p = getPipeline(data.getRowDimension(), data.getColumnDimension());
+		  double[][] x = workspace(p);
+		  if ( detrend ) {
+				if ( intercept == null || intercept.length != x.length ) {
+					 intercept = new double[x.length];
+					 slope     = new double[x.length];
+				}
+				p.apply(data.getDataRef(), x, intercept, slope);
+		  } else {
+				p.apply(data.getDataRef(), x, false);
+		  }
+		  data = new Matrix(x, false);
+
+		  if ( VERB>1 ) System.out.println(TAG+ "Spectral transformation with streaming welch method");
+		  if ( streamingWelch == null ) streamingWelch = new StreamingWelch(welchWindow, streamAligned);
+		  data = streamingWelch.welch(data, sampleIdx + timeOffset, detrend ? intercept : null, slope);
+		  if ( VERB>1 ) System.out.println(TAG+  "New size: " + data.shapeString());
+		  return selectFrequencies(data);
+	 }
+
+	 /**
+	  * Starts the welch segments of apply(data,sampleIdx) every welchWindow.length samples from the
+	  * start of the stream instead of the window, so windows share them whatever the step. The
+	  * features then differ from those of preproc(data), which the classifier was trained on: the
+	  * segments cover other samples and a window may average one segment less. Off by default.
+	  */
+	 public void setStreamAligned(boolean streamAligned){
+		  if ( streamAligned != this.streamAligned ) streamingWelch = null;
+		  this.streamAligned = streamAligned;
+	 }
 
+	 private Matrix selectFrequencies(Matrix data){
 		  // Selecting frequencies
 		  if (windowFrequencyIdx != null) {
 				if ( VERB>1 ) System.out.println(TAG+"Frequency selection");
@@ -59,8 +120,22 @@ public class ERSPClassifier extends PreprocClassifier {
     public ClassifierResult apply(Matrix data) {	
 		  if ( VERB>0 ) System.out.println("ERSP apply");
 		  // Do the standard pre-processing
-		  data = preproc(data);
-		  
+		  return classify(preproc(data));
+	 }
+
+	 @Override
+    public ClassifierResult apply(Matrix data, int sampleIdx) {	
+		  if ( VERB>0 ) System.out.println("ERSP apply");
+		  return classify(preproc(data, sampleIdx));
+	 }
+
+	 @Override
+	 public void reset(){
+		  if ( streamingWelch != null ) streamingWelch.reset();
+	 }
+
+	 @Override
+	 protected ClassifierResult classify(Matrix data) {
 		  // Linearly classifying the data
 		  if( VERB>1 ) System.out.println(TAG+ "Classifying with linear classifier");
 		  Matrix fraw = applyLinearClassifier(data, 0);
@@ -274,11 +274,54 @@ public class FilePlayback {
     public boolean isrunning(){ return run; }
 
 	 void initFiles(String fdir) throws FileNotFoundException {
-		  dataReader = new BufferedInputStream(new FileInputStream(fdir + File.separator + "samples"));
-		  eventReader = new BufferedInputStream(new FileInputStream(fdir + File.separator + "events"));
+		  dataReader = new BufferedInputStream(openRecording(new File(fdir + File.separator + "samples")));
+		  eventReader = new BufferedInputStream(openRecording(new File(fdir + File.separator + "events")));
 		  headerReader = new BufferedInputStream(new FileInputStream(fdir + File.separator + "header"));
     }
 
+	 /**
+	  * Opens a samples or events file of a recording, stopping at the valid length the server
+	  * records in file.length, as after a crash the file may end with zeros which are not data.
+	  */
+	 static InputStream openRecording(File file) throws FileNotFoundException {
+		  InputStream in = new FileInputStream(file);
+		  File lengthFile = new File(file.getPath() + ".length");
+		  if ( !lengthFile.exists() ) return in;
+		  long length;
+		  try {
+				DataInputStream lin = new DataInputStream(new FileInputStream(lengthFile));
+				try {
+					 length = lin.readLong();
+				} finally {
+					 lin.close();
+				}
+		  } catch ( IOException e ) {
+				System.err.println(TAG+" Could not read " + lengthFile + ", reading all of " + file);
+				return in;
+		  }
+		  final long validLength = length;
+		  return new FilterInputStream(in) {
+				private long remaining = validLength;
+				public int read() throws IOException {
+					 if ( remaining <= 0 ) return -1;
+					 int b = super.read();
+					 if ( b >= 0 ) remaining--;
+					 return b;
+				}
+				public int read(byte[] b, int off, int len) throws IOException {
+					 if ( remaining <= 0 ) return -1;
+					 int n = super.read(b, off, (int)Math.min(len, remaining));
+					 if ( n > 0 ) remaining -= n;
+					 return n;
+				}
+				public long skip(long n) throws IOException {
+					 long k = super.skip(Math.min(n, remaining));
+					 remaining -= k;
+					 return k;
+				}
+		  };
+	 }
+
 	 void cleanup() throws IOException {
         if (headerReader != null) {
             headerReader.close();
@@ -638,19 +638,29 @@ public class Matrix extends Array2DRowRealMatrix {
     public Matrix fft2(int axis, TransformType direction) {
         ParameterChecker.checkAxis(axis);
 
-        FastFourierTransformer fft = new FastFourierTransformer(DftNormalization.STANDARD);
-        double[][] ft = new double[this.getRowDimension()][this.getColumnDimension()];
-        if (axis == 0) {
-            for (int c = 0; c < this.getColumnDimension(); c++) {
-                Complex[] complexResult = fft.transform(this.getColumn(c), direction);
-                for (int i = 0; i < complexResult.length; i++)
-                    ft[i][c] = complexResult[i].abs()*complexResult[i].abs();
+        int nRows = this.getRowDimension();
+        int nCols = this.getColumnDimension();
+        int n = axis == 0 ? nRows : nCols;
+        RealFFT fft = RealFFT.get(n);
+        // the inverse of real data is the conjugate of the forward transform divided by n
+        double scale = direction == TransformType.INVERSE ? 1. / ((double) n * n) : 1;
+        double[][] x = this.getDataRef();
+        double[][] ft = new double[nRows][nCols];
+        double[] buf = new double[n];
+        double[] pow = new double[fft.numFrequencies()];
+        for (int l = 0; l < (axis == 0 ? nCols : nRows); l++) {
+            if (axis == 0) for (int i = 0; i < n; i++) buf[i] = x[i][l];
+            else System.arraycopy(x[l], 0, buf, 0, n);
+            fft.power(buf, pow);
+            // negative frequencies have the same power as the positive ones
+            for (int i = 0; i < n; i++) {
+                double p = pow[i <= n / 2 ? i : n - i];
+                if (direction == TransformType.INVERSE) p = p * scale;
+                if (axis == 0) ft[i][l] = p;
+                else ft[l][i] = p;
             }
-        } else {
-				// TODO: This is inefficient....
-            return this.transpose().fft2(0, direction).transpose();
         }
-        return new Matrix(ft);
+        return new Matrix(ft, false);
     }
 
     /**
@@ -932,63 +942,68 @@ public class Matrix extends Array2DRowRealMatrix {
             wHeight = this.getRowDimension();
             wWidth = reducedDim;
         }
-        Matrix W = Matrix.zeros(wHeight, wWidth);
+        double[][] W = new double[wHeight][wWidth];
 
         // Create indexes
         ArrayList<int[]> idx = new ArrayList<int[]>();
         idx.add(Matrix.range(0, this.getRowDimension(), 1));
         idx.add(Matrix.range(0, this.getColumnDimension(), 1));
-        ArrayList<int[]> wIdx = new ArrayList<int[]>();
-        wIdx.add(Matrix.range(0, wHeight, 1));
-        wIdx.add(Matrix.range(0, wWidth, 1));
+
+        RealFFT fft = RealFFT.get(width);
+        double[] buf = new double[width];
+        double[] pow = new double[reducedDim];
 
         // Sum over the windows
         for (int wi : start ) { 
-            // Window the dimension
-            idx.set(dim, Matrix.range(wi, wi + width, 1));
+            double[][] wX = this.getDataRef();
+            int offset = wi;
+            if (detrendP==1 || detrendP==2) {
+                // Window the dimension
+                idx.set(dim, Matrix.range(wi, wi + width, 1));
+
+                // Get submatrix
+                Matrix sub = new Matrix(this.getSubMatrix(idx.get(0), idx.get(1)));
 
-            // Get submatrix
-            Matrix wX = new Matrix(this.getSubMatrix(idx.get(0), idx.get(1)));
+                if (detrendP==2) // Subtract mean from window
+                    sub = sub.subtract(sub.mean(dim).repeat(sub.getDimension(dim), dim));
 
-            if (detrendP==2) // Subtract mean from window
-                wX = wX.subtract(wX.mean(dim).repeat(wX.getDimension(dim), dim));
+                if (detrendP==1) // Detrend window
+                    sub = sub.detrend(dim, "linear");
 
-            if (detrendP==1) // Detrend window
-                wX = wX.detrend(dim, "linear");
+                wX = sub.getDataRef();
+                offset = 0;
+            }
 
-            // Apply taper to this window
-            wX.walkInOptimizedOrder(new DefaultRealMatrixChangingVisitor() {
-                @Override
-                public double visit(int row, int column, double value) {
-                    if (dim == 0) return value * taper2[row];
-                    else return value * taper2[column];
+            for (int l = 0; l < sizeOtherDim; l++) {
+                // Apply taper to this window
+                for (int k = 0; k < width; k++)
+                    buf[k] = (dim == 0 ? wX[offset + k][l] : wX[l][offset + k]) * taper2[k];
+
+                // squared Fourier, positive frequency only
+                fft.power(buf, pow);
+
+                for (int f = 0; f < reducedDim; f++) {
+                    double v = pow[f] * 2.0;
+                    switch (outType) {
+                    case AMPLITUDE:
+                        v = Math.sqrt(v);
+                        break;
+                    case POWER:
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Only amp is supported");
+                    }
+                    if (dim == 0) W[f][l] = W[f][l] + v;
+                    else W[l][f] = W[l][f] + v;
                 }
-            });
-				
-				if ( VERB>1 ) System.out.println(TAG+"Welch: data+taper="+wX.toString());
-
-            // squared Fourier
-            wX = new Matrix(wX.fft2(dim).scalarMultiply(2.0));
-				if ( VERB>1 ) System.out.println(TAG+"Welch: data+fft2="+wX.toString());
-
-            // Positive frequency only
-            wX = new Matrix(wX.getSubMatrix(wIdx.get(0), wIdx.get(1)));
-				if ( VERB>1 ) System.out.println(TAG+"Welch: data+fft2+freqIdx="+wX.toString());
-
-            switch (outType) {
-				case AMPLITUDE:
-					 W = new Matrix(W.add(wX.sqrt()));
-					 break;
-				case POWER:
-					 W = new Matrix(W.add(wX));
-					 break;
-				default:
-					 throw new IllegalArgumentException("Only amp is supported");
             }
         }
 		  double tapersum=0; for ( int i=0;i<taper.length; i++ ) tapersum+=taper[i];
-        W = new Matrix(W.scalarMultiply(1. / (start.length * tapersum)));
-        return W;
+        double scale = 1. / (start.length * tapersum);
+        for (int r = 0; r < wHeight; r++)
+            for (int c = 0; c < wWidth; c++)
+                W[r][c] = W[r][c] * scale;
+        return new Matrix(W, false);
     }
 
 	 public static Matrix fromString(BufferedReader bufferedReader) throws IOException {
@@ -0,0 +1,185 @@
+package nl.dcc.buffer_bci.matrixalgebra.linalg;
+
+import java.util.HashMap;
+
+/**
+ * Fast fourier transform of real data of a power of 2 length, with the same (STANDARD) convention
+ * as the commons-math FastFourierTransformer: X[k] = sum_j x[j] exp(-2 pi i j k / n).
+ *
+ * The n real values are transformed as n/2 complex values, followed by a split into the spectra of
+ * the even and odd samples, and only the n/2+1 non-negative frequencies are returned; the others
+ * are their complex conjugates. inverse goes the other way. The twiddle factors and bit-reversal
+ * permutation are computed once per length and shared, see get. A transform allocates nothing: it
+ * works in place in the input, which is overwritten, and writes the result into arrays given by
+ * the caller, so one RealFFT can be used by several threads at once.
+ */
+public class RealFFT {
+
+    private static final HashMap<Integer, RealFFT> plans = new HashMap<Integer, RealFFT>();
+
+    private final int n;        // number of real values
+    private final int m;        // number of complex values, n/2
+    private final double[] cos; // cos(2 pi k / n), k=0..m
+    private final double[] sin; // sin(2 pi k / n), k=0..m
+    private final int[] rev;    // bit-reversal permutation of 0..m-1
+
+    /**
+     * Returns the (shared) transform of length n
+     *
+     * @param n length, a power of 2
+     * @return the transform
+     */
+    public static synchronized RealFFT get(int n) {
+        RealFFT plan = plans.get(n);
+        if ( plan == null ) {
+            plan = new RealFFT(n);
+            plans.put(n, plan);
+        }
+        return plan;
+    }
+
+    private RealFFT(int n) {
+        if ( n < 1 || (n & (n - 1)) != 0 )
+            throw new IllegalArgumentException("FFT length should be a power of 2 but is " + n);
+        this.n = n;
+        m = n / 2;
+        cos = new double[m + 1];
+        sin = new double[m + 1];
+        for (int k = 0; k <= m; k++) {
+            cos[k] = Math.cos(2 * Math.PI * k / n);
+            sin[k] = Math.sin(2 * Math.PI * k / n);
+        }
+        rev = new int[m];
+        int bits = 0;
+        while ( (1 << bits) < m ) bits++;
+        for (int i = 0; i < m; i++) {
+            int r = 0;
+            for (int b = 0; b < bits; b++) if ( (i & (1 << b)) != 0 ) r |= 1 << (bits - 1 - b);
+            rev[i] = r;
+        }
+    }
+
+    /**
+     * @return the length of the transform
+     */
+    public int size() {
+        return n;
+    }
+
+    /**
+     * @return the number of non-negative frequencies, n/2+1
+     */
+    public int numFrequencies() {
+        return m + 1;
+    }
+
+    /**
+     * Fourier transform of the non-negative frequencies
+     *
+     * @param x  n values to transform, overwritten
+     * @param re real parts of the n/2+1 non-negative frequencies
+     * @param im imaginary parts of the n/2+1 non-negative frequencies
+     */
+    public void transform(double[] x, double[] re, double[] im) {
+        if ( n == 1 ) {
+            re[0] = x[0];
+            im[0] = 0;
+            return;
+        }
+        complexTransform(x);
+        re[0] = x[0] + x[1];
+        im[0] = 0;
+        re[m] = x[0] - x[1];
+        im[m] = 0;
+        for (int k = 1; k < m; k++) {
+            double a = x[2 * k], b = x[2 * k + 1];
+            double c = x[2 * (m - k)], d = x[2 * (m - k) + 1];
+            re[k] = (a + c) / 2 + ((b + d) * cos[k] + (c - a) * sin[k]) / 2;
+            im[k] = (b - d) / 2 + ((c - a) * cos[k] - (b + d) * sin[k]) / 2;
+        }
+    }
+
+    /**
+     * Squared magnitude of the fourier transform of the non-negative frequencies
+     *
+     * @param x   n values to transform, overwritten
+     * @param pow n/2+1 squared magnitudes, |X[k]|^2
+     */
+    public void power(double[] x, double[] pow) {
+        if ( n == 1 ) {
+            pow[0] = x[0] * x[0];
+            return;
+        }
+        complexTransform(x);
+        double r = x[0] + x[1];
+        pow[0] = r * r;
+        r = x[0] - x[1];
+        pow[m] = r * r;
+        for (int k = 1; k < m; k++) {
+            double a = x[2 * k], b = x[2 * k + 1];
+            double c = x[2 * (m - k)], d = x[2 * (m - k) + 1];
+            double re = (a + c) / 2 + ((b + d) * cos[k] + (c - a) * sin[k]) / 2;
+            double im = (b - d) / 2 + ((c - a) * cos[k] - (b + d) * sin[k]) / 2;
+            pow[k] = re * re + im * im;
+        }
+    }
+
+    /**
+     * Inverse fourier transform, with the same (STANDARD) scaling as the commons-math inverse, of
+     * the spectrum of real data given by its non-negative frequencies
+     *
+     * @param re real parts of the n/2+1 non-negative frequencies
+     * @param im imaginary parts of the n/2+1 non-negative frequencies
+     * @param x  the n real values
+     */
+    public void inverse(double[] re, double[] im, double[] x) {
+        if ( n == 1 ) {
+            x[0] = re[0];
+            return;
+        }
+        // undo the even/odd split: z[j]=x[2j]+i*x[2j+1] has spectrum E[k]+i*O[k], with
+        // E[k]=(X[k]+conj(X[m-k]))/2 and O[k]=(X[k]-conj(X[m-k]))*exp(2 pi i k/n)/2
+        for (int k = 0; k < m; k++) {
+            double dr = (re[k] - re[m - k]) / 2, di = (im[k] + im[m - k]) / 2;
+            double er = (re[k] + re[m - k]) / 2 - (dr * sin[k] + di * cos[k]);
+            double ei = (im[k] - im[m - k]) / 2 + (dr * cos[k] - di * sin[k]);
+            // inverse as the conjugate of the forward transform of the conjugate
+            x[2 * k]     = er;
+            x[2 * k + 1] = -ei;
+        }
+        complexTransform(x);
+        for (int j = 0; j < m; j++) {
+            x[2 * j]     = x[2 * j] / m;
+            x[2 * j + 1] = -x[2 * j + 1] / m;
+        }
+    }
+
+    /**
+     * In place transform of the m complex values x[2j]+i*x[2j+1]
+     */
+    private void complexTransform(double[] x) {
+        for (int i = 0; i < m; i++) {
+            int j = rev[i];
+            if ( j > i ) {
+                double t = x[2 * i]; x[2 * i] = x[2 * j]; x[2 * j] = t;
+                t = x[2 * i + 1]; x[2 * i + 1] = x[2 * j + 1]; x[2 * j + 1] = t;
+            }
+        }
+        for (int len = 2; len <= m; len <<= 1) {
+            int half = len / 2;
+            int step = n / len; // exp(-2 pi i j / len) = cos[j*step] - i*sin[j*step]
+            for (int i = 0; i < m; i += len) {
+                for (int j = 0; j < half; j++) {
+                    double c = cos[j * step], s = sin[j * step];
+                    int p = 2 * (i + j), q = 2 * (i + j + half);
+                    double tr = x[q] * c + x[q + 1] * s;
+                    double ti = x[q + 1] * c - x[q] * s;
+                    x[q]     = x[p] - tr;
+                    x[q + 1] = x[p + 1] - ti;
+                    x[p]     += tr;
+                    x[p + 1] += ti;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package nl.dcc.buffer_bci.matrixalgebra.linalg;
+
+import java.util.TreeMap;
+
+/**
+ * Welch amplitude spectrum of a window sliding over a continuous stream of data, without
+ * transforming the segments a window shares with earlier windows again.
+ *
+ * The fourier transform of every segment is kept, by the number of its first sample in the stream,
+ * until the window has moved past it. Where the segments start depends on the mode:
+ * <ul>
+ * <li>window aligned (the default): as Matrix.welch(1,taper,WelchOutputType.AMPLITUDE,null,0),
+ * every taper.length samples from the start of the window. Windows only share segments when they
+ * start a multiple of taper.length samples apart, otherwise every window transforms all of its
+ * segments, and only the segments of the last window are kept.</li>
+ * <li>stream aligned: every taper.length samples from the start of the stream, so the segments are
+ * the same whatever the step between windows and each window only transforms its newly completed
+ * segments. The result is Matrix.welch with the start points of the stream grid falling in the
+ * window; it differs from the window aligned spectrum in which samples the segments cover, and a
+ * window may have a segment less. If no grid segment fits in a window its segments are window
+ * aligned.</li>
+ * </ul>
+ *
+ * Without a trend the result is identical to Matrix.welch with the same start points. A linear
+ * trend, as removed by Matrix.detrend on the whole window, is removed from the kept transforms using
+ * the transforms of the taper and of the tapered ramp, which agrees with detrending first up to
+ * rounding.
+ */
+public class StreamingWelch {
+	 public static final String TAG=StreamingWelch.class.getSimpleName();
+
+    private final double[] taper;      // zero-padded to width
+    private final int      segStep;    // distance between the segment starts
+    private final boolean  streamAligned;
+    private final int      width;      // fft width
+    private final int      nFreq;      // number of positive frequencies
+    private final double   tapersum;
+    private final double[] taperRe, taperIm; // transform of the taper
+    private final double[] rampRe, rampIm;   // transform of taper[k]*k
+    private final RealFFT  fft;
+    private final double[] buf;
+
+    // kept segment transforms by the sample number of their first sample
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    private int nChans = -1;
+    private int lastOffset = Integer.MIN_VALUE;
+    private long nTransformed = 0;
+
+    private static class Segment {
+        double[][] re, im; // [channel][frequency]
+        double[][]  amp; // untrended amplitudes, computed when first needed
+    }
+
+    /**
+     * Segments aligned to the start of each window, as Matrix.welch
+     *
+     * @param taper window function of each segment, zero-padded to the next power of 2
+     */
+    public StreamingWelch(double[] taper) {
+        this(taper, false);
+    }
+
+    /**
+     * @param taper         window function of each segment, zero-padded to the next power of 2
+     * @param streamAligned start the segments every taper.length samples from the start of the stream
+     *                      instead of from the start of each window
+     */
+    public StreamingWelch(double[] taper, boolean streamAligned) {
+        this.streamAligned = streamAligned;
+        if ( taper.length == 0 ) throw new IllegalArgumentException("Empty taper");
+		  width = 1 << (int)Math.ceil(Math.log(taper.length)/Math.log(2));
+		  if ( width > taper.length ) {
+				System.err.println(TAG+" Warning: taper is not power of 2, zero-padding: " + taper.length + " -> " + width);
+		  }
+        this.taper = new double[width];
+        System.arraycopy(taper, 0, this.taper, 0, taper.length);
+        segStep = taper.length;
+        nFreq = (int) Math.round(((Math.ceil(((double) width - 1) / 2) + 1)));
+		  double sum=0; for ( int i=0;i<taper.length; i++ ) sum+=taper[i];
+        tapersum = sum;
+
+        fft = RealFFT.get(width);
+        buf = new double[width];
+        taperRe = new double[nFreq]; taperIm = new double[nFreq];
+        rampRe  = new double[nFreq]; rampIm  = new double[nFreq];
+        System.arraycopy(this.taper, 0, buf, 0, width);
+        fft.transform(buf, taperRe, taperIm);
+        for (int k = 0; k < width; k++) buf[k] = this.taper[k] * k;
+        fft.transform(buf, rampRe, rampIm);
+    }
+
+    /**
+     * Welch spectrum of a window
+     *
+     * @param data   channels x time window
+     * @param offset number of the first sample of the window in the stream
+     * @return channels x frequencies amplitude spectrum, as Matrix.welch with the start points of
+     * getStarts
+     */
+    public Matrix welch(Matrix data, int offset) {
+        return welch(data, offset, null, null);
+    }
+
+    /**
+     * Welch spectrum of a window after removing a linear trend per channel
+     *
+     * @param data      channels x time window
+     * @param offset    number of the first sample of the window in the stream
+     * @param intercept trend at the first sample of the window, per channel, or null for none
+     * @param slope     increase of the trend per sample, per channel
+     * @return channels x frequencies amplitude spectrum, as Matrix.welch of the detrended data with
+     * the start points of getStarts
+     */
+    public Matrix welch(Matrix data, int offset, double[] intercept, double[] slope) {
+        int nRows = data.getRowDimension();
+        if ( nRows != nChans || offset < lastOffset ) { // different data or stream restarted
+            reset();
+            nChans = nRows;
+        }
+        if ( !streamAligned && lastOffset != Integer.MIN_VALUE && (offset - lastOffset) % segStep != 0 ) {
+            segments.clear(); // segments of another phase, this window can't use them
+        }
+        lastOffset = offset;
+        segments.headMap(offset).clear(); // the window has moved past these
+
+        double[][] x = data.getDataRef();
+        int[] start = getStarts(offset, data.getColumnDimension());
+		  if ( start.length==0 ) {
+				System.err.println(TAG+" No start points?: sz="+data.getColumnDimension()+" wdth="+width+" taper.len="+segStep);
+		  }
+        double[][] W = new double[nRows][nFreq];
+        for (int wi : start) {
+            Segment seg = segments.get(offset + wi);
+            if ( seg == null ) {
+                seg = transform(x, wi);
+                segments.put(offset + wi, seg);
+            }
+            if ( intercept == null ) {
+                if ( seg.amp == null ) seg.amp = amplitude(seg);
+                for (int r = 0; r < nRows; r++)
+                    for (int f = 0; f < nFreq; f++)
+                        W[r][f] = W[r][f] + seg.amp[r][f];
+            } else {
+                for (int r = 0; r < nRows; r++) {
+                    // trend over this segment is a + b*k, k=0..width-1
+                    double a = intercept[r] + slope[r] * wi;
+                    double b = slope[r];
+                    double[] sre = seg.re[r], sim = seg.im[r];
+                    for (int f = 0; f < nFreq; f++) {
+                        double re = sre[f] - a * taperRe[f] - b * rampRe[f];
+                        double im = sim[f] - a * taperIm[f] - b * rampIm[f];
+                        W[r][f] = W[r][f] + Math.sqrt((re * re + im * im) * 2.0);
+                    }
+                }
+            }
+        }
+        double scale = 1. / (start.length * tapersum);
+        for (int r = 0; r < nRows; r++)
+            for (int f = 0; f < nFreq; f++)
+                W[r][f] = W[r][f] * scale;
+        return new Matrix(W, false);
+    }
+
+    /**
+     * Start points, relative to the window, of the segments of a window
+     *
+     * @param offset  number of the first sample of the window in the stream
+     * @param nSamples length of the window
+     * @return start points as passed to Matrix.welch
+     */
+    public int[] getStarts(int offset, int nSamples) {
+        if ( streamAligned ) {
+            // first multiple of segStep at or after offset, also for negative offsets
+            int first = offset % segStep == 0 ? offset : offset - offset % segStep + (offset > 0 ? segStep : 0);
+            int[] start = Matrix.range(first - offset, nSamples - width + 1, segStep);
+            if ( start.length > 0 ) return start;
+        }
+        return Matrix.range(0, nSamples - width + 1, segStep);
+    }
+
+    /**
+     * Forget all kept segments, e.g. when the stream restarts
+     */
+    public void reset() {
+        segments.clear();
+        nChans = -1;
+        lastOffset = Integer.MIN_VALUE;
+    }
+
+    /**
+     * @return number of segments fourier transformed so far
+     */
+    public long getNumTransformed() {
+        return nTransformed;
+    }
+
+    /**
+     * @return number of frequencies of the spectrum
+     */
+    public int getNumFrequencies() {
+        return nFreq;
+    }
+
+    private Segment transform(double[][] x, int wi) {
+        Segment seg = new Segment();
+        seg.re = new double[x.length][nFreq];
+        seg.im = new double[x.length][nFreq];
+        for (int r = 0; r < x.length; r++) {
+            for (int k = 0; k < width; k++) buf[k] = x[r][wi + k] * taper[k];
+            fft.transform(buf, seg.re[r], seg.im[r]);
+        }
+        nTransformed++;
+        return seg;
+    }
+
+    // same operations as Matrix.welch, so the results are identical
+    private double[][] amplitude(Segment seg) {
+        double[][] amp = new double[seg.re.length][nFreq];
+        for (int r = 0; r < seg.re.length; r++)
+            for (int f = 0; f < nFreq; f++) {
+                double re = seg.re[r][f], im = seg.im[r][f];
+                double p = re * re + im * im;
+                amp[r][f] = Math.sqrt(p * 2.0);
+            }
+        return amp;
+    }
+}
@@ -0,0 +1,61 @@
+package nl.dcc.buffer_bci.matrixalgebra.miscellaneous;
+
+/**
+ * IIR filter as a cascade of second order sections (biquads), each computed in transposed direct
+ * form II with 2 state values per channel.
+ */
+public class BiquadFilter implements StreamFilter {
+
+    private final double[][] sos; // per section b0,b1,b2,a1,a2 normalized by a0
+    private double[][][] state = null; // [channel][section][2]
+
+    /**
+     * @param sos second order sections, one row {b0,b1,b2,a0,a1,a2} per section as in matlab's sos
+     *            matrices, for H(z)=(b0+b1 z^-1+b2 z^-2)/(a0+a1 z^-1+a2 z^-2)
+     */
+    public BiquadFilter(double[][] sos) {
+        if (sos.length == 0) throw new IllegalArgumentException("No filter sections");
+        this.sos = new double[sos.length][5];
+        for (int s = 0; s < sos.length; s++) {
+            if (sos[s].length != 6 || sos[s][3] == 0)
+                throw new IllegalArgumentException("Section " + s + " should be {b0,b1,b2,a0,a1,a2} with a0!=0");
+            double a0 = sos[s][3];
+            this.sos[s][0] = sos[s][0] / a0;
+            this.sos[s][1] = sos[s][1] / a0;
+            this.sos[s][2] = sos[s][2] / a0;
+            this.sos[s][3] = sos[s][4] / a0;
+            this.sos[s][4] = sos[s][5] / a0;
+        }
+    }
+
+    public void apply(double[][] x, int start, int n) {
+        if (state == null || state.length != x.length) state = new double[x.length][sos.length][2];
+        for (int r = 0; r < x.length; r++) {
+            double[] row = x[r];
+            for (int s = 0; s < sos.length; s++) {
+                double b0 = sos[s][0], b1 = sos[s][1], b2 = sos[s][2], a1 = sos[s][3], a2 = sos[s][4];
+                double z1 = state[r][s][0], z2 = state[r][s][1];
+                for (int i = start; i < start + n; i++) {
+                    double in = row[i];
+                    double out = b0 * in + z1;
+                    z1 = b1 * in - a1 * out + z2;
+                    z2 = b2 * in - a2 * out;
+                    row[i] = out;
+                }
+                state[r][s][0] = z1;
+                state[r][s][1] = z2;
+            }
+        }
+    }
+
+    /**
+     * @return 0, the delay of an IIR filter depends on the frequency
+     */
+    public int getDelay() {
+        return 0;
+    }
+
+    public void reset() {
+        state = null;
+    }
+}
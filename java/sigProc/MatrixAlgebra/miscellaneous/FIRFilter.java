@@ -0,0 +1,138 @@
+package nl.dcc.buffer_bci.matrixalgebra.miscellaneous;
+
+import nl.dcc.buffer_bci.matrixalgebra.linalg.RealFFT;
+
+/**
+ * FIR filter which keeps the last taps-1 samples of each channel. Blocks are filtered by overlap-save
+ * with fft's of a fixed size, or directly when the block is too small for that to pay off.
+ */
+public class FIRFilter implements StreamFilter {
+
+    private final double[] taps;
+    private final int nTaps;
+    private final RealFFT fft;
+    private final int blockSize;      // new samples per fft block
+    private final double[] tapsRe, tapsIm;
+    private final double[] line, buf, re, im;
+    private double[][] history = null; // [channel][taps-1] last input samples
+
+    /**
+     * @param taps impulse response of the filter
+     */
+    public FIRFilter(double[] taps) {
+        if (taps.length == 0) throw new IllegalArgumentException("No filter taps");
+        this.taps = taps.clone();
+        nTaps = taps.length;
+        int n = 16;
+        while (n < 2 * nTaps) n <<= 1;
+        fft = RealFFT.get(n);
+        blockSize = n - nTaps + 1;
+        tapsRe = new double[fft.numFrequencies()];
+        tapsIm = new double[fft.numFrequencies()];
+        buf = new double[n];
+        System.arraycopy(taps, 0, buf, 0, nTaps);
+        fft.transform(buf, tapsRe, tapsIm);
+        line = new double[nTaps - 1 + blockSize];
+        re = new double[fft.numFrequencies()];
+        im = new double[fft.numFrequencies()];
+    }
+
+    /**
+     * Linear phase filter with the given magnitude response, designed by frequency sampling.
+     *
+     * @param weights gain of the frequencies k*fs/(2*weights.length-1), k=0..weights.length-1, i.e.
+     *                from 0 to (almost) the nyquist frequency, as the weights of an fft filter
+     * @return filter with 2*weights.length-1 taps and a delay of weights.length-1 samples
+     */
+    public static FIRFilter fromSpectrum(double[] weights) {
+        int len = 2 * weights.length - 1;
+        int delay = weights.length - 1;
+        double[] taps = new double[len];
+        for (int j = 0; j < len; j++) {
+            double h = weights[0];
+            for (int k = 1; k < weights.length; k++)
+                h += 2 * weights[k] * Math.cos(2 * Math.PI * k * (j - delay) / len);
+            taps[j] = h / len;
+        }
+        return new FIRFilter(taps);
+    }
+
+    public void apply(double[][] x, int start, int n) {
+        if (history == null || history.length != x.length) history = new double[x.length][nTaps - 1];
+        for (int r = 0; r < x.length; r++) {
+            for (int done = 0; done < n; ) {
+                int b = Math.min(blockSize, n - done);
+                filterBlock(history[r], x[r], start + done, b);
+                done += b;
+            }
+        }
+    }
+
+    /**
+     * Filters b<=blockSize samples of row from start, and updates the history
+     */
+    private void filterBlock(double[] hist, double[] row, int start, int b) {
+        int h = nTaps - 1;
+        System.arraycopy(hist, 0, line, 0, h);
+        System.arraycopy(row, start, line, h, b);
+        int n = fft.size();
+        // fft cost of the forward and inverse transform against direct convolution
+        if ((long) b * nTaps <= 4L * n * Integer.numberOfTrailingZeros(n)) {
+            for (int i = 0; i < b; i++) {
+                double y = 0;
+                for (int j = 0; j < nTaps; j++) y += taps[j] * line[h + i - j];
+                row[start + i] = y;
+            }
+        } else {
+            System.arraycopy(line, 0, buf, 0, h + b);
+            for (int i = h + b; i < n; i++) buf[i] = 0;
+            fft.transform(buf, re, im);
+            for (int k = 0; k < re.length; k++) {
+                double yr = re[k] * tapsRe[k] - im[k] * tapsIm[k];
+                double yi = re[k] * tapsIm[k] + im[k] * tapsRe[k];
+                re[k] = yr;
+                im[k] = yi;
+            }
+            fft.inverse(re, im, buf);
+            // the first taps-1 outputs wrap around, the rest is the linear convolution
+            System.arraycopy(buf, h, row, start, b);
+        }
+        System.arraycopy(line, b, hist, 0, h);
+    }
+
+    /**
+     * Filters the rows of a window on its own, zero padded at both ends, without delay
+     *
+     * @param x channels x time, filtered in place
+     */
+    public void applyCentered(double[][] x) {
+        int delay = getDelay();
+        for (int r = 0; r < x.length; r++) {
+            double[] in = x[r].clone();
+            for (int i = 0; i < in.length; i++) {
+                double y = 0;
+                for (int j = Math.max(0, i + delay - in.length + 1); j < nTaps && j <= i + delay; j++)
+                    y += taps[j] * in[i + delay - j];
+                x[r][i] = y;
+            }
+        }
+    }
+
+    /**
+     * @return (taps-1)/2, the delay of a linear phase filter
+     */
+    public int getDelay() {
+        return (nTaps - 1) / 2;
+    }
+
+    public void reset() {
+        history = null;
+    }
+
+    /**
+     * @return the impulse response
+     */
+    public double[] getTaps() {
+        return taps.clone();
+    }
+}
@@ -0,0 +1,28 @@
+package nl.dcc.buffer_bci.matrixalgebra.miscellaneous;
+
+/**
+ * Filter applied to a multi-channel stream of data block by block as it arrives. The filter keeps
+ * its state per channel between blocks, so each sample is filtered exactly once and the result is
+ * the same however the stream is split into blocks.
+ */
+public interface StreamFilter {
+
+    /**
+     * Filters the next n samples of the stream in place.
+     *
+     * @param x     channels x time, the same number of channels on every call
+     * @param start first column of x to filter
+     * @param n     number of columns to filter
+     */
+    public void apply(double[][] x, int start, int n);
+
+    /**
+     * @return delay of the output in samples, e.g. (taps-1)/2 for a linear phase FIR filter
+     */
+    public int getDelay();
+
+    /**
+     * Forget the state, the next block starts a new stream
+     */
+    public void reset();
+}
@@ -0,0 +1,142 @@
+package nl.dcc.buffer_bci.matrixalgebra.test;
+
+import nl.dcc.buffer_bci.matrixalgebra.linalg.Matrix;
+import nl.dcc.buffer_bci.matrixalgebra.linalg.WelchOutputType;
+import nl.dcc.buffer_bci.signalprocessing.ClassifierResult;
+import nl.dcc.buffer_bci.signalprocessing.ERPClassifier;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Testing the streaming spectral filter of ERPClassifier.apply(data,sampleIdx) against the
+ * filtering of each window on its own by apply(data)
+ */
+public class ERPClassifierTest extends TestCase {
+
+    private static final int NSAMP = 100;
+    private static final double[] SPECTRAL_FILTER = {1, 1, 1, 1, .5, 0, 0, 0, 0}; // delay 8
+
+    private Random random;
+
+    protected void setUp() throws Exception {
+        random = new Random(5);
+    }
+
+    private double[][] randomStream(int nCh, int nSamp) {
+        double[][] d = new double[nCh][nSamp];
+        for (int r = 0; r < nCh; r++)
+            for (int t = 0; t < nSamp; t++)
+                d[r][t] = random.nextGaussian() * 20 + 5000 * r + .3 * t + 50 * Math.sin(t * .05 * (r + 1));
+        return d;
+    }
+
+    private static Matrix cut(double[][] stream, int from, int n) {
+        double[][] d = new double[stream.length][n];
+        for (int r = 0; r < stream.length; r++) System.arraycopy(stream[r], from, d[r], 0, n);
+        return new Matrix(d);
+    }
+
+    // weights which are zero within the filter delay of either end of the time range, where
+    // filtering a lone window zero pads it
+    private ERPClassifier classifier(boolean detrend, int[] timeIdx, int delay) {
+        return classifier(detrend, timeIdx, delay, timeIdx.length - delay);
+    }
+
+    // weights which are non-zero for the samples from..to-1 of the time range
+    private ERPClassifier classifier(boolean detrend, int[] timeIdx, int from, int to) {
+        Matrix spatialFilter = new Matrix(new double[][]{{1, -1, 0}, {.5, .5, -1}});
+        List<Matrix> W = new ArrayList<Matrix>();
+        double[] b = new double[3];
+        for (int i = 0; i < b.length; i++) {
+            double[][] w = new double[2][timeIdx.length];
+            for (int r = 0; r < 2; r++)
+                for (int t = from; t < to; t++) w[r][t] = random.nextGaussian();
+            W.add(new Matrix(w));
+            b[i] = random.nextGaussian();
+        }
+        return new ERPClassifier(250, detrend, new boolean[]{false, true, false, false}, spatialFilter,
+                                 SPECTRAL_FILTER, timeIdx, null, WelchOutputType.AMPLITUDE, null,
+                                 new String[]{"a", "b", "c"}, W, b);
+    }
+
+    private void assertStreamMatches(boolean detrend, int step, int gapAt) {
+        int[] timeIdx = Matrix.range(10, 90, 1);
+        random = new Random(11); // same weights for both
+        ERPClassifier window = classifier(detrend, timeIdx, 8);
+        random = new Random(11);
+        ERPClassifier stream = classifier(detrend, timeIdx, 8);
+        int delay = stream.getLookahead();
+        assertEquals(SPECTRAL_FILTER.length - 1, delay);
+
+        double[][] x = randomStream(4, 1500);
+        int nWindows = 0;
+        for (int from = 0; from + NSAMP + delay <= x[0].length; from += step) {
+            if (from == gapAt) from += 3 * NSAMP; // not a continuation of the last window
+            if (from + NSAMP + delay > x[0].length) break;
+            ClassifierResult good = window.apply(cut(x, from, NSAMP));
+            ClassifierResult ret = stream.apply(cut(x, from, NSAMP + delay), from);
+            for (int i = 0; i < 3; i++)
+                assertEquals("window at " + from, good.fraw.getEntry(i, 0), ret.fraw.getEntry(i, 0), 1e-6);
+            nWindows++;
+        }
+        assertTrue(nWindows > 10);
+    }
+
+    public void testDetrendedStream() throws Exception {
+        assertStreamMatches(true, 30, -1);
+    }
+
+    public void testStream() throws Exception {
+        assertStreamMatches(false, 30, -1);
+    }
+
+    public void testStepsAndGap() throws Exception {
+        assertStreamMatches(true, 37, 37 * 10);
+        assertStreamMatches(true, NSAMP + 8, -1); // windows just touching
+    }
+
+    public void testRestart() throws Exception {
+        int[] timeIdx = Matrix.range(10, 90, 1);
+        random = new Random(11);
+        ERPClassifier window = classifier(true, timeIdx, 8);
+        random = new Random(11);
+        ERPClassifier stream = classifier(true, timeIdx, 8);
+        int delay = stream.getLookahead();
+        double[][] x = randomStream(4, 600);
+        for (int from = 0; from + NSAMP + delay <= 300; from += 20) stream.apply(cut(x, from, NSAMP + delay), from);
+        // the stream restarts with other data
+        stream.reset();
+        double[][] y = randomStream(4, 600);
+        for (int from = 0; from + NSAMP + delay <= y[0].length; from += 20) {
+            ClassifierResult good = window.apply(cut(y, from, NSAMP));
+            ClassifierResult ret = stream.apply(cut(y, from, NSAMP + delay), from);
+            for (int i = 0; i < 3; i++) assertEquals(good.fraw.getEntry(i, 0), ret.fraw.getEntry(i, 0), 1e-6);
+        }
+    }
+
+    public void testFirstWindow() throws Exception {
+        // the filter starts from the trend of the first window, as a lone detrended window is
+        // zero padded, so there is no start-up transient
+        int[] timeIdx = Matrix.range(0, NSAMP, 1);
+        random = new Random(11);
+        ERPClassifier window = classifier(true, timeIdx, 0, 8);
+        random = new Random(11);
+        ERPClassifier stream = classifier(true, timeIdx, 0, 8);
+        double[][] x = randomStream(4, 200);
+        ClassifierResult good = window.apply(cut(x, 40, NSAMP));
+        ClassifierResult ret = stream.apply(cut(x, 40, NSAMP + stream.getLookahead()), 40);
+        for (int i = 0; i < 3; i++) assertEquals(good.fraw.getEntry(i, 0), ret.fraw.getEntry(i, 0), 1e-6);
+    }
+
+    public void testTooShort() throws Exception {
+        ERPClassifier c = classifier(true, Matrix.range(0, 4, 1), 0);
+        try {
+            c.apply(cut(randomStream(4, 8), 0, 8), 0);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package nl.dcc.buffer_bci.matrixalgebra.test;
+
+import nl.dcc.buffer_bci.matrixalgebra.linalg.Matrix;
+import nl.dcc.buffer_bci.matrixalgebra.linalg.WelchOutputType;
+import nl.dcc.buffer_bci.matrixalgebra.miscellaneous.Windows;
+import nl.dcc.buffer_bci.signalprocessing.ClassifierResult;
+import nl.dcc.buffer_bci.signalprocessing.ERSPClassifier;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Testing the streaming welch of ERSPClassifier.apply(data,sampleIdx) against apply(data)
+ */
+public class ERSPClassifierTest extends TestCase {
+
+    private static final int NSAMP = 200;
+    private static final int TAPER = 32;
+
+    private Random random;
+
+    protected void setUp() throws Exception {
+        random = new Random(9);
+    }
+
+    private double[][] randomStream(int nCh, int nSamp) {
+        double[][] d = new double[nCh][nSamp];
+        for (int r = 0; r < nCh; r++)
+            for (int t = 0; t < nSamp; t++)
+                d[r][t] = random.nextGaussian() * 20 + 500 * r + .3 * t + 50 * Math.sin(t * .3 * (r + 1));
+        return d;
+    }
+
+    private static Matrix cut(double[][] stream, int from, int n) {
+        double[][] d = new double[stream.length][n];
+        for (int r = 0; r < stream.length; r++) System.arraycopy(stream[r], from, d[r], 0, n);
+        return new Matrix(d);
+    }
+
+    private ERSPClassifier classifier(long seed) {
+        Random w = new Random(seed);
+        List<Matrix> W = new ArrayList<Matrix>();
+        double[][] d = new double[3][TAPER / 2 + 1];
+        for (int r = 0; r < d.length; r++)
+            for (int f = 0; f < d[r].length; f++) d[r][f] = w.nextGaussian();
+        W.add(new Matrix(d));
+        double[] taper = Windows.getWindow(TAPER, Windows.WindowType.HANNING, true);
+        return new ERSPClassifier(250, true, null, null, null, null, taper, WelchOutputType.AMPLITUDE, null,
+                                  new String[]{"a"}, W, new double[]{.5});
+    }
+
+    private void assertSameAsWindows(int step) {
+        ERSPClassifier window = classifier(1);
+        ERSPClassifier stream = classifier(1);
+        double[][] x = randomStream(3, 1000);
+        for (int from = 0; from + NSAMP <= x[0].length; from += step) {
+            ClassifierResult good = window.apply(cut(x, from, NSAMP));
+            ClassifierResult ret = stream.apply(cut(x, from, NSAMP), from);
+            assertEquals("window at " + from, good.fraw.getEntry(0, 0), ret.fraw.getEntry(0, 0), 1e-8);
+        }
+    }
+
+    public void testStepOfTaper() throws Exception {
+        assertSameAsWindows(2 * TAPER);
+    }
+
+    public void testOtherStep() throws Exception {
+        // by default the features are those of apply(data) whatever the step
+        assertSameAsWindows(12);
+    }
+
+    public void testStreamAligned() throws Exception {
+        ERSPClassifier window = classifier(1);
+        ERSPClassifier stream = classifier(1);
+        stream.setStreamAligned(true);
+        double[][] x = randomStream(3, 1000);
+        int nDiffer = 0;
+        for (int from = 0; from + NSAMP <= x[0].length; from += 12) {
+            ClassifierResult good = window.apply(cut(x, from, NSAMP));
+            ClassifierResult ret = stream.apply(cut(x, from, NSAMP), from);
+            if (Math.abs(good.fraw.getEntry(0, 0) - ret.fraw.getEntry(0, 0)) > 1e-8 ) nDiffer++;
+        }
+        // only windows starting on the stream grid have the same segments
+        assertTrue(nDiffer > 0);
+    }
+}
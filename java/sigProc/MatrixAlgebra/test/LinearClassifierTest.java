@@ -0,0 +1,92 @@
+package nl.dcc.buffer_bci.matrixalgebra.test;
+
+import nl.dcc.buffer_bci.matrixalgebra.linalg.Matrix;
+import nl.dcc.buffer_bci.matrixalgebra.linalg.WelchOutputType;
+import nl.dcc.buffer_bci.signalprocessing.PreprocClassifier;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Testing PreprocClassifier.applyLinearClassifier against the weighted sum of every sub-problem
+ */
+public class LinearClassifierTest extends TestCase {
+
+    private Random random;
+
+    protected void setUp() throws Exception {
+        random = new Random(7);
+    }
+
+    private Matrix randomMatrix(int nRows, int nCols) {
+        double[][] d = new double[nRows][nCols];
+        for (int r = 0; r < nRows; r++)
+            for (int c = 0; c < nCols; c++)
+                d[r][c] = random.nextGaussian();
+        return new Matrix(d);
+    }
+
+    private PreprocClassifier classifier(List<Matrix> W, double[] b) {
+        String[] desc = new String[W.size()];
+        for (int i = 0; i < desc.length; i++) desc[i] = "sp" + i;
+        return new PreprocClassifier("ERP", 250, false, null, null, null, null, null,
+                                     WelchOutputType.AMPLITUDE, null, desc, W, b);
+    }
+
+    private void assertSubProblems(int nSp) {
+        List<Matrix> W = new ArrayList<Matrix>();
+        double[] b = new double[nSp];
+        for (int i = 0; i < nSp; i++) {
+            W.add(randomMatrix(3, 7));
+            b[i] = random.nextGaussian();
+        }
+        PreprocClassifier c = classifier(W, b);
+        for (int rep = 0; rep < 3; rep++) {
+            Matrix data = randomMatrix(3, 7);
+            Matrix ret = c.applyLinearClassifier(data, 0);
+            assertEquals(nSp, ret.getRowDimension());
+            for (int i = 0; i < nSp; i++)
+                assertEquals(W.get(i).multiplyElements(data).sum() + b[i], ret.getEntry(i, 0), 1e-12);
+        }
+    }
+
+    public void testOneSubProblem() throws Exception {
+        assertSubProblems(1);
+    }
+
+    public void testFourSubProblems() throws Exception {
+        assertSubProblems(4);
+    }
+
+    public void testSixSubProblems() throws Exception {
+        // a block of 4 and 2 more
+        assertSubProblems(6);
+    }
+
+    public void testShapeMismatch() throws Exception {
+        List<Matrix> W = new ArrayList<Matrix>();
+        W.add(randomMatrix(3, 7));
+        PreprocClassifier c = classifier(W, new double[]{0});
+        try {
+            c.applyLinearClassifier(randomMatrix(3, 8), 0);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            c.applyLinearClassifier(randomMatrix(7, 3), 0);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+
+        // sub-problems with different shapes
+        W.add(randomMatrix(3, 6));
+        c = classifier(W, new double[]{0, 0});
+        try {
+            c.applyLinearClassifier(randomMatrix(3, 7), 0);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
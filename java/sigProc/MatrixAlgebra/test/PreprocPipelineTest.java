@@ -0,0 +1,127 @@
+package nl.dcc.buffer_bci.matrixalgebra.test;
+
+import nl.dcc.buffer_bci.matrixalgebra.linalg.Matrix;
+import nl.dcc.buffer_bci.matrixalgebra.linalg.WelchOutputType;
+import nl.dcc.buffer_bci.signalprocessing.PreprocClassifier;
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Testing the compiled pre-processing of PreprocClassifier against the original step by step
+ * pre-processing with Matrix operations
+ */
+public class PreprocPipelineTest extends TestCase {
+
+    private Random random;
+
+    protected void setUp() throws Exception {
+        random = new Random(3);
+    }
+
+    // the original pre-processing: bad channel removal, detrend, time range selection, spatial filter
+    private static Matrix stepwise(PreprocClassifier c, Matrix data) {
+        if (c.isbadCh != null) {
+            int[] rows = new int[data.getRowDimension()];
+            int n = 0;
+            for (int i = 0; i < rows.length && i < c.isbadCh.length; i++)
+                if (!c.isbadCh[i]) rows[n++] = i;
+            int[] good = new int[n];
+            System.arraycopy(rows, 0, good, 0, n);
+            data = new Matrix(data.getSubMatrix(good, Matrix.range(0, data.getColumnDimension(), 1)));
+        }
+        if (c.detrend) data = data.detrend(1, "linear");
+        if (c.windowTimeIdx != null)
+            data = new Matrix(data.getSubMatrix(Matrix.range(0, data.getRowDimension(), 1), c.windowTimeIdx));
+        if (c.spatialFilter != null) data = new Matrix(data.preMultiply(c.spatialFilter));
+        return data;
+    }
+
+    private Matrix randomWindow(int nCh, int nSamp) {
+        double[][] d = new double[nCh][nSamp];
+        for (int r = 0; r < nCh; r++)
+            for (int t = 0; t < nSamp; t++)
+                d[r][t] = random.nextGaussian() * 20 + 5000 * r + .3 * t;
+        return new Matrix(d);
+    }
+
+    private void assertSame(PreprocClassifier c, int nSamp) {
+        int nCh = c.isbadCh.length;
+        for (int rep = 0; rep < 3; rep++) {
+            Matrix data = randomWindow(nCh, nSamp);
+            Matrix good = stepwise(c, data);
+            Matrix ret = c.preproc(data);
+            assertEquals(good.getRowDimension(), ret.getRowDimension());
+            assertEquals(good.getColumnDimension(), ret.getColumnDimension());
+            for (int r = 0; r < good.getRowDimension(); r++)
+                assertArrayEquals(good.getRow(r), ret.getRow(r), 1e-8);
+        }
+    }
+
+    private static PreprocClassifier classifier(boolean detrend, boolean[] isbadCh, int[] timeIdx) {
+        return classifier(detrend, isbadCh, null, timeIdx);
+    }
+
+    private static PreprocClassifier classifier(boolean detrend, boolean[] isbadCh, Matrix spatialFilter, int[] timeIdx) {
+        List<Matrix> W = new ArrayList<Matrix>();
+        W.add(Matrix.ones(2, 4));
+        return new PreprocClassifier("ERP", 250, detrend, isbadCh, spatialFilter, null, timeIdx, null,
+                                     WelchOutputType.AMPLITUDE, null, new String[]{"a"}, W, new double[]{0});
+    }
+
+    private static File resource(String name) {
+        // the tests may be run from java/sigProc or from the root of the repository
+        for (String dir : new String[]{"res", "java/sigProc/res", "../res", "../../res"}) {
+            File f = new File(dir, name);
+            if (f.exists()) return f;
+        }
+        fail("Could not find res/" + name);
+        return null;
+    }
+
+    public void testSavedClassifiers() throws Exception {
+        PreprocClassifier.VERB = -1;
+        for (String name : new String[]{"clsfr_alpha_sigprox.txt", "clsfr_nf.txt"}) {
+            BufferedReader is = new BufferedReader(new FileReader(resource(name)));
+            PreprocClassifier c = PreprocClassifier.fromString(is);
+            is.close();
+            assertSame(c, 64);
+            assertSame(c, 256);
+        }
+    }
+
+    public void testBadChannels() throws Exception {
+        assertSame(classifier(true, new boolean[]{false, true, false, false}, null), 100);
+        assertSame(classifier(false, new boolean[]{true, false, false}, null), 100);
+    }
+
+    public void testTimeRange() throws Exception {
+        assertSame(classifier(true, new boolean[]{false, true, false, false}, Matrix.range(20, 60, 1)), 100);
+        // scattered time indices
+        assertSame(classifier(true, new boolean[]{false, false, false}, new int[]{1, 5, 9, 30, 31, 99}), 100);
+        assertSame(classifier(false, new boolean[]{true, false, false}, new int[]{1, 5, 9, 30}), 100);
+    }
+
+    public void testSpatialFilter() throws Exception {
+        // common average reference of the 3 good channels
+        Matrix car = new Matrix(new double[][]{{2. / 3, -1. / 3, -1. / 3},
+                                               {-1. / 3, 2. / 3, -1. / 3},
+                                               {-1. / 3, -1. / 3, 2. / 3}});
+        assertSame(classifier(true, new boolean[]{false, true, false, false}, car, Matrix.range(20, 60, 1)), 100);
+        // fewer outputs than inputs
+        Matrix bipolar = new Matrix(new double[][]{{1, -1, 0}, {0, 1, -1}});
+        assertSame(classifier(false, new boolean[]{false, false, false}, bipolar, new int[]{1, 5, 9, 30}), 100);
+    }
+
+    public void testDetrend() throws Exception {
+        assertSame(classifier(true, new boolean[]{false, false}, null), 2);
+        assertSame(classifier(true, new boolean[]{false, false}, null), 256);
+    }
+}
@@ -0,0 +1,90 @@
+package nl.dcc.buffer_bci.matrixalgebra.test;
+
+import nl.dcc.buffer_bci.matrixalgebra.linalg.Matrix;
+import nl.dcc.buffer_bci.matrixalgebra.linalg.RealFFT;
+import junit.framework.TestCase;
+import org.apache.commons.math3.complex.Complex;
+import org.apache.commons.math3.transform.DftNormalization;
+import org.apache.commons.math3.transform.FastFourierTransformer;
+import org.apache.commons.math3.transform.TransformType;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Testing the real fft against the commons-math transform
+ */
+public class RealFFTTest extends TestCase {
+
+    private final Random random = new Random(42);
+    private final FastFourierTransformer fft = new FastFourierTransformer(DftNormalization.STANDARD);
+
+    private double[] randomData(int n) {
+        double[] x = new double[n];
+        for (int i = 0; i < n; i++) x[i] = random.nextGaussian() * 10 + 3;
+        return x;
+    }
+
+    public void testTransform() throws Exception {
+        for (int n = 1; n <= 1024; n *= 2) {
+            double[] x = randomData(n);
+            Complex[] good = fft.transform(x, TransformType.FORWARD);
+            RealFFT plan = RealFFT.get(n);
+            assertEquals(n / 2 + 1, plan.numFrequencies());
+            double[] re = new double[plan.numFrequencies()];
+            double[] im = new double[plan.numFrequencies()];
+            double[] pow = new double[plan.numFrequencies()];
+            plan.transform(x.clone(), re, im);
+            plan.power(x.clone(), pow);
+            for (int k = 0; k < plan.numFrequencies(); k++) {
+                assertEquals(good[k].getReal(), re[k], 1e-9);
+                assertEquals(good[k].getImaginary(), im[k], 1e-9);
+                assertEquals(good[k].abs() * good[k].abs(), pow[k], 1e-9 * pow[k] + 1e-9);
+            }
+        }
+    }
+
+    public void testInverse() throws Exception {
+        for (int n = 1; n <= 1024; n *= 2) {
+            double[] x = randomData(n);
+            RealFFT plan = RealFFT.get(n);
+            double[] re = new double[plan.numFrequencies()];
+            double[] im = new double[plan.numFrequencies()];
+            double[] y = x.clone();
+            plan.transform(y, re, im);
+            plan.inverse(re, im, y);
+            assertArrayEquals(x, y, 1e-9);
+        }
+    }
+
+    public void testPlanCache() throws Exception {
+        assertSame(RealFFT.get(64), RealFFT.get(64));
+        try {
+            RealFFT.get(48);
+            fail("non power of 2 length accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testFft2Axes() throws Exception {
+        double[][] d = new double[3][16];
+        for (int r = 0; r < d.length; r++) d[r] = randomData(16);
+        Matrix m = new Matrix(d);
+        Matrix rows = m.fft2(1);
+        Matrix cols = new Matrix(m.transpose()).fft2(0);
+        Matrix inv = m.fft2(1, TransformType.INVERSE);
+        for (int r = 0; r < d.length; r++) {
+            Complex[] good = fft.transform(d[r], TransformType.FORWARD);
+            Complex[] goodInv = fft.transform(d[r], TransformType.INVERSE);
+            for (int k = 0; k < 16; k++) {
+                double p = good[k].abs() * good[k].abs();
+                assertEquals(p, rows.getEntry(r, k), 1e-9 * p);
+                assertEquals(p, cols.getEntry(k, r), 1e-9 * p);
+                double pi = goodInv[k].abs() * goodInv[k].abs();
+                assertEquals(pi, inv.getEntry(r, k), 1e-9 * pi + 1e-12);
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package nl.dcc.buffer_bci.matrixalgebra.test;
+
+import nl.dcc.buffer_bci.matrixalgebra.miscellaneous.BiquadFilter;
+import nl.dcc.buffer_bci.matrixalgebra.miscellaneous.FIRFilter;
+import nl.dcc.buffer_bci.matrixalgebra.miscellaneous.StreamFilter;
+import junit.framework.TestCase;
+import org.apache.commons.math3.util.MathArrays;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Testing the streaming FIR and IIR filters
+ */
+public class StreamFilterTest extends TestCase {
+
+    private final Random random = new Random(42);
+
+    private double[][] randomData(int nCh, int nSamp) {
+        double[][] x = new double[nCh][nSamp];
+        for (int r = 0; r < nCh; r++)
+            for (int c = 0; c < nSamp; c++) x[r][c] = random.nextGaussian() + 100 * r;
+        return x;
+    }
+
+    // filter x in blocks of random sizes
+    private double[][] filterBlocks(StreamFilter filter, double[][] x, int maxBlock) {
+        double[][] y = new double[x.length][];
+        for (int r = 0; r < x.length; r++) y[r] = x[r].clone();
+        for (int start = 0; start < y[0].length; ) {
+            int n = Math.min(1 + random.nextInt(maxBlock), y[0].length - start);
+            filter.apply(y, start, n);
+            start += n;
+        }
+        return y;
+    }
+
+    public void testFIRBlocks() throws Exception {
+        double[] taps = new double[37];
+        for (int j = 0; j < taps.length; j++) taps[j] = random.nextGaussian();
+        double[][] x = randomData(3, 1000);
+        // small blocks are convolved directly, large ones by fft
+        for (int maxBlock : new int[]{5, 300}) {
+            double[][] y = filterBlocks(new FIRFilter(taps), x, maxBlock);
+            for (int r = 0; r < x.length; r++) {
+                double[] good = MathArrays.convolve(x[r], taps);
+                assertArrayEquals(java.util.Arrays.copyOf(good, x[r].length), y[r], 1e-9);
+            }
+        }
+    }
+
+    public void testFIRFromSpectrum() throws Exception {
+        double[] weights = new double[]{0, 0, 1, 1, 1, 0.5, 0, 0};
+        FIRFilter filter = FIRFilter.fromSpectrum(weights);
+        double[] taps = filter.getTaps();
+        assertEquals(15, taps.length);
+        assertEquals(7, filter.getDelay());
+        // gain at the sampled frequencies are the weights
+        for (int k = 0; k < weights.length; k++) {
+            double re = 0, im = 0;
+            for (int j = 0; j < taps.length; j++) {
+                re += taps[j] * Math.cos(2 * Math.PI * k * (j - filter.getDelay()) / taps.length);
+                im -= taps[j] * Math.sin(2 * Math.PI * k * (j - filter.getDelay()) / taps.length);
+            }
+            assertEquals(weights[k], re, 1e-12);
+            assertEquals(0, im, 1e-12);
+        }
+    }
+
+    public void testFIRCentered() throws Exception {
+        double[] taps = new double[]{.25, .5, .25};
+        double[][] x = new double[][]{{1, 2, 3, 4}};
+        new FIRFilter(taps).applyCentered(x);
+        assertArrayEquals(new double[]{1, 2, 3, 2.75}, x[0], 1e-12);
+    }
+
+    public void testBiquadImpulse() throws Exception {
+        // y[n] = x[n] + .5 y[n-1]
+        BiquadFilter filter = new BiquadFilter(new double[][]{{2, 0, 0, 2, -1, 0}});
+        double[][] x = new double[1][6];
+        x[0][0] = 1;
+        filter.apply(x, 0, 3);
+        filter.apply(x, 3, 3);
+        assertArrayEquals(new double[]{1, .5, .25, .125, .0625, .03125}, x[0], 1e-12);
+    }
+
+    public void testBiquadBlocks() throws Exception {
+        double[][] sos = new double[][]{{.2, .4, .2, 1, -.5, .3}, {1, -2, 1, 1, -1.8, .81}};
+        double[][] x = randomData(2, 500);
+        double[][] good = new double[2][];
+        for (int r = 0; r < 2; r++) good[r] = x[r].clone();
+        new BiquadFilter(sos).apply(good, 0, 500);
+        double[][] y = filterBlocks(new BiquadFilter(sos), x, 20);
+        for (int r = 0; r < 2; r++) assertArrayEquals(good[r], y[r], 0.0);
+    }
+}
@@ -0,0 +1,110 @@
+package nl.dcc.buffer_bci.matrixalgebra.test;
+
+import nl.dcc.buffer_bci.matrixalgebra.linalg.Matrix;
+import nl.dcc.buffer_bci.matrixalgebra.linalg.StreamingWelch;
+import nl.dcc.buffer_bci.matrixalgebra.linalg.WelchOutputType;
+import nl.dcc.buffer_bci.matrixalgebra.miscellaneous.Windows;
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Testing the streaming welch method against Matrix.welch on sliding windows
+ */
+public class StreamingWelchTest extends TestCase {
+
+    private double[][] stream;
+    private double[] taper;
+
+    protected void setUp() throws Exception {
+        Random random = new Random(42);
+        stream = new double[3][600];
+        for (int r = 0; r < stream.length; r++)
+            for (int c = 0; c < stream[r].length; c++)
+                stream[r][c] = random.nextGaussian() + .05 * c * (r + 1) + Math.sin(c * .3 * (r + 1));
+        taper = Windows.getWindow(32, Windows.WindowType.HANNING, true);
+    }
+
+    private Matrix window(int offset, int length) {
+        double[][] w = new double[stream.length][length];
+        for (int r = 0; r < stream.length; r++)
+            System.arraycopy(stream[r], offset, w[r], 0, length);
+        return new Matrix(w);
+    }
+
+    public void testAlignedSteps() throws Exception {
+        StreamingWelch welch = new StreamingWelch(taper);
+        for (int offset = 0; offset + 200 <= 600; offset += 32) {
+            Matrix data = window(offset, 200);
+            Matrix good = data.welch(1, taper);
+            Matrix ret = welch.welch(data, offset);
+            for (int r = 0; r < good.getRowDimension(); r++)
+                assertArrayEquals(good.getRow(r), ret.getRow(r), 0.0);
+        }
+        // 6 segments in the first window, then 1 new segment per step
+        assertEquals(6 + 12, welch.getNumTransformed());
+    }
+
+    public void testUnalignedSteps() throws Exception {
+        StreamingWelch welch = new StreamingWelch(taper);
+        for (int offset = 0; offset + 200 <= 600; offset += 12) {
+            Matrix data = window(offset, 200);
+            Matrix good = data.welch(1, taper);
+            Matrix ret = welch.welch(data, offset);
+            for (int r = 0; r < good.getRowDimension(); r++)
+                assertArrayEquals(good.getRow(r), ret.getRow(r), 0.0);
+        }
+    }
+
+    public void testStreamAlignedSteps() throws Exception {
+        // window of 200 samples moving by 12 samples, e.g. 50ms at 250Hz
+        StreamingWelch welch = new StreamingWelch(taper, true);
+        for (int offset = 0; offset + 200 <= 600; offset += 12) {
+            Matrix data = window(offset, 200);
+            int[] start = welch.getStarts(offset, 200);
+            for (int wi : start) assertEquals(0, (offset + wi) % taper.length);
+            Matrix good = data.welch(1, taper, WelchOutputType.AMPLITUDE, start, 0);
+            Matrix ret = welch.welch(data, offset);
+            for (int r = 0; r < good.getRowDimension(); r++)
+                assertArrayEquals(good.getRow(r), ret.getRow(r), 0.0);
+        }
+        // every segment of the stream grid up to sample 596 is transformed once
+        assertEquals(18, welch.getNumTransformed());
+
+        // aligned to the windows the segments are only shared every 96 samples
+        StreamingWelch windowAligned = new StreamingWelch(taper);
+        for (int offset = 0; offset + 200 <= 600; offset += 12)
+            windowAligned.welch(window(offset, 200), offset);
+        assertEquals(34 * 6, windowAligned.getNumTransformed());
+    }
+
+    public void testRestart() throws Exception {
+        StreamingWelch welch = new StreamingWelch(taper);
+        welch.welch(window(100, 200), 100);
+        // same sample numbers, different data
+        Matrix data = window(0, 200);
+        Matrix good = data.welch(1, taper);
+        Matrix ret = welch.welch(data, 0);
+        for (int r = 0; r < good.getRowDimension(); r++)
+            assertArrayEquals(good.getRow(r), ret.getRow(r), 0.0);
+    }
+
+    public void testTrend() throws Exception {
+        StreamingWelch welch = new StreamingWelch(taper);
+        for (int offset = 0; offset + 200 <= 600; offset += 32) {
+            Matrix data = window(offset, 200);
+            Matrix detrended = data.detrend(1, "linear");
+            // trend removed by detrend
+            Matrix trend = data.subtract(detrended);
+            double[] intercept = trend.getColumn(0);
+            double[] slope = new double[intercept.length];
+            for (int r = 0; r < slope.length; r++) slope[r] = trend.getEntry(r, 1) - intercept[r];
+            Matrix good = detrended.welch(1, taper);
+            Matrix ret = welch.welch(data, offset, intercept, slope);
+            for (int r = 0; r < good.getRowDimension(); r++)
+                assertArrayEquals(good.getRow(r), ret.getRow(r), 1e-9);
+        }
+    }
+}
@@ -45,6 +45,13 @@ public class PreprocClassifier {
     public final List<Matrix> clsfrW;
     public final double[] clsfrb;
 
+	 // the common pre-processing compiled for the last input size, and its output for re-use
+	 private PreprocPipeline pipeline = null;
+	 private double[][] preprocOut = null;
+	 // the classifier weights flattened for applyLinearClassifier, see flatWeights
+	 private double[] flatW = null;
+	 private int wRows, wCols;
+
     public PreprocClassifier(PreprocClassifier pc){
         this.type = pc.type;
         this.samplingFrequency = pc.samplingFrequency;
@@ -109,81 +116,88 @@ public class PreprocClassifier {
 	 public String getType() { return type; }
 	 
 	 public Matrix preproc(Matrix data){
+		  return preproc(data, detrend);
+	 }
 
-        // Bad channel removal
-        if ( isbadCh != null ) {
-            if ( VERB>1 ) System.out.println(TAG+ "Do bad channel removal");
-            int[] columns = Matrix.range(0, data.getColumnDimension(), 1);
-            int[] rows = new int[data.getRowDimension()];
-				if ( rows.length != isbadCh.length && VERB>0 ) {
-					 System.err.println(TAG+ "Huh? isbad and data rows are not equal!");
-				}
-            int index = 0;
-            for (int i = 0; i<rows.length && i < isbadCh.length; i++){
-                if (isbadCh[i] == false ) { // keep if *not* bad
-                    rows[index] = i;
-                    index++;
-                }
+	 /**
+	  * Rows of the data which are kept by the bad channel removal
+	  *
+	  * @param nRows number of rows of the data
+	  * @return indices of the good rows, or null to keep all
+	  */
+	 protected int[] goodChannels(int nRows){
+		  if ( isbadCh == null ) return null;
+		  int[] rows = new int[nRows];
+		  if ( rows.length != isbadCh.length && VERB>0 ) {
+				System.err.println(TAG+ "Huh? isbad and data rows are not equal!");
+		  }
+		  int index = 0;
+		  for (int i = 0; i<rows.length && i < isbadCh.length; i++){
+				if (isbadCh[i] == false ) { // keep if *not* bad
+					 rows[index] = i;
+					 index++;
 				}
-				// N.B. everthing outside the is-bad set is automatically ***BAD***
-				//for ( int i=isbadCh.length; i<rows.length; i++){rows[index]=i;index++;}
-				
-            rows = Arrays.copyOf(rows, index); // remove all the unused rows...
-            data = new Matrix(data.getSubMatrix(rows, columns));
-            if ( VERB>1 ) System.out.println(TAG+ "New size: " + data.shapeString());
-        }
-
-        // Detrend the data
-        if (detrend) {
-            if ( VERB>1 ) System.out.println(TAG+  "Linearly detrending the data");
-            data = data.detrend(1, "linear");
-            if ( VERB>1 ) System.out.println(TAG+  "New size: " + data.shapeString());
-        }
-
-        // Now adaptive bad-channel removal if needed
-        List<Integer> badChannels = null;
-        if (badChannelThreshold > 0 ) {
-            if ( VERB>1 ) System.out.println(TAG+  "Adaptive bad-channel detection+removal.");
-            Matrix norm = new Matrix(data.multiply(data.transpose()).scalarMultiply(1. / data.getColumnDimension()));
-            badChannels = new LinkedList<Integer>();
-            // Detecting bad channels
-            for (int r = 0; r < data.getRowDimension(); r++)
-                if (norm.getEntry(r, 0) > badChannelThreshold) {
-                    if ( VERB>0 ) System.out.println(TAG+  "Removing channel " + r);
-                    badChannels.add(r);
-                }
-
-            // Filling bad channels with the mean (car)
-            Matrix car = data.mean(0);
-            for (int channel : badChannels) {
-                data.setRow(channel, car.getColumn(0));
-            }
-        }
-		  if ( VERB>1 ) System.out.println(TAG+  "New size: " + data.shapeString());
-
-        // Select the time range
-        if (windowTimeIdx != null) {
-            if ( VERB>1 ) System.out.println(TAG+  "Selecting a time range");
-            int[] rows = Matrix.range(0, data.getRowDimension(), 1);
-            data = new Matrix(data.getSubMatrix(rows, windowTimeIdx));
-            if ( VERB>1 ) System.out.println(TAG+  "New size: " + data.shapeString());
-        }
-
-        // Spatial filtering
-        if (spatialFilter != null) {
-            if ( VERB>1 ) System.out.println(TAG+  "Spatial filtering the data");
-				data.preMultiply(spatialFilter);
-            if ( VERB>1 ) System.out.println(TAG+  "New size: " + data.shapeString());
-        }
+		  }
+		  // N.B. everthing outside the is-bad set is automatically ***BAD***
+		  //for ( int i=isbadCh.length; i<rows.length; i++){rows[index]=i;index++;}
+		  return Arrays.copyOf(rows, index); // remove all the unused rows...
+	 }
+
+	 /**
+	  * The common pre-processing, optionally without the linear detrend, for classifiers which
+	  * remove the trend themselves.
+	  */
+	 protected Matrix preproc(Matrix data, boolean detrend){
+		  PreprocPipeline p = getPipeline(data.getRowDimension(), data.getColumnDimension());
+		  double[][] out = new double[p.getNumOutputChannels()][p.getNumOutputSamples()];
+		  p.apply(data.getDataRef(), out, detrend);
+		  data = new Matrix(out, false);
 		  if ( VERB>1 ) System.out.println(TAG+  "Final size: " + data.shapeString());
 		  return data;
 	 }
 
+	 /**
+	  * As preproc(data,detrend), but the result is written into a workspace which is re-used, and
+	  * so overwritten, by the next call.
+	  */
+	 protected Matrix preprocReuse(double[][] x, boolean detrend){
+		  PreprocPipeline p = getPipeline(x.length, x.length>0 ? x[0].length : 0);
+		  p.apply(x, workspace(p), detrend);
+		  return new Matrix(preprocOut, false);
+	 }
+
+	 /**
+	  * @return the common pre-processing compiled for input of this size
+	  */
+	 protected PreprocPipeline getPipeline(int nCh, int nSamp){
+		  if ( pipeline == null || !pipeline.fits(nCh, nSamp) ) {
+				if ( VERB>1 ) System.out.println(TAG+ "Compiling pre-processing for " + nCh + "x" + nSamp);
+				pipeline = new PreprocPipeline(nCh, nSamp, goodChannels(nCh), windowTimeIdx, spatialFilter);
+		  }
+		  return pipeline;
+	 }
+
+	 /**
+	  * @return output array for the pipeline which is re-used between windows
+	  */
+	 protected double[][] workspace(PreprocPipeline p){
+		  if ( preprocOut == null || preprocOut.length != p.getNumOutputChannels()
+				 || (preprocOut.length > 0 && preprocOut[0].length != p.getNumOutputSamples()) ) {
+				preprocOut = new double[p.getNumOutputChannels()][p.getNumOutputSamples()];
+		  }
+		  return preprocOut;
+	 }
+
 	 public ClassifierResult apply(Matrix data){
 		  if ( VERB>1 ) System.out.println(TAG+ " preproc");
 		  // Do the standard pre-processing
-		  data = preproc(data);
-		  
+		  return classify(preproc(data));
+	 }
+
+	 /**
+	  * Applies the linear classifier to pre-processed data
+	  */
+	 protected ClassifierResult classify(Matrix data){
 		  // Linearly classifying the data
 		  if ( VERB>1 ) System.out.println(TAG+  "Classifying with linear classifier");
 		  Matrix fraw = applyLinearClassifier(data, 0);
@@ -200,17 +214,107 @@ public class PreprocClassifier {
 		  return new ClassifierResult(f, fraw, p, data);		  
 	 }
 
+	 /**
+	  * Applies the classifier to the window of a continuous stream of data which starts at sample
+	  * sampleIdx. Classifiers may keep what they computed for earlier windows to re-use it for
+	  * later, overlapping, ones, so windows should be given in order and reset called when the
+	  * stream restarts.
+	  *
+	  * @param data      channels x time window, followed by getLookahead() more samples
+	  * @param sampleIdx number of the first sample of the window in the stream
+	  */
+	 public ClassifierResult apply(Matrix data, int sampleIdx){
+		  return apply(data);
+	 }
+
+	 /**
+	  * @return number of samples after the window which apply(data,sampleIdx) needs, e.g. for the
+	  * delay of a streaming filter
+	  */
+	 public int getLookahead(){
+		  return 0;
+	 }
+
+	 /**
+	  * Forget anything kept from earlier windows, see apply(data,sampleIdx)
+	  */
+	 public void reset(){
+	 }
+
     public Matrix applyLinearClassifier(Matrix data, int dim) {
-        double[] results = new double[clsfrW.size()];
+		  int nOut = clsfrW.size();
+        double[] results = new double[nOut];
 		  if ( VERB>2 ) System.out.print(TAG+ "Data=" + data.toString());
-        for (int i = 0; i < clsfrW.size(); i++){
+		  double[] w = flatWeights();
+		  int nRows = data.getRowDimension();
+		  int nCols = data.getColumnDimension();
+		  if ( nRows != wRows || nCols != wCols ) {
+				throw new IllegalArgumentException("Data is " + data.shapeString() + " but the classifier weights are ("
+															  + wRows + ", " + wCols + ")");
+		  }
+		  double[][] x = data.getDataRef();
+		  int nFeat = nRows * nCols;
+		  // all sub-problems in one pass over the features, 4 at a time so each feature is
+		  // loaded once per 4 weight vectors
+		  int o = 0;
+		  for ( ; o + 4 <= nOut; o += 4) {
+				int w0 = o * nFeat, w1 = w0 + nFeat, w2 = w1 + nFeat, w3 = w2 + nFeat;
+				double acc0 = 0, acc1 = 0, acc2 = 0, acc3 = 0;
+				for (int r = 0; r < nRows; r++) {
+					 double[] row = x[r];
+					 int f = r * nCols;
+					 for (int c = 0; c < nCols; c++, f++) {
+						  double v = row[c];
+						  acc0 += w[w0 + f] * v;
+						  acc1 += w[w1 + f] * v;
+						  acc2 += w[w2 + f] * v;
+						  acc3 += w[w3 + f] * v;
+					 }
+				}
+				results[o] = acc0; results[o + 1] = acc1; results[o + 2] = acc2; results[o + 3] = acc3;
+		  }
+		  for ( ; o < nOut; o++) {
+				int w0 = o * nFeat;
+				double acc = 0;
+				for (int r = 0; r < nRows; r++) {
+					 double[] row = x[r];
+					 int f = w0 + r * nCols;
+					 for (int c = 0; c < nCols; c++, f++) acc += w[f] * row[c];
+				}
+				results[o] = acc;
+		  }
+        for (int i = 0; i < nOut; i++){
 				if ( VERB>2 ) System.out.print(TAG+ "clsfr{"+i+"}"+clsfrW.get(i).toString());
-            results[i] = this.clsfrW.get(i).multiplyElements(data).sum() + clsfrb[i];
-            //results[i] = this.clsfrW.get(i).multiplyAccumulateElements(data) + clsfrb[i];
+            results[i] += clsfrb[i];
 		  }
         return new Matrix(results);
     }
 
+	 /**
+	  * The weight matrices of all sub-problems flattened into one array, sub-problem after
+	  * sub-problem and each row-major, made when first needed.
+	  */
+	 private double[] flatWeights() {
+		  if ( flatW == null ) {
+				wRows = clsfrW.get(0).getRowDimension();
+				wCols = clsfrW.get(0).getColumnDimension();
+				int nFeat = wRows * wCols;
+				double[] w = new double[clsfrW.size() * nFeat];
+				for (int i = 0; i < clsfrW.size(); i++) {
+					 Matrix W = clsfrW.get(i);
+					 if ( W.getRowDimension() != wRows || W.getColumnDimension() != wCols ) {
+						  throw new IllegalArgumentException("Classifier weights " + i + " are " + W.shapeString()
+																	+ " but the first are (" + wRows + ", " + wCols + ")");
+					 }
+					 for (int r = 0; r < wRows; r++) {
+						  System.arraycopy(W.getDataRef()[r], 0, w, i * nFeat + r * wCols, wCols);
+					 }
+				}
+				flatW = w;
+		  }
+		  return flatW;
+	 }
+
     public int computeSampleWidth(double samplingFrequency, double widthMs) {
         return (int) Math.floor(widthMs * (samplingFrequency / 1000.));
     }
@@ -0,0 +1,163 @@
+package nl.dcc.buffer_bci.signalprocessing;
+
+import nl.dcc.buffer_bci.matrixalgebra.linalg.Matrix;
+
+import java.util.Arrays;
+
+/**
+ * The common pre-processing of PreprocClassifier, bad-channel removal, linear detrend, time range
+ * selection and spatial filtering, compiled for one input size into a single pass over the data.
+ *
+ * The bad-channel selection is folded into the spatial filter, as a mixing matrix with zero
+ * columns for the bad channels. Detrending and mixing are both linear, so the trend of every input
+ * channel over the whole window is computed with closed-form sums, mixed, and subtracted from the
+ * mixed data of the selected time range. Nothing is allocated per window: the output goes into an
+ * array given by the caller.
+ */
+public class PreprocPipeline {
+
+    private final int nIn, nSamp;     // input channels x time
+    private final double[][] mix;     // output x input channels
+    private final int[][] mixIdx;     // per output channel the input channels with a non-zero weight
+    private final int[] used;         // input channels used by any output channel
+    private final int[] timeIdx;      // selected input columns
+    private final double tMean, tVar; // mean and sum of squared deviations of 0..nSamp-1
+    private final double[] a, b;      // trend of the input channels
+
+    /**
+     * @param nIn           number of input channels
+     * @param nSamp         number of input samples
+     * @param goodChannels  input channels to keep, or null for all
+     * @param windowTimeIdx input samples to keep, or null for all
+     * @param spatialFilter output x kept channels mixing matrix, or null for none
+     */
+    public PreprocPipeline(int nIn, int nSamp, int[] goodChannels, int[] windowTimeIdx, Matrix spatialFilter) {
+        this.nIn = nIn;
+        this.nSamp = nSamp;
+        if ( goodChannels == null ) goodChannels = Matrix.range(0, nIn, 1);
+        if ( spatialFilter != null && spatialFilter.getColumnDimension() != goodChannels.length )
+            throw new IllegalArgumentException("Spatial filter is for " + spatialFilter.getColumnDimension()
+                                               + " channels, but there are " + goodChannels.length + " good channels");
+        int nOut = spatialFilter == null ? goodChannels.length : spatialFilter.getRowDimension();
+        mix = new double[nOut][nIn];
+        for (int o = 0; o < nOut; o++)
+            for (int k = 0; k < goodChannels.length; k++)
+                mix[o][goodChannels[k]] = spatialFilter == null ? (o == k ? 1 : 0) : spatialFilter.getEntry(o, k);
+        mixIdx = new int[nOut][];
+        for (int o = 0; o < nOut; o++) {
+            int n = 0;
+            for (int i = 0; i < nIn; i++) if ( mix[o][i] != 0 ) n++;
+            mixIdx[o] = new int[n];
+            n = 0;
+            for (int i = 0; i < nIn; i++) if ( mix[o][i] != 0 ) mixIdx[o][n++] = i;
+        }
+        int nUsed = 0;
+        int[] usedIdx = new int[nIn];
+        for (int i = 0; i < nIn; i++) {
+            boolean isUsed = false;
+            for (int o = 0; o < nOut; o++) isUsed |= mix[o][i] != 0;
+            if ( isUsed ) usedIdx[nUsed++] = i;
+        }
+        used = Arrays.copyOf(usedIdx, nUsed);
+        timeIdx = windowTimeIdx == null ? Matrix.range(0, nSamp, 1) : windowTimeIdx.clone();
+        for (int t : timeIdx)
+            if ( t < 0 || t >= nSamp ) throw new IllegalArgumentException("Time index " + t + " outside 0.." + (nSamp - 1));
+        tMean = (nSamp - 1) / 2.0;
+        tVar = nSamp * ((double) nSamp * nSamp - 1) / 12.0;
+        a = new double[nIn];
+        b = new double[nIn];
+    }
+
+    /**
+     * @return number of output channels
+     */
+    public int getNumOutputChannels() {
+        return mix.length;
+    }
+
+    /**
+     * @return number of output samples
+     */
+    public int getNumOutputSamples() {
+        return timeIdx.length;
+    }
+
+    /**
+     * @return true if the pipeline is for input of this size
+     */
+    public boolean fits(int nIn, int nSamp) {
+        return this.nIn == nIn && this.nSamp == nSamp;
+    }
+
+    /**
+     * Pre-processes a window
+     *
+     * @param x       input channels x time
+     * @param out     output channels x samples, overwritten
+     * @param detrend remove the linear trend of each channel over the whole window
+     */
+    public void apply(double[][] x, double[][] out, boolean detrend) {
+        if ( detrend ) trend(x);
+        mix(x, out);
+        if ( detrend ) {
+            for (int o = 0; o < mix.length; o++) {
+                double ao = 0, bo = 0;
+                for (int i : mixIdx[o]) {
+                    ao += mix[o][i] * a[i];
+                    bo += mix[o][i] * b[i];
+                }
+                double[] row = out[o];
+                for (int j = 0; j < timeIdx.length; j++) row[j] -= ao + bo * timeIdx[j];
+            }
+        }
+    }
+
+    /**
+     * Pre-processes a window without removing the trend, but returns it
+     *
+     * @param x         input channels x time
+     * @param out       output channels x samples, overwritten
+     * @param intercept per output channel the trend at the first output sample
+     * @param slope     per output channel the increase of the trend per input sample, so the trend
+     *                  at output sample j is intercept+slope*(windowTimeIdx[j]-windowTimeIdx[0])
+     */
+    public void apply(double[][] x, double[][] out, double[] intercept, double[] slope) {
+        trend(x);
+        mix(x, out);
+        for (int o = 0; o < mix.length; o++) {
+            double ao = 0, bo = 0;
+            for (int i : mixIdx[o]) {
+                ao += mix[o][i] * a[i];
+                bo += mix[o][i] * b[i];
+            }
+            intercept[o] = ao + bo * timeIdx[0];
+            slope[o] = bo;
+        }
+    }
+
+    // least squares fit a+b*t of the used input channels, as Matrix.detrend
+    private void trend(double[][] x) {
+        for (int i : used) {
+            double[] row = x[i];
+            double sx = 0, stx = 0;
+            for (int t = 0; t < nSamp; t++) {
+                sx += row[t];
+                stx += (t - tMean) * row[t];
+            }
+            b[i] = nSamp > 1 ? stx / tVar : 0;
+            a[i] = sx / nSamp - b[i] * tMean;
+        }
+    }
+
+    private void mix(double[][] x, double[][] out) {
+        for (int o = 0; o < mix.length; o++) {
+            double[] row = out[o];
+            for (int j = 0; j < timeIdx.length; j++) row[j] = 0;
+            for (int i : mixIdx[o]) {
+                double w = mix[o][i];
+                double[] in = x[i];
+                for (int j = 0; j < timeIdx.length; j++) row[j] += w * in[timeIdx[j]];
+            }
+        }
+    }
+}